@@ -39,6 +39,8 @@ import org.lealone.storage.StorageCommand;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.aose.btree.BTreeMap;
 import org.lealone.storage.aose.btree.BTreeMapBuilder;
+import org.lealone.storage.aose.btree.ChunkCompactor;
+import org.lealone.storage.aose.btree.PageCache;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.replication.ReplicationSession;
@@ -55,10 +57,13 @@ public class AOStorage extends StorageBase {
     public static final int SUFFIX_AO_FILE_LENGTH = SUFFIX_AO_FILE.length();
 
     private final PageOperationHandlerFactory pohFactory;
+    private final PageCache pageCache;
+    private ChunkCompactor chunkCompactor;
 
     AOStorage(Map<String, Object> config, PageOperationHandlerFactory pohFactory) {
         super(config);
         this.pohFactory = pohFactory;
+        this.pageCache = new PageCache(config);
         String storagePath = getStoragePath();
         DataUtils.checkNotNull(storagePath, "storage path");
         if (!FileUtils.exists(storagePath))
@@ -76,6 +81,29 @@ public class AOStorage extends StorageBase {
         return pohFactory;
     }
 
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    public synchronized ChunkCompactor getChunkCompactor() {
+        if (chunkCompactor == null) {
+            chunkCompactor = new ChunkCompactor(config, pohFactory);
+            chunkCompactor.start();
+        }
+        return chunkCompactor;
+    }
+
+    @Override
+    public void closeImmediately() {
+        super.closeImmediately();
+        synchronized (this) {
+            if (chunkCompactor != null) {
+                chunkCompactor.close();
+                chunkCompactor = null;
+            }
+        }
+    }
+
     @Override
     public <K, V> StorageMap<K, V> openMap(String name, StorageDataType keyType, StorageDataType valueType,
             Map<String, String> parameters) {
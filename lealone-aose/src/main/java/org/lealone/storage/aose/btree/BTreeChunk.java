@@ -5,9 +5,11 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
 import org.lealone.storage.fs.FileStorage;
 
 /**
@@ -54,15 +56,46 @@ public class BTreeChunk {
     public long sumOfLivePageLength;
 
     public int pagePositionAndLengthOffset;
-    public final HashMap<Long, Integer> pagePositionToLengthMap = new HashMap<>();
+    PagePositionMap pagePositionToLengthMap = new PagePositionMap();
 
     public FileStorage fileStorage;
     public long mapSize;
 
+    /**
+     * The number of chunk body bytes already flushed to the file by an incremental checkpoint.
+     * Pages written after a flush start at this offset, not at the start of the write buffer.
+     */
+    int bodyOffset;
+
+    /**
+     * The read-only mapping of the whole chunk file, only used when memory mapped reads are enabled.
+     */
+    volatile ByteBuffer mappedBuffer;
+    volatile boolean mappingFailed;
+
+    // 压缩key时用的临时buffer，同一个chunk只在一个线程中写，写完所有page后就释放
+    private DataBuffer keyBuffer;
+
     BTreeChunk(int id) {
         this.id = id;
     }
 
+    DataBuffer getKeyBuffer() {
+        if (keyBuffer == null)
+            keyBuffer = DataBuffer.create(null, 1024, false); // 需要用getBytes()，所以不能是direct buffer
+        else
+            keyBuffer.clear();
+        return keyBuffer;
+    }
+
+    void releaseKeyBuffer() {
+        keyBuffer = null;
+    }
+
+    int getPageOffset(int buffPosition) {
+        return bodyOffset + buffPosition;
+    }
+
     int getPageLength(long pagePosition) {
         return pagePositionToLengthMap.get(pagePosition);
     }
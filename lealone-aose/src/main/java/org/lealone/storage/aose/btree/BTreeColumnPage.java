@@ -99,9 +99,7 @@ class BTreeColumnPage extends BTreePage {
         compressPage(buff, compressStart, compressType, compressTypePos);
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (!replicatePage) {
             updateChunkAndCachePage(chunk, start, pageLength, type);
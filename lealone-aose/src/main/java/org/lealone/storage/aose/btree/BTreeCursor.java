@@ -26,6 +26,12 @@ class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
     private K currentKey, lastKey;
     private V currentValue, lastValue;
 
+    // 顺序扫描时预读后面的leaf page，预读的page数会随着扫描速度调整
+    private int leafPageCount; // 已经扫描过的leaf page数
+    private int readAheadPages; // 当前预读的page数
+    private BTreePage readAheadNode; // 正在预读哪个node page的子page
+    private int readAheadIndex; // 子page已经预读到哪里了(不包含)
+
     BTreeCursor(BTreeMap<K, ?> map, BTreePage root, IterationParameters<K> parameters) {
         this.map = map;
         this.parameters = parameters;
@@ -107,9 +113,43 @@ class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
                 break;
             }
             if (pos.index < map.getChildPageCount(pos.page)) {
+                readAhead(pos.page, pos.index);
                 min(pos.page.getChildPage(pos.index++), null);
             }
         }
         currentKey = null;
     }
+
+    /**
+     * Read the leaf pages after the given child page of a node page ahead, once the cursor
+     * has moved from leaf page to leaf page a few times. If the next leaf page is still not
+     * in memory when the cursor gets there, the scan is faster than the reads, and the number
+     * of pages read ahead is doubled, up to the configured maximum.
+     * 
+     * @param node the node page
+     * @param index the index of the child page the cursor moves to
+     */
+    private void readAhead(BTreePage node, int index) {
+        // 从第一个leaf page移到下一个leaf page时才认为是顺序扫描，短的范围查询不预读
+        if (++leafPageCount < 2 || !node.isLeafChildPage(index))
+            return;
+        BTreeStorage storage = map.getBTreeStorage();
+        int maxPages = storage.getReadAheadPages();
+        if (maxPages <= 0)
+            return;
+        if (node != readAheadNode) {
+            readAheadNode = node;
+            readAheadIndex = index;
+        }
+        PageReference ref = node.getChildPageReference(index);
+        if (ref.page == null && !storage.isPageCached(ref.pos))
+            readAheadPages = Math.min(Math.max(readAheadPages * 2, 2), maxPages);
+        int end = Math.min(index + 1 + readAheadPages, map.getChildPageCount(node));
+        for (int i = Math.max(readAheadIndex, index + 1); i < end; i++) {
+            ref = node.getChildPageReference(i);
+            if (ref.page == null)
+                storage.readAheadPage(ref.pos);
+        }
+        readAheadIndex = Math.max(readAheadIndex, end);
+    }
 }
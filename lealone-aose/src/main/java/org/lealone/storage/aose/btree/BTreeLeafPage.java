@@ -257,7 +257,7 @@ public class BTreeLeafPage extends BTreeLocalPage {
         int type = buff.get();
         buff = expandPage(buff, type, start, pageLength);
 
-        map.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, type, keyLength);
         values = new Object[keyLength];
         map.getValueType().read(buff, values, keyLength);
         totalCount = keyLength;
@@ -284,7 +284,7 @@ public class BTreeLeafPage extends BTreeLocalPage {
         }
         buff = expandPage(buff, type, start, pageLength);
 
-        map.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, type, keyLength);
         values = new Object[keyLength];
         StorageDataType valueType = map.getValueType();
         for (int row = 0; row < keyLength; row++) {
@@ -378,16 +378,15 @@ public class BTreeLeafPage extends BTreeLocalPage {
         int typePos = buff.position();
         buff.put((byte) type);
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, keyLength);
+        int keyCompressed = writeKeys(chunk, buff, keyLength);
         map.getValueType().write(buff, values, keyLength);
         writeReplicationHostIds(replicationHostIds, buff);
 
-        compressPage(buff, compressStart, type, typePos);
+        buff.putByte(typePos, (byte) (type | keyCompressed));
+        compressPage(buff, compressStart, type | keyCompressed, typePos);
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (replicatePage) {
             chunk.pagePositionToLengthMap.put(0L, pageLength);
@@ -414,18 +413,17 @@ public class BTreeLeafPage extends BTreeLocalPage {
             buff.putLong(0);
         }
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, keyLength);
+        int keyCompressed = writeKeys(chunk, buff, keyLength);
         for (int row = 0; row < keyLength; row++) {
             valueType.writeMeta(buff, values[row]);
         }
         writeReplicationHostIds(replicationHostIds, buff);
-        compressPage(buff, compressStart, type, typePos);
+        buff.putByte(typePos, (byte) (type | keyCompressed));
+        compressPage(buff, compressStart, type | keyCompressed, typePos);
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         long[] posArray = new long[columnCount];
         for (int col = 0; col < columnCount; col++) {
@@ -17,7 +17,10 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.nio.ByteBuffer;
+
 import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
 import org.lealone.storage.PageOperationHandler;
 import org.lealone.storage.type.StorageDataType;
 
@@ -62,6 +65,23 @@ public abstract class BTreeLocalPage extends BTreePage {
         super(map, handler);
     }
 
+    // 返回值需要加到page的类型字节中
+    int writeKeys(BTreeChunk chunk, DataBuffer buff, int keyLength) {
+        StorageDataType keyType = map.getKeyType();
+        if (map.getBTreeStorage().isKeyCompressionEnabled()
+                && KeyCompressor.write(keyType, buff, chunk.getKeyBuffer(), keys, keyLength))
+            return PageUtils.PAGE_KEY_COMPRESSED;
+        keyType.write(buff, keys, keyLength);
+        return 0;
+    }
+
+    void readKeys(ByteBuffer buff, int type, int keyLength) {
+        if ((type & PageUtils.PAGE_KEY_COMPRESSED) != 0)
+            KeyCompressor.read(map.getKeyType(), buff, keys, keyLength);
+        else
+            map.getKeyType().read(buff, keys, keyLength);
+    }
+
     @Override
     public Object[] getKeys() {
         return keys;
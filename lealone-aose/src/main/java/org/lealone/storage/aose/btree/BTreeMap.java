@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -116,6 +117,8 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         BTreeChunk lastChunk = btreeStorage.getLastChunk();
         if (lastChunk != null) {
             root = btreeStorage.readPage(lastChunk.rootPagePos);
+            if (root.isNode())
+                root.setRef(new PageReference(root));
             size.set(lastChunk.mapSize);
             setMaxKey(lastKey());
         } else {
@@ -477,6 +480,165 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
     }
 
+    @Override
+    public long bulkLoad(Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+        return bulkLoad(sortedEntries, btreeStorage.getBulkLoadFillRate());
+    }
+
+    /**
+     * Load sorted entries into an empty map. Instead of putting the entries one by one,
+     * the leaf pages are filled up to the given fill rate and the node pages are built
+     * bottom-up on top of them. Each page is written into a new chunk as soon as it is built,
+     * so only the positions and first keys of the pages of the current level are kept in memory.
+     * The new chunk is synced to disk before this method returns.
+     *
+     * @param sortedEntries the entries, sorted by key in ascending order, keys must be unique
+     * @param fillRate the fill rate of the pages, in percent of the page split size
+     * @return the number of loaded entries
+     */
+    public long bulkLoad(Iterator<? extends Map.Entry<K, V>> sortedEntries, int fillRate) {
+        checkWrite();
+        if (fillRate < 10 || fillRate > 100) {
+            throw DataUtils.newIllegalArgumentException("Illegal fill rate {0}", fillRate);
+        }
+        if (isShardingMode) { // sharding模式下的page需要分配到不同节点，只能逐条put
+            long count = 0;
+            while (sortedEntries.hasNext()) {
+                Map.Entry<K, V> e = sortedEntries.next();
+                put(e.getKey(), e.getValue());
+                count++;
+            }
+            return count;
+        }
+        try {
+            acquireExclusiveLock();
+
+            if (size() > 0) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Map {0} is not empty", name);
+            }
+            // 写chunk的过程中不能穿插save
+            synchronized (btreeStorage) {
+                BulkLoad bulkLoad = new BulkLoad(btreeStorage.getPageSplitSize() * fillRate / 100);
+                BTreePage newRoot;
+                try {
+                    bulkLoad.buildLeafPages(sortedEntries);
+                    if (bulkLoad.count == 0) {
+                        bulkLoad.writer.abort();
+                        return 0;
+                    }
+                    while (bulkLoad.refs.size() > 1) {
+                        bulkLoad.buildNodePages();
+                    }
+                    // 最后写的那个page就是root
+                    newRoot = bulkLoad.lastPage;
+                    bulkLoad.writer.finish(newRoot, bulkLoad.count);
+                } catch (Throwable t) {
+                    bulkLoad.writer.abort();
+                    throw t;
+                }
+                if (newRoot.isLeaf()) // root leaf page没有PageReference
+                    newRoot.setRef(null);
+                else
+                    newRoot.setRef(new PageReference(newRoot));
+                root.removeAllRecursive();
+                newRoot(newRoot);
+                size.set(bulkLoad.count);
+                setMaxKey(bulkLoad.lastKey);
+                enableParallelIfNeeded();
+            }
+        } finally {
+            releaseExclusiveLock();
+        }
+        return size();
+    }
+
+    private class BulkLoad {
+
+        final BTreeStorage.BulkLoadWriter writer = btreeStorage.createBulkLoadWriter();
+        final int maxMemory;
+        // 当前这一层已经写好的page，只保留位置和第一个key
+        ArrayList<PageReference> refs = new ArrayList<>();
+        ArrayList<Object> firstKeys = new ArrayList<>();
+        BTreePage lastPage;
+        K lastKey;
+        long count;
+
+        BulkLoad(int maxMemory) {
+            this.maxMemory = maxMemory;
+        }
+
+        void buildLeafPages(Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+            ArrayList<Object> keys = new ArrayList<>();
+            ArrayList<Object> values = new ArrayList<>();
+            int memory = PageUtils.PAGE_MEMORY;
+            while (sortedEntries.hasNext()) {
+                Map.Entry<K, V> e = sortedEntries.next();
+                K key = e.getKey();
+                V value = e.getValue();
+                DataUtils.checkNotNull(key, "key");
+                DataUtils.checkNotNull(value, "value");
+                if (lastKey != null && keyType.compare(lastKey, key) >= 0) {
+                    throw DataUtils.newIllegalArgumentException("Keys are not sorted: {0} >= {1}", lastKey, key);
+                }
+                int mem = keyType.getMemory(key) + valueType.getMemory(value);
+                if (memory + mem > maxMemory && !keys.isEmpty()) {
+                    addLeafPage(keys, values);
+                    memory = PageUtils.PAGE_MEMORY;
+                }
+                keys.add(key);
+                values.add(value);
+                memory += mem;
+                lastKey = key;
+                count++;
+            }
+            if (!keys.isEmpty()) {
+                addLeafPage(keys, values);
+            }
+        }
+
+        private void addLeafPage(ArrayList<Object> keys, ArrayList<Object> values) {
+            BTreeLeafPage p = BTreeLeafPage.create(BTreeMap.this, keys.toArray(), values.toArray(), keys.size(),
+                    0);
+            addPage(p, keys.get(0));
+            keys.clear();
+            values.clear();
+        }
+
+        // 写完就只留下位置，之后要用时再从chunk文件(或缓存)中读
+        private void addPage(BTreePage p, Object firstKey) {
+            refs.add(new PageReference(writer.write(p)));
+            firstKeys.add(firstKey);
+            lastPage = p;
+        }
+
+        // 把当前这一层的page按填充率分组，每组生成一个node page，node page中的key是右边子page的第一个key
+        void buildNodePages() {
+            ArrayList<PageReference> children = refs;
+            ArrayList<Object> childFirstKeys = firstKeys;
+            refs = new ArrayList<>();
+            firstKeys = new ArrayList<>();
+            int pageCount = children.size();
+            int from = 0;
+            while (from < pageCount) {
+                int to = from + 1;
+                int memory = PageUtils.PAGE_MEMORY + PageUtils.PAGE_MEMORY_CHILD;
+                while (to < pageCount) {
+                    int mem = keyType.getMemory(childFirstKeys.get(to)) + PageUtils.PAGE_MEMORY_CHILD;
+                    if (memory + mem > maxMemory && to - from >= 2)
+                        break;
+                    memory += mem;
+                    to++;
+                }
+                if (pageCount - to == 1) // 不要留下只有一个子page的node page
+                    to = pageCount;
+                Object[] keys = childFirstKeys.subList(from + 1, to).toArray();
+                PageReference[] refArray = children.subList(from, to).toArray(new PageReference[to - from]);
+                addPage(BTreeNodePage.create(BTreeMap.this, keys, refArray, 0), childFirstKeys.get(from));
+                from = to;
+            }
+        }
+    }
+
     @Override
     public void remove() {
         try {
@@ -83,6 +83,9 @@ public class BTreeNodePage extends BTreeLocalPage {
         } else {
             BTreePage p = map.btreeStorage.readPage(ref, ref.pos);
             ref.replacePage(p);
+            // 从chunk文件读出的page也要关联到父节点，写操作和切割时会用到
+            p.setRef(ref);
+            p.setParentRef(getRef());
             return p;
         }
     }
@@ -240,7 +243,7 @@ public class BTreeNodePage extends BTreeLocalPage {
         }
         buff = expandPage(buff, type, start, pageLength);
 
-        map.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, type, keyLength);
         setChildrenPageKeys();
         recalculateMemory();
     }
@@ -260,9 +263,8 @@ public class BTreeNodePage extends BTreeLocalPage {
     *
     * @param chunk the chunk
     * @param buff the target buffer
-    * @return the position of the buffer just after the type
     */
-    private int write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
+    private void write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
         int start = buff.position();
         int keyLength = keys.length;
         buff.putInt(0);
@@ -286,15 +288,14 @@ public class BTreeNodePage extends BTreeLocalPage {
             }
         }
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, keyLength);
+        int keyCompressed = writeKeys(chunk, buff, keyLength);
 
-        compressPage(buff, compressStart, type, typePos);
+        buff.putByte(typePos, (byte) (type | keyCompressed));
+        compressPage(buff, compressStart, type | keyCompressed, typePos);
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (replicatePage) {
             chunk.pagePositionToLengthMap.put(0L, pageLength);
@@ -307,7 +308,6 @@ public class BTreeNodePage extends BTreeLocalPage {
 
             removeIfInMemory();
         }
-        return typePos + 1;
     }
 
     private void writeChildrenPositions(DataBuffer buff) {
@@ -322,19 +322,22 @@ public class BTreeNodePage extends BTreeLocalPage {
             // already stored before
             return;
         }
-        int patch = write(chunk, buff, false);
+        // 先写子page再写自己，这样写node page时子page的pos都已经确定了，不需要再回填，
+        // 已经写好的page也就可以在写下一个子page前分段刷到chunk文件中
+        BTreeStorage storage = map.getBTreeStorage();
         for (int i = 0, len = children.length; i < len; i++) {
             BTreePage p = children[i].page;
             if (p != null) {
                 p.writeUnsavedRecursive(chunk, buff);
-                children[i] = new PageReference(p);
+                // 不能换成新的PageReference，子page和它的子page还引用着原来的，
+                // 也不能替换page，写的过程中子page可能已经被并发的写操作换成了新的page
+                if (children[i].page == p)
+                    children[i].pos = p.getPos();
+                storage.writeChunkSegmentIfNeeded(chunk, buff);
             }
         }
         setChildrenPageKeys();
-        int old = buff.position();
-        buff.position(patch);
-        writeChildrenPositions(buff);
-        buff.position(old);
+        write(chunk, buff, false);
     }
 
     @Override
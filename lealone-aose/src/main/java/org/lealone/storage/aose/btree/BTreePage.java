@@ -520,6 +520,31 @@ public class BTreePage {
      */
     static BTreePage read(BTreeMap<?, ?> map, FileStorage fileStorage, long pos, long filePos, int pageLength) {
         ByteBuffer buff = readPageBuff(fileStorage, filePos, pageLength);
+        return read(map, buff, pos, pageLength);
+    }
+
+    /**
+     * Read a page from a slice of a memory mapped chunk file, without copying it into the heap.
+     * 
+     * @param map the map
+     * @param mappedBuffer the mapped chunk file
+     * @param pos the position
+     * @param filePos the position in the file
+     * @param pageLength the page length
+     * @return the page
+     */
+    static BTreePage read(BTreeMap<?, ?> map, ByteBuffer mappedBuffer, long pos, long filePos, int pageLength) {
+        if (pageLength < 0 || filePos + pageLength > mappedBuffer.capacity()) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Illegal page length {0} reading at {1} ", pageLength, filePos);
+        }
+        ByteBuffer buff = mappedBuffer.duplicate();
+        buff.limit((int) filePos + pageLength);
+        buff.position((int) filePos);
+        return read(map, buff.slice(), pos, pageLength);
+    }
+
+    private static BTreePage read(BTreeMap<?, ?> map, ByteBuffer buff, long pos, int pageLength) {
         int type = PageUtils.getPageType(pos);
         BTreePage p = create(map, type);
         p.pos = pos;
@@ -696,8 +721,8 @@ public class BTreePage {
         }
     }
 
-    static void writeCheckValue(DataBuffer buff, int chunkId, int start, int pageLength, int checkPos) {
-        int check = DataUtils.getCheckValue(chunkId) ^ DataUtils.getCheckValue(start)
+    static void writeCheckValue(DataBuffer buff, BTreeChunk chunk, int start, int pageLength, int checkPos) {
+        int check = DataUtils.getCheckValue(chunk.id) ^ DataUtils.getCheckValue(chunk.getPageOffset(start))
                 ^ DataUtils.getCheckValue(pageLength);
         buff.putShort(checkPos, (short) check);
     }
@@ -714,25 +739,20 @@ public class BTreePage {
         int expLen = buff.position() - compressStart;
         if (expLen > 16) {
             BTreeStorage storage = map.getBTreeStorage();
-            int compressionLevel = storage.getCompressionLevel();
-            if (compressionLevel > 0) {
-                Compressor compressor;
-                int compressType;
-                if (compressionLevel == 1) {
-                    compressor = storage.getCompressorFast();
-                    compressType = PageUtils.PAGE_COMPRESSED;
-                } else {
-                    compressor = storage.getCompressorHigh();
-                    compressType = PageUtils.PAGE_COMPRESSED_HIGH;
-                }
+            int compressType = storage.getPageCompressType();
+            if (compressType != 0) {
+                Compressor compressor = storage.getPageCompressor(compressType);
                 byte[] exp = new byte[expLen];
                 buff.position(compressStart).get(exp);
                 byte[] comp = new byte[expLen * 2];
+                long t = System.nanoTime();
                 int compLen = compressor.compress(exp, expLen, comp, 0);
                 int plus = DataUtils.getVarIntLen(compLen - expLen);
-                if (compLen + plus < expLen) {
+                if (storage.afterCompress(expLen, compLen + plus, System.nanoTime() - t)) {
                     buff.position(typePos).put((byte) (type + compressType));
                     buff.position(compressStart).putVarInt(expLen - compLen).put(comp, 0, compLen);
+                } else {
+                    buff.position(compressStart + expLen);
                 }
             }
         }
@@ -741,19 +761,17 @@ public class BTreePage {
     ByteBuffer expandPage(ByteBuffer buff, int type, int start, int pageLength) {
         boolean compressed = (type & PageUtils.PAGE_COMPRESSED) != 0;
         if (compressed) {
-            Compressor compressor;
-            if ((type & PageUtils.PAGE_COMPRESSED_HIGH) == PageUtils.PAGE_COMPRESSED_HIGH) {
-                compressor = map.getBTreeStorage().getCompressorHigh();
-            } else {
-                compressor = map.getBTreeStorage().getCompressorFast();
-            }
+            BTreeStorage storage = map.getBTreeStorage();
+            Compressor compressor = storage.getPageCompressor(type);
             int lenAdd = DataUtils.readVarInt(buff);
             int compLen = pageLength + start - buff.position();
             byte[] comp = DataUtils.newBytes(compLen);
             buff.get(comp);
             int l = compLen + lenAdd;
             ByteBuffer newBuff = ByteBuffer.allocate(l);
+            long t = System.nanoTime();
             compressor.expand(comp, 0, compLen, newBuff.array(), newBuff.arrayOffset(), l);
+            storage.afterExpand(System.nanoTime() - t);
             return newBuff;
         }
         return buff;
@@ -763,7 +781,7 @@ public class BTreePage {
         if (pos != 0) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Page already stored");
         }
-        pos = PageUtils.getPagePos(chunk.id, start, type);
+        pos = PageUtils.getPagePos(chunk.id, chunk.getPageOffset(start), type);
         chunk.pagePositionToLengthMap.put(pos, pageLength);
         chunk.sumOfPageLength += pageLength;
         chunk.pageCount++;
@@ -74,9 +74,7 @@ public class BTreeRemotePage extends BTreePage {
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (replicatePage) {
             chunk.pagePositionToLengthMap.put(0L, pageLength);
@@ -11,17 +11,18 @@ import java.io.RandomAccessFile;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.lealone.common.compress.CompressDeflate;
-import org.lealone.common.compress.CompressLZF;
+import org.lealone.common.compress.CompressTool;
 import org.lealone.common.compress.Compressor;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.BitField;
@@ -31,7 +32,7 @@ import org.lealone.db.DataBuffer;
 import org.lealone.sql.SQLStatementExecutor;
 import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.btree.PageOperations.CallableOperation;
-import org.lealone.storage.cache.CacheLongKeyLIRS;
+import org.lealone.storage.aose.btree.PageOperations.RunnableOperation;
 import org.lealone.storage.fs.FileStorage;
 import org.lealone.storage.fs.FileUtils;
 
@@ -51,6 +52,9 @@ public class BTreeStorage {
     private static final int CHUNK_HEADER_BLOCKS = 2;
     static final int CHUNK_HEADER_SIZE = CHUNK_HEADER_BLOCKS * BLOCK_SIZE;
 
+    // 没有配置checkpointSegmentSize时，bulk load每写满这么多字节就刷到chunk文件中
+    private static final int BULK_LOAD_SEGMENT_SIZE = 1024 * 1024;
+
     private static long getFilePos(int offset) {
         long filePos = offset + CHUNK_HEADER_SIZE;
         if (filePos < 0) {
@@ -65,24 +69,67 @@ public class BTreeStorage {
     private final ConcurrentHashMap<Integer, BTreeChunk> chunks = new ConcurrentHashMap<>();
     private final BitField chunkIds = new BitField();
     private final ChunkMetaData chunkMetaData;
+    private final Object compactSync = new Object();
 
     private final int pageSplitSize;
     private final int minFillRate;
+    private final int bulkLoadFillRate; // bulk load时page的填充率(pageSplitSize的百分比)
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
     /**
-     * The page cache. The default size is 16 MB, and the average size is 2 KB.
-     * It is split in 16 segments. The stack move distance is 2% of the expected number of entries.
+     * The partition of this map in the page cache shared by all maps of the storage,
+     * null if the cache is disabled.
      */
-    private final CacheLongKeyLIRS<BTreePage> cache;
+    private final PageCache.MapPageCache cache;
 
     /**
-     * The compression level for new pages (0 for disabled, 1 for fast, 2 for high).
+     * The compression algorithm for new pages (Compressor.NO, LZF, DEFLATE or LZ4).
      * Even if disabled, the storage may contain (old) compressed pages.
      */
-    private final int compressionLevel;
-    private Compressor compressorFast;
-    private Compressor compressorHigh;
+    private final int compressAlgorithm;
+    private final Compressor[] compressors = new Compressor[Compressor.LZ4 + 1];
+
+    /**
+     * In adaptive mode a page is only stored compressed if at least 1/8 of its size is saved,
+     * and after many incompressible pages in a row the next pages are not compressed at all.
+     */
+    private final boolean compressAdaptive;
+    private int incompressiblePages; // 连续不值得压缩的page数
+    private int skipCompressPages; // 还要跳过多少个page不压缩
+
+    private volatile long compressedPageCount;
+    private volatile long uncompressedPageCount;
+    private volatile long compressInputBytes;
+    private volatile long compressOutputBytes;
+    private volatile long compressTime;
+    private final AtomicLong expandTime = new AtomicLong();
+
+    private final boolean keyCompression;
+
+    /**
+     * The size in bytes of a chunk body segment for incremental checkpoints (0 for disabled).
+     * When enabled, pages are streamed to the chunk file every time the write buffer
+     * grows beyond this size, instead of being serialized into one big buffer first.
+     */
+    private final int checkpointSegmentSize;
+
+    /**
+     * Whether chunk files are memory mapped for reads. Written chunks are immutable, so each
+     * chunk is mapped once and pages are decoded directly from slices of the mapping.
+     */
+    private final boolean mmapRead;
+
+    /**
+     * The maximum number of leaf pages a cursor reads ahead in sequential scans (0 for disabled).
+     */
+    private final int readAheadPages;
+    private final Set<Long> readingAheadPages = ConcurrentHashMap.newKeySet(); // 正在预读的page
+    private final AtomicLong readAheadPageCount = new AtomicLong();
+
+    private volatile long lastCheckpointBytes;
+    private volatile long lastCheckpointTime;
+    private long checkpointStartTime;
+    private long checkpointBytes;
 
     private boolean closed;
     private volatile boolean hasUnsavedChanges;
@@ -97,14 +144,24 @@ public class BTreeStorage {
         this.map = map;
         pageSplitSize = getIntValue("pageSplitSize", 16 * 1024);
         minFillRate = getIntValue("minFillRate", 30);
-        compressionLevel = getIntValue("compress", 0);
+        bulkLoadFillRate = getIntValue("bulkLoadFillRate", 90);
+        compressAlgorithm = getCompressAlgorithm();
+        compressAdaptive = getIntValue("compressAdaptive", 0) == 1;
+        // 默认关闭，打开后写出的page带有PAGE_KEY_COMPRESSED标记，老版本读不了
+        keyCompression = getIntValue("keyCompression", 0) == 1;
+        checkpointSegmentSize = getIntValue("checkpointSegmentSize", 0);
+        mmapRead = getIntValue("mmapRead", 0) == 1;
+        readAheadPages = getIntValue("readAheadPages", 32);
         backgroundExceptionHandler = (UncaughtExceptionHandler) map.config.get("backgroundExceptionHandler");
 
         int mb = getIntValue("cacheSize", 16);
         if (mb > 0) {
-            CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
-            cc.maxMemory = mb * 1024L * 1024L;
-            cache = new CacheLongKeyLIRS<>(cc);
+            // cacheSize(MB)是这个map最多能用的内存，storage设置了pageCacheSize时所有map还要共享这个总的上限，
+            // cacheMinSize(MB)是共享时这个map至少能分到的内存
+            PageCache pageCache = ((AOStorage) map.getStorage()).getPageCache();
+            long maxMemory = mb * 1024L * 1024L;
+            long minMemory = Math.min(getIntValue("cacheMinSize", 1) * 1024L * 1024L, maxMemory);
+            cache = pageCache.register(map.getName(), minMemory, maxMemory);
         } else {
             cache = null; // 当 cacheSize <= 0 时禁用缓存
         }
@@ -120,9 +177,30 @@ public class BTreeStorage {
         chunkMetaData = new ChunkMetaData();
     }
 
+    // compress参数可以是0(不压缩)、1(LZF)、2(DEFLATE)、3(LZ4)，也可以是算法名
+    private int getCompressAlgorithm() {
+        Object value = map.config.get("compress");
+        if (value == null)
+            return Compressor.NO;
+        String s = value.toString().trim();
+        int algorithm;
+        if (s.length() > 0 && Character.isDigit(s.charAt(0)))
+            algorithm = Integer.parseInt(s);
+        else
+            algorithm = CompressTool.getCompressAlgorithm(s);
+        if (algorithm != Compressor.NO)
+            getCompressor(algorithm); // 检查算法是否存在
+        return algorithm;
+    }
+
     private int getIntValue(String key, int defaultValue) {
         Object value = map.config.get(key);
-        return value != null ? (Integer) value : defaultValue;
+        if (value == null)
+            return defaultValue;
+        else if (value instanceof Number)
+            return ((Number) value).intValue();
+        else
+            return Integer.parseInt(value.toString());
     }
 
     private List<Integer> getAllChunkIds() {
@@ -148,12 +226,9 @@ public class BTreeStorage {
         if (!c.pagePositionToLengthMap.isEmpty())
             return;
         int size = c.pageCount;
-        ByteBuffer buff = c.fileStorage.readFully(getFilePos(c.pagePositionAndLengthOffset), size * 8 + size * 4);
-        for (int i = 0; i < size; i++) {
-            long position = buff.getLong();
-            int length = buff.getInt();
-            c.pagePositionToLengthMap.put(position, length);
-        }
+        ByteBuffer buff = c.fileStorage.readFully(getFilePos(c.pagePositionAndLengthOffset),
+                size * PagePositionMap.ENTRY_SIZE);
+        c.pagePositionToLengthMap = PagePositionMap.read(buff, size);
     }
 
     private synchronized BTreeChunk readChunkHeader(int chunkId) {
@@ -332,6 +407,48 @@ public class BTreeStorage {
         }
     }
 
+    int getReadAheadPages() {
+        return cache == null ? 0 : readAheadPages; // 预读的page是放到缓存中的
+    }
+
+    /**
+     * Get the number of pages read ahead for cursors.
+     * 
+     * @return the number of pages
+     */
+    public long getReadAheadPageCount() {
+        return readAheadPageCount.get();
+    }
+
+    boolean isPageCached(long pos) {
+        return cache != null && cache.containsKey(pos);
+    }
+
+    /**
+     * Read a page into the cache in the background, if it is not cached or being read yet.
+     * The read is queued to a page operation handler, so pages read ahead by one cursor
+     * are read by several handlers in parallel.
+     * 
+     * @param pos the page position
+     */
+    void readAheadPage(long pos) {
+        if (cache == null || closed || pos <= 0 || cache.containsKey(pos) || !readingAheadPages.add(pos))
+            return;
+        Runnable task = () -> {
+            try {
+                if (!closed) {
+                    readLocalPageSync(pos);
+                    readAheadPageCount.incrementAndGet();
+                }
+            } catch (Exception e) {
+                // 忽略预读时的错误，真正读这个page时会再报出来
+            } finally {
+                readingAheadPages.remove(pos);
+            }
+        };
+        map.pohFactory.getPageOperationHandler().handlePageOperation(new RunnableOperation(task));
+    }
+
     private BTreePage getPageFromCache(long pos) {
         return cache == null ? null : cache.get(pos);
     }
@@ -343,11 +460,36 @@ public class BTreeStorage {
         BTreeChunk c = getChunk(pos);
         long filePos = getFilePos(PageUtils.getPageOffset(pos));
         int pageLength = c.getPageLength(pos);
-        p = BTreePage.read(map, c.fileStorage, pos, filePos, pageLength);
+        ByteBuffer mappedBuffer = mmapRead ? getMappedBuffer(c) : null;
+        if (mappedBuffer != null)
+            p = BTreePage.read(map, mappedBuffer, pos, filePos, pageLength);
+        else
+            p = BTreePage.read(map, c.fileStorage, pos, filePos, pageLength);
         cachePage(pos, p, p.getMemory());
         return p;
     }
 
+    // 只映射已经完整写好的chunk，正在写的chunk还是用普通的方式读
+    private static ByteBuffer getMappedBuffer(BTreeChunk c) {
+        ByteBuffer mappedBuffer = c.mappedBuffer;
+        if (mappedBuffer == null && !c.mappingFailed) {
+            long chunkLength = (long) c.blockCount * BLOCK_SIZE;
+            if (c.blockCount <= 0 || c.fileStorage.size() < chunkLength)
+                return null;
+            synchronized (c) {
+                mappedBuffer = c.mappedBuffer;
+                if (mappedBuffer == null) {
+                    mappedBuffer = c.fileStorage.mapReadOnly();
+                    if (mappedBuffer == null)
+                        c.mappingFailed = true; // 比如加密的文件，不再重试
+                    else
+                        c.mappedBuffer = mappedBuffer;
+                }
+            }
+        }
+        return mappedBuffer;
+    }
+
     /**
      * Remove a page.
      * 
@@ -372,30 +514,145 @@ public class BTreeStorage {
         }
     }
 
-    int getCompressionLevel() {
-        return compressionLevel;
+    boolean isKeyCompressionEnabled() {
+        return keyCompression;
     }
 
-    Compressor getCompressorFast() {
-        if (compressorFast == null) {
-            compressorFast = new CompressLZF();
+    /**
+     * Get the page type bits of the compression algorithm for new pages, 0 for disabled.
+     * In adaptive mode 0 is also returned if the next page should not be compressed.
+     */
+    int getPageCompressType() {
+        if (compressAlgorithm == Compressor.NO)
+            return 0;
+        if (compressAdaptive && skipCompressPages > 0) {
+            skipCompressPages--;
+            uncompressedPageCount++;
+            return 0;
+        }
+        switch (compressAlgorithm) {
+        case Compressor.LZF:
+            return PageUtils.PAGE_COMPRESSED;
+        case Compressor.DEFLATE:
+            return PageUtils.PAGE_COMPRESSED_HIGH;
+        default:
+            return PageUtils.PAGE_COMPRESSED_LZ4;
         }
-        return compressorFast;
     }
 
-    Compressor getCompressorHigh() {
-        if (compressorHigh == null) {
-            compressorHigh = new CompressDeflate();
+    /**
+     * Get the compressor for the page type bits of a compressed page.
+     *
+     * @param pageType the page type
+     * @return the compressor
+     */
+    Compressor getPageCompressor(int pageType) {
+        if ((pageType & PageUtils.PAGE_COMPRESSED_LZ4) == PageUtils.PAGE_COMPRESSED_LZ4)
+            return getCompressor(Compressor.LZ4);
+        else if ((pageType & PageUtils.PAGE_COMPRESSED_HIGH) == PageUtils.PAGE_COMPRESSED_HIGH)
+            return getCompressor(Compressor.DEFLATE);
+        else
+            return getCompressor(Compressor.LZF);
+    }
+
+    private Compressor getCompressor(int algorithm) {
+        Compressor compressor = compressors[algorithm];
+        if (compressor == null) {
+            compressor = CompressTool.getCompressor(algorithm);
+            compressors[algorithm] = compressor;
         }
-        return compressorHigh;
+        return compressor;
+    }
+
+    /**
+     * Decide whether a compressed page is kept, and update the compression statistics.
+     *
+     * @param expLen the length before compression
+     * @param compLen the length after compression
+     * @param time the time in nanoseconds the compression took
+     * @return true if the compressed page should be stored
+     */
+    boolean afterCompress(int expLen, int compLen, long time) {
+        boolean compressed;
+        if (compressAdaptive) {
+            compressed = compLen <= expLen - (expLen >> 3);
+            if (compressed) {
+                incompressiblePages = 0;
+            } else if (++incompressiblePages >= 16) {
+                incompressiblePages = 0;
+                skipCompressPages = 64;
+            }
+        } else {
+            compressed = compLen < expLen;
+        }
+        compressTime += time;
+        compressInputBytes += expLen;
+        if (compressed) {
+            compressedPageCount++;
+            compressOutputBytes += compLen;
+        } else {
+            uncompressedPageCount++;
+            compressOutputBytes += expLen;
+        }
+        return compressed;
+    }
+
+    void afterExpand(long time) {
+        expandTime.addAndGet(time);
+    }
+
+    public long getCompressedPageCount() {
+        return compressedPageCount;
+    }
+
+    /**
+     * Get the number of pages that were stored uncompressed although compression is enabled,
+     * because compression did not pay or was skipped in adaptive mode.
+     *
+     * @return the number of pages
+     */
+    public long getUncompressedPageCount() {
+        return uncompressedPageCount;
+    }
+
+    /**
+     * Get the ratio of the stored size to the original size of all pages compression was tried on.
+     *
+     * @return the ratio, 1 if no page was compressed
+     */
+    public double getCompressionRatio() {
+        long in = compressInputBytes;
+        return in == 0 ? 1 : (double) compressOutputBytes / in;
+    }
+
+    /**
+     * Get the time in milliseconds spent compressing pages.
+     *
+     * @return the time in milliseconds
+     */
+    public long getCompressTime() {
+        return compressTime / 1000000;
+    }
+
+    /**
+     * Get the time in milliseconds spent expanding pages.
+     *
+     * @return the time in milliseconds
+     */
+    public long getExpandTime() {
+        return expandTime.get() / 1000000;
     }
 
     public int getPageSplitSize() {
         return pageSplitSize;
     }
 
+    public int getBulkLoadFillRate() {
+        return bulkLoadFillRate;
+    }
+
     /**
-     * Get the maximum cache size, in MB.
+     * Get the cache size this map may use now, in MB.
      * 
      * @return the cache size
      */
@@ -403,11 +660,11 @@ public class BTreeStorage {
         if (cache == null) {
             return 0;
         }
-        return (int) (cache.getMaxMemory() / 1024 / 1024);
+        return (int) (cache.getLimit() / 1024 / 1024);
     }
 
     /**
-     * Set the read cache size in MB.
+     * Set the maximum read cache size of this map in MB.
      * 
      * @param mb the cache size in MB.
      */
@@ -418,6 +675,18 @@ public class BTreeStorage {
         }
     }
 
+    public long getCacheHits() {
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    public long getCacheEvictions() {
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
     long getDiskSpaceUsed() {
         return FileUtils.folderSize(new File(btreeStoragePath));
     }
@@ -473,13 +742,14 @@ public class BTreeStorage {
             for (BTreeChunk c : chunks.values()) {
                 if (c.fileStorage != null)
                     c.fileStorage.close();
+                c.mappedBuffer = null; // 由GC解除映射
             }
             chunks.clear();
 
             // release memory early - this is important when called
             // because of out of memory
             if (cache != null)
-                cache.clear();
+                ((AOStorage) map.getStorage()).getPageCache().unregister(cache);
 
             chunkMetaData.close();
         }
@@ -504,9 +774,16 @@ public class BTreeStorage {
      * Save all changes and persist them to disk.
      * This method does nothing if there are no unsaved changes.
      */
-    synchronized void save() {
+    void save() {
+        if (saveIfNeeded() && !closed && minFillRate > 0) {
+            // 在后台回收和重写chunk，不阻塞save
+            ((AOStorage) map.getStorage()).getChunkCompactor().addStorage(this);
+        }
+    }
+
+    private synchronized boolean saveIfNeeded() {
         if (closed) {
-            return;
+            return false;
         }
 
         if (map.isReadOnly()) {
@@ -514,17 +791,40 @@ public class BTreeStorage {
         }
 
         if (!hasUnsavedChanges()) {
-            return;
+            return false;
         }
 
         try {
             executeSave(false);
-            new Compactor().executeCompact();
+            return true;
         } catch (IllegalStateException e) {
             throw panic(e);
         }
     }
 
+    /**
+     * Remove unused chunks and re-write chunks with a low fill rate in the current thread.
+     * 
+     * @return the number of bytes reclaimed
+     */
+    public long compact() {
+        return compact(null);
+    }
+
+    long compact(ChunkCompactor chunkCompactor) {
+        if (closed || map.isReadOnly())
+            return 0;
+        synchronized (compactSync) {
+            try {
+                return new Compactor(chunkCompactor).executeCompact();
+            } catch (IllegalStateException e) {
+                if (closed) // 在后台回收时存储被关闭了
+                    return 0;
+                throw panic(e);
+            }
+        }
+    }
+
     synchronized void forceSave() {
         if (closed) {
             return;
@@ -533,42 +833,164 @@ public class BTreeStorage {
     }
 
     private void executeSave(boolean force) {
-        int id = chunkIds.nextClearBit(1);
-        chunkIds.set(id);
-        BTreeChunk c = new BTreeChunk(id);
-        chunks.put(id, c);
-
+        BTreeChunk c = createChunk();
         BTreePage p = map.root;
         DataBuffer buff = DataBuffer.create();
         // 如果不写，rootPagePos会是0，重新打开时会报错
         // if (p.getTotalCount() > 0 || force) {
         p.writeUnsavedRecursive(c, buff);
-        c.rootPagePos = p.getPos();
         // p.writeEnd();
         // }
+        writeChunk(c, buff, p.getPos(), map.size());
+    }
+
+    private BTreeChunk createChunk() {
+        checkpointStartTime = System.currentTimeMillis();
+        checkpointBytes = 0;
+
+        int id = chunkIds.nextClearBit(1);
+        chunkIds.set(id);
+        BTreeChunk c = new BTreeChunk(id);
+        chunks.put(id, c);
+        c.fileStorage = getFileStorage(c.id);
+        return c;
+    }
+
+    // page都已经写到buff中或chunk文件中了，这里写剩下的page位置信息和chunk header
+    private void writeChunk(BTreeChunk c, DataBuffer buff, long rootPagePos, long mapSize) {
+        c.releaseKeyBuffer();
+        c.rootPagePos = rootPagePos;
 
-        c.pagePositionAndLengthOffset = buff.position();
-        for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-            buff.putLong(e.getKey()).putInt(e.getValue());
+        c.pagePositionAndLengthOffset = c.getPageOffset(buff.position());
+        PagePositionMap pagePositions = c.pagePositionToLengthMap;
+        for (int i = 0, size = pagePositions.size(); i < size; i++) {
+            buff.putLong(pagePositions.getPosition(i)).putInt(pagePositions.getLength(i));
+            writeChunkSegmentIfNeeded(c, buff);
         }
 
-        int chunkBodyLength = buff.position();
+        int chunkBodyLength = c.getPageOffset(buff.position());
         chunkBodyLength = MathUtils.roundUpInt(chunkBodyLength, BLOCK_SIZE);
-        buff.limit(chunkBodyLength);
+        buff.limit(chunkBodyLength - c.bodyOffset);
         buff.position(0);
 
         c.blockCount = chunkBodyLength / BLOCK_SIZE + CHUNK_HEADER_BLOCKS; // include chunk header(2 blocks).
-        c.fileStorage = getFileStorage(c.id);
-        c.mapSize = map.size();
+        c.mapSize = mapSize;
 
+        // chunk body(the remaining segment)
+        writeChunkSegment(c, buff);
         // chunk header
         writeChunkHeader(c);
-        // chunk body
-        write(c.fileStorage, CHUNK_HEADER_SIZE, buff.getBuffer());
         c.fileStorage.sync();
         buff.close();
 
         chunkMetaData.update(c);
+
+        lastCheckpointBytes = checkpointBytes + CHUNK_HEADER_SIZE;
+        lastCheckpointTime = System.currentTimeMillis() - checkpointStartTime;
+    }
+
+    /**
+     * Flush the pages written so far to the chunk file if the buffer is larger than the segment size.
+     * This must only be called between two pages.
+     * 
+     * @param c the chunk
+     * @param buff the write buffer
+     */
+    void writeChunkSegmentIfNeeded(BTreeChunk c, DataBuffer buff) {
+        writeChunkSegmentIfNeeded(c, buff, checkpointSegmentSize);
+    }
+
+    private void writeChunkSegmentIfNeeded(BTreeChunk c, DataBuffer buff, int segmentSize) {
+        if (segmentSize > 0 && buff.position() >= segmentSize) {
+            int end = buff.position();
+            int length = end / BLOCK_SIZE * BLOCK_SIZE; // 按block对齐写，加密文件只支持对齐的追加写
+            buff.limit(length);
+            buff.position(0);
+            writeChunkSegment(c, buff);
+            // 不足一个block的部分移到buff的开头，跟后面的page一起写
+            ByteBuffer b = buff.getBuffer();
+            b.limit(end);
+            b.position(length);
+            b.compact();
+        }
+    }
+
+    private void writeChunkSegment(BTreeChunk c, DataBuffer buff) {
+        int length = buff.limit();
+        write(c.fileStorage, getFilePos(c.bodyOffset), buff.getBuffer());
+        c.bodyOffset += length;
+        checkpointBytes += length;
+    }
+
+    /**
+     * Create a writer that streams the pages of a bulk load into a new chunk.
+     * The caller must hold the lock of this storage until the writer is finished or aborted,
+     * so that no save can run in between.
+     *
+     * @return the writer
+     */
+    BulkLoadWriter createBulkLoadWriter() {
+        return new BulkLoadWriter();
+    }
+
+    // bulk load时page生成一个就写一个，写满一段就刷到新chunk的文件中，树中只需要保留page的位置，
+    // 不用等整棵树都在内存中建好了再保存
+    class BulkLoadWriter {
+
+        private final BTreeChunk chunk = createChunk();
+        private final DataBuffer buff = DataBuffer.create();
+        private final int segmentSize = checkpointSegmentSize > 0 ? checkpointSegmentSize
+                : BULK_LOAD_SEGMENT_SIZE;
+
+        /**
+         * Write the page. The child pages of a node page must have been written before.
+         *
+         * @param p the page
+         * @return the position of the page
+         */
+        long write(BTreePage p) {
+            p.writeUnsavedRecursive(chunk, buff);
+            writeChunkSegmentIfNeeded(chunk, buff, segmentSize);
+            return p.getPos();
+        }
+
+        void finish(BTreePage root, long mapSize) {
+            writeChunk(chunk, buff, root.getPos(), mapSize);
+        }
+
+        // 出错时删掉写了一半的chunk，缓存中的page也要删掉，因为chunk id会被重用
+        void abort() {
+            buff.close();
+            chunk.releaseKeyBuffer();
+            if (cache != null) {
+                PagePositionMap pagePositions = chunk.pagePositionToLengthMap;
+                for (int i = 0, size = pagePositions.size(); i < size; i++) {
+                    cache.remove(pagePositions.getPosition(i));
+                }
+            }
+            chunk.fileStorage.close();
+            chunk.fileStorage.delete();
+            chunks.remove(chunk.id);
+            chunkIds.clear(chunk.id);
+        }
+    }
+
+    /**
+     * Get the number of bytes written by the last checkpoint, include the chunk header.
+     * 
+     * @return the number of bytes
+     */
+    public long getLastCheckpointBytes() {
+        return lastCheckpointBytes;
+    }
+
+    /**
+     * Get the time in milliseconds the last checkpoint took.
+     * 
+     * @return the time in milliseconds
+     */
+    public long getLastCheckpointTime() {
+        return lastCheckpointTime;
     }
 
     // chunkMetaData文件保存上一个chunk的id以及所有已经删除的page的pos
@@ -615,7 +1037,7 @@ public class BTreeStorage {
         }
 
         private synchronized TreeSet<Long> getRemovedPages() {
-            return removedPages;
+            return new TreeSet<>(removedPages);
         }
 
         private synchronized void addRemovedPage(long pagePos) {
@@ -627,10 +1049,9 @@ public class BTreeStorage {
             write();
         }
 
-        private synchronized void update(TreeSet<Long> removedPages) {
-            this.removedPages.clear();
-            this.removedPages.addAll(removedPages);
-            write();
+        private synchronized void removeRemovedPages(Collection<Long> pagePositions) {
+            if (removedPages.removeAll(pagePositions))
+                write();
         }
 
         private synchronized void write() {
@@ -665,42 +1086,64 @@ public class BTreeStorage {
      */
     private class Compactor {
 
-        private void executeCompact() {
+        private final ChunkCompactor chunkCompactor;
+
+        private Compactor(ChunkCompactor chunkCompactor) {
+            this.chunkCompactor = chunkCompactor;
+        }
+
+        private long executeCompact() {
             TreeSet<Long> removedPages = chunkMetaData.getRemovedPages();
             if (removedPages.isEmpty())
-                return;
+                return 0;
 
-            removeUnusedChunks(removedPages);
+            long reclaimedBytes = removeUnusedChunks(removedPages);
 
             if (minFillRate <= 0)
-                return;
+                return reclaimedBytes;
 
             if (!removedPages.isEmpty()) {
                 List<BTreeChunk> old = getOldChunks();
                 if (!old.isEmpty()) {
+                    // 重写的过程不持有save的锁，前台的save可以照常进行
                     boolean saveIfNeeded = rewrite(old, removedPages);
                     if (saveIfNeeded) {
-                        executeSave(false);
+                        saveIfNeeded();
                         removedPages = chunkMetaData.getRemovedPages();
-                        removeUnusedChunks(removedPages);
+                        reclaimedBytes += removeUnusedChunks(removedPages);
                     }
                 }
             }
+            return reclaimedBytes;
         }
 
-        private void removeUnusedChunks(TreeSet<Long> removedPages) {
-            int size = removedPages.size();
-            for (BTreeChunk c : findUnusedChunks(removedPages)) {
-                c.fileStorage.close();
-                c.fileStorage.delete();
-                chunks.remove(c.id);
-                chunkIds.clear(c.id);
-                removedPages.removeAll(c.pagePositionToLengthMap.keySet());
+        private long removeUnusedChunks(TreeSet<Long> removedPages) {
+            readAllChunks();
+            long reclaimedBytes = 0;
+            ArrayList<Long> reclaimedPages = new ArrayList<>();
+            // 跟executeSave互斥，正在写的chunk还没有page，不能被当成无用的chunk删掉
+            synchronized (BTreeStorage.this) {
+                if (closed)
+                    return 0;
+                for (BTreeChunk c : findUnusedChunks(removedPages)) {
+                    c.mappedBuffer = null;
+                    c.fileStorage.close();
+                    c.fileStorage.delete();
+                    chunks.remove(c.id);
+                    chunkIds.clear(c.id);
+                    PagePositionMap pagePositions = c.pagePositionToLengthMap;
+                    for (int i = 0, size = pagePositions.size(); i < size; i++) {
+                        long pos = pagePositions.getPosition(i);
+                        removedPages.remove(pos);
+                        reclaimedPages.add(pos);
+                    }
+                    reclaimedBytes += (long) c.blockCount * BLOCK_SIZE;
+                }
             }
-
-            if (size > removedPages.size()) {
-                chunkMetaData.update(removedPages);
+            if (!reclaimedPages.isEmpty()) {
+                chunkMetaData.removeRemovedPages(reclaimedPages);
             }
+            return reclaimedBytes;
         }
 
         private ArrayList<BTreeChunk> findUnusedChunks(TreeSet<Long> removedPages) {
@@ -708,39 +1151,39 @@ public class BTreeStorage {
             if (removedPages.isEmpty())
                 return unusedChunks;
 
-            readAllChunks();
-
+            BTreeChunk lastChunk = getLastChunk();
             for (BTreeChunk c : chunks.values()) {
                 c.sumOfLivePageLength = 0;
                 boolean unused = true;
-                for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-                    if (!removedPages.contains(e.getKey())) {
-                        c.sumOfLivePageLength += e.getValue();
+                PagePositionMap pagePositions = c.pagePositionToLengthMap;
+                for (int i = 0, size = pagePositions.size(); i < size; i++) {
+                    if (!removedPages.contains(pagePositions.getPosition(i))) {
+                        c.sumOfLivePageLength += pagePositions.getLength(i);
                         unused = false;
                     }
                 }
-                if (unused)
+                if (unused && c != lastChunk)
                     unusedChunks.add(c);
             }
             return unusedChunks;
         }
 
+        // readChunkHeader会同时读取page的位置信息，已经在chunks中的chunk不需要再读
         private void readAllChunks() {
             for (int id : getAllChunkIds()) {
                 if (!chunks.containsKey(id)) {
                     readChunkHeader(id);
                 }
             }
-            for (BTreeChunk c : chunks.values()) {
-                readPagePositions(c);
-            }
         }
 
+        // 按live page的比例(sumOfLivePageLength / sumOfPageLength)从低到高选出要重写的chunk
         private List<BTreeChunk> getOldChunks() {
             long maxBytesToWrite = BTreeChunk.MAX_SIZE;
             List<BTreeChunk> old = new ArrayList<>();
+            BTreeChunk lastChunk = getLastChunk();
             for (BTreeChunk c : chunks.values()) {
-                if (c.getFillRate() > minFillRate)
+                if (c == lastChunk || c.getFillRate() > minFillRate)
                     continue;
                 old.add(c);
             }
@@ -772,10 +1215,18 @@ public class BTreeStorage {
         private boolean rewrite(List<BTreeChunk> old, TreeSet<Long> removedPages) {
             boolean saveIfNeeded = false;
             for (BTreeChunk c : old) {
-                for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-                    long pos = e.getKey();
+                PagePositionMap pagePositions = c.pagePositionToLengthMap;
+                for (int i = 0, size = pagePositions.size(); i < size; i++) {
+                    long pos = pagePositions.getPosition(i);
                     if (PageUtils.isLeafPage(pos)) {
                         if (!removedPages.contains(pos)) {
+                            if (chunkCompactor != null) {
+                                if (chunkCompactor.isClosing())
+                                    return saveIfNeeded;
+                                chunkCompactor.beforeRewrite(pagePositions.getLength(i));
+                            }
+                            if (closed)
+                                return false;
                             BTreePage p = readPage(pos);
                             if (p.getKeyCount() > 0) {
                                 Object key = p.getKey(0);
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.aose.btree;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.storage.PageOperationHandler;
+import org.lealone.storage.PageOperationHandlerFactory;
+
+/**
+ * 在后台线程中回收和重写chunk，不再占用BTreeStorage.save()的时间。
+ * <p>
+ * 每次BTreeStorage保存完一个新chunk后会把自己加到待处理的队列中，
+ * 后台线程按live page的比例选出需要重写的chunk，重写时的写入速度受compactionIoBudget(MB/s)限制，
+ * 可以手动暂停，当PageOperationHandler的负载超过compactionPauseLoad时也会自动暂停。
+ *
+ * @author zhh
+ */
+public class ChunkCompactor extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkCompactor.class);
+
+    private final ConcurrentHashMap<BTreeStorage, BTreeStorage> pendingStorages = new ConcurrentHashMap<>();
+    private final Semaphore semaphore = new Semaphore(1);
+    private final PageOperationHandlerFactory pohFactory;
+    private final long ioBudget; // 每秒最多重写多少字节，0表示不限制
+    private final long pauseLoad; // 前台负载超过它就暂停，0表示不自动暂停
+    private final long loopInterval;
+
+    private volatile boolean paused;
+    private volatile boolean isClosed;
+
+    private volatile long lastReclaimedBytes;
+    private volatile long totalReclaimedBytes;
+
+    private long runStartTime;
+    private long runWrittenBytes;
+
+    public ChunkCompactor(Map<String, Object> config, PageOperationHandlerFactory pohFactory) {
+        setName(getClass().getSimpleName());
+        setDaemon(true);
+        this.pohFactory = pohFactory;
+        ioBudget = getLongValue(config, "compactionIoBudget", 0) * 1024 * 1024;
+        pauseLoad = getLongValue(config, "compactionPauseLoad", 0);
+        loopInterval = getLongValue(config, "compactionLoopInterval", 1000); // 默认1秒
+    }
+
+    private static long getLongValue(Map<String, Object> config, String key, long defaultValue) {
+        Object v = config.get(key);
+        return v != null ? Long.parseLong(v.toString()) : defaultValue;
+    }
+
+    void addStorage(BTreeStorage storage) {
+        if (isClosed)
+            return;
+        pendingStorages.put(storage, storage);
+        semaphore.release();
+    }
+
+    public void pauseCompaction() {
+        paused = true;
+    }
+
+    public void resumeCompaction() {
+        paused = false;
+        semaphore.release();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void close() {
+        if (!isClosed) {
+            isClosed = true;
+            paused = false;
+            semaphore.release();
+        }
+    }
+
+    /**
+     * Get the number of bytes reclaimed by the last compaction run.
+     *
+     * @return the number of bytes
+     */
+    public long getLastReclaimedBytes() {
+        return lastReclaimedBytes;
+    }
+
+    public long getTotalReclaimedBytes() {
+        return totalReclaimedBytes;
+    }
+
+    @Override
+    public void run() {
+        while (!isClosed) {
+            try {
+                semaphore.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
+                semaphore.drainPermits();
+            } catch (InterruptedException e) {
+                throw new AssertionError();
+            }
+            if (paused || pendingStorages.isEmpty())
+                continue;
+            runStartTime = System.currentTimeMillis();
+            runWrittenBytes = 0;
+            long reclaimedBytes = 0;
+            for (BTreeStorage storage : pendingStorages.keySet()) {
+                if (isClosed)
+                    break;
+                pendingStorages.remove(storage);
+                if (storage.isClosed())
+                    continue;
+                try {
+                    reclaimedBytes += storage.compact(this);
+                } catch (Exception e) {
+                    logger.error("Failed to compact " + storage, e);
+                }
+            }
+            lastReclaimedBytes = reclaimedBytes;
+            totalReclaimedBytes += reclaimedBytes;
+        }
+    }
+
+    // 重写每个page前调用，既用于限速，也用于在前台繁忙时暂停
+    void beforeRewrite(int pageLength) {
+        while (!isClosed && (paused || isForegroundBusy())) {
+            try {
+                semaphore.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new AssertionError();
+            }
+            runStartTime = System.currentTimeMillis();
+            runWrittenBytes = 0;
+        }
+        if (ioBudget <= 0)
+            return;
+        runWrittenBytes += pageLength;
+        long expectedTime = runWrittenBytes * 1000 / ioBudget;
+        long sleepTime = expectedTime - (System.currentTimeMillis() - runStartTime);
+        if (sleepTime > 0) {
+            try {
+                Thread.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private boolean isForegroundBusy() {
+        if (pauseLoad <= 0 || pohFactory == null)
+            return false;
+        long load = 0;
+        for (PageOperationHandler h : pohFactory.getAllPageOperationHandlers()) {
+            load += h.getLoad();
+        }
+        return load > pauseLoad;
+    }
+
+    boolean isClosing() {
+        return isClosed;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.ValueLong;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * 压缩page中的keys，page类型字节中有PageUtils.PAGE_KEY_COMPRESSED标记时才使用。
+ * <p>
+ * 递增的long key(比如表的row key)只保存第一个key和相邻key的差值，
+ * 其他key(比如二级索引的ValueArray key或字符串key)先按原来的格式序列化，然后只保存跟前一个key不同的后缀。
+ *
+ * @author zhh
+ */
+class KeyCompressor {
+
+    private static final int DELTA_VALUE_LONG = 0;
+    private static final int DELTA_LONG = 1;
+    private static final int PREFIX = 2;
+
+    private KeyCompressor() {
+    }
+
+    /**
+     * Write the keys in the compressed format if it is shorter than the normal format.
+     *
+     * @param keyType the key type
+     * @param buff the target buffer
+     * @param tmp a reusable heap buffer for the serialized keys
+     * @param keys the keys
+     * @param keyLength the number of keys
+     * @return true if the compressed format is used
+     */
+    static boolean write(StorageDataType keyType, DataBuffer buff, DataBuffer tmp, Object[] keys,
+            int keyLength) {
+        if (keyLength < 2)
+            return false;
+        if (keys[0] instanceof ValueLong) {
+            if (writeDelta(buff, keys, keyLength, DELTA_VALUE_LONG))
+                return true;
+        } else if (keys[0] instanceof Long) {
+            if (writeDelta(buff, keys, keyLength, DELTA_LONG))
+                return true;
+        }
+        return writePrefix(keyType, buff, tmp, keys, keyLength);
+    }
+
+    private static long getLong(Object key, int encoding) {
+        return encoding == DELTA_VALUE_LONG ? ((ValueLong) key).getLong() : ((Long) key).longValue();
+    }
+
+    private static boolean writeDelta(DataBuffer buff, Object[] keys, int keyLength, int encoding) {
+        Class<?> c = keys[0].getClass();
+        long last = getLong(keys[0], encoding);
+        for (int i = 1; i < keyLength; i++) {
+            if (keys[i].getClass() != c)
+                return false;
+            long v = getLong(keys[i], encoding);
+            if (v - last <= 0) // 不是递增的或者溢出了
+                return false;
+            last = v;
+        }
+        buff.put((byte) encoding);
+        last = getLong(keys[0], encoding);
+        buff.putVarLong(last);
+        for (int i = 1; i < keyLength; i++) {
+            long v = getLong(keys[i], encoding);
+            buff.putVarLong(v - last);
+            last = v;
+        }
+        return true;
+    }
+
+    private static boolean writePrefix(StorageDataType keyType, DataBuffer buff, DataBuffer tmp, Object[] keys,
+            int keyLength) {
+        int[] ends = new int[keyLength];
+        for (int i = 0; i < keyLength; i++) {
+            keyType.write(tmp, keys[i]);
+            ends[i] = tmp.position();
+        }
+        byte[] bytes = tmp.getBytes();
+        int[] shared = new int[keyLength];
+        int compressedLength = 1;
+        int lastStart = 0;
+        for (int i = 0; i < keyLength; i++) {
+            int start = i == 0 ? 0 : ends[i - 1];
+            int len = ends[i] - start;
+            if (i > 0) {
+                int max = Math.min(len, start - lastStart);
+                int n = 0;
+                while (n < max && bytes[lastStart + n] == bytes[start + n])
+                    n++;
+                shared[i] = n;
+            }
+            int suffix = len - shared[i];
+            compressedLength += DataUtils.getVarIntLen(shared[i]) + DataUtils.getVarIntLen(suffix) + suffix;
+            lastStart = start;
+        }
+        if (compressedLength >= ends[keyLength - 1])
+            return false;
+        buff.put((byte) PREFIX);
+        for (int i = 0; i < keyLength; i++) {
+            int start = (i == 0 ? 0 : ends[i - 1]) + shared[i];
+            int suffix = ends[i] - start;
+            buff.putVarInt(shared[i]).putVarInt(suffix).put(bytes, start, suffix);
+        }
+        return true;
+    }
+
+    /**
+     * Read the keys written by {@link #write}.
+     *
+     * @param keyType the key type
+     * @param buff the source buffer
+     * @param keys the target array
+     * @param keyLength the number of keys
+     */
+    static void read(StorageDataType keyType, ByteBuffer buff, Object[] keys, int keyLength) {
+        int encoding = buff.get();
+        switch (encoding) {
+        case DELTA_VALUE_LONG:
+        case DELTA_LONG: {
+            long v = 0;
+            for (int i = 0; i < keyLength; i++) {
+                v += DataUtils.readVarLong(buff);
+                keys[i] = encoding == DELTA_VALUE_LONG ? ValueLong.get(v) : Long.valueOf(v);
+            }
+            break;
+        }
+        case PREFIX: {
+            // 共享的前缀就是上一个key的前缀，所以只要把后缀覆盖到同一个数组中就得到了当前key
+            byte[] bytes = new byte[64];
+            ByteBuffer keyBuff = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < keyLength; i++) {
+                int shared = DataUtils.readVarInt(buff);
+                int suffix = DataUtils.readVarInt(buff);
+                int len = shared + suffix;
+                if (len > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(len, bytes.length * 2));
+                    keyBuff = ByteBuffer.wrap(bytes);
+                }
+                buff.get(bytes, shared, suffix);
+                keyBuff.limit(len).position(0);
+                keys[i] = keyType.read(keyBuff);
+            }
+            break;
+        }
+        default:
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown key encoding {0}",
+                    encoding);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.aose.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.lealone.storage.cache.CacheLongKeyLIRS;
+
+/**
+ * 同一个AOStorage中所有map共享的page cache。
+ * <p>
+ * 每个map有自己的分区(MapPageCache)，分区内部用分段加锁的LIRS cache，
+ * 每个分区最多用map的cacheSize(MB)，默认16M。storage设置了pageCacheSize(MB)时，
+ * 所有分区加起来不超过pageCacheSize，每个map还可以用cacheMinSize(MB)设置最小配额；
+ * 没有设置pageCacheSize时每个map只受自己的cacheSize限制。
+ * <p>
+ * 每个map先分到它的最小配额，剩下的内存按各个map最近的命中数(包括刚被淘汰又被访问的page)来分配，
+ * 冷表做全表扫描时page只会被访问一次，分不到更多的内存，也就不会把其他表的热点索引page挤出去。
+ *
+ * @author zhh
+ */
+public class PageCache {
+
+    private static final int REBALANCE_INTERVAL = 1024; // 每放入这么多个page后重新分配一次内存
+
+    private final long maxMemory; // 小于等于0时不限制所有map加起来的内存
+    private final CopyOnWriteArrayList<MapPageCache> caches = new CopyOnWriteArrayList<>();
+    private final AtomicLong putCount = new AtomicLong();
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+    public PageCache(Map<String, Object> config) {
+        this(getIntValue(config, "pageCacheSize", 0) * 1024L * 1024L);
+    }
+
+    public PageCache(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    private static int getIntValue(Map<String, Object> config, String key, int defaultValue) {
+        Object v = config.get(key);
+        return v != null ? Integer.parseInt(v.toString()) : defaultValue;
+    }
+
+    /**
+     * Get the maximum memory of all maps together, in bytes.
+     * 
+     * @return the maximum memory, or 0 if only the cacheSize of each map applies
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public long getUsedMemory() {
+        long used = 0;
+        for (MapPageCache c : caches) {
+            used += c.getUsedMemory();
+        }
+        return used;
+    }
+
+    public List<MapPageCache> getMapPageCaches() {
+        return new ArrayList<>(caches);
+    }
+
+    public MapPageCache register(String mapName, long minMemory, long maxMemory) {
+        MapPageCache c = new MapPageCache(this, mapName, minMemory, maxMemory);
+        caches.add(c);
+        rebalanceLock.lock();
+        try {
+            rebalance();
+        } finally {
+            rebalanceLock.unlock();
+        }
+        return c;
+    }
+
+    public void unregister(MapPageCache c) {
+        if (caches.remove(c)) {
+            c.cache.clear();
+            rebalanceLock.lock();
+            try {
+                rebalance();
+            } finally {
+                rebalanceLock.unlock();
+            }
+        }
+    }
+
+    private void afterPut() {
+        if (maxMemory > 0 && putCount.incrementAndGet() % REBALANCE_INTERVAL == 0 && rebalanceLock.tryLock()) {
+            try {
+                rebalance();
+            } finally {
+                rebalanceLock.unlock();
+            }
+        }
+    }
+
+    // 调用者要先拿到rebalanceLock
+    private void rebalance() {
+        MapPageCache[] a = caches.toArray(new MapPageCache[0]);
+        int n = a.length;
+        if (n == 0)
+            return;
+        if (maxMemory <= 0) {
+            for (MapPageCache c : a)
+                c.setLimit(c.maxMemory);
+            return;
+        }
+        long[] limits = new long[n];
+        long[] weights = new long[n];
+        boolean[] full = new boolean[n];
+
+        // 最小配额加起来超过上限时按比例缩小
+        long minTotal = 0;
+        for (MapPageCache c : a)
+            minTotal += c.minMemory;
+        double minScale = minTotal > maxMemory ? (double) maxMemory / minTotal : 1;
+        long remaining = maxMemory;
+        for (int i = 0; i < n; i++) {
+            limits[i] = Math.min((long) (a[i].minMemory * minScale), a[i].maxMemory);
+            remaining -= limits[i];
+            weights[i] = a[i].updateWeight();
+            full[i] = limits[i] >= a[i].maxMemory;
+        }
+
+        // 剩下的内存按权重分配，超过最大配额的部分再分给其他map，都没有命中时平均分配
+        while (remaining > 0) {
+            long totalWeight = 0;
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (!full[i]) {
+                    totalWeight += weights[i];
+                    count++;
+                }
+            }
+            if (count == 0)
+                break;
+            long given = 0;
+            boolean filled = false;
+            for (int i = 0; i < n; i++) {
+                if (full[i])
+                    continue;
+                long share;
+                if (totalWeight > 0)
+                    share = (long) ((double) remaining * weights[i] / totalWeight);
+                else
+                    share = remaining / count;
+                if (limits[i] + share >= a[i].maxMemory) {
+                    share = a[i].maxMemory - limits[i];
+                    full[i] = true;
+                    filled = true;
+                }
+                limits[i] += share;
+                given += share;
+            }
+            remaining -= given;
+            if (!filled)
+                break;
+        }
+        for (int i = 0; i < n; i++) {
+            a[i].setLimit(limits[i]);
+        }
+    }
+
+    /**
+     * The page cache partition of one map.
+     */
+    public static class MapPageCache {
+
+        private final PageCache pageCache;
+        private final String mapName;
+        private final long minMemory;
+        private volatile long maxMemory;
+        private final CacheLongKeyLIRS<BTreePage> cache;
+
+        // 用最近的命中数作为分配内存的权重，每次重新分配时旧的权重减半
+        private long weight;
+        private long lastHits;
+        private long lastNonResidentHits;
+
+        private MapPageCache(PageCache pageCache, String mapName, long minMemory, long maxMemory) {
+            this.pageCache = pageCache;
+            this.mapName = mapName;
+            this.minMemory = minMemory;
+            this.maxMemory = maxMemory;
+            CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
+            cc.maxMemory = Math.max(1, Math.min(minMemory, maxMemory));
+            cache = new CacheLongKeyLIRS<>(cc);
+        }
+
+        public String getMapName() {
+            return mapName;
+        }
+
+        /**
+         * Get the memory this map may use now, in bytes.
+         * 
+         * @return the memory limit
+         */
+        public long getLimit() {
+            return cache.getMaxMemory();
+        }
+
+        public long getUsedMemory() {
+            return cache.getUsedMemory();
+        }
+
+        public long getHits() {
+            return cache.getHits();
+        }
+
+        public long getMisses() {
+            return cache.getMisses();
+        }
+
+        public long getEvictions() {
+            return cache.getEvictions();
+        }
+
+        public BTreePage get(long pos) {
+            return cache.get(pos);
+        }
+
+        boolean containsKey(long pos) {
+            return cache.containsKey(pos);
+        }
+
+        public void put(long pos, BTreePage page, int memory) {
+            cache.put(pos, page, memory);
+            pageCache.afterPut();
+        }
+
+        public void remove(long pos) {
+            cache.remove(pos);
+        }
+
+        void clear() {
+            cache.clear();
+        }
+
+        void setMaxMemory(long maxMemory) {
+            this.maxMemory = maxMemory;
+            pageCache.rebalanceLock.lock();
+            try {
+                pageCache.rebalance();
+            } finally {
+                pageCache.rebalanceLock.unlock();
+            }
+        }
+
+        private long updateWeight() {
+            long hits = cache.getHits();
+            long nonResidentHits = cache.getNonResidentHits();
+            weight = weight / 2 + (hits - lastHits) + (nonResidentHits - lastNonResidentHits);
+            lastHits = hits;
+            lastNonResidentHits = nonResidentHits;
+            return weight;
+        }
+
+        private void setLimit(long limit) {
+            limit = Math.max(1, limit);
+            long old = cache.getMaxMemory();
+            if (limit != old) {
+                cache.setMaxMemory(limit);
+                if (limit < old)
+                    cache.trim();
+            }
+        }
+    }
+}
@@ -428,11 +428,14 @@ public abstract class PageOperations {
             if (parent.needSplit()) {
                 // node page的切割直接由单一的node page处理器处理，不会产生并发问题
                 TmpNodePage tmp = splitPage(parent);
+                // 还没有读入内存的子page在读入时再关联到父节点
                 for (PageReference ref : tmp.left.page.getChildren()) {
-                    ref.page.setParentRef(tmp.left.page.getRef());
+                    if (ref.page != null)
+                        ref.page.setParentRef(tmp.left.page.getRef());
                 }
                 for (PageReference ref : tmp.right.page.getChildren()) {
-                    ref.page.setParentRef(tmp.right.page.getRef());
+                    if (ref.page != null)
+                        ref.page.setParentRef(tmp.right.page.getRef());
                 }
                 // 如果是root node page，那么直接替换
                 if (parent.getParentRef() == null) {
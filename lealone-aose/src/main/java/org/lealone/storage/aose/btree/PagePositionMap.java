@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+import org.lealone.common.util.DataUtils;
+
+/**
+ * The page directory of a chunk: page position -> page length, sorted by page position.
+ * <p>
+ * 每个entry占12个字节(8字节的page position + 4字节的page length)，跟chunk文件中的格式一样，
+ * 所以从chunk文件中读出来的ByteBuffer可以直接使用，查找时用二分查找，不需要装箱。
+ * <p>
+ * 只允许一个线程写(保存chunk的线程)，可以有多个线程同时读。
+ * 追加到末尾时不用加锁，先写entry再更新size；要在原地移动entry时(在中间插入、删除、替换长度)加写锁，
+ * 读的一方先做乐观读，读完发现被改过了再加读锁重读，所以读的时候不会漏掉移动中的entry。
+ *
+ * @author zhh
+ */
+public class PagePositionMap {
+
+    public static final int ENTRY_SIZE = 8 + 4;
+
+    private volatile ByteBuffer buff;
+    private volatile int size;
+    private final StampedLock lock = new StampedLock();
+
+    public PagePositionMap() {
+        buff = ByteBuffer.allocate(ENTRY_SIZE * 16);
+    }
+
+    private PagePositionMap(ByteBuffer buff, int size) {
+        this.buff = buff;
+        this.size = size;
+    }
+
+    /**
+     * Read the page directory from the chunk file.
+     * Chunks written by older versions are not sorted, they are sorted here.
+     *
+     * @param buff the buffer read from the chunk file
+     * @param size the number of pages
+     * @return the page directory
+     */
+    public static PagePositionMap read(ByteBuffer buff, int size) {
+        buff = buff.slice();
+        PagePositionMap map = new PagePositionMap(buff, size);
+        if (!map.isSorted())
+            map.sort();
+        return map;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getPosition(int index) {
+        return buff.getLong(index * ENTRY_SIZE);
+    }
+
+    public int getLength(int index) {
+        return buff.getInt(index * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Get the page length of the given page position.
+     *
+     * @param pos the page position
+     * @return the page length
+     * @throws IllegalStateException if the page position is not found
+     */
+    public int get(long pos) {
+        long stamp = lock.tryOptimisticRead();
+        int length = find(pos);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                length = find(pos);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (length < 0) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Page {0} not found",
+                    Long.toHexString(pos));
+        }
+        return length;
+    }
+
+    public boolean containsKey(long pos) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = find(pos) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = find(pos) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    // 找不到时返回-1
+    private int find(long pos) {
+        int size = this.size; // 先读size再读buff，读到的buff至少包含size个entry
+        ByteBuffer buff = this.buff;
+        int index = binarySearch(buff, size, pos);
+        return index < 0 ? -1 : buff.getInt(index * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Add or replace a page. Pages are written in the order of their positions,
+     * so this is normally an append.
+     *
+     * @param pos the page position
+     * @param length the page length
+     */
+    public void put(long pos, int length) {
+        int size = this.size;
+        ByteBuffer buff = this.buff;
+        int index = size;
+        if (size > 0 && pos <= getPosition(size - 1)) {
+            index = binarySearch(buff, size, pos);
+            if (index >= 0) {
+                long stamp = lock.writeLock();
+                try {
+                    buff.putInt(index * ENTRY_SIZE + 8, length);
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+                return;
+            }
+            index = -index - 1;
+        }
+        if (buff.capacity() < (size + 1) * ENTRY_SIZE) {
+            ByteBuffer newBuff = ByteBuffer.allocate(Math.max(buff.capacity() * 2, (size + 1) * ENTRY_SIZE));
+            ByteBuffer old = buff.duplicate();
+            old.position(0).limit(size * ENTRY_SIZE);
+            newBuff.put(old);
+            buff = newBuff;
+            this.buff = buff;
+        }
+        if (index < size) {
+            long stamp = lock.writeLock();
+            try {
+                ByteBuffer src = buff.duplicate();
+                src.position(index * ENTRY_SIZE).limit(size * ENTRY_SIZE);
+                ByteBuffer dst = buff.duplicate();
+                dst.position((index + 1) * ENTRY_SIZE);
+                dst.put(src.slice());
+                buff.putLong(index * ENTRY_SIZE, pos);
+                buff.putInt(index * ENTRY_SIZE + 8, length);
+                this.size = size + 1;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } else {
+            buff.putLong(index * ENTRY_SIZE, pos);
+            buff.putInt(index * ENTRY_SIZE + 8, length);
+            this.size = size + 1;
+        }
+    }
+
+    /**
+     * Remove a page.
+     *
+     * @param pos the page position
+     * @return the page length, or -1 if the page position is not found
+     */
+    public int remove(long pos) {
+        int size = this.size;
+        ByteBuffer buff = this.buff;
+        int index = binarySearch(buff, size, pos);
+        if (index < 0)
+            return -1;
+        long stamp = lock.writeLock();
+        try {
+            int length = buff.getInt(index * ENTRY_SIZE + 8);
+            if (index < size - 1) {
+                ByteBuffer src = buff.duplicate();
+                src.position((index + 1) * ENTRY_SIZE).limit(size * ENTRY_SIZE);
+                ByteBuffer dst = buff.duplicate();
+                dst.position(index * ENTRY_SIZE);
+                dst.put(src);
+            }
+            this.size = size - 1;
+            return length;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static int binarySearch(ByteBuffer buff, int size, long pos) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long p = buff.getLong(mid * ENTRY_SIZE);
+            if (p < pos)
+                low = mid + 1;
+            else if (p > pos)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private boolean isSorted() {
+        for (int i = 1; i < size; i++) {
+            if (getPosition(i - 1) > getPosition(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void sort() {
+        int size = this.size;
+        long[] positions = new long[size];
+        int[] lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = getPosition(i);
+            lengths[i] = getLength(i);
+        }
+        sort(positions, lengths, 0, size - 1);
+        ByteBuffer buff = ByteBuffer.allocate(size * ENTRY_SIZE);
+        for (int i = 0; i < size; i++) {
+            buff.putLong(positions[i]).putInt(lengths[i]);
+        }
+        this.buff = buff;
+    }
+
+    private static void sort(long[] positions, int[] lengths, int low, int high) {
+        while (low < high) {
+            long pivot = positions[(low + high) >>> 1];
+            int i = low, j = high;
+            while (i <= j) {
+                while (positions[i] < pivot)
+                    i++;
+                while (positions[j] > pivot)
+                    j--;
+                if (i <= j) {
+                    long p = positions[i];
+                    positions[i] = positions[j];
+                    positions[j] = p;
+                    int l = lengths[i];
+                    lengths[i] = lengths[j];
+                    lengths[j] = l;
+                    i++;
+                    j--;
+                }
+            }
+            // 先递归处理小的那一半，避免栈太深
+            if (j - low < high - i) {
+                sort(positions, lengths, low, j);
+                low = i;
+            } else {
+                sort(positions, lengths, i, high);
+                high = j;
+            }
+        }
+    }
+}
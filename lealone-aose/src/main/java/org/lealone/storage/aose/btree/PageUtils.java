@@ -49,6 +49,16 @@ public class PageUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for compressed pages (compression algorithm LZ4).
+     */
+    public static final int PAGE_COMPRESSED_LZ4 = 2 + 16;
+
+    /**
+     * The bit mask for pages whose keys are prefix or delta compressed, see KeyCompressor.
+     */
+    public static final int PAGE_KEY_COMPRESSED = 8;
+
     /**
      * The estimated number of bytes used per page object.
      */
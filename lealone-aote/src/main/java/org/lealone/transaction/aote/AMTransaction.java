@@ -19,11 +19,11 @@ package org.lealone.transaction.aote;
 
 import java.nio.ByteBuffer;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
@@ -42,7 +42,8 @@ import org.lealone.transaction.aote.log.UndoLog;
 
 public class AMTransaction implements Transaction {
 
-    private static final LinkedList<WaitingTransaction> EMPTY_LINKED_LIST = new LinkedList<>();
+    // 检测死锁时沿着等待链最多走这么多步，避免并发修改等待链时走不出来
+    private static final int MAX_DEADLOCK_DETECTION_DEPTH = 1024;
 
     // 以下几个public或包级别的字段是在其他地方频繁使用的，
     // 为了使用方便或节省一点点性能开销就不通过getter方法访问了
@@ -51,7 +52,7 @@ public class AMTransaction implements Transaction {
     final String transactionName;
     final LogSyncService logSyncService;
 
-    UndoLog undoLog = new UndoLog();
+    UndoLog undoLog;
     RunMode runMode;
     String globalReplicationName;
 
@@ -64,10 +65,12 @@ public class AMTransaction implements Transaction {
 
     // 被哪个事务锁住记录了
     private volatile AMTransaction lockedBy;
+    private volatile Object lockedKey;
     private long lockStartTime;
+    // 被选为死锁的牺牲者时不为null，下次检查超时的时候马上抛出死锁异常
+    private volatile String deadlockMessage;
     // 有哪些事务在等待我释放锁
-    private final AtomicReference<LinkedList<WaitingTransaction>> waitingTransactionsRef = new AtomicReference<>(
-            EMPTY_LINKED_LIST);
+    private final WaitingQueue waitingQueue = new WaitingQueue();
 
     public AMTransaction(AMTransactionEngine engine, long tid) {
         this(engine, tid, null);
@@ -77,7 +80,9 @@ public class AMTransaction implements Transaction {
         transactionEngine = engine;
         transactionId = tid;
         transactionName = getTransactionName(hostAndPort, tid);
-        logSyncService = engine.getLogSyncService();
+        // 事务日志轮流写到各个redo日志流中
+        logSyncService = engine.getLogSyncService().getPartition();
+        undoLog = new UndoLog(engine, tid);
         status = Transaction.STATUS_OPEN;
     }
 
@@ -123,13 +128,24 @@ public class AMTransaction implements Transaction {
         this.status = status;
         if (lockedBy != null && status == STATUS_OPEN) {
             lockedBy = null;
+            lockedKey = null;
             lockStartTime = 0;
+            deadlockMessage = null;
         }
     }
 
+    // 开始事务时调用，此时还没有登记到TransactionRegistry
+    void initIsolationLevel(int level) {
+        isolationLevel = level;
+    }
+
     @Override
     public void setIsolationLevel(int level) {
+        int old = isolationLevel;
         isolationLevel = level;
+        // 只有REPEATABLE_READ和SERIALIZABLE隔离级别的事务需要登记到有序表中
+        if ((old >= IL_REPEATABLE_READ) != (level >= IL_REPEATABLE_READ))
+            transactionEngine.updateIsolationLevel(this);
     }
 
     @Override
@@ -250,7 +266,12 @@ public class AMTransaction implements Transaction {
         if (logSyncService.needSync() && undoLog.isNotEmpty()) {
             // 如果需要立即做事务日志同步，那么把redo log的生成工作放在当前线程，减轻日志同步线程的工作量
             if (logSyncService.isInstantSync()) {
-                RedoLogRecord r = createLocalTransactionRedoLogRecord();
+                // 大事务的redo日志交给日志同步线程边生成边写，不在当前线程生成一个很大的buffer
+                RedoLogRecord r;
+                if (undoLog.isSpilled())
+                    r = RedoLogRecord.createLazyTransactionRedoLogRecord(transactionEngine, transactionId, undoLog);
+                else
+                    r = createLocalTransactionRedoLogRecord();
                 if (asyncCommit) {
                     logSyncService.addRedoLogRecord(r);
                     logSyncService.asyncCommit(this);
@@ -323,21 +344,15 @@ public class AMTransaction implements Transaction {
 
     private void endTransaction(boolean remove) {
         savepoints = null;
+        if (undoLog != null)
+            undoLog.release();
         undoLog = null;
         status = STATUS_CLOSED;
         if (remove)
             transactionEngine.removeTransaction(transactionId);
 
-        while (true) {
-            LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-            if (waitingTransactions != null && waitingTransactions != EMPTY_LINKED_LIST) {
-                for (WaitingTransaction waitingTransaction : waitingTransactions) {
-                    waitingTransaction.wakeUp();
-                }
-            }
-            if (waitingTransactionsRef.compareAndSet(waitingTransactions, null))
-                break;
-        }
+        // 唤醒所有等待者，之后再加入的会得到OPERATION_NEED_RETRY
+        waitingQueue.close();
         lockedBy = null;
     }
 
@@ -356,13 +371,13 @@ public class AMTransaction implements Transaction {
             String currentReplicationName, ReplicationConflictType replicationConflictType) {
         RedoLogRecord r = RedoLogRecord.createReplicaPrepareCommitRedoLogRecord(sql, updateCount, first,
                 uncommittedReplicationName, currentReplicationName, replicationConflictType);
-        logSyncService.addAndMaybeWaitForSync(r);
+        transactionEngine.getLogSyncService().addAndMaybeWaitForSync(r);
     }
 
     @Override
     public void replicaCommit(String currentReplicationName) {
         RedoLogRecord r = RedoLogRecord.createReplicaCommitRedoLogRecord(currentReplicationName);
-        logSyncService.addRedoLogRecord(r); // 不需要等待
+        transactionEngine.getLogSyncService().addRedoLogRecord(r); // 不需要等待
     }
 
     @Override
@@ -376,78 +391,96 @@ public class AMTransaction implements Transaction {
     }
 
     void wakeUpWaitingTransaction(AMTransaction transaction) {
-        while (true) {
-            LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-            LinkedList<WaitingTransaction> newWaitingTransactions = new LinkedList<>(waitingTransactions);
-            WaitingTransaction target = null;
-            for (WaitingTransaction wt : newWaitingTransactions) {
-                if (wt.getTransaction() == transaction) {
-                    target = wt;
-                    break;
-                }
-            }
-            if (target == null)
-                return;
-            newWaitingTransactions.remove(target);
-            if (waitingTransactionsRef.compareAndSet(waitingTransactions, newWaitingTransactions)) {
-                target.wakeUp();
-                return;
-            }
-        }
+        WaitingTransaction target = waitingQueue.remove(transaction);
+        if (target != null)
+            target.wakeUp();
     }
 
     int addWaitingTransaction(Object key, AMTransaction transaction, Listener listener) {
         transaction.setStatus(STATUS_WAITING);
+        // 先设置等待关系再加入队列，这样加入后马上被唤醒也能正确清除
+        transaction.waitFor(this, key);
         WaitingTransaction wt = new WaitingTransaction(key, transaction, listener);
-        while (true) {
-            // 如果已经提交了，通知重试
-            if (status == STATUS_CLOSED) {
-                transaction.setStatus(STATUS_OPEN);
-                return OPERATION_NEED_RETRY;
-            }
-            LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-            LinkedList<WaitingTransaction> newWaitingTransactions = new LinkedList<>(waitingTransactions);
-            newWaitingTransactions.add(wt);
-            if (waitingTransactionsRef.compareAndSet(waitingTransactions, newWaitingTransactions)) {
-                transaction.waitFor(this);
-                return OPERATION_NEED_WAIT;
-            }
+        // 如果已经提交了，通知重试
+        if (status == STATUS_CLOSED || !waitingQueue.offer(wt)) {
+            transaction.setStatus(STATUS_OPEN);
+            return OPERATION_NEED_RETRY;
         }
+        transaction.detectDeadlock();
+        return OPERATION_NEED_WAIT;
     }
 
-    private void waitFor(AMTransaction transaction) {
-        lockedBy = transaction;
+    private void waitFor(AMTransaction transaction, Object key) {
+        lockedKey = key;
         lockStartTime = System.currentTimeMillis();
+        lockedBy = transaction;
+    }
+
+    // 每个事务同时最多只等待一个事务，所以等待图中每个事务最多只有一条出边，
+    // 加入一条新的边后，从当前事务出发沿着lockedBy往下走，如果又回到了当前事务就说明出现了死锁。
+    // 整个过程只读其他事务的volatile字段，不需要全局锁，
+    // 并发形成的环至少会被最后一个加入等待的事务发现，因为它加入自己的边之后才去读别人的边。
+    //
+    // 出现死锁时选择undo日志最少的事务作为牺牲者，一样多时选择最新的事务。
+    // 这里不抛异常，因为加入等待的可能是别的session(比如解锁表时唤醒等待者、复制模式下的回滚)，
+    // 所以不管牺牲者是不是当前事务，都只是把它从锁拥有者的等待队列中移除并记下死锁信息，
+    // 然后唤醒它所在的调度器，让它在自己的session中检查超时的时候抛出死锁异常。
+    private void detectDeadlock() {
+        ArrayList<AMTransaction> cycle = new ArrayList<>();
+        cycle.add(this);
+        AMTransaction t = lockedBy;
+        while (t != this) {
+            if (t == null || t.status != STATUS_WAITING || cycle.size() >= MAX_DEADLOCK_DETECTION_DEPTH)
+                return;
+            cycle.add(t);
+            t = t.lockedBy;
+        }
+        AMTransaction victim = null;
+        long victimCost = Long.MAX_VALUE;
+        StringBuilder msg = new StringBuilder();
+        for (AMTransaction w : cycle) {
+            AMTransaction owner = w.lockedBy;
+            UndoLog undoLog = w.undoLog;
+            if (owner == null || undoLog == null) // 已经不再等待了
+                return;
+            long cost = undoLog.size();
+            if (cost < victimCost || cost == victimCost && w.transactionId > victim.transactionId) {
+                victim = w;
+                victimCost = cost;
+            }
+            if (msg.length() > 0)
+                msg.append("\r\n");
+            msg.append(getMsg(w.transactionId, w.session, owner, w.lockedKey));
+        }
+        AMTransaction owner = victim.lockedBy;
+        if (owner == null)
+            return;
+        // 移除失败说明牺牲者已经被唤醒了，环已经不存在了
+        WaitingTransaction wt = owner.waitingQueue.remove(victim);
+        if (wt == null)
+            return;
+        // 保持STATUS_WAITING，这样检查超时的时候才会抛出死锁异常，而不是重试
+        victim.deadlockMessage = msg.toString();
+        if (wt.getListener() != null)
+            wt.getListener().wakeUp();
     }
 
     @Override
     public void checkTimeout() {
+        String deadlockMessage = this.deadlockMessage;
+        if (deadlockMessage != null && status == STATUS_WAITING) {
+            throw DbException.get(ErrorCode.DEADLOCK_1, deadlockMessage);
+        }
         if (lockedBy != null && lockStartTime != 0
                 && System.currentTimeMillis() - lockStartTime > session.getLockTimeout()) {
-            boolean isDeadlock = false;
-            WaitingTransaction waitingTransaction = null;
-            LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-            for (WaitingTransaction wt : waitingTransactions) {
-                if (wt.getTransaction() == lockedBy) {
-                    isDeadlock = true;
-                    waitingTransaction = wt;
-                    break;
-                }
-            }
-            waitingTransactions = lockedBy.waitingTransactionsRef.get();
-            WaitingTransaction waitingTransaction2 = null;
-            for (WaitingTransaction wt : waitingTransactions) {
-                if (wt.getTransaction() == this) {
-                    waitingTransaction2 = wt;
-                    break;
-                }
-            }
-            if (isDeadlock) {
-                String msg = getMsg(transactionId, session, lockedBy, waitingTransaction2);
+            AMTransaction lockedBy = this.lockedBy;
+            WaitingTransaction waitingTransaction = waitingQueue.get(lockedBy);
+            if (waitingTransaction != null) {
+                String msg = getMsg(transactionId, session, lockedBy, lockedKey);
                 msg += "\r\n" + getMsg(lockedBy.transactionId, lockedBy.session, this, waitingTransaction);
                 throw DbException.get(ErrorCode.DEADLOCK_1, msg);
             } else {
-                String msg = getMsg(transactionId, session, lockedBy, waitingTransaction2);
+                String msg = getMsg(transactionId, session, lockedBy, lockedKey);
                 throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, msg);
             }
         }
@@ -455,8 +488,12 @@ public class AMTransaction implements Transaction {
 
     private static String getMsg(long tid, Session session, AMTransaction transaction,
             WaitingTransaction waitingTransaction) {
+        return getMsg(tid, session, transaction, waitingTransaction.getKey());
+    }
+
+    private static String getMsg(long tid, Session session, AMTransaction transaction, Object key) {
         return "transaction #" + tid + " in session " + session + " wait for transaction #" + transaction.transactionId
-                + " in session " + transaction.session + ", key: " + waitingTransaction.getKey();
+                + " in session " + transaction.session + ", key: " + key;
     }
 
     @Override
@@ -497,7 +534,12 @@ public class AMTransaction implements Transaction {
     @Override
     public void rollbackToSavepoint(int savepointId) {
         checkNotClosed();
-        rollbackTo(savepointId);
+        // 事务还没结束，只有保存点之后加的行锁被释放了，所以只唤醒等待这些key的事务，
+        // 如果保存点之前也锁了同一个key，被唤醒的事务重试时会再次进入等待
+        HashSet<Object> undoneKeys = new HashSet<>();
+        undoLog.rollbackTo(transactionEngine, savepointId, undoneKeys);
+        if (!undoneKeys.isEmpty())
+            waitingQueue.wakeUp(undoneKeys);
     }
 
     private void rollbackTo(int toLogId) {
@@ -17,22 +17,33 @@
  */
 package org.lealone.transaction.aote;
 
-import java.util.Collection;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.lealone.common.exceptions.DbException;
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.DateTimeUtils;
 import org.lealone.common.util.ShutdownHookUtils;
 import org.lealone.db.RunMode;
 import org.lealone.db.SysProperties;
+import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageEventListener;
 import org.lealone.storage.StorageMap;
@@ -40,7 +51,6 @@ import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngineBase;
 import org.lealone.transaction.TransactionMap;
 import org.lealone.transaction.aote.log.LogSyncService;
-import org.lealone.transaction.aote.log.RedoLogRecord;
 
 //async multi-version transaction engine
 public class AMTransactionEngine extends TransactionEngineBase implements StorageEventListener {
@@ -49,23 +59,44 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
 
     private static final String NAME = "AMTE";
 
+    private static final int DEFAULT_UNDO_LOG_SPILL_THRESHOLD = 256 * 1024;
+
     private static final class MapInfo {
         final StorageMap<Object, TransactionalValue> map;
         final AtomicInteger estimatedMemory = new AtomicInteger(0);
+        // 已提交的记录数，事务提交时加上它在这个map中增加或删除的记录数
+        final AtomicLong committedRowCount;
+        // 提交后oldValue链没有被马上清除的记录，由VersionGCService在后台清除
+        final Set<TransactionalValue> versionChains = ConcurrentHashMap.newKeySet();
+
+        // 以下字段只由VersionGCService更新，是最近一次清除前的版本链长度
+        volatile int chainCount;
+        volatile double avgChainLength;
+        volatile int maxChainLength;
+        volatile long reclaimedVersions;
+
+        // 执行检查点时从estimatedMemory取出来的值，用来决定保存的顺序和限速
+        int checkpointMemory;
 
         MapInfo(StorageMap<Object, TransactionalValue> map) {
             this.map = map;
+            // 第一次打开map时已经执行完redo了，此时还没有事务修改它
+            committedRowCount = new AtomicLong(map.size());
         }
     }
 
     // key: mapName
     private final ConcurrentHashMap<String, MapInfo> maps = new ConcurrentHashMap<>();
-    // key: transactionId
-    private final ConcurrentSkipListMap<Long, AMTransaction> currentTransactions = new ConcurrentSkipListMap<>();
-    private final AtomicLong lastTransactionId = new AtomicLong();
+    // 当前活跃的事务，也负责分配事务id
+    private final TransactionRegistry transactions = new TransactionRegistry();
 
     private LogSyncService logSyncService;
     private CheckpointService checkpointService;
+    private VersionGCService versionGCService;
+
+    // 单个事务的undo log记录数超过这个值时把较老的记录写到undoLogDir下的临时文件中，0表示不写
+    private int undoLogSpillThreshold = DEFAULT_UNDO_LOG_SPILL_THRESHOLD;
+    private String undoLogDir;
 
     public AMTransactionEngine() {
         super(NAME);
@@ -80,19 +111,19 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
     }
 
     AMTransaction removeTransaction(long tid) {
-        return currentTransactions.remove(tid);
+        return transactions.remove(tid);
     }
 
     boolean containsTransaction(long tid) {
-        return currentTransactions.containsKey(tid);
+        return transactions.contains(tid);
     }
 
     AMTransaction getTransaction(long tid) {
-        return currentTransactions.get(tid);
+        return transactions.get(tid);
     }
 
-    Collection<AMTransaction> getCurrentTransactions() {
-        return currentTransactions.values();
+    void updateIsolationLevel(AMTransaction t) {
+        transactions.updateIsolationLevel(t);
     }
 
     void addStorageMap(StorageMap<Object, TransactionalValue> map) {
@@ -105,8 +136,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
 
     void removeStorageMap(String mapName) {
         maps.remove(mapName);
-        RedoLogRecord r = RedoLogRecord.createDroppedMapRedoLogRecord(mapName);
-        logSyncService.addAndMaybeWaitForSync(r);
+        logSyncService.addDroppedMapRedoLogRecord(mapName);
     }
 
     ///////////////////// 以下方法在UndoLogRecord中有用途 /////////////////////
@@ -116,19 +146,59 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         return mapInfo != null ? mapInfo.map : null;
     }
 
+    public int getUndoLogSpillThreshold() {
+        return undoLogSpillThreshold;
+    }
+
+    public String getUndoLogDir() {
+        return undoLogDir;
+    }
+
     public void incrementEstimatedMemory(String mapName, int memory) {
         MapInfo mapInfo = maps.get(mapName);
         if (mapInfo != null)
             mapInfo.estimatedMemory.addAndGet(memory);
     }
 
+    public void addCommittedRowCount(String mapName, long delta) {
+        if (delta == 0)
+            return;
+        MapInfo mapInfo = maps.get(mapName);
+        if (mapInfo != null)
+            mapInfo.committedRowCount.addAndGet(delta);
+    }
+
+    void resetCommittedRowCount(String mapName) {
+        MapInfo mapInfo = maps.get(mapName);
+        if (mapInfo != null)
+            mapInfo.committedRowCount.set(0);
+    }
+
+    long getCommittedRowCount(StorageMap<?, ?> map) {
+        MapInfo mapInfo = maps.get(map.getName());
+        return mapInfo != null ? mapInfo.committedRowCount.get() : map.size();
+    }
+
+    // 提交后ref的oldValue链还在，交给VersionGCService清除
+    public void addVersionChain(String mapName, TransactionalValue ref) {
+        if (ref == null)
+            return;
+        TransactionalValue tv = ref.getRefValue();
+        if (tv == null || tv.getOldValue() == null)
+            return;
+        MapInfo mapInfo = maps.get(mapName);
+        if (mapInfo != null)
+            mapInfo.versionChains.add(ref);
+    }
+
+    // 所有REPEATABLE_READ和SERIALIZABLE隔离级别的事务都能看到version不大于这个值的已提交版本
+    long getOldestRepeatableReadVersion() {
+        return transactions.getOldestSnapshotVersion();
+    }
+
     // 看看是否有REPEATABLE_READ和SERIALIZABLE隔离级别的事务，并且事务id小于给定值tid的
     public boolean containsRepeatableReadTransactions(long lessThanVersion) {
-        for (AMTransaction t : currentTransactions.headMap(lessThanVersion).values()) {
-            if (t.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
-                return true;
-        }
-        return false;
+        return transactions.getOldestRepeatableReadTransactionId() < lessThanVersion;
     }
 
     ///////////////////// 实现TransactionEngine接口 /////////////////////
@@ -138,14 +208,24 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         if (logSyncService != null)
             return;
         checkpointService = new CheckpointService(config);
+        versionGCService = new VersionGCService(config);
         logSyncService = LogSyncService.create(config);
 
+        String v = config.get("undo_log_spill_threshold");
+        if (v != null)
+            undoLogSpillThreshold = Integer.parseInt(v);
+        undoLogDir = config.get("base_dir") + File.separator + "undo_log";
+        // 删除上次没有用完的临时文件
+        if (FileUtils.exists(undoLogDir))
+            FileUtils.deleteRecursive(undoLogDir, true);
+
         long lastTransactionId = logSyncService.getRedoLog().init();
-        this.lastTransactionId.set(lastTransactionId);
+        transactions.setLastTransactionId(lastTransactionId);
 
         // 调用完initPendingRedoLog后再启动logSyncService
         logSyncService.start();
         checkpointService.start();
+        versionGCService.start();
 
         ShutdownHookUtils.addShutdownHook(this, () -> {
             close();
@@ -158,6 +238,11 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             return;
         if (logSyncService != null) {
             // logSyncService放在最后关闭，这样还能执行一次checkpoint，下次启动时能减少redo操作的次数
+            try {
+                versionGCService.close();
+                versionGCService.join();
+            } catch (Exception e) {
+            }
             try {
                 checkpointService.close();
                 checkpointService.join();
@@ -170,21 +255,32 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             }
             this.logSyncService = null;
             this.checkpointService = null;
+            this.versionGCService = null;
         }
     }
 
     @Override
     public AMTransaction beginTransaction(boolean autoCommit, RunMode runMode) {
+        return beginTransaction(autoCommit, runMode, Transaction.IL_READ_COMMITTED);
+    }
+
+    // 隔离级别要在开始时就确定，如果开始之后再改成REPEATABLE_READ，
+    // 在这之前后台回收版本链时可能已经把这个事务能看到的版本回收了
+    @Override
+    public AMTransaction beginTransaction(boolean autoCommit, RunMode runMode, int isolationLevel) {
         if (logSyncService == null) {
             // 直接抛异常对上层很不友好，还不如用默认配置初始化
             init(getDefaultConfig());
         }
-        long tid = getTransactionId(runMode == RunMode.SHARDING);
-        AMTransaction t = createTransaction(tid, runMode);
-        t.setAutoCommit(autoCommit);
-        t.setRunMode(runMode);
-        currentTransactions.put(tid, t);
-        return t;
+        // 分布式事务使用奇数的事务ID
+        boolean isEven = runMode != RunMode.SHARDING;
+        return transactions.begin(isEven, isolationLevel, tid -> {
+            AMTransaction t = createTransaction(tid, runMode);
+            t.setAutoCommit(autoCommit);
+            t.setRunMode(runMode);
+            t.initIsolationLevel(isolationLevel);
+            return t;
+        });
     }
 
     private static Map<String, String> getDefaultConfig() {
@@ -195,14 +291,6 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         return config;
     }
 
-    private long getTransactionId(boolean isShardingMode) {
-        // 分布式事务使用奇数的事务ID
-        if (isShardingMode)
-            return nextOddTransactionId();
-        else
-            return nextEvenTransactionId();
-    }
-
     public long nextOddTransactionId() {
         return nextTransactionId(false);
     }
@@ -212,20 +300,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
     }
 
     private long nextTransactionId(boolean isEven) {
-        long oldLast;
-        long last;
-        int delta;
-        do {
-            oldLast = lastTransactionId.get();
-            last = oldLast;
-            if (last % 2 == 0)
-                delta = isEven ? 2 : 1;
-            else
-                delta = isEven ? 1 : 2;
-
-            last += delta;
-        } while (!lastTransactionId.compareAndSet(oldLast, last));
-        return last;
+        return transactions.nextTransactionId(isEven);
     }
 
     protected AMTransaction createTransaction(long tid, RunMode runMode) {
@@ -262,6 +337,36 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         checkpointService.checkpoint();
     }
 
+    // 马上执行一次版本链的清除，不用等VersionGCService
+    public void gcVersionChains() {
+        VersionGCService versionGCService = this.versionGCService;
+        if (versionGCService != null)
+            versionGCService.gcVersionChains();
+    }
+
+    @Override
+    public Map<String, String> getStatistics() {
+        LinkedHashMap<String, String> map = new LinkedHashMap<>();
+        LogSyncService logSyncService = this.logSyncService;
+        if (logSyncService != null) {
+            LogSyncService[] partitions = logSyncService.getPartitions();
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i].getMetrics().toMap("redo_log.stream" + i + ".", map);
+            }
+        }
+        CheckpointService checkpointService = this.checkpointService;
+        if (checkpointService != null)
+            checkpointService.toMap(map);
+        for (MapInfo mapInfo : maps.values()) {
+            String prefix = "version_chain." + mapInfo.map.getName() + ".";
+            map.put(prefix + "count", String.valueOf(mapInfo.chainCount));
+            map.put(prefix + "avg_length", String.valueOf(Math.round(mapInfo.avgChainLength * 10) / 10d));
+            map.put(prefix + "max_length", String.valueOf(mapInfo.maxChainLength));
+            map.put(prefix + "reclaimed_versions", String.valueOf(mapInfo.reclaimedVersions));
+        }
+        return map;
+    }
+
     ///////////////////// 实现StorageEventListener接口 /////////////////////
 
     @Override
@@ -275,17 +380,41 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         }
     }
 
+    // 满足以下任一条件时执行检查点:
+    // 1. 距离上次检查点超过了checkpoint_period
+    // 2. 已提交的数据占用的预估内存超过了committed_data_cache_size_in_mb
+    // 3. 上次检查点之后写的redo日志超过了maxRedoLogSize，这样就能限制恢复时要redo的日志量，
+    // maxRedoLogSize可以直接用checkpoint_redo_log_size_in_mb指定，
+    // 也可以用recovery_time_target(秒)和redo_replay_rate_in_mb(每秒能redo多少MB日志)换算出来。
+    // 执行检查点时按预估内存从大到小的顺序用多个线程并发保存map，
+    // 如果指定了checkpoint_io_budget_in_mb(MB/s)，还会限制写入速度，避免突发的大量写操作影响前台。
+    // 检查点只在CheckpointService线程中执行，通过CHECKPOINT语句触发时也是交给这个线程执行然后等它完成，
+    // 所以限速时不用持有任何锁，有强制执行的请求时正在执行的检查点也不再限速。
     private class CheckpointService extends Thread {
 
         private static final int DEFAULT_COMMITTED_DATA_CACHE_SIZE = 32 * 1024 * 1024; // 32M
         private static final int DEFAULT_CHECKPOINT_PERIOD = 1 * 60 * 60 * 1000; // 1小时
+        private static final int DEFAULT_REDO_REPLAY_RATE = 32; // 32M/s
         private final Semaphore semaphore = new Semaphore(1);
         private final int committedDataCacheSize;
         private final long checkpointPeriod;
         private final long loopInterval;
+        private final long maxRedoLogSize; // 0表示不按redo日志的大小触发
+        private final long ioBudget; // 每秒最多写多少字节，0表示不限制
+        private final ExecutorService saveExecutor; // 为null时在当前线程中依次保存
 
         private volatile long lastSavedAt = System.currentTimeMillis();
+        private volatile long redoLogSizeAtLastCheckpoint;
         private volatile boolean isClosed;
+        // 等待强制执行检查点的请求，多个调用者可以共用同一个
+        private final AtomicReference<CompletableFuture<Void>> forceRequest = new AtomicReference<>();
+
+        private volatile long checkpointCount;
+        private volatile long lastCheckpointDuration;
+        private volatile String lastCheckpointReason = "";
+
+        private long runStartTime;
+        private final AtomicLong runWrittenBytes = new AtomicLong();
 
         CheckpointService(Map<String, String> config) {
             setName(getClass().getSimpleName());
@@ -303,12 +432,45 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             else
                 checkpointPeriod = DEFAULT_CHECKPOINT_PERIOD;
 
+            long maxRedoLogSize = 0;
+            v = config.get("checkpoint_redo_log_size_in_mb");
+            if (v != null)
+                maxRedoLogSize = Long.parseLong(v) * 1024 * 1024;
+            v = config.get("recovery_time_target");
+            if (v != null) {
+                String rate = config.get("redo_replay_rate_in_mb");
+                long replayRate = rate != null ? Long.parseLong(rate) : DEFAULT_REDO_REPLAY_RATE;
+                long size = Long.parseLong(v) * replayRate * 1024 * 1024;
+                if (maxRedoLogSize <= 0 || size < maxRedoLogSize)
+                    maxRedoLogSize = size;
+            }
+            this.maxRedoLogSize = maxRedoLogSize;
+
+            v = config.get("checkpoint_io_budget_in_mb");
+            ioBudget = v != null ? Long.parseLong(v) * 1024 * 1024 : 0;
+
+            v = config.get("checkpoint_threads");
+            int threads = v != null ? Integer.parseInt(v) : Math.min(4, Runtime.getRuntime().availableProcessors());
+            if (threads > 1) {
+                AtomicInteger id = new AtomicInteger();
+                saveExecutor = Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread(r, getName() + "-" + id.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            } else {
+                saveExecutor = null;
+            }
+
             // 默认1分钟
             long loopInterval = DateTimeUtils.getLoopInterval(config, "checkpoint_service_loop_interval",
                     1 * 60 * 1000);
 
             if (checkpointPeriod < loopInterval)
                 loopInterval = checkpointPeriod;
+            // 要及时发现redo日志超过了限制
+            if (maxRedoLogSize > 0 && loopInterval > 1000)
+                loopInterval = 1000;
 
             this.loopInterval = loopInterval;
         }
@@ -324,42 +486,144 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         void checkpoint() {
             if (isClosed)
                 return;
-            checkpoint(true);
+            CompletableFuture<Void> f = forceRequest
+                    .updateAndGet(old -> old != null ? old : new CompletableFuture<>());
+            semaphore.release();
+            while (true) {
+                try {
+                    f.get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    // 关闭后线程已经结束了，不会再执行请求
+                    if (!isAlive())
+                        return;
+                } catch (ExecutionException e) {
+                    throw DbException.convert(e.getCause());
+                } catch (InterruptedException e) {
+                    throw DbException.convert(e);
+                }
+            }
+        }
+
+        // 所有的流在本次启动后已经写入的redo日志大小
+        private long getRedoLogSize() {
+            LogSyncService logSyncService = AMTransactionEngine.this.logSyncService;
+            if (logSyncService == null)
+                return 0;
+            long size = 0;
+            for (LogSyncService s : logSyncService.getPartitions()) {
+                size += s.getMetrics().getSyncedBytes();
+            }
+            return size;
+        }
+
+        long getRedoLogSizeSinceLastCheckpoint() {
+            return getRedoLogSize() - redoLogSizeAtLastCheckpoint;
         }
 
-        // 按周期自动触发
-        private synchronized void checkpoint(boolean force) {
+        // 只在CheckpointService线程中调用
+        private void checkpoint(boolean force) {
             long now = System.currentTimeMillis();
-            boolean executeCheckpoint = force || isClosed || (lastSavedAt + checkpointPeriod < now);
+            String reason = null;
+            if (force || isClosed)
+                reason = "forced";
+            else if (lastSavedAt + checkpointPeriod < now)
+                reason = "period";
+            else if (maxRedoLogSize > 0 && getRedoLogSizeSinceLastCheckpoint() > maxRedoLogSize)
+                reason = "redo_log_size";
 
             // 如果上面的条件都不满足，那么再看看已经提交的数据占用的预估总内存大小是否大于阈值
-            if (!executeCheckpoint) {
+            if (reason == null) {
                 long totalEstimatedMemory = 0;
                 for (MapInfo mapInfo : maps.values()) {
                     totalEstimatedMemory += mapInfo.estimatedMemory.get();
                 }
-                executeCheckpoint = totalEstimatedMemory > committedDataCacheSize;
+                if (totalEstimatedMemory > committedDataCacheSize)
+                    reason = "dirty_memory";
             }
-            if (executeCheckpoint) {
-                for (MapInfo mapInfo : maps.values()) {
-                    StorageMap<?, ?> map = mapInfo.map;
-                    if (map.isClosed())
-                        continue;
-
-                    // 在这里有可能把已提交和未提交事务的数据都保存了，
-                    // 不过不要紧，如果在生成检查点之后系统崩溃了导致未提交事务不能正常完成，还有读时撤销机制保证数据完整性，
-                    // 因为在保存未提交数据时，也同时保存了原来的数据，如果在读到未提交数据时发现了异常，就会进行撤销，
-                    // 读时撤销机制在TransactionalValue类中实现。
-                    AtomicInteger counter = mapInfo.estimatedMemory;
-                    if (force || counter != null && counter.getAndSet(0) > 0) {
-                        map.save();
+            if (reason == null)
+                return;
+
+            // 在保存map之前取，保存过程中写的redo日志算到下一次检查点
+            long redoLogSize = getRedoLogSize();
+            ArrayList<MapInfo> dirtyMaps = new ArrayList<>();
+            for (MapInfo mapInfo : maps.values()) {
+                if (mapInfo.map.isClosed())
+                    continue;
+                // 在这里有可能把已提交和未提交事务的数据都保存了，
+                // 不过不要紧，如果在生成检查点之后系统崩溃了导致未提交事务不能正常完成，还有读时撤销机制保证数据完整性，
+                // 因为在保存未提交数据时，也同时保存了原来的数据，如果在读到未提交数据时发现了异常，就会进行撤销，
+                // 读时撤销机制在TransactionalValue类中实现。
+                mapInfo.checkpointMemory = mapInfo.estimatedMemory.getAndSet(0);
+                if (force || mapInfo.checkpointMemory > 0)
+                    dirtyMaps.add(mapInfo);
+            }
+            // 最脏的map先保存
+            dirtyMaps.sort((m1, m2) -> Integer.compare(m2.checkpointMemory, m1.checkpointMemory));
+            boolean throttle = ioBudget > 0 && !force && !isClosed;
+            runStartTime = now;
+            runWrittenBytes.set(0);
+            if (saveExecutor == null || dirtyMaps.size() <= 1) {
+                for (MapInfo mapInfo : dirtyMaps) {
+                    save(mapInfo, throttle);
+                }
+            } else {
+                ArrayList<Future<?>> futures = new ArrayList<>(dirtyMaps.size());
+                for (MapInfo mapInfo : dirtyMaps) {
+                    futures.add(saveExecutor.submit(() -> save(mapInfo, throttle)));
+                }
+                Throwable failure = null;
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null)
+                            failure = e.getCause();
+                    } catch (InterruptedException e) {
+                        throw DbException.convert(e);
                     }
                 }
-                lastSavedAt = now;
-                logSyncService.checkpoint(nextEvenTransactionId());
+                if (failure != null)
+                    throw DbException.convert(failure);
+            }
+            lastSavedAt = now;
+            redoLogSizeAtLastCheckpoint = redoLogSize;
+            logSyncService.checkpoint(nextEvenTransactionId());
+            checkpointCount++;
+            lastCheckpointDuration = System.currentTimeMillis() - now;
+            lastCheckpointReason = reason;
+        }
+
+        private void save(MapInfo mapInfo, boolean throttle) {
+            if (throttle)
+                beforeSave(mapInfo.checkpointMemory);
+            mapInfo.map.save();
+        }
+
+        // 按map的预估内存限速，多个线程共用同一个额度
+        private void beforeSave(long bytes) {
+            long writtenBytes = runWrittenBytes.getAndAdd(bytes);
+            long expectedTime = writtenBytes * 1000 / ioBudget;
+            long sleepTime = expectedTime - (System.currentTimeMillis() - runStartTime);
+            // 关闭时或者有强制执行的请求时不再限速
+            while (sleepTime > 0 && !isClosed && forceRequest.get() == null) {
+                try {
+                    Thread.sleep(Math.min(sleepTime, 100));
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                sleepTime = expectedTime - (System.currentTimeMillis() - runStartTime);
             }
         }
 
+        void toMap(Map<String, String> map) {
+            map.put("checkpoint.count", String.valueOf(checkpointCount));
+            map.put("checkpoint.last_duration_ms", String.valueOf(lastCheckpointDuration));
+            map.put("checkpoint.last_reason", lastCheckpointReason);
+            map.put("checkpoint.redo_log_bytes_since_last", String.valueOf(getRedoLogSizeSinceLastCheckpoint()));
+            map.put("checkpoint.max_redo_log_bytes", String.valueOf(maxRedoLogSize));
+        }
+
         @Override
         public void run() {
             while (!isClosed) {
@@ -369,10 +633,95 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
                 } catch (InterruptedException e) {
                     throw new AssertionError();
                 }
+                CompletableFuture<Void> f = forceRequest.getAndSet(null);
+                try {
+                    checkpoint(f != null);
+                    if (f != null)
+                        f.complete(null);
+                } catch (Throwable e) {
+                    if (f != null)
+                        f.completeExceptionally(e);
+                    else
+                        logger.error("Failed to execute checkpoint", e);
+                }
+            }
+            // 关闭时最后一次检查点已经保存了所有的map
+            CompletableFuture<Void> f = forceRequest.getAndSet(null);
+            if (f != null)
+                f.complete(null);
+            // 关闭时的最后一次检查点也要用到saveExecutor
+            if (saveExecutor != null)
+                saveExecutor.shutdown();
+        }
+    }
+
+    // 在后台清除已提交记录的oldValue链，避免被反复更新的记录在有长事务时占用越来越多的内存，读取时也越来越慢
+    private class VersionGCService extends Thread {
+
+        private final Semaphore semaphore = new Semaphore(1);
+        private final long loopInterval;
+        private volatile boolean isClosed;
+
+        VersionGCService(Map<String, String> config) {
+            setName(getClass().getSimpleName());
+            setDaemon(true);
+            // 默认1秒
+            loopInterval = DateTimeUtils.getLoopInterval(config, "version_gc_loop_interval", 1000);
+        }
+
+        void close() {
+            if (!isClosed) {
+                isClosed = true;
+                semaphore.release();
+            }
+        }
+
+        private synchronized void gcVersionChains() {
+            long oldestVersion = getOldestRepeatableReadVersion();
+            for (MapInfo mapInfo : maps.values()) {
+                if (isClosed)
+                    break;
+                if (mapInfo.map.isClosed()) {
+                    mapInfo.versionChains.clear();
+                    continue;
+                }
+                int count = 0;
+                long totalLength = 0;
+                int maxLength = 0;
+                long reclaimed = 0;
+                for (TransactionalValue ref : mapInfo.versionChains) {
+                    int length = TransactionalValue.getVersionChainLength(ref);
+                    count++;
+                    totalLength += length;
+                    if (length > maxLength)
+                        maxLength = length;
+                    reclaimed += TransactionalValue.trimVersionChain(ref, oldestVersion);
+                    TransactionalValue tv = ref.getRefValue();
+                    if (tv == null || tv.getOldValue() == null)
+                        mapInfo.versionChains.remove(ref);
+                }
+                mapInfo.chainCount = count;
+                mapInfo.avgChainLength = count == 0 ? 0 : (double) totalLength / count;
+                mapInfo.maxChainLength = maxLength;
+                mapInfo.reclaimedVersions += reclaimed;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!isClosed) {
+                try {
+                    semaphore.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
+                    semaphore.drainPermits();
+                } catch (InterruptedException e) {
+                    // 保留中断状态，直接退出
+                    Thread.currentThread().interrupt();
+                    break;
+                }
                 try {
-                    checkpoint(false);
+                    gcVersionChains();
                 } catch (Exception e) {
-                    logger.error("Failed to execute checkpoint", e);
+                    logger.error("Failed to gc version chains", e);
                 }
             }
         }
@@ -19,7 +19,6 @@ package org.lealone.transaction.aote;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -39,10 +38,10 @@ import org.lealone.storage.PageKey;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageMapCursor;
-import org.lealone.storage.type.ObjectDataType;
 import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.aote.log.UndoLog;
 import org.lealone.transaction.aote.log.UndoLogRecord;
 
 //只支持单机场景
@@ -258,66 +257,34 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
 
     /**
      * Get the size of the map as seen by this transaction.
+     * <p>
+     * For READ_COMMITTED and below it is the number of committed entries plus the entries added
+     * (or minus the entries removed) by this transaction, both are maintained as counters, so no scan is needed.
+     * REPEATABLE_READ and SERIALIZABLE must not see the entries committed after the transaction started,
+     * so the entries visible to this transaction are counted one by one.
      *
      * @return the size
      */
     @Override
     public long size() {
-        long sizeRaw = map.size();
-        long undoLogSize = 0;
-        for (AMTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
-            undoLogSize += t.undoLog.size();
-        }
-        if (undoLogSize == 0) {
-            return sizeRaw;
-        }
-        if (undoLogSize > sizeRaw) {
-            // the undo log is larger than the map -
-            // count the entries of the map
-            long size = 0;
-            StorageMapCursor<K, TransactionalValue> cursor = map.cursor();
-            while (cursor.hasNext()) {
-                K key = cursor.next();
-                TransactionalValue data = cursor.getValue();
-                data = getValue(key, data);
-                if (data != null && data.getValue() != null) {
-                    size++;
-                }
-            }
-            return size;
-        }
-        // the undo log is smaller than the map -
-        // scan the undo log and subtract invisible entries
-        // re-fetch in case any transaction was committed now
-        long size = map.size();
-        String mapName = getName();
-        Storage storage = map.getStorage();
-        String tmpMapName = storage.nextTemporaryMapName();
-        StorageMap<Object, Integer> temp = storage.openMap(tmpMapName, new ObjectDataType(), new ObjectDataType(),
-                null);
-        try {
-            for (AMTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
-                LinkedList<UndoLogRecord> records = t.undoLog.getUndoLogRecords();
-                for (UndoLogRecord r : records) {
-                    String m = r.getMapName();
-                    if (!mapName.equals(m)) {
-                        // a different map - ignore
-                        continue;
-                    }
-                    @SuppressWarnings("unchecked")
-                    K key = (K) r.getKey();
-                    if (get(key) == null) {
-                        Integer old = temp.put(key, 1);
-                        // count each key only once (there might be multiple
-                        // changes for the same key)
-                        if (old == null) {
-                            size--;
-                        }
-                    }
-                }
+        if (transaction.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
+            return countVisibleEntries();
+        long size = transaction.transactionEngine.getCommittedRowCount(map);
+        UndoLog undoLog = transaction.undoLog;
+        if (undoLog != null)
+            size += undoLog.getRowCountDelta(getName());
+        return size;
+    }
+
+    private long countVisibleEntries() {
+        long size = 0;
+        StorageMapCursor<K, TransactionalValue> cursor = map.cursor();
+        while (cursor.hasNext()) {
+            K key = cursor.next();
+            TransactionalValue data = getValue(key, cursor.getValue());
+            if (data != null && data.getValue() != null) {
+                size++;
             }
-        } finally {
-            temp.remove();
         }
         return size;
     }
@@ -396,6 +363,10 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
     public void clear() {
         // TODO 可以rollback吗?
         map.clear();
+        transaction.transactionEngine.resetCommittedRowCount(getName());
+        UndoLog undoLog = transaction.undoLog;
+        if (undoLog != null)
+            undoLog.resetRowCountDelta(getName());
     }
 
     @Override
@@ -535,9 +506,37 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         DataUtils.checkNotNull(value, "value");
         TransactionalValue newValue = TransactionalValue.createCommitted(value);
         TransactionalValue oldValue = map.put(key, newValue);
+        // 直接写入已提交的值，不经过undo log，所以要自己更新已提交的记录数
+        if (oldValue == null)
+            transaction.transactionEngine.addCommittedRowCount(getName(), 1);
         return (V) (oldValue == null ? null : oldValue.getValue());
     }
 
+    @Override
+    public long bulkLoadCommitted(Iterator<? extends Entry<K, V>> sortedEntries) {
+        Iterator<Entry<K, TransactionalValue>> it = new Iterator<Entry<K, TransactionalValue>>() {
+            @Override
+            public boolean hasNext() {
+                return sortedEntries.hasNext();
+            }
+
+            @Override
+            public Entry<K, TransactionalValue> next() {
+                Entry<K, V> e = sortedEntries.next();
+                DataUtils.checkNotNull(e.getValue(), "value");
+                TransactionalValue value = TransactionalValue.createCommitted(e.getValue());
+                return new DataUtils.MapEntry<K, TransactionalValue>(e.getKey(), value);
+            }
+        };
+        long count = map.bulkLoad(it);
+        // 没有写redo日志，所以返回前要确保已经保存到硬盘了。
+        // StorageMap默认的bulkLoad是逐条put的(BTreeMap在sharding模式下也是)，需要在这里保存；
+        // BTreeMap的bulkLoad在返回前已经把新chunk同步到硬盘了，这时的save没有page要写，开销很小
+        map.save();
+        transaction.transactionEngine.addCommittedRowCount(getName(), count);
+        return count;
+    }
+
     @Override
     public Iterator<Entry<K, V>> entryIterator(K from) {
         return entryIterator(IterationParameters.create(from));
@@ -689,14 +688,19 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
                 null, ref);
         ref.setRefValue(newValue);
         String mapName = getName();
-        final UndoLogRecord r = transaction.undoLog.add(mapName, key, null, newValue);
+        final UndoLog undoLog = transaction.undoLog;
+        final UndoLogRecord r = undoLog.add(mapName, key, null, newValue);
+        r.setWriting(true);
 
         AsyncCallback<Integer> ac = new AsyncCallback<>();
         AsyncHandler<AsyncResult<TransactionalValue>> handler = (ar) -> {
+            // 先确定undone标记，然后这条记录才能写到临时文件中
+            if (!ar.isSucceeded() || ar.getResult() != null)
+                undoLog.setUndone(r);
+            r.setWriting(false);
             if (ar.isSucceeded()) {
                 TransactionalValue old = ar.getResult();
                 if (old != null) {
-                    r.setUndone(true);
                     // 同一个事务，先删除再更新，因为删除记录时只是打了一个删除标记，存储层并没有真实删除
                     if (old.getValue() == null) {// || old.getValue() == ValueNull.INSTANCE) { //唯一索引加上这个条件会出错
                                                  // 辅助索引的值是ValueNull.INSTANCE
@@ -717,7 +721,6 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
                     afterAddComplete();
                 }
             } else {
-                r.setUndone(true);
                 ac.setAsyncResult(ar.getCause());
             }
         };
@@ -32,6 +32,7 @@ import org.lealone.db.RunMode;
 import org.lealone.net.NetNode;
 import org.lealone.storage.StorageMap;
 import org.lealone.transaction.aote.log.RedoLogRecord;
+import org.lealone.transaction.aote.log.UndoLog;
 
 public class AOTransaction extends AMTransaction {
 
@@ -163,7 +164,12 @@ public class AOTransaction extends AMTransaction {
     }
 
     private RedoLogRecord createDistributedTransactionRedoLogRecord(String allLocalTransactionNames) {
-        ByteBuffer operations = getUndoLog().toRedoLogRecordBuffer(transactionEngine);
+        UndoLog undoLog = getUndoLog();
+        // 大事务的redo日志交给日志同步线程边生成边写，不在当前线程生成一个很大的buffer
+        if (undoLog.isSpilled())
+            return RedoLogRecord.createLazyDistributedTransactionRedoLogRecord(transactionEngine, transactionId,
+                    undoLog, transactionName, allLocalTransactionNames, commitTimestamp);
+        ByteBuffer operations = undoLog.toRedoLogRecordBuffer(transactionEngine);
         if (operations == null)
             return null;
         return RedoLogRecord.createDistributedTransactionRedoLogRecord(transactionId, transactionName,
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+import org.lealone.transaction.Transaction;
+
+/**
+ * 当前活跃事务的登记表，同时负责分配事务id。
+ * <p>
+ * 活跃事务按事务id分散到多个ConcurrentHashMap中，开始和结束事务时只需要在其中一个里面增删，
+ * 不再像ConcurrentSkipListMap那样所有线程都挤在同一个有序结构上。
+ * 只有REPEATABLE_READ和SERIALIZABLE隔离级别的事务需要按事务id排序(用来算最老的快照)，
+ * 所以它们另外登记在一个有序的表中，最老的快照直接取第一个即可，不用扫描所有活跃事务，
+ * 大量读已提交级别的短事务完全不会碰到这个表。
+ * <p>
+ * 事务id是全局有序的，RR事务靠事务id和已提交版本的version比较来决定可见性，
+ * 所以不能按线程批量预分配事务id，否则后开始的事务可能看不到先提交的事务。
+ * 这里把计数器和事务id的奇偶性分开: 第n个偶数id是2n，第n个奇数id是2n+1，
+ * 这样分配事务id只需要一次incrementAndGet，不会因为CAS失败而重试。
+ *
+ * @author zhh
+ */
+public class TransactionRegistry {
+
+    private final ConcurrentHashMap<Long, AMTransaction>[] stripes;
+    private final int mask;
+    // key: transactionId，只有REPEATABLE_READ和SERIALIZABLE隔离级别的事务
+    private final ConcurrentSkipListMap<Long, AMTransaction> repeatableReadTransactions = new ConcurrentSkipListMap<>();
+    // 已经分配出去的最大事务id是2 * counter或2 * counter + 1
+    private final AtomicLong counter = new AtomicLong();
+
+    public TransactionRegistry() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TransactionRegistry(int stripeCount) {
+        int n = 1;
+        while (n < stripeCount)
+            n <<= 1;
+        stripes = new ConcurrentHashMap[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new ConcurrentHashMap<>();
+        mask = n - 1;
+    }
+
+    private ConcurrentHashMap<Long, AMTransaction> getStripe(long tid) {
+        // 同一个计数值对应的奇偶两个事务id放在同一个stripe
+        return stripes[(int) (tid >>> 1) & mask];
+    }
+
+    /**
+     * 分配事务id，创建并登记事务。
+     * <p>
+     * REPEATABLE_READ和SERIALIZABLE隔离级别的事务分配id和登记到有序表要跟getOldestSnapshotVersion互斥，
+     * 否则算最老快照时可能已经取到了包含新id的lastTransactionId，却还没看到这个事务，
+     * 这个事务能看到的版本就可能被回收了。
+     *
+     * @param isEven 是否分配偶数id
+     * @param isolationLevel 事务的隔离级别，creator创建的事务要已经是这个隔离级别
+     * @param creator 用分配的事务id创建事务
+     * @return 新的事务
+     */
+    public AMTransaction begin(boolean isEven, int isolationLevel, LongFunction<AMTransaction> creator) {
+        if (isolationLevel < Transaction.IL_REPEATABLE_READ) {
+            AMTransaction t = creator.apply(nextTransactionId(isEven));
+            add(t);
+            return t;
+        }
+        synchronized (repeatableReadTransactions) {
+            AMTransaction t = creator.apply(nextTransactionId(isEven));
+            add(t);
+            return t;
+        }
+    }
+
+    public void add(AMTransaction t) {
+        getStripe(t.transactionId).put(t.transactionId, t);
+        if (t.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
+            updateIsolationLevel(t);
+    }
+
+    public AMTransaction remove(long tid) {
+        AMTransaction t = getStripe(tid).remove(tid);
+        // 跟updateIsolationLevel配合，先从stripe中删除再从有序表中删除
+        if (!repeatableReadTransactions.isEmpty())
+            repeatableReadTransactions.remove(tid);
+        return t;
+    }
+
+    public AMTransaction get(long tid) {
+        return getStripe(tid).get(tid);
+    }
+
+    public boolean contains(long tid) {
+        return getStripe(tid).containsKey(tid);
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<Long, AMTransaction> stripe : stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    // 事务的隔离级别变了之后调用
+    public void updateIsolationLevel(AMTransaction t) {
+        long tid = t.transactionId;
+        if (t.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ) {
+            repeatableReadTransactions.put(tid, t);
+            // 有可能并发结束了，remove方法没有看到刚加进来的
+            if (get(tid) != t)
+                repeatableReadTransactions.remove(tid, t);
+        } else {
+            repeatableReadTransactions.remove(tid, t);
+        }
+    }
+
+    /**
+     * 返回最老的REPEATABLE_READ或SERIALIZABLE隔离级别的活跃事务的id，没有时返回Long.MAX_VALUE
+     */
+    public long getOldestRepeatableReadTransactionId() {
+        Map.Entry<Long, AMTransaction> e = repeatableReadTransactions.firstEntry();
+        return e == null ? Long.MAX_VALUE : e.getKey();
+    }
+
+    /**
+     * 返回所有REPEATABLE_READ和SERIALIZABLE隔离级别的事务都能看到的最大版本，
+     * 先取lastTransactionId，之后才开始的事务的id都比它大，也就都能看到这些版本
+     */
+    public long getOldestSnapshotVersion() {
+        synchronized (repeatableReadTransactions) {
+            return Math.min(getLastTransactionId(), getOldestRepeatableReadTransactionId());
+        }
+    }
+
+    public long nextTransactionId(boolean isEven) {
+        long n = counter.incrementAndGet();
+        return isEven ? n << 1 : (n << 1) + 1;
+    }
+
+    /**
+     * 返回不小于所有已分配事务id的值，之后分配的事务id都比它大
+     */
+    public long getLastTransactionId() {
+        return (counter.get() << 1) + 1;
+    }
+
+    // 只在启动时调用，之后分配的事务id都比lastTransactionId大
+    public void setLastTransactionId(long lastTransactionId) {
+        counter.set(lastTransactionId >>> 1);
+    }
+}
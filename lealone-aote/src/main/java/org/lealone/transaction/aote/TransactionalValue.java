@@ -161,6 +161,51 @@ public interface TransactionalValue {
         return new Committed(value);
     }
 
+    // 沿着ref的oldValue链找出事务tid在logId这一步写入的未提交值，找不到时返回null
+    public static TransactionalValue getUncommitted(TransactionalValue ref, long tid, int logId) {
+        TransactionalValue tv = ref == null ? null : ref.getRefValue();
+        while (tv != null) {
+            if (tv instanceof Uncommitted && tv.getTid() == tid && tv.getLogId() == logId)
+                return tv;
+            tv = tv.getOldValue();
+        }
+        return null;
+    }
+
+    // 包括ref指向的值在内，oldValue链上一共有多少个版本
+    public static int getVersionChainLength(TransactionalValue ref) {
+        int length = 0;
+        for (TransactionalValue tv = ref.getRefValue(); tv != null; tv = tv.getOldValue())
+            length++;
+        return length;
+    }
+
+    // 找到第一个所有REPEATABLE_READ事务都能看到的已提交版本(version <= oldestVersion)，
+    // 如果它后面没有未提交的值了，就把它后面的oldValue链切掉，返回切掉了多少个版本。
+    // 在它之前的版本不能切，因为未提交的值撤销时、以及还看不到新版本的事务读取时最多只会退到这个版本。
+    public static int trimVersionChain(TransactionalValue ref, long oldestVersion) {
+        TransactionalValue tv = ref.getRefValue();
+        while (tv != null) {
+            if (tv instanceof CommittedWithTid) {
+                CommittedWithTid c = (CommittedWithTid) tv;
+                if (c.transaction.isCommitted() && c.version <= oldestVersion) {
+                    TransactionalValue oldValue = c.getOldValue();
+                    int count = 0;
+                    for (TransactionalValue v = oldValue; v != null; v = v.getOldValue()) {
+                        if (v instanceof Uncommitted) // 列锁的场景，老版本可能还没提交
+                            return 0;
+                        count++;
+                    }
+                    if (count > 0)
+                        c.setOldValue(null);
+                    return count;
+                }
+            }
+            tv = tv.getOldValue();
+        }
+        return 0;
+    }
+
     // 因为每条记录都对应此类的一个实例，所以为了节约内存没有直接使用java.util.concurrent.atomic.AtomicReference
     public static class TransactionalValueRef implements TransactionalValue {
 
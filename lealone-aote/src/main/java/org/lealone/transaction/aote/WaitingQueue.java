@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.Transaction.WaitingTransaction;
+
+/**
+ * 等待某个事务释放锁的事务队列，每个事务一个。
+ * <p>
+ * 这是一个无锁的FIFO单向链表，加入节点时只需要CAS最后一个节点的next字段，不需要复制整个队列，
+ * 移除节点时先CAS节点的状态，哪个线程CAS成功了哪个线程负责唤醒，节点等到了队列头部再真正从链表中删除。
+ * 关闭队列时在最后追加一个CLOSED节点，这样关闭和加入是原子的，关闭之后就不能再加入了，
+ * 关闭之前加入的都会被唤醒。
+ *
+ * @author zhh
+ */
+public class WaitingQueue {
+
+    private static final int WAITING = 0;
+    private static final int REMOVED = 1;
+
+    private static final Node CLOSED = new Node(null);
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> nextUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(Node.class, Node.class, "next");
+    private static final AtomicIntegerFieldUpdater<Node> stateUpdater = AtomicIntegerFieldUpdater
+            .newUpdater(Node.class, "state");
+    private static final AtomicReferenceFieldUpdater<WaitingQueue, Node> headUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(WaitingQueue.class, Node.class, "head");
+    private static final AtomicReferenceFieldUpdater<WaitingQueue, Node> tailUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(WaitingQueue.class, Node.class, "tail");
+
+    private static class Node {
+
+        final WaitingTransaction wt;
+        volatile Node next;
+        volatile int state;
+
+        Node(WaitingTransaction wt) {
+            this.wt = wt;
+            if (wt == null)
+                state = REMOVED;
+        }
+
+        boolean tryRemove() {
+            return state == WAITING && stateUpdater.compareAndSet(this, WAITING, REMOVED);
+        }
+    }
+
+    // head是一个已经移除的节点，它后面的才是队列中的节点
+    private volatile Node head;
+    // tail有可能落后于最后一个节点，但不会是CLOSED
+    private volatile Node tail;
+
+    public WaitingQueue() {
+        head = tail = new Node(null);
+    }
+
+    /**
+     * Add a waiting transaction to the end of the queue.
+     *
+     * @param wt the waiting transaction
+     * @return false if the queue was closed
+     */
+    public boolean offer(WaitingTransaction wt) {
+        Node node = new Node(wt);
+        while (true) {
+            Node t = tail;
+            Node p = t;
+            for (Node q = p.next; q != null; q = p.next) {
+                if (q == CLOSED)
+                    return false;
+                p = q;
+            }
+            if (nextUpdater.compareAndSet(p, null, node)) {
+                tailUpdater.compareAndSet(this, t, node);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove the waiting transaction of the given transaction, the caller should wake it up.
+     *
+     * @param transaction the waiting transaction
+     * @return the removed waiting transaction, or null if it is not in the queue
+     */
+    public WaitingTransaction remove(Transaction transaction) {
+        for (Node p = first(); p != null && p != CLOSED; p = p.next) {
+            if (p.wt.getTransaction() == transaction) {
+                if (p.tryRemove())
+                    return p.wt;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the waiting transaction of the given transaction without removing it.
+     *
+     * @param transaction the waiting transaction
+     * @return the waiting transaction, or null if it is not in the queue
+     */
+    public WaitingTransaction get(Transaction transaction) {
+        for (Node p = first(); p != null && p != CLOSED; p = p.next) {
+            if (p.state == WAITING && p.wt.getTransaction() == transaction)
+                return p.wt;
+        }
+        return null;
+    }
+
+    /**
+     * Wake up the transactions that wait for one of the keys, in FIFO order.
+     *
+     * @param keys the keys that are unlocked
+     * @return the number of transactions that are woken up
+     */
+    public int wakeUp(Set<Object> keys) {
+        int count = 0;
+        for (Node p = first(); p != null && p != CLOSED; p = p.next) {
+            if (p.state == WAITING && keys.contains(p.wt.getKey()) && p.tryRemove()) {
+                p.wt.wakeUp();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close the queue and wake up all waiting transactions in FIFO order.
+     * No transactions can be added after the queue is closed.
+     */
+    public void close() {
+        Node p = tail;
+        while (true) {
+            Node q = p.next;
+            if (q == CLOSED)
+                return;
+            if (q != null)
+                p = q;
+            else if (nextUpdater.compareAndSet(p, null, CLOSED))
+                break;
+        }
+        for (Node n = head.next; n != CLOSED; n = n.next) {
+            if (n.tryRemove())
+                n.wt.wakeUp();
+        }
+    }
+
+    public boolean isClosed() {
+        Node p = tail;
+        for (Node q = p.next; q != null; q = p.next) {
+            if (q == CLOSED)
+                return true;
+            p = q;
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        for (Node p = first(); p != null && p != CLOSED; p = p.next) {
+            if (p.state == WAITING)
+                return false;
+        }
+        return true;
+    }
+
+    // 跳过队列头部已经移除的节点，并把它们从链表中删除
+    private Node first() {
+        while (true) {
+            Node h = head;
+            Node p = h.next;
+            if (p == null || p == CLOSED || p.state == WAITING)
+                return p;
+            // 删除后的节点的next不变，所以tail落在head之前也没关系，加入时从tail开始往后找只是多走几步
+            headUpdater.compareAndSet(this, h, p);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote.log;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+
+/**
+ * 一个redo日志流的统计信息，包括事务日志从加入队列到sync完成的延迟、每次sync的日志记录数和字节数、
+ * sync耗时以及等待异步提交的事务队列的长度，可以根据这些数据调整log_sync_type、
+ * redo_log_record_sync_threshold和同步周期。
+ *
+ * @author zhh
+ */
+public class LogSyncMetrics implements LogSyncMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogSyncMetrics.class);
+
+    private static final String JMX_OBJECT_NAME_PREFIX = "org.lealone:type=LogSyncService,engine=";
+
+    // 同一个JVM中可能有多个事务引擎，每个引擎的日志流用不同的engine编号注册
+    private static final AtomicInteger nextEngineId = new AtomicInteger();
+
+    static int nextEngineId() {
+        return nextEngineId.incrementAndGet();
+    }
+
+    private final int stream;
+    private final Histogram commitLatency = new Histogram();
+    private final Histogram batchSize = new Histogram();
+    private final Histogram bytesPerSync = new Histogram();
+    private final Histogram syncDuration = new Histogram();
+    private final Histogram transactionQueueDepth = new Histogram();
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong syncedRecordCount = new AtomicLong();
+    private final AtomicLong syncedBytes = new AtomicLong();
+    private volatile int currentTransactionQueueDepth;
+    private ObjectName objectName;
+
+    LogSyncMetrics(int stream) {
+        this.stream = stream;
+    }
+
+    // 以下方法只在日志同步线程中调用
+
+    void addCommitLatency(long nanos) {
+        commitLatency.add(nanos / 1000);
+    }
+
+    void addSync(int records, long bytes, long nanos) {
+        syncCount.incrementAndGet();
+        syncedRecordCount.addAndGet(records);
+        syncedBytes.addAndGet(bytes);
+        batchSize.add(records);
+        bytesPerSync.add(bytes);
+        syncDuration.add(nanos / 1000);
+    }
+
+    void addTransactionQueueDepth(int depth) {
+        currentTransactionQueueDepth = depth;
+        transactionQueueDepth.add(depth);
+    }
+
+    synchronized void registerMBean(int engineId) {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(JMX_OBJECT_NAME_PREFIX + engineId + ",stream=" + stream);
+            mbs.registerMBean(this, name);
+            objectName = name;
+        } catch (Exception e) {
+            logger.warn("Failed to register MBean for redo log stream " + stream, e);
+        }
+    }
+
+    // 只注销自己注册的
+    synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (mbs.isRegistered(objectName))
+                mbs.unregisterMBean(objectName);
+        } catch (Exception e) {
+            logger.warn("Failed to unregister MBean " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Add all metrics to the map, the names start with the prefix.
+     *
+     * @param prefix the prefix of the names
+     * @param map the map
+     */
+    public void toMap(String prefix, Map<String, String> map) {
+        ObjectName name = getObjectName();
+        if (name != null)
+            map.put(prefix + "jmx_object_name", name.toString());
+        map.put(prefix + "sync_count", String.valueOf(getSyncCount()));
+        map.put(prefix + "synced_record_count", String.valueOf(getSyncedRecordCount()));
+        map.put(prefix + "synced_bytes", String.valueOf(getSyncedBytes()));
+        commitLatency.toMap(prefix + "commit_latency_us.", map);
+        batchSize.toMap(prefix + "batch_size.", map);
+        bytesPerSync.toMap(prefix + "bytes_per_sync.", map);
+        syncDuration.toMap(prefix + "sync_duration_us.", map);
+        transactionQueueDepth.toMap(prefix + "transaction_queue_depth.", map);
+        map.put(prefix + "transaction_queue_depth.current", String.valueOf(getTransactionQueueDepth()));
+    }
+
+    @Override
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    @Override
+    public long getSyncedRecordCount() {
+        return syncedRecordCount.get();
+    }
+
+    @Override
+    public long getSyncedBytes() {
+        return syncedBytes.get();
+    }
+
+    @Override
+    public double getCommitLatencyMean() {
+        return commitLatency.getMean();
+    }
+
+    @Override
+    public long getCommitLatency50thPercentile() {
+        return commitLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getCommitLatency99thPercentile() {
+        return commitLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getCommitLatencyMax() {
+        return commitLatency.getMax();
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSize.getMean();
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSize.getMax();
+    }
+
+    @Override
+    public double getBytesPerSyncMean() {
+        return bytesPerSync.getMean();
+    }
+
+    @Override
+    public long getBytesPerSyncMax() {
+        return bytesPerSync.getMax();
+    }
+
+    @Override
+    public double getSyncDurationMean() {
+        return syncDuration.getMean();
+    }
+
+    @Override
+    public long getSyncDuration99thPercentile() {
+        return syncDuration.getPercentile(0.99);
+    }
+
+    @Override
+    public long getSyncDurationMax() {
+        return syncDuration.getMax();
+    }
+
+    @Override
+    public int getTransactionQueueDepth() {
+        return currentTransactionQueueDepth;
+    }
+
+    @Override
+    public long getTransactionQueueDepthMax() {
+        return transactionQueueDepth.getMax();
+    }
+
+    @Override
+    public void reset() {
+        commitLatency.reset();
+        batchSize.reset();
+        bytesPerSync.reset();
+        syncDuration.reset();
+        transactionQueueDepth.reset();
+    }
+
+    /**
+     * 按2的幂分桶的直方图，第i个桶是[2^(i-1), 2^i)，第0个桶只放0，
+     * 百分位数返回所在桶的上界，误差不超过一倍，但是不需要保存样本，也不需要加锁。
+     */
+    static class Histogram {
+
+        private static final int BUCKET_COUNT = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void add(long value) {
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value))
+                ;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        double getMean() {
+            long c = count.get();
+            return c == 0 ? 0 : (double) sum.get() / c;
+        }
+
+        long getPercentile(double p) {
+            long c = count.get();
+            if (c == 0)
+                return 0;
+            long target = (long) Math.ceil(c * p);
+            long n = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                n += buckets.get(i);
+                if (n >= target)
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        void toMap(String prefix, Map<String, String> map) {
+            map.put(prefix + "count", String.valueOf(getCount()));
+            map.put(prefix + "mean", String.valueOf(Math.round(getMean() * 10) / 10d));
+            map.put(prefix + "p50", String.valueOf(getPercentile(0.5)));
+            map.put(prefix + "p99", String.valueOf(getPercentile(0.99)));
+            map.put(prefix + "max", String.valueOf(getMax()));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote.log;
+
+/**
+ * MBean exposing the metrics of a redo log stream, times are in microseconds.
+ *
+ * @author zhh
+ */
+public interface LogSyncMetricsMBean {
+
+    long getSyncCount();
+
+    long getSyncedRecordCount();
+
+    long getSyncedBytes();
+
+    double getCommitLatencyMean();
+
+    long getCommitLatency50thPercentile();
+
+    long getCommitLatency99thPercentile();
+
+    long getCommitLatencyMax();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeMax();
+
+    double getBytesPerSyncMean();
+
+    long getBytesPerSyncMax();
+
+    double getSyncDurationMean();
+
+    long getSyncDuration99thPercentile();
+
+    long getSyncDurationMax();
+
+    int getTransactionQueueDepth();
+
+    long getTransactionQueueDepthMax();
+
+    /**
+     * Clear all histograms, the counters are not cleared.
+     */
+    void reset();
+}
@@ -22,6 +22,8 @@ import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.lealone.common.concurrent.WaitQueue;
 import org.lealone.transaction.aote.AMTransaction;
@@ -44,6 +46,11 @@ public abstract class LogSyncService extends Thread {
     protected boolean running = true;
     protected RedoLog redoLog;
 
+    // 每个redo日志流一个LogSyncService，第0个流的LogSyncService对外代表所有的流
+    private LogSyncService[] partitions = { this };
+    private int partitionCount = 1; // 新事务只分配到前面这些流，其他流只是以前用过的
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
     public LogSyncService(Map<String, String> config) {
         setName(getClass().getSimpleName());
         setDaemon(true);
@@ -57,6 +64,43 @@ public abstract class LogSyncService extends Thread {
         return redoLog;
     }
 
+    /**
+     * Get the redo log stream for a new transaction, the streams are assigned round robin.
+     *
+     * @return the log sync service of the stream
+     */
+    public LogSyncService getPartition() {
+        if (partitionCount == 1)
+            return this;
+        return partitions[Math.floorMod(nextPartition.getAndIncrement(), partitionCount)];
+    }
+
+    public LogSyncService[] getPartitions() {
+        return partitions.clone();
+    }
+
+    public LogSyncMetrics getMetrics() {
+        return redoLog.getMetrics();
+    }
+
+    // 已经做过的sync次数(不包括没有日志的那些)
+    public long getSyncCount() {
+        return redoLog.getMetrics().getSyncCount();
+    }
+
+    // 已经sync到文件的日志记录数
+    public long getSyncedRecordCount() {
+        return redoLog.getMetrics().getSyncedRecordCount();
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        for (int i = 1; i < partitions.length; i++) {
+            partitions[i].start();
+        }
+    }
+
     public abstract void maybeWaitForSync(RedoLogRecord r);
 
     public void asyncCommit(AMTransaction t) {
@@ -65,8 +109,16 @@ public abstract class LogSyncService extends Thread {
     }
 
     public void close() {
+        for (int i = 1; i < partitions.length; i++) {
+            partitions[i].close();
+            try {
+                partitions[i].join();
+            } catch (InterruptedException e) {
+            }
+        }
         running = false;
         haveWork.release(1);
+        redoLog.getMetrics().unregisterMBean();
     }
 
     @Override
@@ -97,8 +149,10 @@ public abstract class LogSyncService extends Thread {
     }
 
     private void sync() {
-        if (redoLog != null)
+        if (redoLog != null) {
+            redoLog.getMetrics().addTransactionQueueDepth(transactions.size());
             redoLog.save();
+        }
         notifyComplete();
     }
 
@@ -124,10 +178,26 @@ public abstract class LogSyncService extends Thread {
         maybeWaitForSync(r);
     }
 
+    // 检查点要写到所有的流中，每个流都从检查点之后开始redo
     public void checkpoint(long checkpointId) {
-        RedoLogRecord r = RedoLogRecord.createCheckpoint(checkpointId);
-        addRedoLogRecord(r);
-        maybeWaitForSync(r);
+        addToAllPartitions(() -> RedoLogRecord.createCheckpoint(checkpointId));
+    }
+
+    // 删除map的日志也要写到所有的流中，每个流中在它之前的这个map的日志都不需要redo了
+    public void addDroppedMapRedoLogRecord(String mapName) {
+        addToAllPartitions(() -> RedoLogRecord.createDroppedMapRedoLogRecord(mapName));
+    }
+
+    // 先都加进去，再等所有的流同步完，这样各个流是并行同步的
+    private void addToAllPartitions(Supplier<RedoLogRecord> supplier) {
+        RedoLogRecord[] records = new RedoLogRecord[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            records[i] = supplier.get();
+            partitions[i].addRedoLogRecord(records[i]);
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].maybeWaitForSync(records[i]);
+        }
     }
 
     public boolean isInstantSync() {
@@ -139,8 +209,31 @@ public abstract class LogSyncService extends Thread {
     }
 
     public static LogSyncService create(Map<String, String> config) {
+        int partitionCount = 1;
+        if (config.containsKey("redo_log_partitions"))
+            partitionCount = Integer.parseInt(config.get("redo_log_partitions"));
+        if (partitionCount < 1)
+            throw new IllegalArgumentException("Invalid redo_log_partitions: " + partitionCount);
+        // 以前用过的流也要读出来redo，并且还要继续写检查点
+        int streamCount = Math.max(partitionCount, RedoLog.getExistingPartitionCount(config));
+        RedoLog redoLog = new RedoLog(config, streamCount);
+        LogSyncService[] partitions = new LogSyncService[streamCount];
+        int engineId = LogSyncMetrics.nextEngineId();
+        for (int i = 0; i < streamCount; i++) {
+            partitions[i] = create(config, config.get("log_sync_type"));
+            partitions[i].redoLog = redoLog.getPartition(i);
+            if (streamCount > 1)
+                partitions[i].setName(partitions[i].getName() + "-" + i);
+            partitions[i].redoLog.getMetrics().registerMBean(engineId);
+        }
+        LogSyncService logSyncService = partitions[0];
+        logSyncService.partitions = partitions;
+        logSyncService.partitionCount = partitionCount;
+        return logSyncService;
+    }
+
+    private static LogSyncService create(Map<String, String> config, String logSyncType) {
         LogSyncService logSyncService;
-        String logSyncType = config.get("log_sync_type");
         if (logSyncType == null || LOG_SYNC_TYPE_PERIODIC.equalsIgnoreCase(logSyncType))
             logSyncService = new PeriodicLogSyncService(config);
         else if (LOG_SYNC_TYPE_INSTANT.equalsIgnoreCase(logSyncType))
@@ -149,7 +242,6 @@ public abstract class LogSyncService extends Thread {
             logSyncService = new NoLogSyncService(config);
         else
             throw new IllegalArgumentException("Unknow log_sync_type: " + logSyncType);
-        logSyncService.redoLog = new RedoLog(config);
         return logSyncService;
     }
 }
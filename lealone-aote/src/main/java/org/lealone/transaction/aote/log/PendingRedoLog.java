@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote.log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.DataBuffer;
+import org.lealone.storage.fs.FilePath;
+import org.lealone.storage.fs.FileStorage;
+import org.lealone.storage.fs.FileUtils;
+
+/**
+ * 崩溃恢复时还没有redo的日志，按map名和redo日志流分区。
+ * <p>
+ * 每个map的key/value先放到它自己的buffer中，所有map的buffer占用的内存超过上限时，
+ * 把最大的那个buffer追加到这个map的临时文件中，第一次打开map时再以流的方式读回来redo。
+ * 有多个redo日志流时，同一个map在每个流中的key/value是按提交顺序排列的，redo时按提交序号合并。
+ *
+ * @author zhh
+ */
+class PendingRedoLog {
+
+    static final String SPILL_FILE_NAME_PREFIX = "pendingRedoLog" + RedoLog.NAME_ID_SEPARATOR;
+
+    private static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+    private static final int READ_BUFF_SIZE = 1024 * 1024;
+    // 每个key/value前面有8个字节的提交序号和4个字节的长度
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    private final Map<String, String> config;
+    private final long maxMemory;
+    // key: mapName, value: 每个redo日志流一个
+    private final HashMap<String, MapRedoLog[]> logs = new HashMap<>();
+    private long memory;
+    private int nextSpillFileId;
+    private int stream;
+    private int streamCount = 1;
+
+    PendingRedoLog(Map<String, String> config) {
+        this.config = config;
+        if (config.containsKey("redo_recovery_memory"))
+            maxMemory = Long.parseLong(config.get("redo_recovery_memory"));
+        else
+            maxMemory = DEFAULT_MAX_MEMORY;
+        // 删除上次恢复时没有用完的临时文件
+        FilePath dir = FilePath.get(config.get("storagePath"));
+        for (FilePath fp : dir.newDirectoryStream()) {
+            if (fp.getName().startsWith(SPILL_FILE_NAME_PREFIX))
+                fp.delete();
+        }
+    }
+
+    // 之后加入和清除的日志都属于这个redo日志流
+    synchronized void setStream(int stream, int streamCount) {
+        this.stream = stream;
+        this.streamCount = streamCount;
+    }
+
+    /**
+     * Add a key/value of a map to the current stream, the bytes are copied.
+     *
+     * @param mapName the map name
+     * @param commitSeq the commit sequence of the transaction
+     * @param keyValue the key/value, from the position to the limit
+     */
+    synchronized void add(String mapName, long commitSeq, ByteBuffer keyValue) {
+        MapRedoLog[] mapLogs = logs.get(mapName);
+        if (mapLogs == null) {
+            mapLogs = new MapRedoLog[streamCount];
+            logs.put(mapName, mapLogs);
+        }
+        MapRedoLog log = mapLogs[stream];
+        if (log == null) {
+            log = new MapRedoLog();
+            mapLogs[stream] = log;
+        }
+        int len = keyValue.remaining();
+        log.buff.putLong(commitSeq);
+        log.buff.putInt(len);
+        log.buff.put(keyValue);
+        log.count++;
+        memory += ENTRY_HEADER_SIZE + len;
+        if (memory > maxMemory)
+            spill();
+    }
+
+    // 检查点之前的日志都不需要redo了
+    synchronized void clear() {
+        for (String mapName : new ArrayList<>(logs.keySet())) {
+            remove(mapName);
+        }
+    }
+
+    // map被删除了，之前的日志都不需要redo了
+    synchronized void remove(String mapName) {
+        MapRedoLog[] mapLogs = logs.get(mapName);
+        if (mapLogs != null) {
+            MapRedoLog log = mapLogs[stream];
+            if (log != null) {
+                memory -= log.buff.position();
+                log.close();
+                mapLogs[stream] = null;
+            }
+            for (MapRedoLog l : mapLogs) {
+                if (l != null)
+                    return;
+            }
+            logs.remove(mapName);
+        }
+    }
+
+    /**
+     * Remove and return the pending key/values of a map, one for each stream that has any.
+     *
+     * @param mapName the map name
+     * @return the key/values, or null if there are none
+     */
+    synchronized List<MapRedoLog> take(String mapName) {
+        MapRedoLog[] mapLogs = logs.remove(mapName);
+        if (mapLogs == null)
+            return null;
+        ArrayList<MapRedoLog> list = new ArrayList<>(mapLogs.length);
+        for (MapRedoLog log : mapLogs) {
+            if (log != null) {
+                memory -= log.buff.position();
+                list.add(log);
+            }
+        }
+        return list;
+    }
+
+    synchronized boolean isEmpty() {
+        return logs.isEmpty();
+    }
+
+    synchronized int size() {
+        return logs.size();
+    }
+
+    // 直到内存降到上限的一半以下，每次把占用内存最多的map写到它的临时文件中
+    private void spill() {
+        while (memory > maxMemory / 2) {
+            MapRedoLog max = null;
+            for (MapRedoLog[] mapLogs : logs.values()) {
+                for (MapRedoLog log : mapLogs) {
+                    if (log != null && (max == null || log.buff.position() > max.buff.position()))
+                        max = log;
+                }
+            }
+            if (max == null || max.buff.position() == 0)
+                break;
+            memory -= max.buff.position();
+            max.spill();
+        }
+    }
+
+    class MapRedoLog {
+
+        private DataBuffer buff = DataBuffer.create();
+        private FileStorage spillFile;
+        private long spillLength;
+        private int count;
+
+        int getCount() {
+            return count;
+        }
+
+        private void spill() {
+            if (spillFile == null) {
+                String fileName = config.get("storagePath") + File.separator + SPILL_FILE_NAME_PREFIX
+                        + nextSpillFileId++;
+                spillFile = new FileStorage();
+                spillFile.open(fileName, config);
+            }
+            int length = buff.position();
+            spillFile.writeFully(spillLength, buff.getAndFlipBuffer());
+            spillLength += length;
+            buff = DataBuffer.create();
+        }
+
+        /**
+         * Create a cursor over all key/values, in the order they were added.
+         * Key/values in the spill file are read in bounded buffers.
+         *
+         * @return the cursor
+         */
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        void close() {
+            if (spillFile != null) {
+                String fileName = spillFile.getFileName();
+                spillFile.close();
+                FileUtils.delete(fileName);
+                spillFile = null;
+            }
+        }
+
+        class Cursor {
+
+            private long pos;
+            private ByteBuffer block = ByteBuffer.allocate(0);
+            private boolean inMemory;
+            private long commitSeq;
+            private ByteBuffer keyValue;
+
+            long getCommitSeq() {
+                return commitSeq;
+            }
+
+            ByteBuffer getKeyValue() {
+                return keyValue;
+            }
+
+            boolean next() {
+                while (!inMemory) {
+                    if (block.remaining() >= ENTRY_HEADER_SIZE
+                            && block.remaining() >= ENTRY_HEADER_SIZE + block.getInt(block.position() + 8)) {
+                        return next(block);
+                    }
+                    if (pos >= spillLength) {
+                        if (block.hasRemaining())
+                            throw DbException.throwInternalError("Corrupt pending redo log: " + spillFile);
+                        block = buff.getAndFlipBuffer();
+                        inMemory = true;
+                        break;
+                    }
+                    // 剩下的部分跟下一块拼起来
+                    int need = block.remaining() < ENTRY_HEADER_SIZE ? ENTRY_HEADER_SIZE
+                            : ENTRY_HEADER_SIZE + block.getInt(block.position() + 8);
+                    int len = (int) Math.min(Math.max(READ_BUFF_SIZE, need), spillLength - pos);
+                    ByteBuffer next = ByteBuffer.allocate(block.remaining() + len);
+                    next.put(block);
+                    next.put(spillFile.readFully(pos, len));
+                    next.flip();
+                    pos += len;
+                    block = next;
+                }
+                if (block.hasRemaining())
+                    return next(block);
+                keyValue = null;
+                return false;
+            }
+
+            private boolean next(ByteBuffer buffer) {
+                commitSeq = buffer.getLong();
+                int len = buffer.getInt();
+                keyValue = buffer.slice();
+                keyValue.limit(len);
+                buffer.position(buffer.position() + len);
+                return true;
+            }
+        }
+    }
+}
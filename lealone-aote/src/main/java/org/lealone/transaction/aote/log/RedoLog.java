@@ -25,49 +25,133 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
 import org.lealone.db.Constants;
+import org.lealone.db.async.AsyncHandler;
+import org.lealone.db.async.AsyncResult;
+import org.lealone.storage.PageOperationHandler;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.aote.TransactionalValue;
 import org.lealone.transaction.aote.TransactionalValueType;
+import org.lealone.transaction.aote.log.PendingRedoLog.MapRedoLog;
 import org.lealone.transaction.aote.log.RedoLogRecord.ReplicaCommitRedoLogRecord;
 import org.lealone.transaction.aote.log.RedoLogRecord.ReplicaPrepareCommitRedoLogRecord;
+import org.lealone.transaction.aote.log.RedoLogRecord.TransactionRedoLogRecord;
 
 /**
  * A redo log
+ * <p>
+ * 可以有多个redo日志流，每个流有自己的目录和日志同步线程，第0个流使用redo_log_dir，其他的流使用它下面的子目录。
+ * 有多个流时每条事务日志都带有一个全局递增的提交序号，恢复时同一个map在各个流中的日志按提交序号合并。
  *
  * @author zhh
  */
 public class RedoLog {
 
+    private static final Logger logger = LoggerFactory.getLogger(RedoLog.class);
+
     private static final long DEFAULT_LOG_CHUNK_SIZE = 32 * 1024 * 1024;
 
+    // redo时每批最多合并这么多个key，合并后再并发写入map
+    private static final int REDO_BATCH_SIZE = 64 * 1024;
+
     public static final char NAME_ID_SEPARATOR = Constants.NAME_SEPARATOR;
 
-    // key: mapName, value: map key/value ByteBuffer list
-    private final HashMap<String, List<ByteBuffer>> pendingRedoLog = new HashMap<>();
+    private static final Object REMOVED = new Object();
+
+    private final PendingRedoLog pendingRedoLog;
     private final Map<String, String> config;
     private final long logChunkSize;
+    private final RedoLog[] partitions; // 所有的redo日志流，只有第0个流才有
+    private final AtomicLong lastCommitSeq; // 所有的流共用
 
-    private RedoLogChunk currentChunk;
+    private final LogSyncMetrics metrics;
 
-    RedoLog(Map<String, String> config) {
-        this.config = config;
-        if (config.containsKey("log_chunk_size"))
-            logChunkSize = Long.parseLong(config.get("log_chunk_size"));
-        else
-            logChunkSize = DEFAULT_LOG_CHUNK_SIZE;
+    private volatile RedoLogChunk currentChunk;
 
-        String baseDir = config.get("base_dir");
-        String logDir = config.get("redo_log_dir");
-        String storagePath = baseDir + File.separator + logDir;
+    RedoLog(Map<String, String> config, int partitionCount) {
+        this.config = config;
+        logChunkSize = getLogChunkSize(config);
+        String storagePath = getStoragePath(config);
         config.put("storagePath", storagePath);
 
         if (!FileUtils.exists(storagePath))
             FileUtils.createDirectories(storagePath);
+        pendingRedoLog = new PendingRedoLog(config);
+        lastCommitSeq = new AtomicLong();
+        metrics = new LogSyncMetrics(0);
+        partitions = new RedoLog[partitionCount];
+        partitions[0] = this;
+        for (int i = 1; i < partitionCount; i++) {
+            partitions[i] = new RedoLog(this, i);
+        }
+    }
+
+    private RedoLog(RedoLog main, int partitionId) {
+        config = new HashMap<>(main.config);
+        config.put("storagePath", main.config.get("storagePath") + File.separator + partitionId);
+        logChunkSize = main.logChunkSize;
+        pendingRedoLog = main.pendingRedoLog;
+        lastCommitSeq = main.lastCommitSeq;
+        metrics = new LogSyncMetrics(partitionId);
+        partitions = null;
+        String storagePath = config.get("storagePath");
+        if (!FileUtils.exists(storagePath))
+            FileUtils.createDirectories(storagePath);
+    }
+
+    private static long getLogChunkSize(Map<String, String> config) {
+        if (config.containsKey("log_chunk_size"))
+            return Long.parseLong(config.get("log_chunk_size"));
+        else
+            return DEFAULT_LOG_CHUNK_SIZE;
+    }
+
+    static String getStoragePath(Map<String, String> config) {
+        return config.get("base_dir") + File.separator + config.get("redo_log_dir");
+    }
+
+    /**
+     * Get the number of redo log streams that already exist in the redo log directory,
+     * a stream that was used before must still be read at recovery.
+     *
+     * @param config the config
+     * @return the number of existing streams, at least 1
+     */
+    static int getExistingPartitionCount(Map<String, String> config) {
+        int count = 1;
+        FilePath dir = FilePath.get(getStoragePath(config));
+        if (dir.exists()) {
+            for (FilePath fp : dir.newDirectoryStream()) {
+                String name = fp.getName();
+                if (fp.isDirectory() && !name.isEmpty() && name.chars().allMatch(Character::isDigit))
+                    count = Math.max(count, Integer.parseInt(name) + 1);
+            }
+        }
+        return count;
+    }
+
+    RedoLog getPartition(int partitionId) {
+        return partitions[partitionId];
+    }
+
+    /**
+     * Assign the commit sequence of a transaction redo log record before it is added to its stream.
+     * Only needed when there are more than one streams, otherwise the order of the log is the commit order.
+     */
+    private void assignCommitSeq(RedoLogRecord r) {
+        if (lastCommitSeq.get() > 0)
+            r.setCommitSeq(lastCommitSeq.incrementAndGet());
     }
 
     private List<Integer> getAllChunkIds() {
@@ -87,26 +171,56 @@ public class RedoLog {
 
     public long init() {
         long lastTransactionId = 0;
+        long[] maxCommitSeq = { 0 };
+        LinkedHashMap<String, ReplicaPrepareCommitRedoLogRecord> replicaPrepareCommitMap = new LinkedHashMap<>();
+        RecoveryProgress progress = new RecoveryProgress();
+        for (int i = 0; i < partitions.length; i++) {
+            pendingRedoLog.setStream(i, partitions.length);
+            long tid = partitions[i].init(replicaPrepareCommitMap, progress, maxCommitSeq);
+            lastTransactionId = Math.max(lastTransactionId, tid);
+        }
+        if (progress.chunkCount > 0) {
+            progress.done();
+            redoReplicaPrepareCommit(replicaPrepareCommitMap);
+        }
+        // 只有一个流时不需要提交序号，否则新的提交序号要比恢复出来的都大，
+        // 以前只有一个流时写的日志用事务id作为提交序号
+        if (partitions.length > 1)
+            lastCommitSeq.set(Math.max(Math.max(maxCommitSeq[0], lastTransactionId), 1));
+        return lastTransactionId;
+    }
+
+    private long init(LinkedHashMap<String, ReplicaPrepareCommitRedoLogRecord> replicaPrepareCommitMap,
+            RecoveryProgress progress, long[] maxCommitSeq) {
+        long[] lastTransactionId = { 0 };
         List<Integer> ids = getAllChunkIds();
         if (ids.isEmpty()) {
-            currentChunk = new RedoLogChunk(0, config);
+            currentChunk = new RedoLogChunk(0, config, metrics);
         } else {
-            LinkedHashMap<String, ReplicaPrepareCommitRedoLogRecord> replicaPrepareCommitMap = new LinkedHashMap<>();
+            progress.add(config, ids);
             int lastId = ids.get(ids.size() - 1);
             for (int id : ids) {
                 RedoLogChunk chunk = null;
                 try {
-                    chunk = new RedoLogChunk(id, config);
-                    for (RedoLogRecord r : chunk.getAndResetRedoLogRecords()) {
-                        if (r instanceof ReplicaPrepareCommitRedoLogRecord) {
+                    chunk = new RedoLogChunk(id, config, metrics);
+                    chunk.read(r -> {
+                        if (r.isCheckpoint()) {
+                            replicaPrepareCommitMap.clear(); // 丢弃之前的
+                        } else if (r instanceof ReplicaPrepareCommitRedoLogRecord) {
                             ReplicaPrepareCommitRedoLogRecord rpc = (ReplicaPrepareCommitRedoLogRecord) r;
                             replicaPrepareCommitMap.put(rpc.getCurrentReplicationName(), rpc);
                         } else if (r instanceof ReplicaCommitRedoLogRecord) {
                             ReplicaCommitRedoLogRecord rc = (ReplicaCommitRedoLogRecord) r;
                             replicaPrepareCommitMap.remove(rc.getCurrentReplicationName());
+                        } else if (r instanceof TransactionRedoLogRecord) {
+                            long commitSeq = ((TransactionRedoLogRecord) r).getCommitSeq();
+                            if (commitSeq > maxCommitSeq[0])
+                                maxCommitSeq[0] = commitSeq;
                         }
-                        lastTransactionId = r.initPendingRedoLog(pendingRedoLog, lastTransactionId);
-                    }
+                        lastTransactionId[0] = r.initPendingRedoLog(pendingRedoLog, lastTransactionId[0]);
+                        progress.record();
+                    });
+                    progress.chunk(chunk.logChunkSize());
                 } finally {
                     // 注意一定要关闭，否则对应的chunk文件将无法删除，
                     // 内部会打开一个FileStorage，不会因为没有引用到了而自动关闭
@@ -116,9 +230,52 @@ public class RedoLog {
                         chunk.close();
                 }
             }
-            redoReplicaPrepareCommit(replicaPrepareCommitMap);
         }
-        return lastTransactionId;
+        return lastTransactionId[0];
+    }
+
+    // 恢复大的日志时定期输出进度和吞吐量，最多每秒一次
+    private class RecoveryProgress {
+
+        private final long startTime = System.currentTimeMillis();
+        private int chunkCount;
+        private long totalBytes;
+        private long bytes;
+        private long records;
+        private long lastLogTime = startTime;
+
+        void add(Map<String, String> config, List<Integer> ids) {
+            chunkCount += ids.size();
+            for (int id : ids) {
+                totalBytes += FileUtils.size(RedoLogChunk.getChunkFileName(config, id));
+            }
+        }
+
+        void record() {
+            if ((++records & 1023) == 0) {
+                long now = System.currentTimeMillis();
+                if (now - lastLogTime >= 1000) {
+                    lastLogTime = now;
+                    logger.info("Reading redo log: " + bytes + "/" + totalBytes + " bytes, " + records
+                            + " records, " + throughput(bytes, now - startTime) + " MB/s");
+                }
+            }
+        }
+
+        void chunk(long chunkBytes) {
+            bytes += chunkBytes;
+        }
+
+        void done() {
+            long time = System.currentTimeMillis() - startTime;
+            logger.info("Read redo log: " + records + " records, " + bytes + " bytes, " + pendingRedoLog.size()
+                    + " maps to redo, " + chunkCount + " chunks, " + partitions.length + " streams, " + time
+                    + " ms, " + throughput(bytes, time) + " MB/s");
+        }
+
+        private String throughput(long bytes, long time) {
+            return String.format("%.1f", bytes / 1024d / 1024d / Math.max(time, 1) * 1000);
+        }
     }
 
     private void redoReplicaPrepareCommit(
@@ -129,24 +286,100 @@ public class RedoLog {
     }
 
     // 第一次打开底层存储的map时调用这个方法，重新执行一次上次已经成功并且在检查点之后的事务操作
+    //
+    // 先按日志顺序把同一个key的多次修改合并成最后一次，每批合并后的key/value互不相关，
+    // 可以分给所有的PageOperationHandler并发写入，一批写完再处理下一批，这样能保证redo的顺序。
+    // 有多个redo日志流时，每次从各个流中取出提交序号最小的那个key/value，
+    // 同一个key的修改在各个流中都是按提交序号从小到大排列的，这样合并后就是提交的顺序
     @SuppressWarnings("unchecked")
     public <K> void redo(StorageMap<K, TransactionalValue> map) {
-        List<ByteBuffer> pendingKeyValues = pendingRedoLog.remove(map.getName());
-        if (pendingKeyValues != null && !pendingKeyValues.isEmpty()) {
+        List<MapRedoLog> logs = pendingRedoLog.take(map.getName());
+        if (logs == null)
+            return;
+        long startTime = System.currentTimeMillis();
+        long count = 0;
+        try {
             StorageDataType kt = map.getKeyType();
             StorageDataType vt = ((TransactionalValueType) map.getValueType()).valueType;
-            for (ByteBuffer kv : pendingKeyValues) {
-                K key = (K) kt.read(kv);
+            TreeMap<Object, Object> batch = new TreeMap<>((k1, k2) -> kt.compare(k1, k2));
+            MapRedoLog.Cursor[] cursors = new MapRedoLog.Cursor[logs.size()];
+            int size = 0;
+            for (MapRedoLog log : logs) {
+                MapRedoLog.Cursor cursor = log.cursor();
+                if (cursor.next())
+                    cursors[size++] = cursor;
+                count += log.getCount();
+            }
+            while (size > 0) {
+                int min = 0;
+                for (int i = 1; i < size; i++) {
+                    if (cursors[i].getCommitSeq() < cursors[min].getCommitSeq())
+                        min = i;
+                }
+                MapRedoLog.Cursor cursor = cursors[min];
+                ByteBuffer kv = cursor.getKeyValue();
+                Object key = kt.read(kv);
                 if (kv.get() == 0)
-                    map.remove(key);
-                else {
-                    Object value = vt.read(kv);
-                    // 需要返回引用，否则无法在修改和删除时使用CAS
-                    TransactionalValue ref = TransactionalValue.createRef(TransactionalValue.createCommitted(value));
-                    map.put(key, ref);
+                    batch.put(key, REMOVED);
+                else
+                    batch.put(key, vt.read(kv));
+                if (batch.size() >= REDO_BATCH_SIZE) {
+                    redo(map, (TreeMap<K, Object>) (TreeMap<?, ?>) batch);
+                    batch.clear();
                 }
+                if (!cursor.next())
+                    cursors[min] = cursors[--size];
+            }
+            redo(map, (TreeMap<K, Object>) (TreeMap<?, ?>) batch);
+        } finally {
+            for (MapRedoLog log : logs) {
+                log.close();
+            }
+        }
+        long time = System.currentTimeMillis() - startTime;
+        if (count >= REDO_BATCH_SIZE || time >= 1000)
+            logger.info("Redo map " + map.getName() + ": " + count + " operations, " + logs.size() + " streams, "
+                    + time + " ms");
+    }
+
+    private static <K> void redo(StorageMap<K, TransactionalValue> map, TreeMap<K, Object> batch) {
+        if (batch.isEmpty())
+            return;
+        // 当前线程就是PageOperationHandler时不能等待其他PageOperationHandler，否则可能死锁
+        if (Thread.currentThread() instanceof PageOperationHandler) {
+            for (Map.Entry<K, Object> e : batch.entrySet()) {
+                if (e.getValue() == REMOVED)
+                    map.remove(e.getKey());
+                else
+                    map.put(e.getKey(), createRef(e.getValue()));
             }
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(batch.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AsyncHandler<AsyncResult<TransactionalValue>> handler = ar -> {
+            if (ar.isFailed())
+                failure.compareAndSet(null, ar.getCause());
+            latch.countDown();
+        };
+        for (Map.Entry<K, Object> e : batch.entrySet()) {
+            if (e.getValue() == REMOVED)
+                map.remove(e.getKey(), handler);
+            else
+                map.put(e.getKey(), createRef(e.getValue()), handler);
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
         }
+        if (failure.get() != null)
+            throw DbException.convert(failure.get());
+    }
+
+    // 需要返回引用，否则无法在修改和删除时使用CAS
+    private static TransactionalValue createRef(Object value) {
+        return TransactionalValue.createRef(TransactionalValue.createCommitted(value));
     }
 
     int size() {
@@ -154,9 +387,14 @@ public class RedoLog {
     }
 
     void addRedoLogRecord(RedoLogRecord r) {
+        assignCommitSeq(r);
         currentChunk.addRedoLogRecord(r);
     }
 
+    LogSyncMetrics getMetrics() {
+        return metrics;
+    }
+
     void close() {
         save();
         currentChunk.close();
@@ -165,8 +403,10 @@ public class RedoLog {
     void save() {
         currentChunk.save();
         if (currentChunk.logChunkSize() > logChunkSize) {
-            currentChunk.close();
-            currentChunk = new RedoLogChunk(currentChunk.getId() + 1, config);
+            // 先切换到新的chunk再关闭旧的，两个chunk共用一个队列，切换过程中加入的日志不会丢失
+            RedoLogChunk lastChunk = currentChunk;
+            currentChunk = new RedoLogChunk(lastChunk);
+            lastChunk.close();
         }
     }
 }
@@ -18,10 +18,13 @@
 package org.lealone.transaction.aote.log;
 
 import java.io.File;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.lealone.db.DataBuffer;
 import org.lealone.storage.fs.FileStorage;
@@ -36,40 +39,80 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
 
     static final String CHUNK_FILE_NAME_PREFIX = "redoLog" + RedoLog.NAME_ID_SEPARATOR;
 
-    private static String getChunkFileName(Map<String, String> config, int id) {
+    static String getChunkFileName(Map<String, String> config, int id) {
         String storagePath = config.get("storagePath");
         return storagePath + File.separator + CHUNK_FILE_NAME_PREFIX + id;
     }
 
     private static final int BUFF_SIZE = 16 * 1024;
+    private static final int READ_BUFF_SIZE = 1024 * 1024;
     private DataBuffer buff = DataBuffer.create(BUFF_SIZE);
 
     private final int id;
     private final FileStorage fileStorage;
     private final Map<String, String> config;
-    private final AtomicInteger logQueueSize = new AtomicInteger(0);
-    private LinkedTransferQueue<RedoLogRecord> logQueue;
+    private final AtomicInteger logQueueSize;
+    private final LinkedTransferQueue<RedoLogRecord> logQueue;
+    private final LogSyncMetrics metrics;
     private long pos;
+    private long unsyncedLength;
 
-    RedoLogChunk(int id, Map<String, String> config) {
+    RedoLogChunk(int id, Map<String, String> config, LogSyncMetrics metrics) {
+        this(id, config, new LinkedTransferQueue<>(), new AtomicInteger(0), metrics);
+    }
+
+    // 切换到下一个chunk时沿用上一个chunk的队列，
+    // 这样在切换过程中加到上一个chunk的日志也不会丢失，会写到新的chunk中
+    RedoLogChunk(RedoLogChunk lastChunk) {
+        this(lastChunk.id + 1, lastChunk.config, lastChunk.logQueue, lastChunk.logQueueSize, lastChunk.metrics);
+    }
+
+    private RedoLogChunk(int id, Map<String, String> config, LinkedTransferQueue<RedoLogRecord> logQueue,
+            AtomicInteger logQueueSize, LogSyncMetrics metrics) {
         this.id = id;
         this.config = config;
         String chunkFileName = getChunkFileName(config, id);
         fileStorage = new FileStorage();
         fileStorage.open(chunkFileName, config);
-        logQueue = new LinkedTransferQueue<>();
+        this.logQueue = logQueue;
+        this.logQueueSize = logQueueSize;
+        this.metrics = metrics;
         pos = fileStorage.size();
-        if (pos > 0)
-            read();
     }
 
-    private void read() {
-        ByteBuffer buffer = fileStorage.readFully(0, (int) pos);
-        while (buffer.remaining() > 0) {
-            RedoLogRecord r = RedoLogRecord.read(buffer);
-            if (r.isCheckpoint())
-                logQueue = new LinkedTransferQueue<>(); // 丢弃之前的
-            logQueue.add(r);
+    /**
+     * Read all records of this chunk in order. The file is read in bounded buffers,
+     * a record that spans two buffers is parsed again after the next buffer is read.
+     *
+     * @param consumer the consumer of the records
+     */
+    void read(Consumer<RedoLogRecord> consumer) {
+        long readPos = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        while (readPos < pos || buffer.hasRemaining()) {
+            int start = buffer.position();
+            RedoLogRecord r = null;
+            if (buffer.hasRemaining()) {
+                try {
+                    r = RedoLogRecord.read(buffer);
+                } catch (BufferUnderflowException e) {
+                    if (readPos >= pos)
+                        throw e;
+                    buffer.position(start);
+                }
+            }
+            if (r != null) {
+                consumer.accept(r);
+                continue;
+            }
+            // 剩下的部分跟下一块拼起来，大记录需要多读几次，每次至少读一倍
+            int len = (int) Math.min(Math.max(READ_BUFF_SIZE, buffer.remaining()), pos - readPos);
+            ByteBuffer next = ByteBuffer.allocate(buffer.remaining() + len);
+            next.put(buffer);
+            next.put(fileStorage.readFully(readPos, len));
+            next.flip();
+            readPos += len;
+            buffer = next;
         }
     }
 
@@ -83,16 +126,11 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
 
     void addRedoLogRecord(RedoLogRecord r) {
         // 虽然这两行不是原子操作，但是也没影响的，最多日志线程空转一下
+        r.setAddedAt(System.nanoTime());
         logQueueSize.incrementAndGet();
         logQueue.add(r);
     }
 
-    LinkedTransferQueue<RedoLogRecord> getAndResetRedoLogRecords() {
-        LinkedTransferQueue<RedoLogRecord> oldQueue = logQueue;
-        logQueue = new LinkedTransferQueue<>();
-        return oldQueue;
-    }
-
     void close() {
         save();
         fileStorage.close();
@@ -100,41 +138,57 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
 
     synchronized void save() {
         if (logQueueSize.get() > 0) {
-            LinkedTransferQueue<RedoLogRecord> redoLogRecordQueue = getAndResetRedoLogRecords();
-            long chunkLength = 0;
-            for (RedoLogRecord r : redoLogRecordQueue) {
+            // 不能替换成新的队列，并发加入的日志可能还会加到旧队列中，那样就丢失了
+            // 最多取出当前的记录数，并发加入的留到下一次保存
+            int size = logQueueSize.get();
+            ArrayList<RedoLogRecord> redoLogRecordQueue = new ArrayList<>(size);
+            RedoLogRecord r;
+            while (redoLogRecordQueue.size() < size && (r = logQueue.poll()) != null) {
+                redoLogRecordQueue.add(r);
                 if (r.isCheckpoint()) {
                     deleteOldChunkFiles();
                     fileStorage.truncate(0);
-                    buff.reset();
+                    buff.clear();
                     pos = 0;
                 }
-                r.write(buff);
-                if (buff.position() > BUFF_SIZE)
-                    chunkLength += write(buff);
+                r.write(buff, this);
+                writeIfFull(buff);
                 logQueueSize.decrementAndGet();
             }
-            chunkLength += write(buff);
-            if (chunkLength > 0) {
+            write(buff);
+            long bytes = unsyncedLength;
+            long syncStarted = System.nanoTime();
+            if (unsyncedLength > 0) {
                 fileStorage.sync();
+                unsyncedLength = 0;
             }
-            for (RedoLogRecord r : redoLogRecordQueue) {
-                r.setSynced(true);
+            long now = System.nanoTime();
+            for (RedoLogRecord record : redoLogRecordQueue) {
+                record.setSynced(true);
+                metrics.addCommitLatency(now - record.getAddedAt());
             }
+            metrics.addSync(redoLogRecordQueue.size(), bytes, now - syncStarted);
             // 避免占用太多内存
             if (buff.capacity() > BUFF_SIZE * 3)
                 buff = DataBuffer.create(BUFF_SIZE);
         }
     }
 
-    private int write(DataBuffer buff) {
+    void writeIfFull(DataBuffer buff) {
+        if (buff.position() > BUFF_SIZE)
+            write(buff);
+    }
+
+    private void write(DataBuffer buff) {
         int length = buff.position();
         if (length > 0) {
             fileStorage.writeFully(pos, buff.getAndFlipBuffer());
             pos += length;
-            buff.reset();
+            unsyncedLength += length;
+            // getAndFlipBuffer把limit设成了写入的长度，只用reset的话后面每次扩容都会多出一半，
+            // 一次保存很多日志时buff会无限制地增长，所以要用clear把limit也恢复
+            buff.clear();
         }
-        return length;
     }
 
     private void deleteOldChunkFiles() {
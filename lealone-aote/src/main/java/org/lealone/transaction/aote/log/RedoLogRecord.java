@@ -18,9 +18,6 @@
 package org.lealone.transaction.aote.log;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
@@ -39,8 +36,13 @@ public abstract class RedoLogRecord {
     private static byte TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD = 3;
     private static byte TYPE_REPLICA_PREPARE_COMMIT_REDO_LOG_RECORD = 4;
     private static byte TYPE_REPLICA_COMMIT_REDO_LOG_RECORD = 5;
+    private static byte TYPE_LOCAL_TRANSACTION_SEGMENTS_REDO_LOG_RECORD = 6;
+    // 有多个redo日志流时，事务日志前面加上提交序号，后面跟着一条普通的事务日志
+    private static final byte TYPE_COMMIT_SEQ = 7;
+    private static byte TYPE_DISTRIBUTED_TRANSACTION_SEGMENTS_REDO_LOG_RECORD = 8;
 
     private volatile boolean synced;
+    private long addedAt; // 加入队列的时间，用来统计从提交到sync完成的延迟
 
     boolean isSynced() {
         return synced;
@@ -50,14 +52,38 @@ public abstract class RedoLogRecord {
         this.synced = synced;
     }
 
+    long getAddedAt() {
+        return addedAt;
+    }
+
+    void setAddedAt(long addedAt) {
+        this.addedAt = addedAt;
+    }
+
     boolean isCheckpoint() {
         return false;
     }
 
-    abstract long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId);
+    abstract long initPendingRedoLog(PendingRedoLog pendingRedoLog, long lastTransactionId);
 
     abstract void write(DataBuffer buff);
 
+    // 大事务的日志可以边生成边写到chunk文件中，不用先生成一个很大的buffer
+    void write(DataBuffer buff, RedoLogChunk chunk) {
+        write(buff);
+    }
+
+    // 只有事务日志需要提交序号，其他日志忽略
+    void setCommitSeq(long commitSeq) {
+    }
+
+    static void writeCommitSeq(DataBuffer buff, long commitSeq) {
+        if (commitSeq > 0) {
+            buff.put(TYPE_COMMIT_SEQ);
+            buff.putVarLong(commitSeq);
+        }
+    }
+
     static RedoLogRecord read(ByteBuffer buff) {
         int type = buff.get();
         if (type == TYPE_CHECKPOINT) {
@@ -72,6 +98,15 @@ public abstract class RedoLogRecord {
             return ReplicaPrepareCommitRedoLogRecord.read(buff);
         } else if (type == TYPE_REPLICA_COMMIT_REDO_LOG_RECORD) {
             return ReplicaCommitRedoLogRecord.read(buff);
+        } else if (type == TYPE_LOCAL_TRANSACTION_SEGMENTS_REDO_LOG_RECORD) {
+            return LocalTransactionRedoLogRecord.readSegments(buff);
+        } else if (type == TYPE_DISTRIBUTED_TRANSACTION_SEGMENTS_REDO_LOG_RECORD) {
+            return DistributedTransactionRedoLogRecord.readSegments(buff);
+        } else if (type == TYPE_COMMIT_SEQ) {
+            long commitSeq = DataUtils.readVarLong(buff);
+            RedoLogRecord r = read(buff);
+            r.setCommitSeq(commitSeq);
+            return r;
         } else {
             throw DbException.throwInternalError("unknow type: " + type);
         }
@@ -99,9 +134,18 @@ public abstract class RedoLogRecord {
 
     public static LazyTransactionRedoLogRecord createLazyTransactionRedoLogRecord(AMTransactionEngine transactionEngine,
             long transactionId, UndoLog undoLog) {
+        undoLog.retain();
         return new LazyTransactionRedoLogRecord(transactionEngine, transactionId, undoLog);
     }
 
+    public static LazyTransactionRedoLogRecord createLazyDistributedTransactionRedoLogRecord(
+            AMTransactionEngine transactionEngine, long transactionId, UndoLog undoLog, String transactionName,
+            String allLocalTransactionNames, long commitTimestamp) {
+        undoLog.retain();
+        return new LazyDistributedTransactionRedoLogRecord(transactionEngine, transactionId, undoLog,
+                transactionName, allLocalTransactionNames, commitTimestamp);
+    }
+
     public static ReplicaPrepareCommitRedoLogRecord createReplicaPrepareCommitRedoLogRecord(String sql, int updateCount,
             long first, String uncommittedReplicationName, String currentReplicationName,
             ReplicationConflictType replicationConflictType) {
@@ -127,7 +171,7 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
+        public long initPendingRedoLog(PendingRedoLog pendingRedoLog, long lastTransactionId) {
             pendingRedoLog.clear();
             if (checkpointId < lastTransactionId) {
                 throw DbException.throwInternalError(
@@ -158,12 +202,8 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
-            List<ByteBuffer> logs = pendingRedoLog.get(mapName);
-            if (logs != null) {
-                logs = new LinkedList<>();
-                pendingRedoLog.put(mapName, logs);
-            }
+        public long initPendingRedoLog(PendingRedoLog pendingRedoLog, long lastTransactionId) {
+            pendingRedoLog.remove(mapName);
             return lastTransactionId;
         }
 
@@ -183,6 +223,8 @@ public abstract class RedoLogRecord {
 
         protected final long transactionId;
         protected final ByteBuffer operations;
+        // 只有一个redo日志流时是0，这时按日志的顺序redo
+        protected long commitSeq;
 
         public TransactionRedoLogRecord(long transactionId, ByteBuffer operations) {
             this.transactionId = transactionId;
@@ -190,21 +232,26 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
+        void setCommitSeq(long commitSeq) {
+            this.commitSeq = commitSeq;
+        }
+
+        long getCommitSeq() {
+            return commitSeq;
+        }
+
+        @Override
+        public long initPendingRedoLog(PendingRedoLog pendingRedoLog, long lastTransactionId) {
             ByteBuffer buff = operations;
             while (buff.hasRemaining()) {
                 // 此时还没有打开底层存储的map，所以只预先解析出mapName和keyValue字节数组
                 // 写时格式参照UndoLogRecord.writeForRedo()
                 String mapName = ValueString.type.read(buff);
-                List<ByteBuffer> keyValues = pendingRedoLog.get(mapName);
-                if (keyValues == null) {
-                    keyValues = new LinkedList<>();
-                    pendingRedoLog.put(mapName, keyValues);
-                }
                 int len = buff.getInt();
-                byte[] keyValue = new byte[len];
-                buff.get(keyValue);
-                keyValues.add(ByteBuffer.wrap(keyValue));
+                ByteBuffer keyValue = buff.slice();
+                keyValue.limit(len);
+                buff.position(buff.position() + len);
+                pendingRedoLog.add(mapName, commitSeq, keyValue);
             }
             return transactionId > lastTransactionId ? transactionId : lastTransactionId;
         }
@@ -215,12 +262,32 @@ public abstract class RedoLogRecord {
         }
 
         public void write(DataBuffer buff, byte type) {
+            writeCommitSeq(buff, commitSeq);
             buff.put(type);
             buff.putVarLong(transactionId);
             buff.putInt(operations.remaining());
             buff.put(operations);
         }
 
+        // 格式: 多个(length, operations), 以length为0结束
+        public static ByteBuffer readSegmentedOperations(ByteBuffer buff) {
+            int start = buff.position();
+            int length = 0;
+            for (int len = buff.getInt(); len > 0; len = buff.getInt()) {
+                buff.position(buff.position() + len);
+                length += len;
+            }
+            int end = buff.position();
+            byte[] value = new byte[length];
+            buff.position(start);
+            for (int len = buff.getInt(), pos = 0; len > 0; len = buff.getInt()) {
+                buff.get(value, pos, len);
+                pos += len;
+            }
+            buff.position(end);
+            return ByteBuffer.wrap(value);
+        }
+
         public static ByteBuffer readOperations(ByteBuffer buff) {
             ByteBuffer operations;
             int len = buff.getInt(); // DataUtils.readVarInt(buff);
@@ -251,6 +318,13 @@ public abstract class RedoLogRecord {
             ByteBuffer operations = readOperations(buff);
             return new LocalTransactionRedoLogRecord(transactionId, operations);
         }
+
+        // 格式: transactionId, 多个(length, operations), 以length为0结束
+        public static LocalTransactionRedoLogRecord readSegments(ByteBuffer buff) {
+            long transactionId = DataUtils.readVarLong(buff);
+            ByteBuffer operations = readSegmentedOperations(buff);
+            return new LocalTransactionRedoLogRecord(transactionId, operations);
+        }
     }
 
     static class DistributedTransactionRedoLogRecord extends TransactionRedoLogRecord {
@@ -270,6 +344,11 @@ public abstract class RedoLogRecord {
         @Override
         public void write(DataBuffer buff) {
             write(buff, TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD);
+            writeTransactionNames(buff, transactionName, allLocalTransactionNames, commitTimestamp);
+        }
+
+        static void writeTransactionNames(DataBuffer buff, String transactionName,
+                String allLocalTransactionNames, long commitTimestamp) {
             ValueString.type.write(buff, transactionName);
             ValueString.type.write(buff, allLocalTransactionNames);
             buff.putVarLong(commitTimestamp);
@@ -278,6 +357,17 @@ public abstract class RedoLogRecord {
         public static DistributedTransactionRedoLogRecord read(ByteBuffer buff) {
             long transactionId = DataUtils.readVarLong(buff);
             ByteBuffer operations = readOperations(buff);
+            return read(buff, transactionId, operations);
+        }
+
+        public static DistributedTransactionRedoLogRecord readSegments(ByteBuffer buff) {
+            long transactionId = DataUtils.readVarLong(buff);
+            ByteBuffer operations = readSegmentedOperations(buff);
+            return read(buff, transactionId, operations);
+        }
+
+        private static DistributedTransactionRedoLogRecord read(ByteBuffer buff, long transactionId,
+                ByteBuffer operations) {
             String transactionName = ValueString.type.read(buff);
             String allLocalTransactionNames = ValueString.type.read(buff);
             long commitTimestamp = DataUtils.readVarLong(buff);
@@ -291,6 +381,7 @@ public abstract class RedoLogRecord {
         final AMTransactionEngine transactionEngine;
         final long transactionId;
         final UndoLog undoLog;
+        long commitSeq;
 
         public LazyTransactionRedoLogRecord(AMTransactionEngine transactionEngine, long transactionId,
                 UndoLog undoLog) {
@@ -299,27 +390,109 @@ public abstract class RedoLogRecord {
             this.undoLog = undoLog;
         }
 
+        @Override
+        void setCommitSeq(long commitSeq) {
+            this.commitSeq = commitSeq;
+        }
+
         @Override
         void write(DataBuffer buffer) {
             if (undoLog.isEmpty())
                 return;
-            buffer.put(TYPE_LOCAL_TRANSACTION_REDO_LOG_RECORD);
+            writeCommitSeq(buffer, commitSeq);
+            buffer.put(getType());
             buffer.putVarLong(transactionId);
             int pos = buffer.position();
             buffer.putInt(0);
-            for (UndoLogRecord r : undoLog.getUndoLogRecords()) {
-                r.writeForRedo(buffer, transactionEngine);
-            }
+            undoLog.forEachSpilledRedoLog(operations -> buffer.put(operations));
+            undoLog.writeForRedo(buffer, transactionEngine);
             int length = buffer.position() - pos - 4;
             buffer.putInt(pos, length);
+            writeTail(buffer);
+        }
+
+        // 写到临时文件中的每一段redo日志单独作为一段写到chunk文件中，写完一段就可以把chunk的缓冲区刷到文件
+        @Override
+        void write(DataBuffer buffer, RedoLogChunk chunk) {
+            try {
+                if (!undoLog.isSpilled()) {
+                    write(buffer);
+                    return;
+                }
+                writeCommitSeq(buffer, commitSeq);
+                buffer.put(getSegmentsType());
+                buffer.putVarLong(transactionId);
+                undoLog.forEachSpilledRedoLog(operations -> {
+                    if (operations.hasRemaining()) {
+                        buffer.putInt(operations.remaining());
+                        buffer.put(operations);
+                        chunk.writeIfFull(buffer);
+                    }
+                });
+                int pos = buffer.position();
+                buffer.putInt(0);
+                undoLog.writeForRedo(buffer, transactionEngine);
+                int length = buffer.position() - pos - 4;
+                if (length > 0) {
+                    buffer.putInt(pos, length);
+                    buffer.putInt(0);
+                }
+                writeTail(buffer);
+            } finally {
+                undoLog.release();
+            }
+        }
+
+        byte getType() {
+            return TYPE_LOCAL_TRANSACTION_REDO_LOG_RECORD;
+        }
+
+        byte getSegmentsType() {
+            return TYPE_LOCAL_TRANSACTION_SEGMENTS_REDO_LOG_RECORD;
+        }
+
+        // 写完operations之后还要写的字段
+        void writeTail(DataBuffer buffer) {
         }
 
         @Override
-        long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
+        long initPendingRedoLog(PendingRedoLog pendingRedoLog, long lastTransactionId) {
             throw DbException.throwInternalError();
         }
     }
 
+    // 分布式事务的redo日志跟DistributedTransactionRedoLogRecord一样，只是operations可以分段写
+    static class LazyDistributedTransactionRedoLogRecord extends LazyTransactionRedoLogRecord {
+
+        private final String transactionName;
+        private final String allLocalTransactionNames;
+        private final long commitTimestamp;
+
+        public LazyDistributedTransactionRedoLogRecord(AMTransactionEngine transactionEngine, long transactionId,
+                UndoLog undoLog, String transactionName, String allLocalTransactionNames, long commitTimestamp) {
+            super(transactionEngine, transactionId, undoLog);
+            this.transactionName = transactionName;
+            this.allLocalTransactionNames = allLocalTransactionNames;
+            this.commitTimestamp = commitTimestamp;
+        }
+
+        @Override
+        byte getType() {
+            return TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD;
+        }
+
+        @Override
+        byte getSegmentsType() {
+            return TYPE_DISTRIBUTED_TRANSACTION_SEGMENTS_REDO_LOG_RECORD;
+        }
+
+        @Override
+        void writeTail(DataBuffer buffer) {
+            DistributedTransactionRedoLogRecord.writeTransactionNames(buffer, transactionName,
+                    allLocalTransactionNames, commitTimestamp);
+        }
+    }
+
     static class ReplicaPrepareCommitRedoLogRecord extends RedoLogRecord {
 
         private final String sql;
@@ -344,7 +517,7 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
+        public long initPendingRedoLog(PendingRedoLog pendingRedoLog, long lastTransactionId) {
             return lastTransactionId;
         }
 
@@ -389,7 +562,7 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
+        public long initPendingRedoLog(PendingRedoLog pendingRedoLog, long lastTransactionId) {
             return lastTransactionId;
         }
 
@@ -17,33 +17,68 @@
  */
 package org.lealone.transaction.aote.log;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import org.lealone.common.exceptions.DbException;
 import org.lealone.db.DataBuffer;
+import org.lealone.storage.fs.FileStorage;
+import org.lealone.storage.fs.FileUtils;
 import org.lealone.transaction.aote.AMTransactionEngine;
 import org.lealone.transaction.aote.TransactionalValue;
 
 public class UndoLog {
 
+    private static final AtomicInteger nextSpillFileId = new AtomicInteger();
+
+    private final AMTransactionEngine transactionEngine;
+    private final long transactionId;
+
     private int logId;
     private final LinkedList<UndoLogRecord> undoLogRecords = new LinkedList<>();
 
-    public int getLogId() {
-        return logId;
+    // 大事务的undo log超过阈值后，较老的记录按段写到临时文件中，
+    // 内存中只保留最新的那部分，spilledCount是临时文件中的记录数，它们的logId从0开始
+    private FileStorage spillFile;
+    private long spillFileLength;
+    private final ArrayList<SpilledSegment> spilledSegments = new ArrayList<>();
+    private int spilledCount;
+    // 事务和还没写完的redo日志都在使用临时文件，都用完后才能删除
+    private final AtomicInteger spillFileUsers = new AtomicInteger(1);
+
+    // key: mapName，当前事务在每个map中增加或删除了多少条记录，事务提交时再加到map的已提交记录数上
+    // insert失败时在异步回调中修改，所以要用线程安全的
+    private final ConcurrentHashMap<String, AtomicLong> rowCountDeltas = new ConcurrentHashMap<>();
+
+    public UndoLog(AMTransactionEngine transactionEngine, long transactionId) {
+        this.transactionEngine = transactionEngine;
+        this.transactionId = transactionId;
     }
 
-    public LinkedList<UndoLogRecord> getUndoLogRecords() {
-        return undoLogRecords;
+    public int getLogId() {
+        return logId;
     }
 
     public boolean isEmpty() {
-        return undoLogRecords.isEmpty();
+        return logId == 0;
     }
 
     public boolean isNotEmpty() {
-        return !undoLogRecords.isEmpty();
+        return logId != 0;
+    }
+
+    public boolean isSpilled() {
+        return spilledCount > 0;
     }
 
     public UndoLogRecord getLast() {
@@ -51,7 +86,7 @@ public class UndoLog {
     }
 
     public int size() {
-        return undoLogRecords.size();
+        return logId;
     }
 
     public UndoLogRecord add(String mapName, Object key, TransactionalValue oldValue, TransactionalValue newValue,
@@ -59,6 +94,10 @@ public class UndoLog {
         UndoLogRecord r = new UndoLogRecord(mapName, key, oldValue, newValue, isForUpdate);
         undoLogRecords.add(r);
         logId++;
+        addRowCountDelta(r, 1);
+        int threshold = transactionEngine == null ? 0 : transactionEngine.getUndoLogSpillThreshold();
+        if (threshold > 0 && undoLogRecords.size() >= threshold)
+            spill(threshold);
         return r;
     }
 
@@ -67,39 +106,109 @@ public class UndoLog {
     }
 
     public void undo() {
-        undoLogRecords.removeLast();
+        addRowCountDelta(undoLogRecords.removeLast(), -1);
         --logId;
     }
 
+    // insert失败时调用
+    public void setUndone(UndoLogRecord r) {
+        addRowCountDelta(r, -1);
+        r.setUndone(true);
+    }
+
+    private void addRowCountDelta(UndoLogRecord r, int sign) {
+        if (r == null)
+            return;
+        int delta = r.getRowCountDelta();
+        if (delta != 0)
+            rowCountDeltas.computeIfAbsent(r.getMapName(), k -> new AtomicLong()).addAndGet(sign * delta);
+    }
+
+    public long getRowCountDelta(String mapName) {
+        AtomicLong delta = rowCountDeltas.get(mapName);
+        return delta == null ? 0 : delta.get();
+    }
+
+    public void resetRowCountDelta(String mapName) {
+        rowCountDeltas.remove(mapName);
+    }
+
     public void commit(AMTransactionEngine transactionEngine, long tid) {
+        for (SpilledSegment segment : getSpilledSegments()) {
+            for (UndoLogRecord r : segment.readUndoLogRecords()) {
+                if (r != null)
+                    r.commit(transactionEngine, tid);
+            }
+        }
         for (UndoLogRecord r : undoLogRecords) {
             r.commit(transactionEngine, tid);
         }
+        for (Map.Entry<String, AtomicLong> e : rowCountDeltas.entrySet()) {
+            transactionEngine.addCommittedRowCount(e.getKey(), e.getValue().get());
+        }
     }
 
     public void rollbackTo(AMTransactionEngine transactionEngine, int toLogId) {
+        rollbackTo(transactionEngine, toLogId, null);
+    }
+
+    /**
+     * Roll back the records after the given log id.
+     *
+     * @param transactionEngine the transaction engine
+     * @param toLogId the log id to roll back to
+     * @param undoneKeys if not null, the keys of the rolled back records are added to it
+     */
+    public void rollbackTo(AMTransactionEngine transactionEngine, int toLogId, Set<Object> undoneKeys) {
         while (logId > toLogId) {
+            // 内存中的记录回滚完了，再把临时文件中最后一段读回来
+            if (undoLogRecords.isEmpty())
+                unspillLastSegment();
             UndoLogRecord r = undoLogRecords.removeLast();
-            r.rollback(transactionEngine);
+            if (r != null) {
+                addRowCountDelta(r, -1);
+                r.rollback(transactionEngine);
+                if (undoneKeys != null)
+                    undoneKeys.add(r.getKey());
+            }
             --logId;
         }
     }
 
     public void setRetryReplicationNames(List<String> retryReplicationNames, int toLogId) {
-        int index = logId - 1;
+        int[] index = { logId - 1 };
+        forEach(r -> {
+            if (index[0]-- >= toLogId && r != null)
+                r.setRetryReplicationNames(retryReplicationNames);
+        });
+    }
+
+    /**
+     * Iterate over all records from the oldest to the newest, including the spilled ones.
+     * A spilled record whose map was removed is passed as null.
+     *
+     * @param consumer the consumer
+     */
+    public void forEach(Consumer<UndoLogRecord> consumer) {
+        for (SpilledSegment segment : getSpilledSegments()) {
+            for (UndoLogRecord r : segment.readUndoLogRecords()) {
+                consumer.accept(r);
+            }
+        }
         for (UndoLogRecord r : undoLogRecords) {
-            if (index-- < toLogId)
-                break;
-            r.setRetryReplicationNames(retryReplicationNames);
+            consumer.accept(r);
         }
     }
 
     private static int lastCapacity = 1024;
 
-    // 将当前一系列的事务操作日志转换成单条RedoLogRecord
+    // 将当前一系列的事务操作日志转换成单条RedoLogRecord，
+    // 写过临时文件的大事务不用这个方法，而是用LazyTransactionRedoLogRecord分段写，避免生成一个很大的buffer
     public ByteBuffer toRedoLogRecordBuffer(AMTransactionEngine transactionEngine) {
-        if (undoLogRecords.isEmpty())
+        if (isEmpty())
             return null;
+        if (isSpilled())
+            throw DbException.throwInternalError("spilled undo log");
         DataBuffer writeBuffer = DataBuffer.create(lastCapacity);
         for (UndoLogRecord r : undoLogRecords) {
             r.writeForRedo(writeBuffer, transactionEngine);
@@ -109,4 +218,118 @@ public class UndoLog {
             lastCapacity = 1024;
         return writeBuffer.getAndFlipBuffer();
     }
+
+    // 只包含还在内存中的记录
+    void writeForRedo(DataBuffer writeBuffer, AMTransactionEngine transactionEngine) {
+        for (UndoLogRecord r : undoLogRecords) {
+            r.writeForRedo(writeBuffer, transactionEngine);
+        }
+    }
+
+    // 按顺序读出每一段已经写到临时文件中的redo日志
+    void forEachSpilledRedoLog(Consumer<ByteBuffer> consumer) {
+        for (SpilledSegment segment : getSpilledSegments()) {
+            consumer.accept(segment.readRedoLog());
+        }
+    }
+
+    // 生成redo日志的线程在事务结束后还可能会读临时文件
+    void retain() {
+        spillFileUsers.incrementAndGet();
+    }
+
+    public void release() {
+        if (spillFileUsers.decrementAndGet() == 0)
+            closeSpillFile();
+    }
+
+    private synchronized List<SpilledSegment> getSpilledSegments() {
+        if (spilledSegments.isEmpty())
+            return Collections.emptyList();
+        return new ArrayList<>(spilledSegments);
+    }
+
+    // 写到临时文件中的undo和redo日志不会再改变，所以只写异步写操作已经完成的记录，
+    // 遇到第一条还没完成的记录就停下，最新的一半总是留在内存中，避免每次add都写临时文件
+    private synchronized void spill(int threshold) {
+        int max = undoLogRecords.size() - Math.max(1, threshold / 2);
+        int count = 0;
+        for (UndoLogRecord r : undoLogRecords) {
+            if (count >= max || r.isWriting())
+                break;
+            count++;
+        }
+        if (count == 0)
+            return;
+        DataBuffer undoBuff = DataBuffer.create();
+        DataBuffer redoBuff = DataBuffer.create();
+        for (int i = 0; i < count; i++) {
+            undoLogRecords.removeFirst().writeForSpill(undoBuff, redoBuff, transactionEngine);
+        }
+        if (spillFile == null) {
+            String dir = transactionEngine.getUndoLogDir();
+            if (!FileUtils.exists(dir))
+                FileUtils.createDirectories(dir);
+            spillFile = new FileStorage();
+            spillFile.open(dir + File.separator + "undoLog_" + nextSpillFileId.incrementAndGet(),
+                    Collections.emptyMap());
+        }
+        SpilledSegment segment = new SpilledSegment(spillFileLength, undoBuff.position(), redoBuff.position(),
+                spilledCount, count);
+        spillFile.writeFully(spillFileLength, undoBuff.getAndFlipBuffer());
+        spillFile.writeFully(spillFileLength + segment.undoLength, redoBuff.getAndFlipBuffer());
+        spillFileLength += segment.undoLength + segment.redoLength;
+        spilledSegments.add(segment);
+        spilledCount += count;
+    }
+
+    private synchronized void unspillLastSegment() {
+        SpilledSegment segment = spilledSegments.remove(spilledSegments.size() - 1);
+        undoLogRecords.addAll(0, segment.readUndoLogRecords());
+        spilledCount -= segment.count;
+        spillFileLength = segment.pos;
+        spillFile.truncate(spillFileLength);
+    }
+
+    private synchronized void closeSpillFile() {
+        if (spillFile != null) {
+            String fileName = spillFile.getFileName();
+            spillFile.close();
+            FileUtils.delete(fileName);
+            spillFile = null;
+        }
+    }
+
+    // 临时文件中连续的一段undo log，先是所有记录的undo部分，然后是它们的redo日志
+    private class SpilledSegment {
+
+        final long pos;
+        final int undoLength;
+        final int redoLength;
+        final int firstLogId;
+        final int count;
+
+        SpilledSegment(long pos, int undoLength, int redoLength, int firstLogId, int count) {
+            this.pos = pos;
+            this.undoLength = undoLength;
+            this.redoLength = redoLength;
+            this.firstLogId = firstLogId;
+            this.count = count;
+        }
+
+        List<UndoLogRecord> readUndoLogRecords() {
+            ByteBuffer buff = spillFile.readFully(pos, undoLength);
+            ArrayList<UndoLogRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                records.add(UndoLogRecord.readForSpill(buff, transactionEngine, transactionId, firstLogId + i));
+            }
+            return records;
+        }
+
+        ByteBuffer readRedoLog() {
+            if (redoLength == 0)
+                return ByteBuffer.allocate(0);
+            return spillFile.readFully(pos + undoLength, redoLength);
+        }
+    }
 }
@@ -17,6 +17,7 @@
  */
 package org.lealone.transaction.aote.log;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.lealone.db.DataBuffer;
@@ -33,7 +34,13 @@ public class UndoLogRecord {
     private final TransactionalValue oldValue;
     private final TransactionalValue newValue;
     private final boolean isForUpdate;
+    private final boolean insert;
     private volatile boolean undone;
+    // addIfAbsent的异步写操作还没完成，undone标记还可能会改变，此时不能写到临时文件中
+    private volatile boolean writing;
+    // 从临时文件中读回来的记录没有原来的oldValue，记录数的变化是写到临时文件时算好的
+    private final boolean spilled;
+    private final int spilledRowCountDelta;
 
     public UndoLogRecord(String mapName, Object key, TransactionalValue oldValue, TransactionalValue newValue,
             boolean isForUpdate) {
@@ -42,6 +49,23 @@ public class UndoLogRecord {
         this.oldValue = oldValue;
         this.newValue = newValue;
         this.isForUpdate = isForUpdate;
+        this.insert = oldValue == null;
+        this.spilled = false;
+        this.spilledRowCountDelta = 0;
+    }
+
+    // 从临时文件中读回来的记录，newValue是在map中重新找到的，找不到时为null，此时commit和rollback什么都不做
+    private UndoLogRecord(String mapName, Object key, TransactionalValue newValue, boolean isForUpdate,
+            boolean insert, boolean undone, int rowCountDelta) {
+        this.mapName = mapName;
+        this.key = key;
+        this.oldValue = insert || newValue == null ? null : newValue.getOldValue();
+        this.newValue = newValue;
+        this.isForUpdate = isForUpdate;
+        this.insert = insert;
+        this.undone = undone;
+        this.spilled = true;
+        this.spilledRowCountDelta = rowCountDelta;
     }
 
     public String getMapName() {
@@ -60,6 +84,37 @@ public class UndoLogRecord {
         this.undone = undone;
     }
 
+    public boolean isUndone() {
+        return undone;
+    }
+
+    public void setWriting(boolean writing) {
+        this.writing = writing;
+    }
+
+    public boolean isWriting() {
+        return writing;
+    }
+
+    // 这条记录让当前事务能看到的记录数增加了多少(-1、0或1)
+    public int getRowCountDelta() {
+        if (undone)
+            return 0;
+        return spilled ? spilledRowCountDelta : computeRowCountDelta();
+    }
+
+    private int computeRowCountDelta() {
+        if (isForUpdate || newValue == null)
+            return 0;
+        if (insert)
+            return 1;
+        int delta = newValue.getValue() != null ? 1 : 0;
+        // oldValue的值为null说明是删除标记
+        if (oldValue != null && oldValue.getValue() != null)
+            delta--;
+        return delta;
+    }
+
     public void setRetryReplicationNames(List<String> retryReplicationNames) {
         if (oldValue != null && oldValue.getRef() != null)
             oldValue.getRef().setRetryReplicationNames(retryReplicationNames);
@@ -67,7 +122,7 @@ public class UndoLogRecord {
 
     // 调用这个方法时事务已经提交，redo日志已经写完，这里只是在内存中更新到最新值
     public void commit(AMTransactionEngine transactionEngine, long tid) {
-        if (undone)
+        if (undone || newValue == null)
             return;
         if (isForUpdate) {
             newValue.rollback(); // 解锁而已，不用提交的
@@ -77,13 +132,13 @@ public class UndoLogRecord {
         if (map == null) {
             return; // map was later removed
         }
-        if (oldValue == null) { // insert
+        if (insert) {
             newValue.commit(tid);
         } else if (newValue != null && newValue.getValue() == null) { // delete
             if (!transactionEngine.containsRepeatableReadTransactions(tid)) {
                 map.remove(key);
             } else {
-                newValue.commit(tid);
+                transactionEngine.addVersionChain(mapName, newValue.commit(tid));
             }
             // newValue.commit(tid);
         } else { // update
@@ -92,12 +147,13 @@ public class UndoLogRecord {
             if (newValue.getOldValue() != null && newValue.getOldValue().getValue() == null) {
                 map.put(key, ref);
             }
+            transactionEngine.addVersionChain(mapName, ref);
         }
     }
 
     // 当前事务开始rollback了，调用这个方法在内存中撤销之前的更新
     public void rollback(AMTransactionEngine transactionEngine) {
-        if (undone)
+        if (undone || newValue == null)
             return;
         if (isForUpdate) {
             newValue.rollback();
@@ -106,7 +162,7 @@ public class UndoLogRecord {
         StorageMap<Object, TransactionalValue> map = transactionEngine.getStorageMap(mapName);
         // 有可能在执行DROP DATABASE时删除了
         if (map != null) {
-            if (oldValue == null) {
+            if (insert) {
                 map.remove(key);
             } else {
                 newValue.rollback();
@@ -144,4 +200,49 @@ public class UndoLogRecord {
         int memory = writeBuffer.position() - lastPosition;
         transactionEngine.incrementEstimatedMemory(mapName, memory);
     }
+
+    private static final int FOR_UPDATE = 1;
+    private static final int INSERT = 2;
+    private static final int UNDONE = 4;
+    private static final int ROW_COUNT_INCREMENT = 8;
+    private static final int ROW_COUNT_DECREMENT = 16;
+
+    // 大事务的undo log写到临时文件时调用，同时生成redo日志，
+    // 这样提交时不需要再读回来，回滚时只需要读undo的部分
+    void writeForSpill(DataBuffer undoBuff, DataBuffer redoBuff, AMTransactionEngine transactionEngine) {
+        ValueString.type.write(undoBuff, mapName);
+        int flags = (isForUpdate ? FOR_UPDATE : 0) | (insert ? INSERT : 0) | (undone ? UNDONE : 0);
+        int delta = spilled ? spilledRowCountDelta : computeRowCountDelta();
+        if (delta > 0)
+            flags |= ROW_COUNT_INCREMENT;
+        else if (delta < 0)
+            flags |= ROW_COUNT_DECREMENT;
+        undoBuff.put((byte) flags);
+        int keyLengthStartPos = undoBuff.position();
+        undoBuff.putInt(0);
+        StorageMap<?, ?> map = transactionEngine.getStorageMap(mapName);
+        if (map != null) {
+            map.getKeyType().write(undoBuff, key);
+            undoBuff.putInt(keyLengthStartPos, undoBuff.position() - keyLengthStartPos - 4);
+        }
+        writeForRedo(redoBuff, transactionEngine);
+    }
+
+    // map已经被删除时返回null
+    static UndoLogRecord readForSpill(ByteBuffer buff, AMTransactionEngine transactionEngine, long tid,
+            int logId) {
+        String mapName = ValueString.type.read(buff);
+        int flags = buff.get();
+        int keyLength = buff.getInt();
+        StorageMap<Object, TransactionalValue> map = transactionEngine.getStorageMap(mapName);
+        if (map == null || keyLength == 0) {
+            buff.position(buff.position() + keyLength);
+            return null;
+        }
+        Object key = map.getKeyType().read(buff);
+        TransactionalValue newValue = TransactionalValue.getUncommitted(map.get(key), tid, logId);
+        int delta = (flags & ROW_COUNT_INCREMENT) != 0 ? 1 : ((flags & ROW_COUNT_DECREMENT) != 0 ? -1 : 0);
+        return new UndoLogRecord(mapName, key, newValue, (flags & FOR_UPDATE) != 0, (flags & INSERT) != 0,
+                (flags & UNDONE) != 0, delta);
+    }
 }
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.common.compress;
+
+/**
+ * A pure Java implementation of the LZ4 block format.
+ * <p>
+ * Compression is a bit slower than LZF, but the ratio is better on text-like data, and decompression is
+ * much faster. Only the block format is implemented, the frame format is not needed for pages.
+ * <p>
+ * Each sequence starts with a token. The high 4 bits are the literal length, the low 4 bits are the match
+ * length minus 4. A value of 15 means more length bytes follow (each 255 means one more byte follows).
+ * After the literals a 2-byte little-endian offset follows. The last sequence only contains literals.
+ * <p>
+ * Like CompressLZF, an instance is not thread-safe for compression (the hash table is reused),
+ * expansion is thread-safe. Invalid compressed data can cause an ArrayIndexOutOfBoundsException.
+ */
+public final class CompressLZ4 implements Compressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5; // 最后5个字节总是literal
+    private static final int MF_LIMIT = 12; // 最后一个match至少要在结尾12个字节之前开始
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6; // 连续找不到match时加快步长
+
+    private int[] cachedHashTable;
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] & 255) | ((in[pos + 1] & 255) << 8) | ((in[pos + 2] & 255) << 16) | (in[pos + 3] << 24);
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        int anchor = 0;
+        if (inLen > MF_LIMIT) {
+            int[] hashTable = cachedHashTable;
+            if (hashTable == null) {
+                hashTable = cachedHashTable = new int[1 << HASH_LOG];
+            }
+            // 表中可能有上一次的位置，所以找到后都要检查ref < pos并比较4个字节
+            int limit = inLen - MF_LIMIT;
+            int matchLimit = inLen - LAST_LITERALS;
+            int pos = 0;
+            while (pos < limit) {
+                int v = readInt(in, pos);
+                int h = hash(v);
+                int ref = hashTable[h];
+                hashTable[h] = pos;
+                if (ref >= pos || pos - ref > MAX_OFFSET || readInt(in, ref) != v) {
+                    pos += 1 + ((pos - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                while (pos > anchor && ref > 0 && in[pos - 1] == in[ref - 1]) {
+                    pos--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while (pos + matchLen < matchLimit && in[pos + matchLen] == in[ref + matchLen]) {
+                    matchLen++;
+                }
+                outPos = writeSequence(in, anchor, pos - anchor, pos - ref, matchLen, out, outPos);
+                pos += matchLen;
+                anchor = pos;
+            }
+        }
+        int litLen = inLen - anchor;
+        int tokenPos = outPos++;
+        outPos = writeLength(litLen, out, outPos);
+        out[tokenPos] = (byte) (Math.min(litLen, 15) << 4);
+        System.arraycopy(in, anchor, out, outPos, litLen);
+        return outPos + litLen;
+    }
+
+    private static int writeSequence(byte[] in, int anchor, int litLen, int offset, int matchLen, byte[] out,
+            int outPos) {
+        int tokenPos = outPos++;
+        outPos = writeLength(litLen, out, outPos);
+        System.arraycopy(in, anchor, out, outPos, litLen);
+        outPos += litLen;
+        out[outPos++] = (byte) offset;
+        out[outPos++] = (byte) (offset >>> 8);
+        int ml = matchLen - MIN_MATCH;
+        outPos = writeLength(ml, out, outPos);
+        out[tokenPos] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(ml, 15));
+        return outPos;
+    }
+
+    // 长度小于15时只需要token中的4位，否则后面跟着(长度-15)，每个255表示还有下一个字节
+    private static int writeLength(int len, byte[] out, int outPos) {
+        if (len >= 15) {
+            len -= 15;
+            while (len >= 255) {
+                out[outPos++] = (byte) 255;
+                len -= 255;
+            }
+            out[outPos++] = (byte) len;
+        }
+        return outPos;
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        int inEnd = inPos + inLen;
+        int outEnd = outPos + outLen;
+        while (true) {
+            int token = in[inPos++] & 255;
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    litLen += b;
+                } while (b == 255);
+            }
+            System.arraycopy(in, inPos, out, outPos, litLen);
+            inPos += litLen;
+            outPos += litLen;
+            if (inPos >= inEnd) {
+                break;
+            }
+            int offset = (in[inPos] & 255) | ((in[inPos + 1] & 255) << 8);
+            inPos += 2;
+            int matchLen = token & 15;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            int ref = outPos - offset;
+            if (offset == 0 || ref < 0 || outPos + matchLen > outEnd) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            if (offset >= matchLen) {
+                System.arraycopy(out, ref, out, outPos, matchLen);
+                outPos += matchLen;
+            } else {
+                // 重叠的情况只能逐个字节复制
+                for (int i = 0; i < matchLen; i++) {
+                    out[outPos++] = out[ref++];
+                }
+            }
+        }
+        if (outPos != outEnd) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+    }
+}
@@ -167,6 +167,20 @@ public class SysProperties {
      */
     public static final long MAX_TRACE_DATA_LENGTH = getProperty("max.trace.data.length", 65535);
 
+    /**
+     * System property <code>net.buffer.direct</code> (default: true).<br />
+     * If the buffers used to read from the network should be allocated
+     * off-heap.
+     */
+    public static final boolean NET_BUFFER_DIRECT = getProperty("net.buffer.direct", true);
+
+    /**
+     * System property <code>net.buffer.pool.size</code> (default: 32).<br />
+     * The maximum size in MB of the free network read buffers that are kept
+     * for reuse.
+     */
+    public static final int NET_BUFFER_POOL_SIZE = getProperty("net.buffer.pool.size", 32);
+
     /**
      * System property <code>nio.load.mapped</code> (default: false).<br />
      * If the mapped buffer should be loaded when the file is opened.
@@ -178,8 +178,10 @@ public abstract class PageOperationHandlerFactory {
             int index = 0;
             for (int i = 0, size = pageOperationHandlers.length; i < size; i++) {
                 long load = pageOperationHandlers[i].getLoad();
-                if (load < minLoad)
+                if (load < minLoad) {
+                    minLoad = load;
                     index = i;
+                }
             }
             return pageOperationHandlers[index];
         }
@@ -83,7 +83,7 @@ public abstract class StorageBuilder {
     }
 
     /**
-     * Set the read cache size in MB. The default is 16 MB.
+     * Set the read cache size of each map in MB. The default is 16 MB.
      * 
      * @param mb the cache size in megabytes
      * @return this
@@ -92,6 +92,17 @@ public abstract class StorageBuilder {
         return set("cacheSize", mb);
     }
 
+    /**
+     * Set the read cache size in MB shared by all maps of the storage.
+     * The default is 0, which means each map is only limited by its own cache size.
+     * 
+     * @param mb the cache size in megabytes
+     * @return this
+     */
+    public StorageBuilder pageCacheSize(int mb) {
+        return set("pageCacheSize", mb);
+    }
+
     /**
      * Compress data before writing using the LZF algorithm. This will save
      * about 50% of the disk space, but will slow down read and write
@@ -122,6 +133,20 @@ public abstract class StorageBuilder {
         return set("compress", 2);
     }
 
+    /**
+     * Compress data before writing using the LZ4 algorithm. This usually
+     * compresses about as well as LZF, but decompresses considerably faster.
+     * <p>
+     * This setting only affects writes; it is not necessary to enable
+     * compression when reading, even if compression was enabled when
+     * writing.
+     * 
+     * @return this
+     */
+    public StorageBuilder compressLZ4() {
+        return set("compress", 3);
+    }
+
     /**
      * Set the amount of memory a page should contain at most, in bytes,
      * before it is split. The default is 16 KB for persistent stores and 4
@@ -18,6 +18,7 @@
 package org.lealone.storage;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -239,6 +240,23 @@ public interface StorageMap<K, V> {
      */
     void save();
 
+    /**
+     * Load entries into an empty map. The default implementation puts the entries one by one,
+     * a storage engine can build the pages directly from the sorted input.
+     *
+     * @param sortedEntries the entries, sorted by key in ascending order, keys must be unique
+     * @return the number of loaded entries
+     */
+    default long bulkLoad(Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+        long count = 0;
+        while (sortedEntries.hasNext()) {
+            Map.Entry<K, V> e = sortedEntries.next();
+            put(e.getKey(), e.getValue());
+            count++;
+        }
+        return count;
+    }
+
     long getDiskSpaceUsed();
 
     long getMemorySpaceUsed();
@@ -370,13 +370,53 @@ public class CacheLongKeyLIRS<V> {
      * @return the cache misses
      */
     public long getMisses() {
-        int x = 0;
+        long x = 0;
         for (Segment<V> s : segments) {
             x += s.misses;
         }
         return x;
     }
 
+    /**
+     * Get the number of misses on non-resident entries, that is entries that
+     * were evicted recently. A high number means a larger cache would help.
+     *
+     * @return the misses on non-resident entries
+     */
+    public long getNonResidentHits() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.nonResidentHits;
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of resident entries evicted because the cache was full.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.evictions;
+        }
+        return x;
+    }
+
+    /**
+     * Evict entries until the used memory is below the maximum memory again,
+     * for example after the maximum memory was reduced.
+     */
+    public void trim() {
+        for (int i = 0; i < segmentCount; i++) {
+            Segment<V> s = segments[i];
+            synchronized (s) {
+                s.trim();
+            }
+        }
+    }
+
     /**
      * Get the number of resident entries.
      *
@@ -501,6 +541,16 @@ public class CacheLongKeyLIRS<V> {
          */
         long misses;
 
+        /**
+         * The number of misses on non-resident entries.
+         */
+        long nonResidentHits;
+
+        /**
+         * The number of evicted resident entries.
+         */
+        long evictions;
+
         /**
          * The map array. The size is always a power of 2.
          */
@@ -610,6 +660,8 @@ public class CacheLongKeyLIRS<V> {
             this(old.maxMemory, old.stackMoveDistance, len, old.nonResidentQueueSize);
             hits = old.hits;
             misses = old.misses;
+            nonResidentHits = old.nonResidentHits;
+            evictions = old.evictions;
             Entry<V> s = old.stack.stackPrev;
             while (s != old.stack) {
                 Entry<V> e = copy(s);
@@ -706,6 +758,7 @@ public class CacheLongKeyLIRS<V> {
             if (value == null) {
                 // it was a non-resident entry
                 misses++;
+                nonResidentHits++;
                 return null;
             }
             if (e.isHot()) {
@@ -881,6 +934,12 @@ public class CacheLongKeyLIRS<V> {
             } while (usedMemory > maxMemory);
         }
 
+        synchronized void trim() {
+            if (usedMemory > maxMemory && mapSize > 0) {
+                evict();
+            }
+        }
+
         private void evictBlock() {
             // ensure there are not too many hot entries: right shift of 5 is
             // division by 32, that means if there are only 1/32 (3.125%) or
@@ -892,6 +951,7 @@ public class CacheLongKeyLIRS<V> {
             while (usedMemory > maxMemory && queueSize > 0) {
                 Entry<V> e = queue.queuePrev;
                 usedMemory -= e.memory;
+                evictions++;
                 removeFromQueue(e);
                 e.value = null;
                 e.memory = 0;
@@ -7,6 +7,7 @@ package org.lealone.storage.cache;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 
@@ -153,6 +154,11 @@ public class FilePathCache extends FilePathWrapper {
             base.force(metaData);
         }
 
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return base.map(mode, position, size);
+        }
+
         @Override
         public FileLock tryLock(long position, long size, boolean shared) throws IOException {
             return base.tryLock(position, size, shared);
@@ -8,6 +8,7 @@ package org.lealone.storage.fs;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
@@ -74,6 +75,11 @@ class FileNio extends FileBase {
         return channel.read(dst, position);
     }
 
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return channel.map(mode, position, size);
+    }
+
     @Override
     public int write(ByteBuffer src, long position) throws IOException {
         return channel.write(src, position);
@@ -579,6 +579,23 @@ public class FileStorage {
         return dst;
     }
 
+    /**
+     * Map the whole file into memory, read-only.
+     * Encrypted files can not be mapped.
+     *
+     * @return the mapped buffer, or null if the file can not be mapped
+     */
+    public ByteBuffer mapReadOnly() {
+        if (encryptedFile != null || file == null) {
+            return null;
+        }
+        try {
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
     /**
      * Write to the file.
      *
@@ -17,6 +17,9 @@
  */
 package org.lealone.transaction;
 
+import java.util.Collections;
+import java.util.Map;
+
 import org.lealone.db.PluggableEngine;
 import org.lealone.db.RunMode;
 
@@ -28,6 +31,21 @@ public interface TransactionEngine extends PluggableEngine {
 
     Transaction beginTransaction(boolean autoCommit, RunMode runMode);
 
+    /**
+     * Begin a transaction with the given isolation level. The engine can register it
+     * as a repeatable read transaction before its id is visible to other threads.
+     *
+     * @param autoCommit whether the transaction is auto-committed
+     * @param runMode the run mode
+     * @param isolationLevel the isolation level
+     * @return the transaction
+     */
+    default Transaction beginTransaction(boolean autoCommit, RunMode runMode, int isolationLevel) {
+        Transaction t = beginTransaction(autoCommit, runMode);
+        t.setIsolationLevel(isolationLevel);
+        return t;
+    }
+
     boolean validateTransaction(String localTransactionName);
 
     boolean supportsMVCC();
@@ -35,4 +53,14 @@ public interface TransactionEngine extends PluggableEngine {
     TransactionMap<?, ?> getTransactionMap(String mapName, Transaction transaction);
 
     void checkpoint();
+
+    /**
+     * Get the statistics of this engine, for example the metrics of the redo log.
+     * They are shown in INFORMATION_SCHEMA.TRANSACTION_STATISTICS.
+     *
+     * @return the statistics, the key is the name
+     */
+    default Map<String, String> getStatistics() {
+        return Collections.emptyMap();
+    }
 }
@@ -60,6 +60,16 @@ public interface TransactionMap<K, V> extends StorageMap<K, V> {
      */
     public V putCommitted(K key, V value);
 
+    /**
+     * Load sorted entries into an empty map as committed values, without adding undo log entries.
+     * No redo log entries are written either: the map is saved before this method returns,
+     * so the loaded entries survive a crash without being replayed from the redo log.
+     *
+     * @param sortedEntries the entries, sorted by key in ascending order, keys must be unique
+     * @return the number of loaded entries
+     */
+    public long bulkLoadCommitted(Iterator<? extends Entry<K, V>> sortedEntries);
+
     /**
      * Iterate over entries.
      *
@@ -301,6 +301,14 @@ public interface Index extends SchemaObject {
      */
     void addBufferedRows(ServerSession session, List<String> bufferNames);
 
+    /**
+     * Add rows that are already sorted by the index columns. An empty index
+     * can build its pages directly from the sorted rows.
+     *
+     * @param rows the sorted rows
+     */
+    void addSortedRows(ServerSession session, List<Row> rows);
+
     Map<String, List<PageKey>> getNodeToPageKeyMap(ServerSession session, SearchRow first, SearchRow last);
 
     default long getAndAddKey(long delta) {
@@ -415,6 +415,13 @@ public abstract class IndexBase extends SchemaObjectBase implements Index {
         throw DbException.getUnsupportedException("addBufferedRows");
     }
 
+    @Override
+    public void addSortedRows(ServerSession session, List<Row> rows) {
+        for (Row row : rows) {
+            add(session, row);
+        }
+    }
+
     @Override
     public Map<String, List<PageKey>> getNodeToPageKeyMap(ServerSession session, SearchRow first, SearchRow last) {
         return null;
@@ -135,7 +135,8 @@ public class IndexRebuilder implements Runnable {
             buffer.clear();
             index.addBufferedRows(session, bufferNames);
         } else {
-            addRowsToIndex(session, buffer, index);
+            index.addSortedRows(session, buffer);
+            buffer.clear();
         }
         if (SysProperties.CHECK && remaining != 0) {
             DbException.throwInternalError("rowcount remaining=" + remaining + " " + table.getName());
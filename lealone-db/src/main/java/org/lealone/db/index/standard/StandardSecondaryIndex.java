@@ -9,9 +9,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.TreeSet;
 
 import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.api.ErrorCode;
 import org.lealone.db.async.AsyncCallback;
 import org.lealone.db.async.Future;
@@ -24,12 +26,12 @@ import org.lealone.db.result.SortOrder;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Column;
 import org.lealone.db.table.StandardTable;
-import org.lealone.db.value.CompareMode;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
 import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
 import org.lealone.storage.Storage;
+import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionMap;
 
@@ -282,7 +284,7 @@ public class StandardSecondaryIndex extends StandardIndex {
     @Override
     public void addBufferedRows(ServerSession session, List<String> bufferNames) {
         ArrayList<String> mapNames = new ArrayList<>(bufferNames);
-        final CompareMode compareMode = database.getCompareMode();
+        final StorageDataType keyType = dataMap.getKeyType();
         /**
          * A source of values.
          */
@@ -293,14 +295,14 @@ public class StandardSecondaryIndex extends StandardIndex {
 
             @Override
             public int compareTo(Source o) {
-                int comp = value.compareTo(o.value, compareMode);
+                int comp = keyType.compare(value, o.value);
                 if (comp == 0) {
                     comp = sourceId - o.sourceId;
                 }
                 return comp;
             }
         }
-        TreeSet<Source> sources = new TreeSet<Source>();
+        final TreeSet<Source> sources = new TreeSet<Source>();
         for (int i = 0; i < bufferNames.size(); i++) {
             TransactionMap<Value, Value> map = openMap(session, bufferNames.get(i));
             Iterator<Value> it = map.keyIterator(null, true);
@@ -312,10 +314,32 @@ public class StandardSecondaryIndex extends StandardIndex {
                 sources.add(s);
             }
         }
-        try {
-            while (true) {
-                Source s = sources.first();
+        // 按key的顺序归并所有的buffer
+        Iterator<Value> merged = new Iterator<Value>() {
+            @Override
+            public boolean hasNext() {
+                return !sources.isEmpty();
+            }
+
+            @Override
+            public Value next() {
+                Source s = sources.pollFirst();
                 Value v = s.value;
+                if (s.next.hasNext()) {
+                    s.value = s.next.next();
+                    sources.add(s);
+                }
+                return v;
+            }
+        };
+        try {
+            if (dataMap.getRawSize() == 0) {
+                // 索引还是空的，直接用有序的key构建page
+                dataMap.bulkLoadCommitted(new SortedKeyIterator(merged));
+                return;
+            }
+            while (merged.hasNext()) {
+                Value v = merged.next();
 
                 if (indexType.isUnique()) {
                     Value[] array = ((ValueArray) v).getList();
@@ -328,19 +352,6 @@ public class StandardSecondaryIndex extends StandardIndex {
                 }
 
                 dataMap.putCommitted(v, ValueNull.INSTANCE);
-
-                Iterator<Value> it = s.next;
-                if (!it.hasNext()) {
-                    sources.remove(s);
-                    if (sources.isEmpty()) {
-                        break;
-                    }
-                } else {
-                    Value nextValue = it.next();
-                    sources.remove(s);
-                    s.value = nextValue;
-                    sources.add(s);
-                }
             }
         } finally {
             for (String tempMapName : mapNames) {
@@ -350,6 +361,67 @@ public class StandardSecondaryIndex extends StandardIndex {
         }
     }
 
+    @Override
+    public void addSortedRows(ServerSession session, List<Row> rows) {
+        if (dataMap.getRawSize() != 0) {
+            super.addSortedRows(session, rows);
+            return;
+        }
+        ArrayList<Value> keys = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            keys.add(convertToKey(row));
+        }
+        // rows只按索引字段排序了，还要按rowId排序
+        StorageDataType keyType = dataMap.getKeyType();
+        keys.sort((k1, k2) -> keyType.compare(k1, k2));
+        dataMap.bulkLoadCommitted(new SortedKeyIterator(keys.iterator()));
+    }
+
+    /**
+     * Converts sorted index keys to the entries of a bulk load,
+     * duplicate keys of a unique index are detected here.
+     */
+    private class SortedKeyIterator implements Iterator<Entry<Value, Value>> {
+
+        private final Iterator<Value> keys;
+        private final StorageDataType keyType = dataMap.getKeyType();
+        private Value last;
+        private Value next;
+
+        SortedKeyIterator(Iterator<Value> keys) {
+            this.keys = keys;
+            fetchNext();
+        }
+
+        private void fetchNext() {
+            next = null;
+            while (keys.hasNext()) {
+                Value k = keys.next();
+                // 只有唯一索引的key才会相等(不比较最后的rowId)
+                if (last != null && keyType.compare(last, k) == 0) {
+                    if (!containsNullAndAllowMultipleNull(convertToSearchRow((ValueArray) k))) {
+                        throw getDuplicateKeyException(k.toString());
+                    }
+                    continue;
+                }
+                last = next = k;
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<Value, Value> next() {
+            Value k = next;
+            fetchNext();
+            return new DataUtils.MapEntry<Value, Value>(k, ValueNull.INSTANCE);
+        }
+    }
+
     private void checkUnique(SearchRow row, TransactionMap<Value, Value> map, ValueArray unique) {
         Iterator<Value> it = map.keyIterator(unique, true);
         while (it.hasNext()) {
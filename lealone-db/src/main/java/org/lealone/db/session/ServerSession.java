@@ -15,6 +15,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
@@ -127,6 +129,9 @@ public class ServerSession extends SessionBase {
     private boolean containsDatabaseStatement;
 
     private volatile Transaction transaction;
+    // 已经开始异步提交但是还没有执行完回调(比如给客户端返回结果)的事务个数，
+    // 日志同步线程在执行回调之前就已经把transaction字段设为null了
+    private final AtomicInteger pendingAsyncCommits = new AtomicInteger();
 
     public ServerSession(Database database, User user, int id) {
         this.database = database;
@@ -517,7 +522,23 @@ public class ServerSession extends SessionBase {
         if (transaction != null) {
             transaction.setStatus(Transaction.STATUS_COMMITTING);
             sessionStatus = SessionStatus.TRANSACTION_COMMITTING;
-            transaction.asyncCommit(asyncTask);
+            AtomicBoolean completed = new AtomicBoolean();
+            pendingAsyncCommits.incrementAndGet();
+            try {
+                transaction.asyncCommit(() -> {
+                    try {
+                        if (asyncTask != null)
+                            asyncTask.run();
+                    } finally {
+                        if (completed.compareAndSet(false, true))
+                            pendingAsyncCommits.decrementAndGet();
+                    }
+                });
+            } catch (Throwable e) {
+                if (completed.compareAndSet(false, true))
+                    pendingAsyncCommits.decrementAndGet();
+                throw e;
+            }
         } else {
             // 在手动提交模式下执行了COMMIT语句，然后再手动提交事务，
             // 此时transaction为null，但是asyncTask不为null
@@ -1261,15 +1282,25 @@ public class ServerSession extends SessionBase {
         return getTransaction(null);
     }
 
+    // 跟getTransaction()不同，这个方法不会开始新事务
+    public boolean hasTransaction() {
+        return transaction != null;
+    }
+
+    // 异步提交的事务写完日志并执行完回调之前返回true
+    public boolean hasPendingAsyncCommit() {
+        return pendingAsyncCommits.get() > 0;
+    }
+
     public Transaction getTransaction(PreparedSQLStatement p) {
         if (transaction != null)
             return transaction;
 
         boolean isShardingMode = isShardingMode();
-        Transaction transaction = database.getTransactionEngine().beginTransaction(autoCommit, getRunMode());
+        Transaction transaction = database.getTransactionEngine().beginTransaction(autoCommit, getRunMode(),
+                transactionIsolationLevel);
         transaction.setSession(this);
         transaction.setGlobalReplicationName(replicationName);
-        transaction.setIsolationLevel(transactionIsolationLevel);
 
         // TODO p != null && !p.isLocal()是否需要？
         if (isRoot && !autoCommit && isShardingMode && p != null && !p.isLocal())
@@ -102,7 +102,8 @@ public class MetaTable extends Table {
     private static final int SESSION_STATE = 27;
     private static final int QUERY_STATISTICS = 28;
     private static final int DATABASES = 29;
-    private static final int META_TABLE_TYPE_COUNT = DATABASES + 1;
+    private static final int TRANSACTION_STATISTICS = 30;
+    private static final int META_TABLE_TYPE_COUNT = TRANSACTION_STATISTICS + 1;
 
     private final int type;
     private final int indexColumn;
@@ -291,6 +292,10 @@ public class MetaTable extends Table {
             setObjectName("DATABASES");
             cols = createColumns("DATABASE_NAME", "RUN_MODE", "NODES");
             break;
+        case TRANSACTION_STATISTICS:
+            setObjectName("TRANSACTION_STATISTICS");
+            cols = createColumns("NAME", "VALUE");
+            break;
         default:
             throw DbException.throwInternalError("type=" + type);
         }
@@ -1380,6 +1385,16 @@ public class MetaTable extends Table {
             }
             break;
         }
+        case TRANSACTION_STATISTICS: {
+            for (Map.Entry<String, String> e : database.getTransactionEngine().getStatistics().entrySet()) {
+                add(rows,
+                        // NAME
+                        e.getKey(),
+                        // VALUE
+                        e.getValue());
+            }
+            break;
+        }
         default:
             DbException.throwInternalError("type=" + type);
         }
@@ -1518,6 +1533,7 @@ public class MetaTable extends Table {
         case SESSIONS:
         case LOCKS:
         case SESSION_STATE:
+        case TRANSACTION_STATISTICS: // 统计信息跟数据修改无关，不能缓存查询结果
             return Long.MAX_VALUE;
         }
         return database.getModificationDataId();
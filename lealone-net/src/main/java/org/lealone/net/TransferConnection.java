@@ -107,6 +107,9 @@ public abstract class TransferConnection extends AsyncConnection {
         }
     }
 
+    // 每个协议包的TransferInputStream都是用slice生成的，不复制数据，
+    // 跟buffer共用引用计数，关闭TransferInputStream时回收它的那一份，
+    // 不完整的包也只是保存一个slice，下次读到数据时再串起来。
     @Override
     public void handle(NetBuffer buffer) {
         if (lastBuffer != null) {
@@ -115,39 +118,34 @@ public abstract class TransferConnection extends AsyncConnection {
         }
 
         int length = buffer.length();
-        if (length < 4) {
-            lastBuffer = buffer;
-            return;
-        }
-
         int pos = 0;
         try {
-            while (true) {
+            while (length >= 4) {
+                int packetLength = getInt(buffer, pos);
+                // 包还不完整
+                if (length - 4 < packetLength)
+                    break;
                 // 必须生成新的Transfer实例，不同协议包对应不同Transfer实例，
                 // 否则如果有多个CommandHandler线程时会用同一个Transfer实例写数据，这会产生并发问题。
                 TransferInputStream in;
-                if (pos == 0)
+                if (pos == 0 && length - 4 == packetLength) {
+                    // 正好是一个完整的包，直接交给TransferInputStream回收
                     in = new TransferInputStream(buffer);
-                else
-                    in = new TransferInputStream(buffer.slice(pos, pos + length));
-                int packetLength = in.readInt();
-                if (length - 4 == packetLength) {
-                    handlePacket(in);
-                    break;
-                } else if (length - 4 > packetLength) {
-                    handlePacket(in);
-                    pos = pos + packetLength + 4;
-                    length = length - (packetLength + 4);
-                    // 有可能剩下的不够4个字节了
-                    if (length < 4) {
-                        lastBuffer = buffer.getBuffer(pos, pos + length);
-                        break;
-                    } else {
-                        continue;
-                    }
+                    buffer = null;
                 } else {
-                    lastBuffer = buffer.getBuffer(pos, pos + length);
-                    break;
+                    in = new TransferInputStream(buffer.slice(pos, pos + packetLength + 4));
+                }
+                in.readInt(); // 跳过包的长度
+                pos = pos + packetLength + 4;
+                length = length - (packetLength + 4);
+                handlePacket(in);
+            }
+            if (length > 0) {
+                if (pos == 0) {
+                    lastBuffer = buffer;
+                    buffer = null;
+                } else {
+                    lastBuffer = buffer.slice(pos, pos + length);
                 }
             }
         } catch (Throwable e) {
@@ -155,9 +153,17 @@ public abstract class TransferConnection extends AsyncConnection {
                 logger.error("Failed to handle packet", e);
             else
                 throw DbException.convert(e);
+        } finally {
+            if (buffer != null)
+                buffer.recycle();
         }
     }
 
+    private static int getInt(NetBuffer buffer, int pos) {
+        return (buffer.getUnsignedByte(pos) << 24) + (buffer.getUnsignedByte(pos + 1) << 16)
+                + (buffer.getUnsignedByte(pos + 2) << 8) + buffer.getUnsignedByte(pos + 3);
+    }
+
     private void handlePacket(TransferInputStream in) throws IOException {
         boolean isRequest = in.readByte() == TransferOutputStream.REQUEST;
         int packetId = in.readInt();
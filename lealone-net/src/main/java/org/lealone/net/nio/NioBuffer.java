@@ -25,9 +25,24 @@ import org.lealone.net.NetBuffer;
 public class NioBuffer implements NetBuffer {
 
     private DataBuffer dataBuffer;
+    // 从NioBufferPool中分配的才有，跟slice共用
+    private final NioBufferPool.Chunk chunk;
+    private boolean recycled;
 
     public NioBuffer(DataBuffer dataBuffer) {
         this.dataBuffer = dataBuffer;
+        this.chunk = null;
+    }
+
+    NioBuffer(DataBuffer dataBuffer, NioBufferPool.Chunk chunk) {
+        this.dataBuffer = dataBuffer;
+        this.chunk = chunk;
+    }
+
+    private NioBuffer(DataBuffer dataBuffer, NioBufferPool.Chunk chunk, boolean recycled) {
+        this.dataBuffer = dataBuffer;
+        this.chunk = chunk;
+        this.recycled = recycled;
     }
 
     public ByteBuffer getAndFlipBuffer() {
@@ -38,24 +53,14 @@ public class NioBuffer implements NetBuffer {
         return dataBuffer.getBuffer();
     }
 
+    // 不复制数据，返回的NioCompositeBuffer接管这两个buffer，回收它时一起回收
     @Override
-    public NioBuffer appendBuffer(NetBuffer buff) {
-        if (buff instanceof NioBuffer) {
-            DataBuffer newDataBuffer = ((NioBuffer) buff).dataBuffer;
-            if (dataBuffer.limit() == 0) {
-                dataBuffer = newDataBuffer;
-            } else {
-                DataBuffer tmp = DataBuffer
-                        .create(dataBuffer.limit() + (newDataBuffer.limit() - newDataBuffer.position()));
-                tmp.put(dataBuffer.getBuffer());
-                tmp.put(newDataBuffer.getBuffer());
-                tmp.getBuffer().flip();
-                dataBuffer = tmp;
-                // dataBuffer.position(dataBuffer.limit()).put(newDataBuffer.getBuffer());
-                // dataBuffer.getBuffer().flip();
-            }
+    public NetBuffer appendBuffer(NetBuffer buff) {
+        if (length() == 0) {
+            recycle();
+            return buff;
         }
-        return this;
+        return new NioCompositeBuffer().appendBuffer(this).appendBuffer(buff);
     }
 
     @Override
@@ -70,7 +75,12 @@ public class NioBuffer implements NetBuffer {
     @Override
     public NioBuffer slice(int start, int end) {
         DataBuffer newDataBuffer = dataBuffer.slice(start, end);
-        return new NioBuffer(newDataBuffer);
+        if (chunk != null) {
+            chunk.retain();
+            return new NioBuffer(newDataBuffer, chunk);
+        }
+        // slice跟原来的buffer共用内存，不能放到DataBuffer的池中
+        return new NioBuffer(newDataBuffer, null, true);
     }
 
     @Override
@@ -84,6 +94,13 @@ public class NioBuffer implements NetBuffer {
         return dataBuffer.getUnsignedByte(pos);
     }
 
+    // 从pos开始复制len个字节到dst中，不改变position
+    void getBytes(int pos, byte[] dst, int offset, int len) {
+        ByteBuffer buffer = dataBuffer.getBuffer().duplicate();
+        buffer.position(pos);
+        buffer.get(dst, offset, len);
+    }
+
     @Override
     public NioBuffer appendByte(byte b) {
         dataBuffer.put(b);
@@ -110,7 +127,23 @@ public class NioBuffer implements NetBuffer {
 
     @Override
     public void recycle() {
-        dataBuffer.close();
+        // 调用多次也是无害的
+        if (recycled)
+            return;
+        recycled = true;
+        if (chunk != null)
+            chunk.release();
+        else
+            dataBuffer.close();
+    }
+
+    /**
+     * 返回还有多少个NioBuffer(包括slice)在引用从NioBufferPool分配的内存，为0时已经放回池中了
+     */
+    public int getRefCount() {
+        if (chunk != null)
+            return chunk.getRefCount();
+        return recycled ? 0 : 1;
     }
 
     @Override
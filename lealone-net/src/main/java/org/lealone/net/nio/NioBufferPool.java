@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.net.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.lealone.db.DataBuffer;
+import org.lealone.db.SysProperties;
+
+/**
+ * 从网络读数据时用的ByteBuffer池。
+ * <p>
+ * 按大小分成1K、2K、4K ... 64K这几个级别，每个级别一个空闲队列，所有级别的空闲ByteBuffer加起来不超过net.buffer.pool.size。
+ * 借出去的ByteBuffer带一个引用计数，NioBuffer和从它切出来的slice共用同一个计数，
+ * 全部回收之后才放回池中，这样一个协议包还在被其他线程处理时，它所在的ByteBuffer不会被重用。
+ *
+ * @author zhh
+ */
+public class NioBufferPool {
+
+    public static final int MIN_SIZE = 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+    private static final boolean DIRECT = SysProperties.NET_BUFFER_DIRECT;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[SIZE_CLASS_COUNT];
+    private static final AtomicInteger[] poolSizes = new AtomicInteger[SIZE_CLASS_COUNT];
+    private static final int[] maxPoolSizes = new int[SIZE_CLASS_COUNT];
+
+    static {
+        // 每个级别平分
+        long maxBytes = SysProperties.NET_BUFFER_POOL_SIZE * 1024L * 1024L / SIZE_CLASS_COUNT;
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            poolSizes[i] = new AtomicInteger();
+            maxPoolSizes[i] = (int) (maxBytes / (MIN_SIZE << i));
+        }
+    }
+
+    private NioBufferPool() {
+    }
+
+    // 返回能放下size个字节的最小级别
+    static int getSizeClass(int size) {
+        if (size <= MIN_SIZE)
+            return 0;
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+        return Math.min(sizeClass, SIZE_CLASS_COUNT - 1);
+    }
+
+    /**
+     * 分配一个至少有size个字节的NioBuffer(不超过MAX_SIZE)，用完后调用NioBuffer.recycle()回收
+     */
+    public static NioBuffer allocate(int size) {
+        int sizeClass = getSizeClass(size);
+        ByteBuffer buffer = pools[sizeClass].poll();
+        if (buffer == null) {
+            int capacity = MIN_SIZE << sizeClass;
+            buffer = DIRECT ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        } else {
+            poolSizes[sizeClass].decrementAndGet();
+            buffer.clear();
+        }
+        return new NioBuffer(DataBuffer.create(buffer), new Chunk(buffer, sizeClass));
+    }
+
+    private static void offer(ByteBuffer buffer, int sizeClass) {
+        // 不要求精确
+        if (poolSizes[sizeClass].get() < maxPoolSizes[sizeClass]) {
+            poolSizes[sizeClass].incrementAndGet();
+            pools[sizeClass].offer(buffer);
+        }
+    }
+
+    // 一个从池中借出的ByteBuffer以及它的引用计数
+    static class Chunk {
+
+        private static final AtomicIntegerFieldUpdater<Chunk> refCountUpdater = AtomicIntegerFieldUpdater
+                .newUpdater(Chunk.class, "refCount");
+
+        private final ByteBuffer buffer;
+        private final int sizeClass;
+        private volatile int refCount = 1;
+
+        Chunk(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        void retain() {
+            refCountUpdater.incrementAndGet(this);
+        }
+
+        int getRefCount() {
+            return refCount;
+        }
+
+        void release() {
+            if (refCountUpdater.decrementAndGet(this) == 0)
+                offer(buffer, sizeClass);
+        }
+    }
+}
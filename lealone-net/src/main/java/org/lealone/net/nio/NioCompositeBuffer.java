@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.net.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.lealone.db.DataBuffer;
+import org.lealone.net.NetBuffer;
+
+/**
+ * 由多次读到的NioBuffer拼起来的buffer。
+ * <p>
+ * 一个协议包跨了多次读时，不再把前后两个buffer复制到一个新的buffer中，而是直接把它们串起来，
+ * 切出来的slice也只是引用原来的那些NioBuffer(共用它们的引用计数)。
+ * 追加的数据写到自己分配的最后一个buffer中，不会写到从网络读到的那些buffer的后面。
+ *
+ * @author zhh
+ */
+public class NioCompositeBuffer implements NetBuffer {
+
+    private final ArrayList<NioBuffer> components = new ArrayList<>(4);
+    private int length;
+
+    // 最近一次访问的是哪个component以及它的起始位置，顺序读的时候不用每次都从头找
+    private int lastIndex;
+    private int lastStart;
+
+    // 追加数据用的buffer，总是最后一个component，flip之后就不能再追加了
+    private NioBuffer tail;
+
+    @Override
+    public NioCompositeBuffer appendBuffer(NetBuffer buff) {
+        if (buff instanceof NioCompositeBuffer) {
+            NioCompositeBuffer composite = (NioCompositeBuffer) buff;
+            for (NioBuffer b : composite.components)
+                add(b);
+            composite.components.clear();
+            composite.length = 0;
+        } else {
+            add((NioBuffer) buff);
+        }
+        return this;
+    }
+
+    private void add(NioBuffer buff) {
+        int len = buff.length();
+        if (len == 0) {
+            buff.recycle();
+        } else {
+            components.add(buff);
+            length += len;
+            tail = null;
+        }
+    }
+
+    private NioBuffer tail() {
+        if (tail == null) {
+            tail = new NioBuffer(DataBuffer.create(64));
+            components.add(tail);
+        }
+        return tail;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    // 返回pos所在的component的下标，同时更新lastStart
+    private int find(int pos) {
+        int index = lastIndex;
+        int start = lastStart;
+        if (pos < start) {
+            index = 0;
+            start = 0;
+        }
+        while (true) {
+            int len = components.get(index).length();
+            if (pos < start + len)
+                break;
+            start += len;
+            index++;
+        }
+        lastIndex = index;
+        lastStart = start;
+        return index;
+    }
+
+    @Override
+    public short getUnsignedByte(int pos) {
+        int index = find(pos);
+        return components.get(index).getUnsignedByte(pos - lastStart);
+    }
+
+    @Override
+    public NetBuffer slice(int start, int end) {
+        int index = find(start);
+        int offset = start - lastStart;
+        NioBuffer first = components.get(index);
+        // 只在一个component中
+        if (offset + end - start <= first.length())
+            return first.slice(offset, offset + end - start);
+
+        NioCompositeBuffer composite = new NioCompositeBuffer();
+        int remaining = end - start;
+        while (remaining > 0) {
+            NioBuffer b = components.get(index++);
+            int len = Math.min(b.length() - offset, remaining);
+            composite.add(b.slice(offset, offset + len));
+            remaining -= len;
+            offset = 0;
+        }
+        return composite;
+    }
+
+    @Override
+    public NetBuffer getBuffer(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        int index = find(start);
+        int offset = start - lastStart;
+        int pos = 0;
+        while (pos < bytes.length) {
+            NioBuffer b = components.get(index++);
+            int len = Math.min(b.length() - offset, bytes.length - pos);
+            b.getBytes(offset, bytes, pos, len);
+            pos += len;
+            offset = 0;
+        }
+        return new NioBuffer(DataBuffer.create(ByteBuffer.wrap(bytes)));
+    }
+
+    @Override
+    public NetBuffer appendByte(byte b) {
+        tail().appendByte(b);
+        length++;
+        return this;
+    }
+
+    @Override
+    public NetBuffer appendBytes(byte[] bytes, int offset, int len) {
+        if (len > 0) {
+            tail().appendBytes(bytes, offset, len);
+            length += len;
+        }
+        return this;
+    }
+
+    @Override
+    public NetBuffer appendInt(int i) {
+        tail().appendInt(i);
+        length += 4;
+        return this;
+    }
+
+    @Override
+    public NetBuffer setByte(int pos, byte b) {
+        int index = find(pos);
+        components.get(index).setByte(pos - lastStart, b);
+        return this;
+    }
+
+    @Override
+    public NetBuffer flip() {
+        // 从网络读到的那些buffer已经是可读的了，只有追加数据用的buffer需要flip
+        if (tail != null) {
+            tail.flip();
+            tail = null;
+        }
+        return this;
+    }
+
+    @Override
+    public void recycle() {
+        for (NioBuffer b : components)
+            b.recycle();
+        components.clear();
+        tail = null;
+        length = 0;
+        lastIndex = 0;
+        lastStart = 0;
+    }
+}
@@ -25,16 +25,15 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.DateTimeUtils;
-import org.lealone.db.DataBuffer;
 import org.lealone.net.AsyncConnection;
 import org.lealone.net.nio.NioNetServer.Attachment;
 
@@ -42,7 +41,13 @@ public class NioEventLoopAdapter implements NioEventLoop {
 
     private static final Logger logger = LoggerFactory.getLogger(NioEventLoopAdapter.class);
 
-    private final ConcurrentHashMap<SocketChannel, ConcurrentLinkedQueue<NioBuffer>> channels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketChannel, ChannelState> channels = new ConcurrentHashMap<>();
+    // 刚有数据要写，需要注册OP_WRITE的连接，select之前只处理这些，不用遍历所有连接
+    private final ConcurrentLinkedQueue<ChannelState> writeRequests = new ConcurrentLinkedQueue<>();
+
+    // 其他线程要在当前事件循环的selector上执行的任务(例如注册新接收的连接)，由事件循环线程在select之前执行，
+    // 因为selector.select阻塞时其他线程调用channel.register也会被阻塞
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
 
     private final AtomicBoolean selecting = new AtomicBoolean(false);
     private Selector selector;
@@ -71,6 +76,7 @@ public class NioEventLoopAdapter implements NioEventLoop {
 
     @Override
     public void select(long timeout) throws IOException {
+        runTasks();
         tryRegisterWriteOperation(selector);
         if (selecting.compareAndSet(false, true)) {
             selector.select(timeout);
@@ -78,22 +84,39 @@ public class NioEventLoopAdapter implements NioEventLoop {
         }
     }
 
+    public void addTask(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task = tasks.poll();
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logger.warn("Failed to run nio event loop task", e);
+            }
+            task = tasks.poll();
+        }
+    }
+
     @Override
     public void register(SocketChannel channel, int ops, Object att) throws ClosedChannelException {
         // 当nio-event-loop线程执行selector.select被阻塞时，代码内部依然会占用publicKeys锁，
-        // 而另一个线程执行channel.register时，内部也会去要publicKeys锁，从而导致也被阻塞，
-        // 所以下面这段代码的用处是:
-        // 只要发现nio-event-loop线程正在进行select，那么就唤醒它，并释放publicKeys锁。
-        while (true) {
-            if (selecting.compareAndSet(false, true)) {
-                channel.register(selector, SelectionKey.OP_CONNECT, att);
-                selecting.set(false);
-                selector.wakeup();
-                break;
-            } else {
-                selector.wakeup();
+        // 而另一个线程执行channel.register时，内部也会去要publicKeys锁，从而导致也被阻塞。
+        // 以前是不断唤醒nio-event-loop线程直到抢到selecting标记，但它醒来后马上又去select，
+        // 注册的线程有可能一直抢不到，所以交给nio-event-loop线程在select之前注册。
+        // 非阻塞的connect在注册之前就完成了也没关系，注册后OP_CONNECT依然是就绪的。
+        if (!channel.isOpen())
+            throw new ClosedChannelException();
+        addTask(() -> {
+            try {
+                channel.register(selector, ops, att);
+            } catch (ClosedChannelException e) {
+                logger.warn("Failed to register channel: " + channel, e);
             }
-        }
+        });
     }
 
     @Override
@@ -105,34 +128,66 @@ public class NioEventLoopAdapter implements NioEventLoop {
 
     @Override
     public void addSocketChannel(SocketChannel channel) {
-        channels.putIfAbsent(channel, new ConcurrentLinkedQueue<>());
+        channels.putIfAbsent(channel, new ChannelState(channel));
     }
 
     @Override
     public void addNioBuffer(SocketChannel channel, NioBuffer nioBuffer) {
-        ConcurrentLinkedQueue<NioBuffer> queue = channels.get(channel);
-        if (queue != null) {
-            queue.add(nioBuffer);
-            wakeup();
+        ChannelState state = channels.get(channel);
+        if (state == null) {
+            // 连接已经关闭了
+            nioBuffer.recycle();
+            return;
+        }
+        state.queue.add(nioBuffer);
+        // 之前没有积压时直接在当前线程写，通常一次就能写完，不用再唤醒事件循环线程
+        if (!state.blocked && state.tryLock()) {
+            try {
+                state.blocked = !flush(state);
+            } catch (IOException e) {
+                state.unlock();
+                closeChannel(channel);
+                state.recycleIfClosed();
+                return;
+            }
+            state.unlock();
+        }
+        // 在closeChannel之后才加入队列的也要回收
+        if (state.closed) {
+            state.recycleIfClosed();
+            return;
+        }
+        // 不管是谁持有锁，释放锁后只要还有数据没写完就要确保注册了OP_WRITE
+        if (state.hasPendingData())
+            requestWrite(state);
+    }
+
+    private void requestWrite(ChannelState state) {
+        if (state.tryRequestWrite()) {
+            writeRequests.add(state);
+            Selector selector = this.selector;
+            if (selector != null)
+                selector.wakeup();
         }
     }
 
     @Override
     public void tryRegisterWriteOperation(Selector selector) {
-        for (Entry<SocketChannel, ConcurrentLinkedQueue<NioBuffer>> entry : channels.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                for (SelectionKey key : selector.keys()) {
-                    if (key.channel() == entry.getKey() && key.isValid()) {
-                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        break;
-                    }
-                }
+        ChannelState state = writeRequests.poll();
+        while (state != null) {
+            // 先清除标记，之后再有数据要写时会重新加入writeRequests
+            state.writeRequested = 0;
+            if (state.hasPendingData()) {
+                SelectionKey key = state.channel.keyFor(selector);
+                if (key != null && key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
             }
+            state = writeRequests.poll();
         }
     }
 
     private long totalReadBytes;
-    private long totalWrittenBytes;
+    private final AtomicLong totalWrittenBytes = new AtomicLong(); // 生产者线程也会直接写
     private final boolean isDebugEnabled = logger.isDebugEnabled();
 
     @Override
@@ -142,13 +197,20 @@ public class NioEventLoopAdapter implements NioEventLoop {
         SocketChannel channel = (SocketChannel) key.channel();
         try {
             while (true) {
-                DataBuffer dataBuffer = DataBuffer.create();
-                ByteBuffer buffer = dataBuffer.getBuffer();
-                int capacity = dataBuffer.capacity();
-                int readBytes = channel.read(buffer);
+                NioBuffer nioBuffer = NioBufferPool.allocate(attachment.readBufferSize);
+                ByteBuffer buffer = nioBuffer.getByteBuffer();
+                int capacity = buffer.capacity();
+                int readBytes;
+                try {
+                    readBytes = channel.read(buffer);
+                } catch (Exception e) {
+                    nioBuffer.recycle();
+                    throw e;
+                }
                 if (readBytes > 0) {
                     attachment.endOfStreamCount = 0;
                 } else {
+                    nioBuffer.recycle();
                     // 客户端非正常关闭时，可能会触发JDK的bug，导致run方法死循环，selector.select不会阻塞
                     // netty框架在下面这个方法的代码中有自己的不同解决方案
                     // io.netty.channel.nio.NioEventLoop.processSelectedKey
@@ -165,7 +227,14 @@ public class NioEventLoopAdapter implements NioEventLoop {
                     totalReadBytes += readBytes;
                     logger.debug(("total read bytes: " + totalReadBytes));
                 }
-                NioBuffer nioBuffer = new NioBuffer(dataBuffer);
+                // 根据这次读到的字节数调整下次分配的buffer大小
+                if (readBytes == capacity) {
+                    if (capacity < NioBufferPool.MAX_SIZE)
+                        attachment.readBufferSize = capacity << 1;
+                } else if (readBytes < capacity >>> 2 && capacity > NioBufferPool.MIN_SIZE) {
+                    attachment.readBufferSize = capacity >>> 1;
+                }
+                // 由conn负责回收
                 conn.handle(nioBuffer);
                 // 说明没读满，可以直接退出循环了
                 if (readBytes < capacity)
@@ -179,53 +248,73 @@ public class NioEventLoopAdapter implements NioEventLoop {
     @Override
     public void write(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
-        try {
-            Queue<NioBuffer> queue = channels.get(channel);
-            for (NioBuffer nioBuffer : queue) {
-                ByteBuffer buffer = nioBuffer.getByteBuffer();
-                int remaining = buffer.remaining();
-                // 一定要用while循环来写，否则会丢数据！
-                while (remaining > 0) {
-                    int writtenBytes = channel.write(buffer);
-                    if (writtenBytes <= 0) {
-                        if (key.isValid()) {
-                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        }
-                        return;
-                    }
-                    remaining -= writtenBytes;
-                    if (isDebugEnabled) {
-                        totalWrittenBytes += writtenBytes;
-                        logger.debug(("total written bytes: " + totalWrittenBytes));
-                    }
-                }
-                queue.remove(nioBuffer);
-                nioBuffer.recycle();
+        ChannelState state = channels.get(channel);
+        if (state == null)
+            return;
+        boolean done = true;
+        // 其他线程正在直接写，它释放锁后如果还有数据没写完会再注册OP_WRITE
+        if (state.tryLock()) {
+            try {
+                done = flush(state);
+            } catch (IOException e) {
+                state.unlock();
+                closeChannel(channel);
+                state.recycleIfClosed();
+                return;
             }
+            state.blocked = !done;
+            state.unlock();
+            state.recycleIfClosed();
+        }
+        // 还是要检测key是否是有效的，否则会抛CancelledKeyException
+        if (done && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (state.hasPendingData())
+                requestWrite(state);
+        }
+    }
 
-            // 还是要检测key是否是有效的，否则会抛CancelledKeyException
-            if (queue.isEmpty() && key.isValid()) {
-                int ops = key.interestOps();
-                ops &= ~SelectionKey.OP_WRITE;
-                key.interestOps(ops);
+    // 必须在持有state的锁时调用，全部写完返回true
+    private boolean flush(ChannelState state) throws IOException {
+        NioBuffer nioBuffer = state.current;
+        if (nioBuffer == null)
+            nioBuffer = state.queue.poll();
+        while (nioBuffer != null) {
+            // 没写完的留在current中，下次先写它，写的时候出错了关闭连接时也能回收
+            state.current = nioBuffer;
+            ByteBuffer buffer = nioBuffer.getByteBuffer();
+            // 一定要用while循环来写，否则会丢数据！
+            while (buffer.hasRemaining()) {
+                int writtenBytes = state.channel.write(buffer);
+                if (writtenBytes <= 0) {
+                    return false;
+                }
+                if (isDebugEnabled) {
+                    logger.debug(("total written bytes: " + totalWrittenBytes.addAndGet(writtenBytes)));
+                }
             }
-        } catch (IOException e) {
-            closeChannel(channel);
+            state.current = null;
+            nioBuffer.recycle();
+            nioBuffer = state.queue.poll();
         }
+        return true;
     }
 
     @Override
     public void closeChannel(SocketChannel channel) {
-        if (channel == null || !channels.containsKey(channel)) {
+        ChannelState state;
+        if (channel == null || (state = channels.remove(channel)) == null) {
             return;
         }
-        for (SelectionKey key : selector.keys()) {
-            if (key.channel() == channel && key.isValid()) {
+        // 还没写出去的buffer放回池中，如果其他线程正在写，由它释放锁之后回收
+        state.closed = true;
+        state.recycleIfClosed();
+        Selector selector = this.selector;
+        if (selector != null) {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid())
                 key.cancel();
-                break;
-            }
         }
-        channels.remove(channel);
         Socket socket = channel.socket();
         if (socket != null) {
             try {
@@ -240,6 +329,10 @@ public class NioEventLoopAdapter implements NioEventLoop {
     }
 
     public void close() {
+        // 还没关闭的连接也要关掉，否则停止server后这些socket会一直处于CLOSE_WAIT状态
+        for (SocketChannel channel : channels.keySet()) {
+            closeChannel(channel);
+        }
         try {
             Selector selector = this.selector;
             this.selector = null;
@@ -248,4 +341,58 @@ public class NioEventLoopAdapter implements NioEventLoop {
         } catch (Exception e) {
         }
     }
+
+    // 每个连接要写出去的数据，只有持有锁的线程才能写
+    private static class ChannelState {
+
+        private static final AtomicIntegerFieldUpdater<ChannelState> lockUpdater = AtomicIntegerFieldUpdater
+                .newUpdater(ChannelState.class, "lock");
+        private static final AtomicIntegerFieldUpdater<ChannelState> writeRequestedUpdater = AtomicIntegerFieldUpdater
+                .newUpdater(ChannelState.class, "writeRequested");
+
+        final SocketChannel channel;
+        final ConcurrentLinkedQueue<NioBuffer> queue = new ConcurrentLinkedQueue<>();
+        // 上次没写完的
+        volatile NioBuffer current;
+        // 上次因为socket的发送缓冲区满了没写完，这时就不在生产者线程中直接写了，交给事件循环
+        volatile boolean blocked;
+        // 为1时已经在writeRequests中了，避免重复加入
+        volatile int writeRequested;
+        volatile int lock;
+        volatile boolean closed;
+
+        ChannelState(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean tryLock() {
+            return lock == 0 && lockUpdater.compareAndSet(this, 0, 1);
+        }
+
+        void unlock() {
+            lock = 0;
+        }
+
+        boolean tryRequestWrite() {
+            return writeRequested == 0 && writeRequestedUpdater.compareAndSet(this, 0, 1);
+        }
+
+        boolean hasPendingData() {
+            return current != null || !queue.isEmpty();
+        }
+
+        // 连接关闭后，持有锁的线程负责回收还没写出去的buffer，
+        // 释放锁之后还要再检查一次，因为持有锁时其他线程加入的buffer它们自己回收不了
+        void recycleIfClosed() {
+            while (closed && hasPendingData() && tryLock()) {
+                NioBuffer nioBuffer = current;
+                current = null;
+                if (nioBuffer != null)
+                    nioBuffer.recycle();
+                while ((nioBuffer = queue.poll()) != null)
+                    nioBuffer.recycle();
+                unlock();
+            }
+        }
+    }
 }
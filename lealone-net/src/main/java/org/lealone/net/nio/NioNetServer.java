@@ -17,11 +17,13 @@
  */
 package org.lealone.net.nio;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.lealone.common.concurrent.ConcurrentUtils;
 import org.lealone.common.logging.Logger;
@@ -30,11 +32,17 @@ import org.lealone.net.AsyncConnection;
 import org.lealone.net.NetServerBase;
 
 //TODO 1.支持SSL 2.支持配置参数
+//
+// 默认使用一个接收连接的线程加上多个处理读写的事件循环线程(个数由server_nio_event_loop_count指定，默认跟CPU核数一样)，
+// 接收到的连接轮流分给各个事件循环，之后这个连接的读写都只在同一个事件循环线程中进行。
+// server_nio_event_loop_count为1时跟原来一样，在同一个线程中接收连接和处理读写。
 public class NioNetServer extends NetServerBase implements NioEventLoop {
 
     private static final Logger logger = LoggerFactory.getLogger(NioNetServer.class);
     private ServerSocketChannel serverChannel;
     private NioEventLoopAdapter nioEventLoopAdapter;
+    private ServerNioEventLoop[] eventLoops; // 为null时所有连接都在nioEventLoopAdapter中处理
+    private final AtomicInteger eventLoopIndex = new AtomicInteger();
 
     @Override
     public synchronized void start() {
@@ -47,6 +55,7 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
             serverChannel.socket().bind(new InetSocketAddress(getHost(), getPort()));
             serverChannel.configureBlocking(false);
             serverChannel.register(nioEventLoopAdapter.getSelector(), SelectionKey.OP_ACCEPT);
+            startEventLoops();
             super.start();
             String name = "ServerNioEventLoopService-" + getPort();
             if (runInMainThread()) {
@@ -63,6 +72,28 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
         }
     }
 
+    private void startEventLoops() throws IOException {
+        int count;
+        String v = config.get("server_nio_event_loop_count");
+        if (v != null)
+            count = Integer.parseInt(v);
+        else
+            count = Runtime.getRuntime().availableProcessors();
+        if (count <= 1)
+            return;
+        eventLoops = new ServerNioEventLoop[count];
+        for (int i = 0; i < count; i++) {
+            eventLoops[i] = new ServerNioEventLoop(
+                    new NioEventLoopAdapter(config, "server_nio_event_loop_interval", 1000));
+        }
+        for (int i = 0; i < count; i++) {
+            ServerNioEventLoop eventLoop = eventLoops[i];
+            ConcurrentUtils.submitTask("ServerNioEventLoop-" + getPort() + "-" + i, () -> {
+                eventLoop.run();
+            });
+        }
+    }
+
     @Override
     public Runnable getRunnable() {
         return () -> {
@@ -71,20 +102,25 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
     }
 
     private void run() {
+        run(this);
+    }
+
+    // 接收连接的线程和各个事件循环线程都执行这个方法，只是用的NioEventLoop不同
+    private void run(NioEventLoop nioEventLoop) {
         for (;;) {
             try {
-                nioEventLoopAdapter.select();
+                nioEventLoop.select();
                 if (isStopped())
                     break;
-                Set<SelectionKey> keys = nioEventLoopAdapter.getSelector().selectedKeys();
+                Set<SelectionKey> keys = nioEventLoop.getSelector().selectedKeys();
                 try {
                     for (SelectionKey key : keys) {
                         if (key.isValid()) {
                             int readyOps = key.readyOps();
                             if ((readyOps & SelectionKey.OP_READ) != 0) {
-                                read(key, this);
+                                nioEventLoop.read(key, nioEventLoop);
                             } else if ((readyOps & SelectionKey.OP_WRITE) != 0) {
-                                write(key);
+                                nioEventLoop.write(key);
                             } else if ((readyOps & SelectionKey.OP_ACCEPT) != 0) {
                                 accept();
                             } else {
@@ -100,6 +136,9 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
                 if (isStopped())
                     break;
             } catch (Throwable e) {
+                // 停止时selector已经关闭了
+                if (isStopped())
+                    break;
                 logger.warn(Thread.currentThread().getName() + " run exception", e);
             }
         }
@@ -108,26 +147,42 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
     static class Attachment {
         AsyncConnection conn;
         int endOfStreamCount;
+        int readBufferSize = 8 * 1024; // 会根据每次读到的字节数调整
+    }
+
+    private NioEventLoop nextEventLoop() {
+        if (eventLoops == null)
+            return this;
+        return eventLoops[(eventLoopIndex.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
     }
 
     private void accept() {
         SocketChannel channel = null;
         AsyncConnection conn = null;
+        NioEventLoop nioEventLoop = this;
         try {
             channel = serverChannel.accept();
+            if (channel == null)
+                return;
             channel.configureBlocking(false);
-            nioEventLoopAdapter.addSocketChannel(channel);
-            NioWritableChannel writableChannel = new NioWritableChannel(channel, this);
+            nioEventLoop = nextEventLoop();
+            nioEventLoop.addSocketChannel(channel);
+            NioWritableChannel writableChannel = new NioWritableChannel(channel, nioEventLoop);
             conn = createConnection(writableChannel, true);
 
             Attachment attachment = new Attachment();
             attachment.conn = conn;
-            channel.register(nioEventLoopAdapter.getSelector(), SelectionKey.OP_READ, attachment);
+            if (nioEventLoop == this) {
+                channel.register(nioEventLoopAdapter.getSelector(), SelectionKey.OP_READ, attachment);
+            } else {
+                // 交给对应的事件循环线程自己注册
+                ((ServerNioEventLoop) nioEventLoop).register(channel, attachment);
+            }
         } catch (Throwable e) {
             if (conn != null) {
                 removeConnection(conn);
             }
-            closeChannel(channel);
+            nioEventLoop.closeChannel(channel);
             logger.warn(getName() + " failed to accept", e);
         }
     }
@@ -139,6 +194,11 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
         logger.info("Stopping nio net server");
         super.stop();
         nioEventLoopAdapter.close();
+        if (eventLoops != null) {
+            for (ServerNioEventLoop eventLoop : eventLoops)
+                eventLoop.nioEventLoopAdapter.close();
+            eventLoops = null;
+        }
         if (serverChannel != null) {
             try {
                 serverChannel.close();
@@ -165,4 +225,41 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
         }
         closeChannel(channel);
     }
+
+    private class ServerNioEventLoop implements NioEventLoop {
+
+        private final NioEventLoopAdapter nioEventLoopAdapter;
+
+        ServerNioEventLoop(NioEventLoopAdapter nioEventLoopAdapter) {
+            this.nioEventLoopAdapter = nioEventLoopAdapter;
+        }
+
+        @Override
+        public NioEventLoop getDefaultNioEventLoopImpl() {
+            return nioEventLoopAdapter;
+        }
+
+        void register(SocketChannel channel, Attachment attachment) {
+            nioEventLoopAdapter.addTask(() -> {
+                try {
+                    channel.register(nioEventLoopAdapter.getSelector(), SelectionKey.OP_READ, attachment);
+                } catch (Throwable e) {
+                    handleException(attachment.conn, channel, null);
+                    logger.warn(getName() + " failed to register", e);
+                }
+            });
+        }
+
+        @Override
+        public void handleException(AsyncConnection conn, SocketChannel channel, Exception e) {
+            if (conn != null) {
+                removeConnection(conn);
+            }
+            closeChannel(channel);
+        }
+
+        void run() {
+            NioNetServer.this.run(this);
+        }
+    }
 }
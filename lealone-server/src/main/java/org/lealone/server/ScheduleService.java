@@ -17,9 +17,16 @@
  */
 package org.lealone.server;
 
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
 import org.lealone.db.async.AsyncTaskHandlerFactory;
 import org.lealone.storage.PageOperationHandlerFactory;
 import org.lealone.storage.StorageEngine;
@@ -27,6 +34,10 @@ import org.lealone.storage.StorageEngineManager;
 
 public class ScheduleService {
 
+    private static final Logger logger = LoggerFactory.getLogger(ScheduleService.class);
+
+    public static final String JMX_OBJECT_NAME_PREFIX = "org.lealone:type=Scheduler,id=";
+
     private static Scheduler[] schedulers;
     private static final AtomicInteger index = new AtomicInteger(0);
     private static final AtomicInteger indexForSession = new AtomicInteger(0);
@@ -54,9 +65,11 @@ public class ScheduleService {
         for (Scheduler scheduler : schedulers) {
             scheduler.start();
         }
+        registerMBeans();
     }
 
     static void stop() {
+        unregisterMBeans();
         for (Scheduler scheduler : schedulers) {
             scheduler.end();
         }
@@ -74,7 +87,92 @@ public class ScheduleService {
         return schedulers[index.getAndIncrement() % schedulers.length];
     }
 
+    // 每个调度器的统计信息可以通过JMX查看
+    private static void registerMBeans() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; i < schedulers.length; i++) {
+            try {
+                ObjectName name = new ObjectName(JMX_OBJECT_NAME_PREFIX + i);
+                if (mbs.isRegistered(name))
+                    mbs.unregisterMBean(name);
+                mbs.registerMBean(schedulers[i], name);
+            } catch (Exception e) {
+                logger.warn("Failed to register MBean for " + schedulers[i].getName(), e);
+            }
+        }
+    }
+
+    private static void unregisterMBeans() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; i < schedulers.length; i++) {
+            try {
+                ObjectName name = new ObjectName(JMX_OBJECT_NAME_PREFIX + i);
+                if (mbs.isRegistered(name))
+                    mbs.unregisterMBean(name);
+            } catch (Exception e) {
+                logger.warn("Failed to unregister MBean for " + schedulers[i].getName(), e);
+            }
+        }
+    }
+
     static Scheduler getSchedulerForSession() {
-        return schedulers[indexForSession.getAndIncrement() % schedulers.length];
+        int start = indexForSession.getAndIncrement() & Integer.MAX_VALUE;
+        return getSchedulerForSession(schedulers, start);
+    }
+
+    /**
+     * 选负载最轻的调度器，负载一样时从start开始按轮循的顺序选
+     */
+    public static Scheduler getSchedulerForSession(Scheduler[] schedulers, int start) {
+        int length = schedulers.length;
+        start = start % length;
+        Scheduler best = schedulers[start];
+        long minLoad = best.getWeightedLoad();
+        for (int i = 1; i < length && minLoad > 0; i++) {
+            Scheduler scheduler = schedulers[(start + i) % length];
+            long load = scheduler.getWeightedLoad();
+            if (load < minLoad) {
+                best = scheduler;
+                minLoad = load;
+            }
+        }
+        return best;
+    }
+
+    static Scheduler getIdleScheduler(Scheduler exclude, int maxUtilization) {
+        return getIdleScheduler(schedulers, exclude, maxUtilization);
+    }
+
+    /**
+     * 返回繁忙程度低于maxUtilization的调度器中负载最轻的，没有时返回null
+     */
+    public static Scheduler getIdleScheduler(Scheduler[] schedulers, Scheduler exclude, int maxUtilization) {
+        Scheduler best = null;
+        long minLoad = Long.MAX_VALUE;
+        for (Scheduler scheduler : schedulers) {
+            if (scheduler == exclude || scheduler.getUtilization() >= maxUtilization)
+                continue;
+            long load = scheduler.getWeightedLoad();
+            if (load < minLoad) {
+                best = scheduler;
+                minLoad = load;
+            }
+        }
+        return best;
+    }
+
+    public static Map<String, String> getStatistics() {
+        Map<String, String> map = new HashMap<>();
+        if (schedulers == null)
+            return map;
+        for (int i = 0; i < schedulers.length; i++) {
+            Scheduler scheduler = schedulers[i];
+            String prefix = "scheduler." + i + ".";
+            map.put(prefix + "utilization", Integer.toString(scheduler.getUtilization()));
+            map.put(prefix + "queued_tasks", Long.toString(scheduler.getQueuedTaskCount()));
+            map.put(prefix + "sessions", Integer.toString(scheduler.getSessionCount()));
+            map.put(prefix + "migrated_sessions", Long.toString(scheduler.getMigratedSessionCount()));
+        }
+        return map;
     }
 }
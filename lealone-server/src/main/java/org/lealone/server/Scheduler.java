@@ -17,7 +17,9 @@
  */
 package org.lealone.server;
 
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledFuture;
@@ -39,12 +41,30 @@ import org.lealone.storage.PageOperation;
 import org.lealone.storage.PageOperationHandler;
 import org.lealone.transaction.Transaction;
 
-public class Scheduler extends Thread
-        implements SQLStatementExecutor, PageOperationHandler, AsyncTaskHandler, Transaction.Listener {
+public class Scheduler extends Thread implements SQLStatementExecutor, PageOperationHandler, AsyncTaskHandler,
+        Transaction.Listener, SchedulerMBean {
 
     private static final Logger logger = LoggerFactory.getLogger(Scheduler.class);
 
     private final CopyOnWriteArrayList<SessionInfo> sessions = new CopyOnWriteArrayList<>();
+
+    // 调度时不再扫描所有的session，只看下面这几个集合，空闲的session一个都不会出现在里面
+    // 收到了新命令包的session
+    private final ConcurrentLinkedQueue<SessionInfo> sessionsWithTasks = new ConcurrentLinkedQueue<>();
+    // 有可以执行的YieldableCommand的session，按命令的优先级从高到低排序，只由调度器线程访问
+    private final PriorityQueue<SessionInfo> readySessions = new PriorityQueue<>((s1, s2) -> {
+        if (s1.commandPriority != s2.commandPriority)
+            return Integer.compare(s2.commandPriority, s1.commandPriority);
+        return Long.compare(s1.commandSequence, s2.commandSequence);
+    });
+    // 有YieldableCommand但是暂时不能执行的session(比如在等待其他事务释放锁)，只由调度器线程访问
+    private final ArrayList<SessionInfo> blockedSessions = new ArrayList<>();
+    private volatile boolean blockedSessionsChanged;
+    private long nextBlockedSessionsCheckTime;
+    private long commandSequence;
+    // 新加入的需要检查超时的session，由调度器线程放到timeoutWheel中
+    private final ConcurrentLinkedQueue<SessionInfo> newTimeoutSessions = new ConcurrentLinkedQueue<>();
+    private final SessionTimeoutWheel timeoutWheel;
     private final ConcurrentLinkedQueue<PageOperation> pageOperationQueue = new ConcurrentLinkedQueue<>();
 
     private final ConcurrentLinkedQueue<AsyncTask> minPriorityQueue = new ConcurrentLinkedQueue<>();
@@ -58,17 +78,47 @@ public class Scheduler extends Thread
     private final long loopInterval;
     private volatile boolean end;
     private volatile boolean waiting;
-    private YieldableCommand nextBestCommand;
+    private SessionInfo nextBestSession;
+
+    // 还没有执行的PageOperation和AsyncTask的个数(不含周期性任务)
+    private final AtomicInteger queuedTaskCount = new AtomicInteger();
+
+    // 以下字段用于统计调度器的繁忙程度，除了utilization和lastSampleTime，其他的只由调度器线程读写
+    private final long sampleInterval;
+    private final int busyThreshold;
+    private long idleTime;
+    private long lastSampleIdleTime;
+    private volatile long lastSampleTime = System.nanoTime();
+    private volatile int utilization; // 最近一段时间不在等待的时间所占的百分比
+    private volatile long migratedSessionCount;
 
     public Scheduler(int id, Map<String, String> config) {
         super(ScheduleService.class.getSimpleName() + "-" + id);
         setDaemon(true);
         // 默认100毫秒
         loopInterval = DateTimeUtils.getLoopInterval(config, "scheduler_loop_interval", 100);
+        // 默认1秒
+        sampleInterval = TimeUnit.MILLISECONDS
+                .toNanos(DateTimeUtils.getLoopInterval(config, "scheduler_sample_interval", 1000));
+        // 繁忙程度超过它时把空闲的session迁移到不忙的调度器，0表示不迁移
+        if (config != null && config.containsKey("scheduler_busy_threshold"))
+            busyThreshold = Integer.parseInt(config.get("scheduler_busy_threshold"));
+        else
+            busyThreshold = 80;
+        timeoutWheel = new SessionTimeoutWheel(loopInterval, 512);
     }
 
+    // 有可能由其他调度器线程调用(迁移session时)
     void addSessionInfo(SessionInfo si) {
         sessions.add(si);
+        if (si.getSessionTimeout() > 0)
+            newTimeoutSessions.add(si);
+    }
+
+    // 由网络线程调用
+    void addSessionWithTasks(SessionInfo si) {
+        sessionsWithTasks.add(si);
+        wakeUp();
     }
 
     void removeSessionInfo(SessionInfo si) {
@@ -78,6 +128,7 @@ public class Scheduler extends Thread
     @Override
     public void run() {
         while (!end) {
+            sample();
             runQueueTasks(maxPriorityQueue);
             runQueueTasks(normPriorityQueue);
             runQueueTasks(minPriorityQueue);
@@ -91,6 +142,7 @@ public class Scheduler extends Thread
     private void runQueueTasks(ConcurrentLinkedQueue<AsyncTask> queue) {
         AsyncTask task = queue.poll();
         while (task != null) {
+            queuedTaskCount.decrementAndGet();
             try {
                 task.run();
             } catch (Throwable e) {
@@ -103,6 +155,7 @@ public class Scheduler extends Thread
     private void runPageOperationTasks() {
         PageOperation po = pageOperationQueue.poll();
         while (po != null) {
+            queuedTaskCount.decrementAndGet();
             try {
                 po.run(this);
             } catch (Throwable e) {
@@ -113,25 +166,143 @@ public class Scheduler extends Thread
     }
 
     private void runSessionTasks() {
-        if (sessions.isEmpty())
+        SessionInfo si = sessionsWithTasks.poll();
+        while (si != null) {
+            Scheduler owner = si.getScheduler();
+            if (owner != this) {
+                // 网络线程读到的还是迁移之前的调度器，转交给新的调度器
+                owner.addSessionWithTasks(si);
+            } else if (!si.isRemoved()) {
+                si.runQueuedTasks();
+                scheduleCommand(si);
+            }
+            si = sessionsWithTasks.poll();
+        }
+    }
+
+    // session有了新的YieldableCommand之后放到readySessions或blockedSessions中
+    private void scheduleCommand(SessionInfo si) {
+        if (si.scheduled || si.getSession().getYieldableCommand() == null)
             return;
-        for (SessionInfo si : sessions) {
+        si.scheduled = true;
+        if (si.getYieldableCommand(false) != null)
+            addReadySession(si);
+        else
+            blockedSessions.add(si);
+    }
+
+    private void addReadySession(SessionInfo si) {
+        si.commandPriority = si.getSession().getYieldableCommand().getPriority();
+        si.commandSequence = commandSequence++;
+        readySessions.add(si);
+    }
+
+    // 在yieldIfNeeded中也会调用，此时不能执行session的任务，交给runSessionTasks
+    private void onCommandEnded(SessionInfo si) {
+        si.scheduled = false;
+        // 跟submitTask一样要先设置queued标记，保证队列中最多只有一个
+        if (!si.isRemoved() && si.hasTasks() && si.markQueued())
+            sessionsWithTasks.add(si);
+    }
+
+    // 执行完session的命令(可能只是让出了)之后调用
+    private void afterCommandRun(SessionInfo si) {
+        si.scheduled = false;
+        if (si.isRemoved())
+            return;
+        // 前一条命令执行完后才能执行后续的命令
+        if (si.hasTasks())
             si.runSessionTasks();
-        }
+        scheduleCommand(si);
     }
 
-    void end() {
+    public void end() {
         end = true;
         wakeUp();
     }
 
+    // 跟DefaultPageOperationHandler一样，负载就是还在排队的任务数
     @Override
     public long getLoad() {
+        return queuedTaskCount.get();
+    }
+
+    @Override
+    public long getQueuedTaskCount() {
+        return queuedTaskCount.get();
+    }
+
+    /**
+     * 返回最近一段时间内调度器不在等待的时间所占的百分比(0-100)
+     */
+    @Override
+    public int getUtilization() {
+        // 一直在执行一个不让出的任务时没机会更新，直接当成满负荷
+        if (!waiting && System.nanoTime() - lastSampleTime > 2 * sampleInterval)
+            return 100;
+        return utilization;
+    }
+
+    @Override
+    public int getSessionCount() {
         return sessions.size();
     }
 
+    @Override
+    public long getMigratedSessionCount() {
+        return migratedSessionCount;
+    }
+
+    // 给新的session选调度器时用，一个满负荷的调度器相当于有100个空闲的session
+    public long getWeightedLoad() {
+        return getUtilization() + queuedTaskCount.get() + sessions.size();
+    }
+
+    // 每隔sampleInterval更新一次繁忙程度，然后看看要不要迁移session
+    private void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleTime;
+        if (elapsed < sampleInterval)
+            return;
+        long idle = Math.min(idleTime - lastSampleIdleTime, elapsed);
+        // 跟上一次的结果平均一下，避免偶尔的波动导致来回迁移
+        utilization = (utilization + (int) ((elapsed - idle) * 100 / elapsed)) / 2;
+        lastSampleIdleTime = idleTime;
+        lastSampleTime = now;
+        if (busyThreshold > 0 && utilization >= busyThreshold)
+            migrateIdleSessions();
+    }
+
+    // 几个session执行很重的查询时会让所在的调度器一直很忙，同一个调度器上的其他session就算只执行很轻的语句也要排队。
+    // 所以把这些session中空闲的迁移到不忙的调度器上，正在执行语句的session不动。
+    // PageOperation不能迁移，page只能由它所属的调度器修改，AsyncTask也可能依赖当前调度器(比如readInitPacket)，
+    // 所以只迁移空闲的session，每次最多迁移一半，避免把不忙的调度器一下子压垮。
+    private void migrateIdleSessions() {
+        if (sessions.size() <= 1)
+            return;
+        int idleCount = 0;
+        for (SessionInfo si : sessions) {
+            if (si.isIdle())
+                idleCount++;
+        }
+        int count = (idleCount + 1) / 2;
+        for (SessionInfo si : sessions) {
+            if (count <= 0)
+                break;
+            if (!si.isIdle())
+                continue;
+            Scheduler target = ScheduleService.getIdleScheduler(this, busyThreshold / 2);
+            if (target == null)
+                break;
+            si.migrateTo(target);
+            migratedSessionCount++;
+            count--;
+        }
+    }
+
     @Override
     public void handlePageOperation(PageOperation po) {
+        queuedTaskCount.incrementAndGet();
         pageOperationQueue.add(po);
         wakeUp();
     }
@@ -141,6 +312,7 @@ public class Scheduler extends Thread
         if (task.isPeriodic()) {
             periodicQueue.add(task);
         } else {
+            queuedTaskCount.incrementAndGet();
             switch (task.getPriority()) {
             case AsyncTask.NORM_PRIORITY:
                 normPriorityQueue.add(task);
@@ -178,28 +350,34 @@ public class Scheduler extends Thread
         int priority = PreparedSQLStatement.MIN_PRIORITY - 1; // 最小优先级减一，保证能取到最小的
         YieldableCommand last = null;
         while (true) {
-            YieldableCommand c;
-            if (nextBestCommand != null) {
-                c = nextBestCommand;
-                nextBestCommand = null;
+            SessionInfo si;
+            if (nextBestSession != null) {
+                si = nextBestSession;
+                nextBestSession = null;
             } else {
-                c = getNextBestCommand(priority, true);
+                si = getNextBestSession(priority, true);
             }
-            if (c == null) {
+            if (si == null) {
                 checkSessionTimeout();
                 handlePeriodicTasks();
                 runPageOperationTasks();
                 runSessionTasks();
                 runQueueTasks(maxPriorityQueue);
                 runQueueTasks(normPriorityQueue);
-                c = getNextBestCommand(priority, true);
-                if (c == null) {
+                si = getNextBestSession(priority, true);
+                if (si == null) {
                     doAwait();
                     break;
                 }
             }
+            YieldableCommand c = si.getSession().getYieldableCommand();
+            if (c == null) {
+                afterCommandRun(si);
+                continue;
+            }
             try {
                 c.run();
+                sample();
                 // 说明没有新的命令了，一直在轮循
                 if (last == c) {
                     runPageOperationTasks();
@@ -209,13 +387,9 @@ public class Scheduler extends Thread
                 }
                 last = c;
             } catch (Throwable e) {
-                for (SessionInfo si : sessions) {
-                    if (si.getSessionId() == c.getSessionId()) {
-                        si.sendError(c.getPacketId(), e);
-                        break;
-                    }
-                }
+                si.sendError(c.getPacketId(), e);
             }
+            afterCommandRun(si);
         }
     }
 
@@ -223,44 +397,81 @@ public class Scheduler extends Thread
     public boolean yieldIfNeeded(PreparedSQLStatement current) {
         // 如果来了更高优化级的命令，那么当前正在执行的语句就让出当前线程，
         // 当前线程转去执行高优先级的命令
+        // 上一次选出来的session还没有执行，不能覆盖它，否则它已经从readySessions中取出了，再也不会被执行
+        if (nextBestSession != null)
+            return true;
         int priority = current.getPriority();
-        nextBestCommand = getNextBestCommand(priority, false);
-        if (nextBestCommand != null) {
+        nextBestSession = getNextBestSession(priority, false);
+        if (nextBestSession != null) {
             current.setPriority(priority + 1);
             return true;
         }
         return false;
     }
 
-    private YieldableCommand getNextBestCommand(int priority, boolean checkTimeout) {
-        if (sessions.isEmpty())
-            return null;
-        YieldableCommand best = null;
-        for (SessionInfo si : sessions) {
-            YieldableCommand c = si.getYieldableCommand(checkTimeout);
-            if (c == null)
-                continue;
-            if (c.getPriority() > priority) {
-                best = c;
-                priority = c.getPriority();
+    // 从readySessions中取出优先级比priority高的session，已经不能执行的放到blockedSessions中
+    private SessionInfo getNextBestSession(int priority, boolean checkTimeout) {
+        checkBlockedSessions(checkTimeout);
+        while (true) {
+            SessionInfo si = readySessions.peek();
+            if (si == null || si.commandPriority <= priority)
+                return null;
+            readySessions.poll();
+            if (si.isRemoved()) {
+                si.scheduled = false;
+            } else if (si.getYieldableCommand(checkTimeout) != null) {
+                return si;
+            } else if (si.getSession().getYieldableCommand() != null) {
+                blockedSessions.add(si);
+            } else {
+                onCommandEnded(si);
+            }
+        }
+    }
+
+    // 只在被唤醒过或者距离上一次检查超过loopInterval时才检查，等待超时也是在这里检查的
+    private void checkBlockedSessions(boolean checkTimeout) {
+        if (blockedSessions.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        if (!blockedSessionsChanged && (!checkTimeout || now < nextBlockedSessionsCheckTime))
+            return;
+        blockedSessionsChanged = false;
+        if (checkTimeout)
+            nextBlockedSessionsCheckTime = now + loopInterval;
+        for (int i = 0; i < blockedSessions.size();) {
+            SessionInfo si = blockedSessions.get(i);
+            boolean ready = !si.isRemoved() && si.getYieldableCommand(checkTimeout) != null;
+            if (si.isRemoved() || ready || si.getSession().getYieldableCommand() == null) {
+                // 跟最后一个交换后删除
+                int last = blockedSessions.size() - 1;
+                blockedSessions.set(i, blockedSessions.get(last));
+                blockedSessions.remove(last);
+                if (ready)
+                    addReadySession(si);
+                else
+                    onCommandEnded(si); // 等待超时之类的原因，命令已经结束了
+            } else {
+                i++;
             }
         }
-        return best;
     }
 
     @Override
     public void wakeUp() {
+        // 其他线程唤醒调度器时，往往是因为有session可以继续执行了(比如等待的锁释放了)
+        blockedSessionsChanged = true;
         if (waiting)
             haveWork.release(1);
     }
 
     private void checkSessionTimeout() {
-        if (sessions.isEmpty())
-            return;
-        long currentTime = System.currentTimeMillis();
-        for (SessionInfo si : sessions) {
-            si.checkSessionTimeout(currentTime);
+        SessionInfo si = newTimeoutSessions.poll();
+        while (si != null) {
+            timeoutWheel.add(si);
+            si = newTimeoutSessions.poll();
         }
+        timeoutWheel.expire(System.currentTimeMillis(), this);
     }
 
     private void handlePeriodicTasks() {
@@ -331,6 +542,7 @@ public class Scheduler extends Thread
     }
 
     private void doAwait() {
+        long t = System.nanoTime();
         waiting = true;
         try {
             haveWork.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
@@ -339,6 +551,7 @@ public class Scheduler extends Thread
             handleInterruptedException(e);
         } finally {
             waiting = false;
+            idleTime += System.nanoTime() - t;
         }
     }
 }
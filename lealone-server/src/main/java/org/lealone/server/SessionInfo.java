@@ -18,6 +18,7 @@
 package org.lealone.server;
 
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
@@ -32,18 +33,27 @@ public class SessionInfo implements ServerSession.TimeoutListener {
 
     // taskQueue中的命令统一由scheduler调度执行
     private final ConcurrentLinkedQueue<PacketDeliveryTask> taskQueue = new ConcurrentLinkedQueue<>();
-    private final Scheduler scheduler;
+    // 空闲的session可以被迁移到其他调度器，见Scheduler.migrateIdleSessions
+    private volatile Scheduler scheduler;
+    private volatile boolean removed;
+    // 是否已经放到某个调度器的sessionsWithTasks队列中了，保证队列中最多只有一个
+    private final AtomicBoolean queued = new AtomicBoolean();
     private final TcpServerConnection conn;
 
     private final ServerSession session;
     private final int sessionId; // 客户端的sessionId
     private final int sessionTimeout;
 
-    private long lastActiveTime;
+    private volatile long lastActiveTime;
 
     private PacketDeliveryTask conflictTask;
 
-    SessionInfo(Scheduler scheduler, TcpServerConnection conn, ServerSession session, int sessionId,
+    // 以下字段只由调度器线程读写
+    boolean scheduled; // 在readySessions或blockedSessions中，或者正在执行它的命令
+    int commandPriority; // 放入readySessions时命令的优先级
+    long commandSequence; // 优先级相同时先进先出
+
+    public SessionInfo(Scheduler scheduler, TcpServerConnection conn, ServerSession session, int sessionId,
             int sessionTimeout) {
         this.scheduler = scheduler;
         this.conn = conn;
@@ -73,7 +83,10 @@ public class SessionInfo implements ServerSession.TimeoutListener {
         } else {
             taskQueue.add(task);
         }
-        scheduler.wakeUp();
+        if (markQueued())
+            scheduler.addSessionWithTasks(this);
+        else
+            scheduler.wakeUp();
     }
 
     public void submitYieldableCommand(int packetId, PreparedSQLStatement.Yieldable<?> yieldable) {
@@ -83,13 +96,58 @@ public class SessionInfo implements ServerSession.TimeoutListener {
     }
 
     void remove() {
+        removed = true;
+        scheduler.removeSessionInfo(this);
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    long getTimeoutDeadline() {
+        return lastActiveTime + sessionTimeout;
+    }
+
+    boolean hasTasks() {
+        return !taskQueue.isEmpty() || conflictTask != null;
+    }
+
+    // 没有待执行的命令，没有未结束的事务，也没有还在等日志同步的异步提交，这样的session可以安全地交给其他调度器。
+    // 异步提交的回调负责给客户端返回结果，回调执行完之前迁移的话，后面的命令在新的调度器上执行，结果有可能先返回
+    public boolean isIdle() {
+        return !scheduled && !queued.get() && !hasTasks() && session.getYieldableCommand() == null
+                && !session.hasTransaction() && !session.hasPendingAsyncCommit();
+    }
+
+    // 只能由当前负责这个session的调度器线程调用
+    public void migrateTo(Scheduler target) {
         scheduler.removeSessionInfo(this);
+        scheduler = target;
+        session.setTransactionListener(target);
+        target.addSessionInfo(this);
+        // 连接关闭时会在网络线程中调用remove，有可能从原来的调度器中删除了
+        if (removed) {
+            target.removeSessionInfo(this);
+            return;
+        }
+        // submitTask是先放入taskQueue再读scheduler字段，这里是先写scheduler字段再检查taskQueue，
+        // 所以迁移过程中新来的命令要么由submitTask唤醒target，要么在这里唤醒
+        if (!taskQueue.isEmpty())
+            target.wakeUp();
     }
 
     void checkSessionTimeout(long currentTime) {
         if (sessionTimeout <= 0)
             return;
-        if (lastActiveTime + sessionTimeout < currentTime) {
+        if (getTimeoutDeadline() < currentTime) {
             conn.closeSession(this);
             logger.warn("Client session timeout, session id: " + sessionId + ", host: "
                     + conn.getWritableChannel().getHost() + ", port: " + conn.getWritableChannel().getPort());
@@ -104,6 +162,18 @@ public class SessionInfo implements ServerSession.TimeoutListener {
         }
     }
 
+    // 返回true时调用者负责把session放到调度器的sessionsWithTasks队列中
+    boolean markQueued() {
+        return queued.compareAndSet(false, true);
+    }
+
+    // 从调度器的sessionsWithTasks队列中取出后调用
+    void runQueuedTasks() {
+        // 先清除标记再取任务，这之后新来的任务会再次把session放到调度器的队列中
+        queued.set(false);
+        runSessionTasks();
+    }
+
     void runSessionTasks() {
         // 在复制模式下，除了冲突处理命令，只有当前语句执行完了才能执行下一条命令
         if (session.getYieldableCommand() != null) {
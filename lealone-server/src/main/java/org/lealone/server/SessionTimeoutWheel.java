@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server;
+
+import java.util.ArrayList;
+
+/**
+ * 用来检查session是否超时的时间轮，只由调度器线程访问。
+ * <p>
+ * 每个格子对应tickMillis毫秒，session按超时时间放到对应的格子中，检查时只看已经到期的格子，
+ * 所以空闲的session再多也不会拖慢调度器。
+ * 每次收到命令包时并不移动session，到期时再看看真正的超时时间，还没到就放到新的格子中，
+ * 这样一个活跃的session在每个超时周期内最多被检查一两次。
+ *
+ * @author zhh
+ */
+class SessionTimeoutWheel {
+
+    private final long tickMillis;
+    private final ArrayList<SessionInfo>[] slots;
+    private final int mask;
+    private ArrayList<SessionInfo> spare = new ArrayList<>();
+    private long currentTick; // 下一个要检查的格子对应的tick
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    SessionTimeoutWheel(long tickMillis, int slotCount) {
+        this.tickMillis = Math.max(1, tickMillis);
+        int n = 1;
+        while (n < slotCount)
+            n <<= 1;
+        slots = new ArrayList[n];
+        for (int i = 0; i < n; i++)
+            slots[i] = new ArrayList<>();
+        mask = n - 1;
+        currentTick = System.currentTimeMillis() / this.tickMillis;
+    }
+
+    void add(SessionInfo si) {
+        // 比currentTick还早的也放到currentTick，下次检查时就会处理
+        long tick = Math.max(si.getTimeoutDeadline() / tickMillis, currentTick);
+        slots[(int) (tick & mask)].add(si);
+    }
+
+    /**
+     * 检查所有到期的格子，超时的session会被关闭，已经关闭或迁移走的session直接丢弃
+     */
+    void expire(long currentTime, Scheduler owner) {
+        long nowTick = currentTime / tickMillis;
+        // 调度器很久没有检查时最多转一圈就够了，所有格子都看过一遍了
+        for (int i = 0; i <= mask && currentTick <= nowTick; i++) {
+            int index = (int) (currentTick & mask);
+            // 先跳到下一个tick，这样没到期的session重新放入时不会放回正在检查的这个格子
+            currentTick++;
+            ArrayList<SessionInfo> slot = slots[index];
+            if (slot.isEmpty())
+                continue;
+            slots[index] = spare;
+            for (int j = 0, size = slot.size(); j < size; j++) {
+                SessionInfo si = slot.get(j);
+                if (si.isRemoved() || si.getScheduler() != owner)
+                    continue;
+                si.checkSessionTimeout(currentTime);
+                if (!si.isRemoved())
+                    add(si);
+            }
+            slot.clear();
+            spare = slot;
+        }
+        if (currentTick <= nowTick)
+            currentTick = nowTick + 1;
+    }
+}
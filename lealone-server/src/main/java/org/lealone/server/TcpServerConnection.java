@@ -88,6 +88,8 @@ public class TcpServerConnection extends TransferConnection {
             logger.error("Failed to readInitPacket, packetId: " + packetId + ", sessionId: " + sessionId, e);
             sendError(null, packetId, e);
             return;
+        } finally {
+            in.closeInputStream();
         }
 
         try {
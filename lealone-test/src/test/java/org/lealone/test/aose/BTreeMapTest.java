@@ -17,15 +17,30 @@
  */
 package org.lealone.test.aose;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.value.ValueLong;
 import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
 import org.lealone.storage.aose.btree.BTreeMap;
 import org.lealone.storage.aose.btree.BTreePage;
 import org.lealone.storage.aose.btree.PageOperations.RunnableOperation;
+import org.lealone.storage.aose.btree.PageReference;
 import org.lealone.test.TestBase;
 
 // -Xms800M -Xmx800M -XX:+PrintGCDetails -XX:+PrintGCTimeStamps
@@ -46,6 +61,10 @@ public class BTreeMapTest extends TestBase {
         testRemove();
         testSave();
         testAppend();
+        testBulkLoad();
+        testBulkLoadAbort();
+        testPageReferences();
+        testBulkLoadDurability();
 
         // }
 
@@ -398,4 +417,207 @@ public class BTreeMapTest extends TestBase {
         }
         assertEquals(count, map.getMaxKey());
     }
+
+    void testBulkLoad() {
+        String mapName = "BTreeMapTestBulkLoad";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName);
+        map.clear();
+
+        int count = 5000;
+        TreeMap<Integer, String> data = new TreeMap<>();
+        for (int i = 1; i <= count; i++) {
+            data.put(i * 2, "value-" + i * 2);
+        }
+        assertEquals(count, map.bulkLoad(data.entrySet().iterator(), 80));
+        assertEquals(count, map.size());
+        assertTrue(map.getRootPage().isNode());
+        // page生成后就写到chunk中了，内存中的树只有root，子page要用时再读
+        for (PageReference ref : map.getRootPage().getChildren()) {
+            assertNull(ref.getPage());
+        }
+        assertEquals(2, map.firstKey().intValue());
+        assertEquals(count * 2, map.lastKey().intValue());
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i * 2, map.get(i * 2));
+        }
+
+        // 只能对空的map执行bulk load
+        try {
+            map.bulkLoad(data.entrySet().iterator());
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // bulk load之后的page还能正常切割
+        for (int i = 1; i <= count; i++) {
+            map.put(i * 2 - 1, "value-" + (i * 2 - 1));
+        }
+        assertEquals(count * 2, map.size());
+        StorageMapCursor<Integer, String> cursor = map.cursor();
+        int key = 0;
+        while (cursor.hasNext()) {
+            assertEquals(++key, cursor.next().intValue());
+        }
+        assertEquals(count * 2, key);
+        map.close();
+
+        map = storage.openBTreeMap(mapName);
+        assertEquals(count * 2, map.size());
+        for (int i = 1; i <= count * 2; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+
+        // key必须是有序的
+        map.clear();
+        ArrayList<Map.Entry<Integer, String>> unsorted = new ArrayList<>();
+        unsorted.add(new DataUtils.MapEntry<>(3, "a"));
+        unsorted.add(new DataUtils.MapEntry<>(1, "b"));
+        try {
+            map.bulkLoad(unsorted.iterator());
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(0, map.size());
+
+        map.remove();
+    }
+
+    // 已经有page刷到chunk文件中之后才发现key是无序的，写了一半的chunk要删掉
+    void testBulkLoadAbort() {
+        String mapName = "BTreeMapTestBulkLoadAbort";
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("checkpointSegmentSize", "4096");
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        map.clear();
+        map.save();
+        File mapDir = new File(storage.getStoragePath(), mapName);
+        List<String> files = Arrays.asList(mapDir.list());
+
+        int count = 5000;
+        ArrayList<Map.Entry<Integer, String>> unsorted = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            unsorted.add(new DataUtils.MapEntry<>(i, "value-" + i));
+        }
+        unsorted.add(new DataUtils.MapEntry<>(1, "value-1"));
+        try {
+            map.bulkLoad(unsorted.iterator());
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(0, map.size());
+        // 后台的ChunkCompactor可能删掉了旧的chunk文件，只检查没有多出新的文件
+        for (String file : mapDir.list()) {
+            assertTrue(file, files.contains(file));
+        }
+
+        unsorted.remove(count);
+        assertEquals(count, map.bulkLoad(unsorted.iterator()));
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    // 保存之后以及重新打开之后，新的写操作和page切割都要落在从root能找到的page中
+    void testPageReferences() {
+        String mapName = "BTreeMapTestPageReferences";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName);
+        map.clear();
+        int count = 3000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i * 3, "value-" + i * 3);
+        }
+        map.save();
+
+        // 保存前就在内存中的page，保存后再写入和切割
+        for (int i = 1; i <= count; i++) {
+            map.put(i * 3 + 1, "value-" + (i * 3 + 1));
+        }
+        assertPageReferences(map, count, 2);
+        map.save();
+        map.close();
+
+        // 重新打开后page都是从chunk文件中读出来的
+        map = storage.openBTreeMap(mapName);
+        assertPageReferences(map, count, 2);
+        for (int i = 1; i <= count; i++) {
+            map.put(i * 3 + 2, "value-" + (i * 3 + 2));
+        }
+        assertPageReferences(map, count, 3);
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName);
+        assertPageReferences(map, count, 3);
+        map.remove();
+    }
+
+    // 不只是看size，还要通过get和cursor从root开始找，写到孤立的page中的记录是找不到的
+    private static void assertPageReferences(BTreeMap<Integer, String> map, int count, int groups) {
+        assertEquals(count * groups, map.size());
+        for (int i = 1; i <= count; i++) {
+            for (int j = 0; j < groups; j++) {
+                int key = i * 3 + j;
+                assertEquals("value-" + key, map.get(key));
+            }
+        }
+        int found = 0;
+        StorageMapCursor<Integer, String> cursor = map.cursor();
+        while (cursor.hasNext()) {
+            Integer key = cursor.next();
+            assertEquals("value-" + key, cursor.getValue());
+            found++;
+        }
+        assertEquals(count * groups, found);
+    }
+
+    // bulk load不写redo日志，返回前数据就已经在chunk文件中了，
+    // 不关闭map直接复制它的文件(相当于此时崩溃了)，从复制的文件中也能读到所有记录
+    void testBulkLoadDurability() {
+        String mapName = "BTreeMapTestBulkLoadDurability";
+        // 用单独的目录，同一个JVM中之前的测试可能已经用别的参数(比如加密)打开了共享的AOStorage
+        AOStorageBuilder storageBuilder = new AOStorageBuilder();
+        storageBuilder.storagePath(joinDirs("aose-bulk-load"));
+        AOStorage bulkLoadStorage = storageBuilder.openStorage();
+        BTreeMap<Integer, String> map = bulkLoadStorage.openBTreeMap(mapName);
+        map.clear();
+        int count = 3000;
+        TreeMap<Integer, String> data = new TreeMap<>();
+        for (int i = 1; i <= count; i++) {
+            data.put(i, "value-" + i);
+        }
+        assertEquals(count, map.bulkLoad(data.entrySet().iterator()));
+
+        String crashPath = joinDirs("aose-bulk-load-crash");
+        copyDir(Paths.get(bulkLoadStorage.getStoragePath(), mapName), Paths.get(crashPath, mapName));
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(crashPath);
+        AOStorage crashStorage = builder.openStorage();
+        try {
+            BTreeMap<Integer, String> crashMap = crashStorage.openBTreeMap(mapName);
+            assertEquals(count, crashMap.size());
+            for (int i = 1; i <= count; i++) {
+                assertEquals("value-" + i, crashMap.get(i));
+            }
+        } finally {
+            crashStorage.drop();
+        }
+        map.remove();
+        bulkLoadStorage.close();
+    }
+
+    private static void copyDir(Path from, Path to) {
+        try {
+            if (Files.exists(to)) {
+                for (File f : to.toFile().listFiles())
+                    f.delete();
+            }
+            Files.createDirectories(to);
+            for (File f : from.toFile().listFiles()) {
+                Files.copy(f.toPath(), to.resolve(f.getName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -17,9 +17,14 @@
  */
 package org.lealone.test.aose;
 
+import java.util.HashMap;
+
 import org.junit.Test;
+import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.BTreeStorage;
+import org.lealone.storage.aose.btree.ChunkCompactor;
 import org.lealone.test.TestBase;
 
 public class BTreeStorageTest extends TestBase {
@@ -31,6 +36,12 @@ public class BTreeStorageTest extends TestBase {
     public void run() {
         init();
         testChunkMetaData();
+        testIncrementalCheckpoint();
+        testCompact();
+        testMmapRead();
+        testReadAhead();
+        testKeyCompression();
+        testCompression();
     }
 
     private void init() {
@@ -63,4 +74,172 @@ public class BTreeStorageTest extends TestBase {
 
         map.remove();
     }
+
+    void testIncrementalCheckpoint() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("checkpointSegmentSize", "4096");
+        String mapName = "BTreeStorageTest_testIncrementalCheckpoint";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        int count = 5000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.save();
+        assertTrue(map.getBTreeStorage().getLastCheckpointBytes() > 4096);
+        assertTrue(map.getBTreeStorage().getLastCheckpointTime() >= 0);
+        map.close();
+
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        assertEquals(count, map.size());
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    void testCompact() {
+        ChunkCompactor chunkCompactor = storage.getChunkCompactor();
+        chunkCompactor.pauseCompaction();
+        try {
+            BTreeMap<Integer, String> map = storage.openBTreeMap("BTreeStorageTest_testCompact");
+            int count = 500;
+            for (int n = 0; n < 3; n++) {
+                for (int i = 1; i <= count; i++) {
+                    map.put(i, "value-" + n + "-" + i);
+                }
+                map.save();
+            }
+            assertTrue(map.getBTreeStorage().compact() > 0);
+            for (int i = 1; i <= count; i++) {
+                assertEquals("value-2-" + i, map.get(i));
+            }
+            map.remove();
+        } finally {
+            chunkCompactor.resumeCompaction();
+        }
+    }
+
+    void testReadAhead() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("readAheadPages", "8");
+        String mapName = "BTreeStorageTest_testReadAhead";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        int count = 5000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.close();
+
+        // 重新打开后page都不在缓存中，顺序扫描时会预读后面的leaf page
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        StorageMapCursor<Integer, String> cursor = map.cursor();
+        int key = 0;
+        while (cursor.hasNext()) {
+            assertEquals(++key, cursor.next().intValue());
+            assertEquals("value-" + key, cursor.getValue());
+        }
+        assertEquals(count, key);
+        assertTrue(map.getBTreeStorage().getReadAheadPageCount() > 0);
+
+        cursor = map.cursor(count / 2);
+        key = count / 2 - 1;
+        while (cursor.hasNext()) {
+            assertEquals(++key, cursor.next().intValue());
+        }
+        assertEquals(count, key);
+        map.remove();
+    }
+
+    void testMmapRead() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("mmapRead", "1");
+        parameters.put("cacheSize", "0"); // 禁用page cache，每次都从chunk文件读
+        String mapName = "BTreeStorageTest_testMmapRead";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        int count = 1000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.close();
+
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    void testKeyCompression() {
+        long bytes0 = testKeyCompression(null);
+        long bytes1 = testKeyCompression(false);
+        long bytes2 = testKeyCompression(true);
+        assertEquals(bytes1, bytes0); // 默认不压缩，保持原来的存储格式
+        assertTrue(bytes2 < bytes1);
+    }
+
+    private long testKeyCompression(Boolean keyCompression) {
+        HashMap<String, String> parameters = new HashMap<>();
+        if (keyCompression != null)
+            parameters.put("keyCompression", keyCompression ? "1" : "0");
+        parameters.put("cacheSize", "0");
+        String mapName = "BTreeStorageTest_testKeyCompression";
+        int count = 2000;
+        // 让一部分key超过读取时的初始数组长度
+        String keyPrefix = "key-" + new String(new char[80]).replace('\0', 'k') + "-";
+        BTreeMap<Long, String> longMap = storage.openBTreeMap(mapName + "_long", null, null, parameters);
+        BTreeMap<String, String> stringMap = storage.openBTreeMap(mapName + "_string", null, null, parameters);
+        for (int i = 1; i <= count; i++) {
+            longMap.put(1000000000L + i * 3, "value-" + i);
+            stringMap.put((i % 2 == 0 ? keyPrefix : "key-") + (100000 + i), "value-" + i);
+        }
+        longMap.save();
+        stringMap.save();
+        long bytes = longMap.getBTreeStorage().getLastCheckpointBytes()
+                + stringMap.getBTreeStorage().getLastCheckpointBytes();
+        longMap.close();
+        stringMap.close();
+
+        longMap = storage.openBTreeMap(mapName + "_long", null, null, parameters);
+        stringMap = storage.openBTreeMap(mapName + "_string", null, null, parameters);
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, longMap.get(1000000000L + i * 3));
+            assertEquals("value-" + i, stringMap.get((i % 2 == 0 ? keyPrefix : "key-") + (100000 + i)));
+        }
+        assertEquals(count, longMap.size());
+        assertEquals(count, stringMap.size());
+        longMap.remove();
+        stringMap.remove();
+        return bytes;
+    }
+
+    void testCompression() {
+        testCompression("lz4", "0");
+        testCompression("1", "0"); // LZF
+        testCompression("deflate", "1");
+        testCompression("lz4", "1");
+    }
+
+    private void testCompression(String compress, String compressAdaptive) {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("compress", compress);
+        parameters.put("compressAdaptive", compressAdaptive);
+        parameters.put("cacheSize", "0");
+        String mapName = "BTreeStorageTest_testCompression";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        int count = 2000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "{\"id\":" + i + ",\"name\":\"name-" + i + "\",\"status\":\"active\"}");
+        }
+        map.save();
+        BTreeStorage btreeStorage = map.getBTreeStorage();
+        assertTrue(btreeStorage.getCompressedPageCount() > 0);
+        assertTrue(btreeStorage.getCompressionRatio() < 1);
+        map.close();
+
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        for (int i = 1; i <= count; i++) {
+            assertEquals("{\"id\":" + i + ",\"name\":\"name-" + i + "\",\"status\":\"active\"}", map.get(i));
+        }
+        map.remove();
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aose;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.BTreePage;
+import org.lealone.storage.aose.btree.PageCache;
+import org.lealone.storage.aose.btree.PageCache.MapPageCache;
+import org.lealone.test.TestBase;
+
+public class PageCacheTest extends TestBase {
+
+    private AOStorage storage;
+
+    @Test
+    public void run() {
+        // 用单独的目录，不跟其他测试共享同一个AOStorage
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.pageSplitSize(1024).pageCacheSize(4).storagePath(joinDirs("aose", "PageCacheTest"));
+        storage = builder.openStorage();
+        testMapCacheSize();
+        testQuota();
+        testScanResistance();
+    }
+
+    // 没有设置pageCacheSize时每个map只受自己的cacheSize限制
+    void testMapCacheSize() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose", "PageCacheTest_mapCacheSize"));
+        AOStorage storage = builder.openStorage();
+        assertEquals(0, storage.getPageCache().getMaxMemory());
+        BTreeMap<Integer, String> map1 = storage.openBTreeMap("PageCacheTest_map1");
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("cacheSize", "2");
+        BTreeMap<Integer, String> map2 = storage.openBTreeMap("PageCacheTest_map2", null, null, parameters);
+        assertEquals(16, map1.getBTreeStorage().getCacheSize());
+        assertEquals(2, map2.getBTreeStorage().getCacheSize());
+
+        map2.getBTreeStorage().setCacheSize(3);
+        assertEquals(3, map2.getBTreeStorage().getCacheSize());
+        assertEquals(16, map1.getBTreeStorage().getCacheSize());
+        map1.remove();
+        map2.remove();
+        storage.close();
+    }
+
+    void testQuota() {
+        PageCache pageCache = storage.getPageCache();
+        assertEquals(4 * 1024 * 1024, pageCache.getMaxMemory());
+
+        BTreeMap<Integer, String> map1 = storage.openBTreeMap("PageCacheTest_map1");
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("cacheSize", "1");
+        BTreeMap<Integer, String> map2 = storage.openBTreeMap("PageCacheTest_map2", null, null, parameters);
+        assertTrue(map2.getBTreeStorage().getCacheSize() <= 1);
+        assertTrue(map1.getBTreeStorage().getCacheSize() + map2.getBTreeStorage().getCacheSize() <= 4);
+
+        int count = 5000;
+        for (int i = 1; i <= count; i++) {
+            map1.put(i, "value-" + i);
+        }
+        map1.close();
+        map1 = storage.openBTreeMap("PageCacheTest_map1");
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map1.get(i));
+        }
+        assertTrue(map1.getBTreeStorage().getCacheMisses() > 0);
+        assertTrue(pageCache.getUsedMemory() <= pageCache.getMaxMemory());
+        map1.remove();
+        map2.remove();
+    }
+
+    // 冷表的全表扫描不会把其他map的热点page挤出去
+    void testScanResistance() {
+        long maxMemory = 1024 * 1024;
+        PageCache pageCache = new PageCache(maxMemory);
+        MapPageCache hot = pageCache.register("hot", 64 * 1024, maxMemory);
+        MapPageCache cold = pageCache.register("cold", 64 * 1024, maxMemory);
+        BTreeMap<Integer, String> map = storage.openBTreeMap("PageCacheTest_map3");
+        BTreePage page = map.getRootPage();
+        int memory = 1024;
+
+        int hotPages = 128;
+        for (int n = 0; n < 20; n++) {
+            for (long pos = 1; pos <= hotPages; pos++) {
+                if (hot.get(pos) == null)
+                    hot.put(pos, page, memory);
+            }
+        }
+        for (long pos = 1; pos <= 10000; pos++) {
+            if (cold.get(pos) == null)
+                cold.put(pos, page, memory);
+        }
+        assertTrue(cold.getEvictions() > 0);
+        assertTrue(cold.getLimit() < hot.getLimit());
+        assertTrue(pageCache.getUsedMemory() <= maxMemory);
+
+        long misses = hot.getMisses();
+        for (long pos = 1; pos <= hotPages; pos++) {
+            assertNotNull(hot.get(pos));
+        }
+        assertEquals(misses, hot.getMisses());
+        assertEquals(0, hot.getEvictions());
+
+        pageCache.unregister(cold);
+        assertEquals(1, pageCache.getMapPageCaches().size());
+        map.remove();
+    }
+}
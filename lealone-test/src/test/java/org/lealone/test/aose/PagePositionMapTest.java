@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aose;
+
+import java.nio.ByteBuffer;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.storage.aose.btree.PagePositionMap;
+import org.lealone.test.TestBase;
+
+public class PagePositionMapTest extends TestBase {
+
+    private volatile boolean stop;
+
+    @Test
+    public void run() throws Exception {
+        testPutGetRemove();
+        testGrow();
+        testRead();
+        testConcurrentAccess();
+    }
+
+    void testPutGetRemove() {
+        PagePositionMap map = new PagePositionMap();
+        assertTrue(map.isEmpty());
+        map.put(10, 100);
+        map.put(30, 300);
+        map.put(20, 200); // 在中间插入
+        map.put(5, 50); // 插到最前面
+        assertEquals(4, map.size());
+        assertEquals(50, map.get(5));
+        assertEquals(100, map.get(10));
+        assertEquals(200, map.get(20));
+        assertEquals(300, map.get(30));
+        assertFalse(map.containsKey(15));
+
+        map.put(20, 222); // 替换长度
+        assertEquals(4, map.size());
+        assertEquals(222, map.get(20));
+
+        assertEquals(222, map.remove(20));
+        assertEquals(-1, map.remove(20));
+        assertFalse(map.containsKey(20));
+        assertEquals(50, map.remove(5));
+        assertEquals(300, map.remove(30));
+        assertEquals(1, map.size());
+        assertEquals(100, map.get(10));
+        try {
+            map.get(20);
+            fail();
+        } catch (IllegalStateException e) {
+            // page不存在
+        }
+        assertEquals(100, map.remove(10));
+        assertTrue(map.isEmpty());
+    }
+
+    // 初始容量只有16个entry，随机插入和删除很多entry，结果要跟TreeMap一样
+    void testGrow() {
+        PagePositionMap map = new PagePositionMap();
+        TreeMap<Long, Integer> expected = new TreeMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            long pos = random.nextInt(5000);
+            if (random.nextInt(4) == 0) {
+                Integer length = expected.remove(pos);
+                assertEquals(length == null ? -1 : length.intValue(), map.remove(pos));
+            } else {
+                int length = random.nextInt(100000);
+                expected.put(pos, length);
+                map.put(pos, length);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        int index = 0;
+        for (Entry<Long, Integer> e : expected.entrySet()) {
+            assertEquals(e.getKey().longValue(), map.getPosition(index));
+            assertEquals(e.getValue().intValue(), map.getLength(index));
+            assertEquals(e.getValue().intValue(), map.get(e.getKey()));
+            index++;
+        }
+        for (long pos = 0; pos < 5000; pos++) {
+            assertEquals(expected.containsKey(pos), map.containsKey(pos));
+        }
+    }
+
+    // 老版本写的chunk中page目录是无序的，读的时候要排序
+    void testRead() {
+        int size = 1000;
+        ByteBuffer buff = ByteBuffer.allocate(size * PagePositionMap.ENTRY_SIZE);
+        for (int i = size; i > 0; i--) {
+            buff.putLong(i * 10L).putInt(i);
+        }
+        buff.flip();
+        PagePositionMap map = PagePositionMap.read(buff, size);
+        assertEquals(size, map.size());
+        for (int i = 1; i <= size; i++) {
+            assertEquals(i * 10L, map.getPosition(i - 1));
+            assertEquals(i, map.get(i * 10L));
+        }
+        map.put(5, 0);
+        assertEquals(0, map.get(5));
+        assertEquals(size + 1, map.size());
+    }
+
+    // 一个线程在中间插入、删除和追加entry，其他线程同时读，一直存在的entry每次都要能读到
+    void testConcurrentAccess() throws Exception {
+        PagePositionMap map = new PagePositionMap();
+        int count = 2000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i * 2L, i);
+        }
+        int readerCount = 4;
+        CountDownLatch latch = new CountDownLatch(readerCount);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        stop = false;
+        Thread[] readers = new Thread[readerCount];
+        for (int r = 0; r < readerCount; r++) {
+            readers[r] = new Thread(() -> {
+                try {
+                    Random random = new Random();
+                    while (!stop) {
+                        int i = random.nextInt(count) + 1;
+                        if (map.get(i * 2L) != i)
+                            throw new AssertionError("wrong length of page " + i * 2L);
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+            readers[r].start();
+        }
+        long pos = count * 2L;
+        for (int n = 0; n < 20; n++) {
+            for (int i = 0; i < count; i++) {
+                map.put(i * 2L + 1, i); // 奇数位置插在已有的entry中间
+            }
+            for (int i = 0; i < count; i++) {
+                map.remove(i * 2L + 1);
+            }
+            map.put(++pos * 2L + 1, n); // 追加到末尾
+        }
+        stop = true;
+        latch.await();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        assertEquals(count + 20, map.size());
+    }
+
+}
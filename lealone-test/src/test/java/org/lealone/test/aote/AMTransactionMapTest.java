@@ -17,6 +17,8 @@
  */
 package org.lealone.test.aote;
 
+import java.util.TreeMap;
+
 import org.junit.Test;
 import org.lealone.db.index.standard.ValueDataType;
 import org.lealone.db.index.standard.VersionedValue;
@@ -45,6 +47,9 @@ public class AMTransactionMapTest extends TestBase {
         testSyncOperations();
         testTryOperations();
         testColumnLock();
+        testSize();
+        testBulkLoadSize();
+        testRepeatableReadSize();
 
         te.close();
     }
@@ -230,6 +235,108 @@ public class AMTransactionMapTest extends TestBase {
         t1.commit();
     }
 
+    void testSize() {
+        Transaction t1 = te.beginTransaction(false);
+        TransactionMap<String, String> map1 = t1.openMap(createMapName("testSize"), storage);
+        map1.clear();
+        map1.put("1", "a");
+        map1.put("2", "b");
+        t1.commit();
+
+        Transaction t2 = te.beginTransaction(false);
+        TransactionMap<String, String> map2 = map1.getInstance(t2);
+        // 同一个事务先删除再增加，只算一次
+        map2.remove("1");
+        assertEquals(1, map2.size());
+        map2.put("1", "a2");
+        map2.put("1", "a3");
+        assertEquals(2, map2.size());
+
+        t2.addSavepoint("sp");
+        map2.put("3", "c");
+        map2.remove("2");
+        assertEquals(2, map2.size());
+        map2.put("4", "d");
+        assertEquals(3, map2.size());
+        t2.rollbackToSavepoint("sp");
+        assertEquals(2, map2.size());
+        map2.put("3", "c");
+
+        // t2未提交，其他事务看不到它增加的记录
+        Transaction t3 = te.beginTransaction(false);
+        TransactionMap<String, String> map3 = map1.getInstance(t3);
+        assertEquals(2, map3.size());
+        map3.remove("2");
+        assertEquals(1, map3.size());
+        t2.commit();
+        assertEquals(2, map3.size());
+        t3.rollback();
+
+        Transaction t4 = te.beginTransaction(false);
+        TransactionMap<String, String> map4 = map1.getInstance(t4);
+        assertEquals(3, map4.size());
+        t4.commit();
+    }
+
+    // bulkLoadCommitted和putCommitted不经过undo log，也要算到已提交的记录数中
+    void testBulkLoadSize() {
+        Transaction t1 = te.beginTransaction(false);
+        TransactionMap<String, String> map1 = t1.openMap(createMapName("testBulkLoadSize"), storage);
+        map1.clear();
+        TreeMap<String, String> entries = new TreeMap<>();
+        for (int i = 0; i < 100; i++)
+            entries.put("k" + (1000 + i), "v" + i);
+        assertEquals(100, map1.bulkLoadCommitted(entries.entrySet().iterator()));
+        assertEquals(100, map1.size());
+        map1.putCommitted("k0", "v");
+        map1.putCommitted("k1000", "v"); // 已经存在
+        assertEquals(101, map1.size());
+        t1.commit();
+
+        Transaction t2 = te.beginTransaction(false);
+        TransactionMap<String, String> map2 = map1.getInstance(t2);
+        assertEquals(101, map2.size());
+        map2.remove("k0");
+        assertEquals(100, map2.size());
+        assertEquals("v", map2.get("k1000"));
+        assertEquals("v99", map2.get("k1099"));
+        t2.commit();
+    }
+
+    // 可重复读的事务看不到它开始之后其他事务提交的记录
+    void testRepeatableReadSize() {
+        Transaction t1 = te.beginTransaction(false);
+        TransactionMap<String, String> map1 = t1.openMap(createMapName("testRepeatableReadSize"), storage);
+        map1.clear();
+        map1.put("1", "a");
+        map1.put("2", "b");
+        t1.commit();
+
+        Transaction t2 = te.beginTransaction(false);
+        t2.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> map2 = map1.getInstance(t2);
+        assertEquals(2, map2.size());
+
+        Transaction t3 = te.beginTransaction(false);
+        TransactionMap<String, String> map3 = map1.getInstance(t3);
+        map3.put("3", "c");
+        map3.remove("1");
+        map3.put("4", "d");
+        t3.commit();
+
+        assertEquals(2, map2.size());
+        map2.put("5", "e");
+        assertEquals(3, map2.size());
+        t2.commit();
+
+        Transaction t4 = te.beginTransaction(false);
+        TransactionMap<String, String> map4 = map1.getInstance(t4);
+        assertEquals(4, map4.size());
+        t4.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        assertEquals(4, map4.size());
+        t4.commit();
+    }
+
     private ValueArray createValueArray(int... values) {
         ValueInt[] a = new ValueInt[values.length];
         for (int i = 0; i < a.length; i++)
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.lealone.storage.Storage;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionEngine;
+import org.lealone.transaction.TransactionMap;
+
+public class CheckpointTest extends TestBase {
+
+    private TransactionEngine te;
+    private Storage storage;
+
+    @Test
+    public void run() throws Exception {
+        Map<String, String> config = AMTransactionEngineTest.getDefaultConfig();
+        config.put("checkpoint_redo_log_size_in_mb", "1");
+        config.put("checkpoint_threads", "2");
+        config.put("checkpoint_io_budget_in_mb", "64");
+        te = AMTransactionEngineTest.getTransactionEngine(config);
+        storage = AMTransactionEngineTest.getStorage();
+        try {
+            testRedoLogSize();
+            testForcedCheckpoint();
+        } finally {
+            te.close();
+        }
+    }
+
+    // 已提交数据的内存没有超过阈值，也没到检查点周期，只因为redo日志超过了1M就会触发检查点
+    private void testRedoLogSize() throws Exception {
+        Map<String, String> stats = te.getStatistics();
+        assertEquals(String.valueOf(1024 * 1024), stats.get("checkpoint.max_redo_log_bytes"));
+        long count = Long.parseLong(stats.get("checkpoint.count"));
+
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 1024; i++)
+            buff.append('a');
+        String value = buff.toString();
+        for (int i = 0; i < 4; i++) {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map1 = t.openMap("CheckpointTest1", storage);
+            TransactionMap<String, String> map2 = t.openMap("CheckpointTest2", storage);
+            for (int j = 0; j < 500; j++) {
+                map1.put(i + "_" + j, value);
+                map2.put(i + "_" + j, value);
+            }
+            t.commit();
+        }
+
+        for (int i = 0; i < 100; i++) {
+            stats = te.getStatistics();
+            if (Long.parseLong(stats.get("checkpoint.count")) > count)
+                break;
+            Thread.sleep(100);
+        }
+        assertTrue(Long.parseLong(stats.get("checkpoint.count")) > count);
+        assertEquals("redo_log_size", stats.get("checkpoint.last_reason"));
+        assertTrue(Long.parseLong(stats.get("checkpoint.redo_log_bytes_since_last")) < 1024 * 1024);
+    }
+
+    // 强制执行的检查点也交给CheckpointService线程执行，返回时已经执行完了
+    private void testForcedCheckpoint() throws Exception {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("CheckpointTest1", storage);
+        map.put("forced", "value");
+        t.commit();
+
+        long count = Long.parseLong(te.getStatistics().get("checkpoint.count"));
+        te.checkpoint();
+        Map<String, String> stats = te.getStatistics();
+        assertTrue(Long.parseLong(stats.get("checkpoint.count")) > count);
+        assertEquals("forced", stats.get("checkpoint.last_reason"));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.storage.Storage;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionEngine;
+import org.lealone.transaction.TransactionMap;
+
+public class DeadlockDetectionTest extends TestBase {
+
+    private TransactionEngine te;
+    private Storage storage;
+
+    @Test
+    public void run() {
+        te = AMTransactionEngineTest.getTransactionEngine();
+        storage = AMTransactionEngineTest.getStorage();
+        try {
+            testOtherVictim();
+            testSelfVictim();
+            testNoDeadlock();
+        } finally {
+            te.close();
+        }
+    }
+
+    private Transaction begin(int rows) {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<Integer, String> map = t.openMap(DeadlockDetectionTest.class.getSimpleName(), storage);
+        for (int i = 0; i < rows; i++) {
+            map.put((int) t.getTransactionId() * 10 + i, "v" + i);
+        }
+        return t;
+    }
+
+    // a等待b，b等待c，c等待a，b的undo日志最少，它被唤醒后检查超时时马上抛出死锁异常
+    private void testOtherVictim() {
+        Transaction a = begin(3);
+        Transaction b = begin(1);
+        Transaction c = begin(2);
+        WakeUpCounter la = new WakeUpCounter();
+        WakeUpCounter lb = new WakeUpCounter();
+        WakeUpCounter lc = new WakeUpCounter();
+        assertEquals(Transaction.OPERATION_NEED_WAIT, b.addWaitingTransaction("k1", a, la));
+        assertEquals(Transaction.OPERATION_NEED_WAIT, c.addWaitingTransaction("k2", b, lb));
+        assertEquals(0, lb.count.get());
+        assertEquals(Transaction.OPERATION_NEED_WAIT, a.addWaitingTransaction("k3", c, lc));
+        assertEquals(1, lb.count.get());
+        assertEquals(0, la.count.get());
+        assertEquals(0, lc.count.get());
+        assertEquals(Transaction.STATUS_WAITING, a.getStatus());
+        assertEquals(Transaction.STATUS_WAITING, c.getStatus());
+        try {
+            b.checkTimeout();
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.DEADLOCK_1, e.getErrorCode());
+            assertTrue(e.getMessage().contains("k1"));
+            assertTrue(e.getMessage().contains("k2"));
+            assertTrue(e.getMessage().contains("k3"));
+        }
+        rollback(a, b, c);
+    }
+
+    // 当前事务的undo日志最少时，加入等待时也不抛异常(加入等待的有可能是别的session)，
+    // 而是把它从锁拥有者的等待队列中移除并唤醒，等它自己检查超时时再抛出死锁异常
+    private void testSelfVictim() {
+        Transaction a = begin(1);
+        Transaction b = begin(2);
+        WakeUpCounter la = new WakeUpCounter();
+        WakeUpCounter lb = new WakeUpCounter();
+        // b等待a
+        assertEquals(Transaction.OPERATION_NEED_WAIT, a.addWaitingTransaction("k1", b, lb));
+        // a等待b
+        assertEquals(Transaction.OPERATION_NEED_WAIT, b.addWaitingTransaction("k2", a, la));
+        assertEquals(1, la.count.get());
+        assertEquals(0, lb.count.get());
+        assertEquals(Transaction.STATUS_WAITING, a.getStatus());
+        assertEquals(Transaction.STATUS_WAITING, b.getStatus());
+        try {
+            a.checkTimeout();
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.DEADLOCK_1, e.getErrorCode());
+        }
+        // a已经不在b的等待队列中了，b结束时不会再唤醒a
+        b.setStatus(Transaction.STATUS_OPEN);
+        b.rollback();
+        assertEquals(1, la.count.get());
+        assertEquals(Transaction.STATUS_WAITING, a.getStatus());
+        rollback(a);
+    }
+
+    // a等待b，b等待c，不是环
+    private void testNoDeadlock() {
+        Transaction a = begin(1);
+        Transaction b = begin(1);
+        Transaction c = begin(1);
+        WakeUpCounter lb = new WakeUpCounter();
+        assertEquals(Transaction.OPERATION_NEED_WAIT, b.addWaitingTransaction("k1", a, new WakeUpCounter()));
+        assertEquals(Transaction.OPERATION_NEED_WAIT, c.addWaitingTransaction("k2", b, lb));
+        assertEquals(0, lb.count.get());
+        assertEquals(Transaction.STATUS_WAITING, a.getStatus());
+        assertEquals(Transaction.STATUS_WAITING, b.getStatus());
+        rollback(a, b, c);
+    }
+
+    // 这些事务没有session，不能通过正常的唤醒流程结束等待，直接改成打开状态再回滚
+    private static void rollback(Transaction... transactions) {
+        for (Transaction t : transactions) {
+            t.setStatus(Transaction.STATUS_OPEN);
+        }
+        for (Transaction t : transactions) {
+            t.rollback();
+        }
+    }
+
+    private static class WakeUpCounter implements Transaction.Listener {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void operationUndo() {
+        }
+
+        @Override
+        public void operationComplete() {
+        }
+
+        @Override
+        public void wakeUp() {
+            count.incrementAndGet();
+        }
+    }
+}
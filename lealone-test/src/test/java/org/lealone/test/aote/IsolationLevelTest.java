@@ -69,6 +69,13 @@ public class IsolationLevelTest extends TestBase {
         t5.setIsolationLevel(Transaction.IL_SERIALIZABLE);
         map = map.getInstance(t5);
         assertNull(map.get("1"));
+
+        // 事务引擎是共享的，不结束的话后面的测试还会看到这些事务
+        t1.rollback();
+        t2.rollback();
+        t3.rollback();
+        t4.rollback();
+        t5.rollback();
     }
 
     private void test2() {
@@ -117,5 +124,8 @@ public class IsolationLevelTest extends TestBase {
         // t2和t3还能看到旧值
         assertEquals("c", map2.get("3"));
         assertEquals("c", map3.get("3"));
+
+        t2.commit();
+        t3.commit();
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+import org.lealone.test.TestBase.MainTest;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.log.LogSyncService;
+
+// 多个线程并发提交事务，分别用1个和4个redo日志流，输出每个流每秒的提交次数和sync次数
+public class RedoLogPartitionPerfTest extends TestBase implements MainTest {
+
+    public static void main(String[] args) throws Exception {
+        RedoLogPartitionPerfTest test = new RedoLogPartitionPerfTest();
+        test.run(1);
+        test.run(4);
+    }
+
+    private void run(int partitionCount) throws Exception {
+        String baseDir = joinDirs("aote", "RedoLogPartitionPerfTest", "throughput" + partitionCount);
+        FileUtils.deleteRecursive(baseDir, true);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("redo_log_dir", "redo_log");
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("redo_log_partitions", String.valueOf(partitionCount));
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aote", "RedoLogPartitionPerfTest", "throughput" + partitionCount, "data"));
+        AOStorage storage = builder.openStorage();
+        try {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<Integer, String> map = t.openMap("RedoLogPartitionPerfTest", storage);
+            t.commit();
+
+            int threadCount = 16;
+            int transactionCount = 200;
+            AtomicInteger commits = new AtomicInteger();
+            Thread[] threads = new Thread[threadCount];
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < threadCount; i++) {
+                int n = i;
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < transactionCount; j++) {
+                        Transaction t2 = te.beginTransaction(false);
+                        map.getInstance(t2).put(n * transactionCount + j, "v" + j);
+                        t2.commit();
+                        commits.incrementAndGet();
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long time = Math.max(System.currentTimeMillis() - startTime, 1);
+            assertEquals(threadCount * transactionCount, commits.get());
+
+            p("partitions: " + partitionCount + ", commits/s: " + commits.get() * 1000 / time);
+            long records = 0;
+            LogSyncService[] partitions = te.getLogSyncService().getPartitions();
+            for (int i = 0; i < partitions.length; i++) {
+                LogSyncService s = partitions[i];
+                records += s.getSyncedRecordCount();
+                p("  stream " + i + ": commits/s: " + s.getSyncedRecordCount() * 1000 / time + ", fsyncs/s: "
+                        + s.getSyncCount() * 1000 / time);
+            }
+            assertTrue(records >= commits.get());
+        } finally {
+            te.close();
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.ValueString;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.ObjectDataType;
+import org.lealone.storage.type.StorageDataType;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.aote.TransactionalValue;
+import org.lealone.transaction.aote.TransactionalValueType;
+import org.lealone.transaction.aote.log.LogSyncService;
+import org.lealone.transaction.aote.log.RedoLogRecord;
+
+public class RedoLogPartitionTest extends TestBase {
+
+    private final StorageDataType keyType = new ObjectDataType();
+    private final StorageDataType valueType = new ObjectDataType();
+
+    @Test
+    public void run() throws Exception {
+        testRecovery();
+    }
+
+    // 同一个key的多次修改写到不同的流中，并且后修改的事务id更小，恢复时要按提交顺序redo
+    private void testRecovery() throws Exception {
+        String baseDir = joinDirs("aote", "RedoLogPartitionTest", "recovery");
+        FileUtils.deleteRecursive(baseDir, true);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("redo_log_dir", "redo_log");
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_PERIODIC);
+        config.put("log_sync_period", "10");
+        config.put("redo_log_partitions", "4");
+        config.put("redo_recovery_memory", "8192"); // 恢复时需要写临时文件
+
+        int count = 2000;
+        LogSyncService logSyncService = LogSyncService.create(config);
+        logSyncService.getRedoLog().init();
+        logSyncService.start();
+        LogSyncService[] partitions = logSyncService.getPartitions();
+        assertEquals(4, partitions.length);
+
+        long tid = count * 3;
+        partitions[0].addRedoLogRecord(createRecord(tid, "map0", 1, "v1"));
+        logSyncService.checkpoint(tid);
+        for (int i = 1; i <= count; i++) {
+            partitions[i % 4].addRedoLogRecord(createRecord(++tid, "map1", i, "v" + i));
+            partitions[i % 4].addRedoLogRecord(createRecord(tid, "map2", i, "v" + i));
+        }
+        for (int i = 1; i <= count; i++) {
+            partitions[(i + 1) % 4].addRedoLogRecord(createRecord(tid - i, "map1", i, i % 2 == 0 ? null : "new" + i));
+        }
+        logSyncService.addDroppedMapRedoLogRecord("map2");
+        logSyncService.close();
+        logSyncService.join();
+
+        // 少用几个流也要把以前的流读出来
+        config.put("redo_log_partitions", "2");
+        logSyncService = LogSyncService.create(config);
+        assertEquals(4, logSyncService.getPartitions().length);
+        assertEquals(tid, logSyncService.getRedoLog().init());
+
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aote", "RedoLogPartitionTest", "recovery", "data"));
+        AOStorage storage = builder.openStorage();
+        TransactionalValueType tvType = new TransactionalValueType(valueType);
+        StorageMap<Object, TransactionalValue> map0 = storage.openMap("map0", keyType, tvType, null);
+        StorageMap<Object, TransactionalValue> map1 = storage.openMap("map1", keyType, tvType, null);
+        StorageMap<Object, TransactionalValue> map2 = storage.openMap("map2", keyType, tvType, null);
+        logSyncService.getRedoLog().redo(map0);
+        logSyncService.getRedoLog().redo(map1);
+        logSyncService.getRedoLog().redo(map2);
+        assertEquals(0, map0.size());
+        assertEquals(0, map2.size());
+        for (int i = 1; i <= count; i++) {
+            TransactionalValue tv = map1.get(i);
+            if (i % 2 == 0)
+                assertNull(tv);
+            else
+                assertEquals("new" + i, tv.getValue());
+        }
+        storage.close();
+        logSyncService.close();
+    }
+
+    // 格式参照UndoLogRecord.writeForRedo()
+    private RedoLogRecord createRecord(long tid, String mapName, Object key, Object value) {
+        DataBuffer buff = DataBuffer.create();
+        ValueString.type.write(buff, mapName);
+        int keyValueLengthStartPos = buff.position();
+        buff.putInt(0);
+        keyType.write(buff, key);
+        if (value == null) {
+            buff.put((byte) 0);
+        } else {
+            buff.put((byte) 1);
+            valueType.write(buff, value);
+        }
+        buff.putInt(keyValueLengthStartPos, buff.position() - keyValueLengthStartPos - 4);
+        ByteBuffer operations = buff.getAndFlipBuffer();
+        return RedoLogRecord.createLocalTransactionRedoLogRecord(tid, operations);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.ValueString;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.ObjectDataType;
+import org.lealone.storage.type.StorageDataType;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.aote.TransactionalValue;
+import org.lealone.transaction.aote.TransactionalValueType;
+import org.lealone.transaction.aote.log.LogSyncService;
+import org.lealone.transaction.aote.log.RedoLogRecord;
+
+public class RedoLogTest extends TestBase {
+
+    private final StorageDataType keyType = new ObjectDataType();
+    private final StorageDataType valueType = new ObjectDataType();
+
+    @Test
+    public void run() throws Exception {
+        String baseDir = joinDirs("aote", "RedoLogTest");
+        FileUtils.deleteRecursive(baseDir, true);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("redo_log_dir", "redo_log");
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_PERIODIC);
+        config.put("log_sync_period", "10");
+        config.put("log_chunk_size", "4096"); // 生成多个chunk
+        config.put("redo_recovery_memory", "8192"); // 恢复时需要写临时文件
+
+        int count = 3000;
+        LogSyncService logSyncService = LogSyncService.create(config);
+        logSyncService.getRedoLog().init();
+        logSyncService.start();
+        long tid = 0;
+        // 检查点之前的都不需要redo
+        logSyncService.addRedoLogRecord(createRecord(++tid, "map0", 1, "v1"));
+        logSyncService.checkpoint(tid);
+        for (int i = 1; i <= count; i++) {
+            logSyncService.addRedoLogRecord(createRecord(++tid, "map1", i, "v" + i));
+            logSyncService.addRedoLogRecord(createRecord(++tid, "map2", i, "v" + i));
+        }
+        // 只有最后一次修改生效
+        for (int i = 1; i <= count; i += 2) {
+            logSyncService.addRedoLogRecord(createRecord(++tid, "map1", i, null));
+        }
+        for (int i = 1; i <= count; i += 3) {
+            logSyncService.addRedoLogRecord(createRecord(++tid, "map1", i, "new" + i));
+        }
+        logSyncService.addRedoLogRecord(RedoLogRecord.createDroppedMapRedoLogRecord("map2"));
+        logSyncService.close();
+        logSyncService.join();
+
+        logSyncService = LogSyncService.create(config);
+        assertEquals(tid, logSyncService.getRedoLog().init());
+
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aote", "RedoLogTest", "data"));
+        AOStorage storage = builder.openStorage();
+        TransactionalValueType tvType = new TransactionalValueType(valueType);
+        StorageMap<Object, TransactionalValue> map0 = storage.openMap("map0", keyType, tvType, null);
+        StorageMap<Object, TransactionalValue> map1 = storage.openMap("map1", keyType, tvType, null);
+        StorageMap<Object, TransactionalValue> map2 = storage.openMap("map2", keyType, tvType, null);
+        logSyncService.getRedoLog().redo(map0);
+        logSyncService.getRedoLog().redo(map1);
+        logSyncService.getRedoLog().redo(map2);
+        assertEquals(0, map0.size());
+        assertEquals(0, map2.size());
+        for (int i = 1; i <= count; i++) {
+            TransactionalValue tv = map1.get(i);
+            if (i % 3 == 1)
+                assertEquals("new" + i, tv.getValue());
+            else if (i % 2 == 1)
+                assertNull(tv);
+            else
+                assertEquals("v" + i, tv.getValue());
+        }
+        storage.close();
+        logSyncService.close();
+    }
+
+    // 多个线程并发加日志，同时后台线程不断保存日志并切换chunk，所有日志都不能丢失
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        String baseDir = joinDirs("aote", "RedoLogTest-concurrent");
+        FileUtils.deleteRecursive(baseDir, true);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("redo_log_dir", "redo_log");
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_PERIODIC);
+        config.put("log_sync_period", "1");
+        config.put("log_chunk_size", "8192"); // 频繁切换chunk
+
+        int threadCount = 32;
+        int count = 5000; // 每个线程加的日志数
+        LogSyncService writer = LogSyncService.create(config);
+        writer.getRedoLog().init();
+        writer.start();
+        AtomicLong tid = new AtomicLong();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int base = t * count;
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= count; i++) {
+                    writer.addRedoLogRecord(
+                            createRecord(tid.incrementAndGet(), "map1", base + i, "v" + (base + i)));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        writer.close();
+        writer.join();
+
+        LogSyncService logSyncService = LogSyncService.create(config);
+        assertEquals(tid.get(), logSyncService.getRedoLog().init());
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aote", "RedoLogTest-concurrent", "data"));
+        AOStorage storage = builder.openStorage();
+        TransactionalValueType tvType = new TransactionalValueType(valueType);
+        StorageMap<Object, TransactionalValue> map1 = storage.openMap("map1", keyType, tvType, null);
+        logSyncService.getRedoLog().redo(map1);
+        assertEquals(threadCount * count, map1.size());
+        for (int i = 1; i <= threadCount * count; i++) {
+            assertEquals("v" + i, map1.get(i).getValue());
+        }
+        storage.close();
+        logSyncService.close();
+    }
+
+    // 每个引擎的日志流都注册自己的MBean，关闭时只注销自己的
+    @Test
+    public void testMBeanPerEngine() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("org.lealone:type=LogSyncService,*");
+        int count = mbs.queryNames(pattern, null).size();
+        LogSyncService s1 = LogSyncService.create(createConfig("RedoLogTest-mbean1"));
+        LogSyncService s2 = LogSyncService.create(createConfig("RedoLogTest-mbean2"));
+        assertEquals(count + 2, mbs.queryNames(pattern, null).size());
+        s1.close();
+        assertEquals(count + 1, mbs.queryNames(pattern, null).size());
+        s2.close();
+        assertEquals(count, mbs.queryNames(pattern, null).size());
+    }
+
+    private Map<String, String> createConfig(String dir) {
+        String baseDir = joinDirs("aote", dir);
+        FileUtils.deleteRecursive(baseDir, true);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("redo_log_dir", "redo_log");
+        return config;
+    }
+
+    // 格式参照UndoLogRecord.writeForRedo()
+    private RedoLogRecord createRecord(long tid, String mapName, Object key, Object value) {
+        DataBuffer buff = DataBuffer.create();
+        ValueString.type.write(buff, mapName);
+        int keyValueLengthStartPos = buff.position();
+        buff.putInt(0);
+        keyType.write(buff, key);
+        if (value == null) {
+            buff.put((byte) 0);
+        } else {
+            buff.put((byte) 1);
+            valueType.write(buff, value);
+        }
+        buff.putInt(keyValueLengthStartPos, buff.position() - keyValueLengthStartPos - 4);
+        ByteBuffer operations = buff.getAndFlipBuffer();
+        return RedoLogRecord.createLocalTransactionRedoLogRecord(tid, operations);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.test.TestBase;
+import org.lealone.test.TestBase.MainTest;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.aote.AMTransaction;
+import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.TransactionRegistry;
+
+// 模拟大量自动提交的短事务: 每个线程不停地分配事务id、登记事务、检查有没有更老的RR事务(提交时要做)、结束事务。
+// 分别测试TransactionRegistry和原先的ConcurrentSkipListMap + CAS循环分配事务id的实现，
+// 最后再测一下通过事务引擎开始和提交空事务的吞吐量。
+public class TransactionRegistryPerfTest extends TestBase implements MainTest {
+
+    public static void main(String[] args) throws Exception {
+        new TransactionRegistryPerfTest().run();
+    }
+
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors() * 2;
+    private static final int LOOP_COUNT = 200 * 1000;
+
+    private interface Registry {
+        long nextTransactionId();
+
+        void add(AMTransaction t);
+
+        boolean containsRepeatableReadTransactions(long lessThanVersion);
+
+        AMTransaction remove(long tid);
+    }
+
+    private static class StripedRegistry implements Registry {
+
+        private final TransactionRegistry registry = new TransactionRegistry();
+
+        @Override
+        public long nextTransactionId() {
+            return registry.nextTransactionId(true);
+        }
+
+        @Override
+        public void add(AMTransaction t) {
+            registry.add(t);
+        }
+
+        @Override
+        public boolean containsRepeatableReadTransactions(long lessThanVersion) {
+            return registry.getOldestRepeatableReadTransactionId() < lessThanVersion;
+        }
+
+        @Override
+        public AMTransaction remove(long tid) {
+            return registry.remove(tid);
+        }
+    }
+
+    // 原先AMTransactionEngine中的实现
+    private static class SkipListRegistry implements Registry {
+
+        private final ConcurrentSkipListMap<Long, AMTransaction> currentTransactions = new ConcurrentSkipListMap<>();
+        private final AtomicLong lastTransactionId = new AtomicLong();
+
+        @Override
+        public long nextTransactionId() {
+            long oldLast;
+            long last;
+            int delta;
+            do {
+                oldLast = lastTransactionId.get();
+                last = oldLast;
+                if (last % 2 == 0)
+                    delta = 2;
+                else
+                    delta = 1;
+                last += delta;
+            } while (!lastTransactionId.compareAndSet(oldLast, last));
+            return last;
+        }
+
+        @Override
+        public void add(AMTransaction t) {
+            currentTransactions.put(t.getTransactionId(), t);
+        }
+
+        @Override
+        public boolean containsRepeatableReadTransactions(long lessThanVersion) {
+            for (AMTransaction t : currentTransactions.headMap(lessThanVersion).values()) {
+                if (t.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public AMTransaction remove(long tid) {
+            return currentTransactions.remove(tid);
+        }
+    }
+
+    private AMTransactionEngine te;
+
+    public void run() throws Exception {
+        te = (AMTransactionEngine) AMTransactionEngineTest.getTransactionEngine();
+        try {
+            // 先预热
+            for (int i = 0; i < 3; i++) {
+                run(new SkipListRegistry());
+                run(new StripedRegistry());
+                runEngine();
+            }
+            run(new SkipListRegistry());
+            run(new StripedRegistry());
+            runEngine();
+        } finally {
+            te.close();
+        }
+    }
+
+    private void run(Registry registry) throws Exception {
+        long time = runThreads(() -> {
+            for (int i = 0; i < LOOP_COUNT; i++) {
+                long tid = registry.nextTransactionId();
+                AMTransaction t = new AMTransaction(te, tid);
+                registry.add(t);
+                registry.containsRepeatableReadTransactions(tid);
+                registry.remove(tid);
+            }
+        });
+        print(registry.getClass().getSimpleName(), time);
+    }
+
+    private void runEngine() throws Exception {
+        long time = runThreads(() -> {
+            for (int i = 0; i < LOOP_COUNT; i++) {
+                te.beginTransaction(true).commit();
+            }
+        });
+        print("AMTransactionEngine", time);
+    }
+
+    private long runThreads(Runnable task) throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            threads[i].start();
+        }
+        long t1 = System.nanoTime();
+        latch.countDown();
+        for (Thread t : threads)
+            t.join();
+        return System.nanoTime() - t1;
+    }
+
+    private void print(String name, long time) {
+        long count = (long) THREAD_COUNT * LOOP_COUNT;
+        p(String.format("%-20s threads: %d, transactions: %d, time: %d ms, throughput: %d/s", name, THREAD_COUNT,
+                count, time / 1000000, count * 1000000000L / time));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import org.junit.Test;
+import org.lealone.db.RunMode;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.aote.AMTransaction;
+import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.TransactionRegistry;
+
+public class TransactionRegistryTest extends TestBase {
+
+    private AMTransactionEngine te;
+
+    @Test
+    public void run() throws Exception {
+        te = (AMTransactionEngine) AMTransactionEngineTest.getTransactionEngine();
+        try {
+            testTransactionId();
+            testRepeatableRead();
+            testBeginRepeatableRead();
+            testEngine();
+            testEngineBeginRepeatableRead();
+        } finally {
+            te.close();
+        }
+    }
+
+    private void testTransactionId() {
+        TransactionRegistry registry = new TransactionRegistry(4);
+        registry.setLastTransactionId(5);
+        long id1 = registry.nextTransactionId(true);
+        long id2 = registry.nextTransactionId(false);
+        long id3 = registry.nextTransactionId(true);
+        assertTrue(id1 > 5 && id1 % 2 == 0);
+        assertTrue(id2 > id1 && id2 % 2 == 1);
+        assertTrue(id3 > id2 && id3 % 2 == 0);
+        assertTrue(registry.getLastTransactionId() >= id3);
+    }
+
+    private void testRepeatableRead() {
+        TransactionRegistry registry = new TransactionRegistry(4);
+        AMTransaction t1 = new AMTransaction(te, registry.nextTransactionId(true));
+        AMTransaction t2 = new AMTransaction(te, registry.nextTransactionId(true));
+        AMTransaction t3 = new AMTransaction(te, registry.nextTransactionId(true));
+        t2.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        t3.setIsolationLevel(Transaction.IL_SERIALIZABLE);
+        registry.add(t1);
+        registry.add(t2);
+        registry.add(t3);
+        assertEquals(3, registry.size());
+        assertEquals(t2, registry.get(t2.getTransactionId()));
+
+        // 读已提交级别的t1不影响最老的快照
+        assertEquals(t2.getTransactionId(), registry.getOldestRepeatableReadTransactionId());
+        registry.remove(t2.getTransactionId());
+        assertFalse(registry.contains(t2.getTransactionId()));
+        assertEquals(t3.getTransactionId(), registry.getOldestRepeatableReadTransactionId());
+        registry.remove(t3.getTransactionId());
+        assertEquals(Long.MAX_VALUE, registry.getOldestRepeatableReadTransactionId());
+        // 已经结束的事务不会再登记
+        registry.updateIsolationLevel(t3);
+        assertEquals(Long.MAX_VALUE, registry.getOldestRepeatableReadTransactionId());
+        registry.remove(t1.getTransactionId());
+        assertEquals(0, registry.size());
+    }
+
+    // 分配RR事务的id和登记到有序表期间，算最老快照的线程要等着，
+    // 不能算出一个比新事务id还大、却又没有考虑这个事务的快照
+    private void testBeginRepeatableRead() throws Exception {
+        TransactionRegistry registry = new TransactionRegistry(4);
+        long[] oldest = new long[1];
+        Thread[] gc = new Thread[1];
+        AMTransaction t = registry.begin(true, Transaction.IL_REPEATABLE_READ, tid -> {
+            gc[0] = new Thread(() -> oldest[0] = registry.getOldestSnapshotVersion());
+            gc[0].start();
+            try {
+                gc[0].join(200);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            assertTrue(gc[0].isAlive());
+            AMTransaction rr = new AMTransaction(te, tid);
+            rr.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+            return rr;
+        });
+        gc[0].join();
+        assertTrue(oldest[0] <= t.getTransactionId());
+        assertEquals(t.getTransactionId(), registry.getOldestSnapshotVersion());
+
+        // 读已提交级别的事务不影响最老的快照
+        AMTransaction rc = registry.begin(true, Transaction.IL_READ_COMMITTED, tid -> new AMTransaction(te, tid));
+        assertEquals(t.getTransactionId(), registry.getOldestSnapshotVersion());
+        registry.remove(t.getTransactionId());
+        assertEquals(registry.getLastTransactionId(), registry.getOldestSnapshotVersion());
+        registry.remove(rc.getTransactionId());
+    }
+
+    // 开始时指定的隔离级别马上生效
+    private void testEngineBeginRepeatableRead() {
+        Transaction t = te.beginTransaction(false, RunMode.CLIENT_SERVER, Transaction.IL_REPEATABLE_READ);
+        assertEquals(Transaction.IL_REPEATABLE_READ, t.getIsolationLevel());
+        assertTrue(te.containsRepeatableReadTransactions(t.getTransactionId() + 2));
+        t.commit();
+        assertFalse(te.containsRepeatableReadTransactions(t.getTransactionId() + 2));
+    }
+
+    // 开始之后再改隔离级别也要能反映出来
+    private void testEngine() {
+        Transaction t1 = te.beginTransaction(false);
+        Transaction t2 = te.beginTransaction(false);
+        long tid = t2.getTransactionId() + 2;
+        assertFalse(te.containsRepeatableReadTransactions(tid));
+        t2.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        assertTrue(te.containsRepeatableReadTransactions(tid));
+        assertFalse(te.containsRepeatableReadTransactions(t2.getTransactionId()));
+        t1.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        assertTrue(te.containsRepeatableReadTransactions(t2.getTransactionId()));
+        t1.setIsolationLevel(Transaction.IL_READ_COMMITTED);
+        assertFalse(te.containsRepeatableReadTransactions(t2.getTransactionId()));
+        t2.commit();
+        assertFalse(te.containsRepeatableReadTransactions(tid));
+        t1.commit();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+import org.lealone.db.RunMode;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.ObjectDataType;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.aote.AMTransaction;
+import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.AOTransactionEngine;
+import org.lealone.transaction.aote.TransactionalValue;
+import org.lealone.transaction.aote.TransactionalValueType;
+import org.lealone.transaction.aote.log.LogSyncService;
+import org.lealone.transaction.aote.log.UndoLog;
+import org.lealone.transaction.aote.log.UndoLogRecord;
+
+public class UndoLogTest extends TestBase {
+
+    private final int count = 1000;
+    private final String baseDir = joinDirs("aote", "UndoLogTest");
+    private final String mapName = UndoLogTest.class.getSimpleName();
+
+    @Test
+    public void run() throws Exception {
+        FileUtils.deleteRecursive(baseDir, true);
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(getConfig(baseDir));
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aote", "UndoLogTest", "data"));
+        AOStorage storage = builder.openStorage();
+        try {
+            testSpill(te, storage);
+            testRedo();
+            testSpilledRowCount(te, storage);
+            testSpillAfterAsyncWrite(te, storage);
+        } finally {
+            te.close();
+            storage.close();
+        }
+    }
+
+    // 分布式事务的redo日志也要分段写，用它恢复出来的map要跟提交的结果一样
+    @Test
+    public void testDistributedTransactionRedo() throws Exception {
+        String dir = joinDirs("aote", "UndoLogTest", "distributed");
+        FileUtils.deleteRecursive(dir, true);
+        AOTransactionEngine te = new AOTransactionEngine();
+        te.init(getConfig(dir));
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aote", "UndoLogTest", "distributed", "data"));
+        AOStorage storage = builder.openStorage();
+        try {
+            Transaction t = te.beginTransaction(false, RunMode.REPLICATION);
+            t.setLocal(false);
+            TransactionMap<Integer, String> map = t.openMap(mapName, storage);
+            for (int i = 1; i <= count; i++) {
+                map.put(i, "v" + i);
+            }
+            assertTrue(((AMTransaction) t).getUndoLog().isSpilled());
+            t.commit();
+
+            String copyDir = joinDirs("aote", "UndoLogTest", "distributed_copy");
+            redo(dir, copyDir, redoMap -> {
+                for (int i = 1; i <= count; i++) {
+                    assertEquals("v" + i, redoMap.get(i).getValue());
+                }
+            });
+        } finally {
+            te.close();
+            storage.close();
+        }
+    }
+
+    private static Map<String, String> getConfig(String baseDir) {
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("redo_log_dir", "redo_log");
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("undo_log_spill_threshold", "100");
+        return config;
+    }
+
+    private void testSpill(AMTransactionEngine te, AOStorage storage) {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<Integer, String> map = t.openMap(mapName, storage);
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "v" + i);
+        }
+        UndoLog undoLog = ((AMTransaction) t).getUndoLog();
+        assertTrue(undoLog.isSpilled());
+        assertEquals(count, undoLog.size());
+
+        // 回滚时要把临时文件中的记录读回来
+        int savepoint = t.getSavepointId();
+        update(map);
+        for (int i = count + 1; i <= count * 2; i++) {
+            map.put(i, "v" + i);
+        }
+        t.rollbackToSavepoint(savepoint);
+        assertEquals(count, undoLog.size());
+        for (int i = 1; i <= count; i++) {
+            assertEquals("v" + i, map.get(i));
+        }
+        assertNull(map.get(count + 1));
+
+        update(map);
+        t.commit();
+        // 事务结束后临时文件就删除了
+        assertEquals(0, new File(te.getUndoLogDir()).list().length);
+
+        t = te.beginTransaction(false);
+        map = map.getInstance(t);
+        for (int i = 1; i <= count; i++) {
+            if (i % 2 == 0)
+                assertEquals("new" + i, map.get(i));
+            else
+                assertNull(map.get(i));
+        }
+        assertEquals(count / 2, map.size());
+        t.commit();
+    }
+
+    private void update(TransactionMap<Integer, String> map) {
+        for (int i = 1; i <= count; i++) {
+            if (i % 2 == 0)
+                map.put(i, "new" + i);
+            else
+                map.remove(i);
+        }
+    }
+
+    // 读回来的更新和删除记录要按写到临时文件前的记录数变化回滚，否则已提交的记录数会出错
+    private void testSpilledRowCount(AMTransactionEngine te, AOStorage storage) {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<Integer, String> map = t.openMap(mapName + "_RowCount", storage);
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "v" + i);
+        }
+        t.commit();
+
+        t = te.beginTransaction(false);
+        map = map.getInstance(t);
+        int savepoint = t.getSavepointId();
+        update(map);
+        for (int i = count + 1; i <= count * 2; i++) {
+            map.put(i, "v" + i);
+        }
+        assertTrue(((AMTransaction) t).getUndoLog().isSpilled());
+        assertEquals(count / 2 + count, map.size());
+        t.rollbackToSavepoint(savepoint);
+        assertEquals(count, map.size());
+        update(map);
+        assertEquals(count / 2, map.size());
+        t.commit();
+
+        t = te.beginTransaction(false);
+        map = map.getInstance(t);
+        assertEquals(count / 2, map.size());
+        t.commit();
+    }
+
+    // 异步写操作还没完成的记录和它后面的记录都不能写到临时文件中
+    private void testSpillAfterAsyncWrite(AMTransactionEngine te, AOStorage storage) {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<Integer, String> map = t.openMap(mapName + "_Async", storage);
+        UndoLog undoLog = ((AMTransaction) t).getUndoLog();
+        map.put(1, "v1");
+        UndoLogRecord r = undoLog.getLast();
+        r.setWriting(true);
+        for (int i = 2; i <= count; i++) {
+            map.put(i, "v" + i);
+        }
+        assertFalse(undoLog.isSpilled());
+        r.setWriting(false);
+        map.put(count + 1, "v" + (count + 1));
+        assertTrue(undoLog.isSpilled());
+        t.rollback();
+    }
+
+    // 复制一份分段写入的redo日志，用它恢复出来的map要跟提交的结果一样
+    private void testRedo() throws Exception {
+        String copyDir = joinDirs("aote", "UndoLogTest", "copy");
+        redo(baseDir, copyDir, map -> {
+            for (int i = 1; i <= count; i++) {
+                TransactionalValue tv = map.get(i);
+                if (i % 2 == 0)
+                    assertEquals("new" + i, tv.getValue());
+                else
+                    assertNull(tv);
+            }
+            assertNull(map.get(count + 1));
+        });
+    }
+
+    private void redo(String baseDir, String copyDir, Consumer<StorageMap<Object, TransactionalValue>> checker)
+            throws Exception {
+        FileUtils.deleteRecursive(copyDir, true);
+        File redoLogDir = new File(baseDir, "redo_log");
+        new File(copyDir, "redo_log").mkdirs();
+        for (File f : redoLogDir.listFiles()) {
+            Files.copy(f.toPath(), Paths.get(copyDir, "redo_log", f.getName()));
+        }
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", copyDir);
+        config.put("redo_log_dir", "redo_log");
+        LogSyncService logSyncService = LogSyncService.create(config);
+        logSyncService.getRedoLog().init();
+
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(copyDir + File.separator + "data");
+        AOStorage storage = builder.openStorage();
+        StorageMap<Object, TransactionalValue> map = storage.openMap(mapName, new ObjectDataType(),
+                new TransactionalValueType(new ObjectDataType()), null);
+        logSyncService.getRedoLog().redo(map);
+        checker.accept(map);
+        storage.close();
+        logSyncService.close();
+    }
+}
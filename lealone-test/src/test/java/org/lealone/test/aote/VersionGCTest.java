@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.lealone.storage.Storage;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.aote.AMTransactionEngine;
+
+public class VersionGCTest extends TestBase {
+
+    private AMTransactionEngine te;
+    private Storage storage;
+    private final String mapName = VersionGCTest.class.getSimpleName();
+
+    @Test
+    public void run() {
+        te = (AMTransactionEngine) AMTransactionEngineTest.getTransactionEngine();
+        storage = AMTransactionEngineTest.getStorage();
+        try {
+            testGc();
+        } finally {
+            te.close();
+        }
+    }
+
+    private void testGc() {
+        int updateCount = 100;
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap(mapName, storage);
+        map.clear();
+        map.put("1", "v0");
+        t.commit();
+
+        Transaction reader = te.beginTransaction(false);
+        reader.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> readerMap = map.getInstance(reader);
+        assertEquals("v0", readerMap.get("1"));
+
+        for (int i = 1; i <= updateCount; i++) {
+            t = te.beginTransaction(false);
+            map.getInstance(t).put("1", "v" + i);
+            t.commit();
+        }
+
+        // reader还在，它要读的版本不能清除
+        te.gcVersionChains();
+        assertEquals("v0", readerMap.get("1"));
+        Map<String, String> stats = te.getStatistics();
+        assertEquals(1, getInt(stats, "count"));
+        assertTrue(getInt(stats, "max_length") > updateCount);
+
+        // reader结束后只需要保留最新的版本
+        reader.commit();
+        te.gcVersionChains();
+        te.gcVersionChains();
+        stats = te.getStatistics();
+        assertEquals(0, getInt(stats, "count"));
+        assertTrue(getInt(stats, "reclaimed_versions") >= updateCount);
+
+        t = te.beginTransaction(false);
+        t.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        assertEquals("v" + updateCount, map.getInstance(t).get("1"));
+        t.commit();
+    }
+
+    private int getInt(Map<String, String> stats, String name) {
+        String v = stats.get("version_chain." + mapName + "." + name);
+        assertNotNull(v);
+        return Integer.parseInt(v);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.util.LinkedList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.lealone.test.TestBase;
+import org.lealone.test.TestBase.MainTest;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.Transaction.WaitingTransaction;
+import org.lealone.transaction.TransactionEngine;
+import org.lealone.transaction.aote.WaitingQueue;
+
+// 模拟几百个session同时抢同一行记录的锁:
+// 每一轮所有session都加入持有锁的事务的等待队列，其中一半因为超时主动退出(按事务定点移除)，
+// 持有锁的事务提交时唤醒剩下的。分别测试WaitingQueue和原先每次都复制整个LinkedList的实现。
+public class WaitingQueuePerfTest extends TestBase implements MainTest {
+
+    public static void main(String[] args) throws Exception {
+        new WaitingQueuePerfTest().run();
+    }
+
+    private static final int SESSION_COUNT = 500;
+    private static final int ROUND_COUNT = 200;
+
+    private interface Queue {
+        boolean offer(WaitingTransaction wt);
+
+        WaitingTransaction remove(Transaction transaction);
+
+        void close();
+    }
+
+    private static class LockFreeQueue implements Queue {
+
+        private final WaitingQueue queue = new WaitingQueue();
+
+        @Override
+        public boolean offer(WaitingTransaction wt) {
+            return queue.offer(wt);
+        }
+
+        @Override
+        public WaitingTransaction remove(Transaction transaction) {
+            return queue.remove(transaction);
+        }
+
+        @Override
+        public void close() {
+            queue.close();
+        }
+    }
+
+    // 原先AMTransaction中的实现
+    private static class CopyOnWriteQueue implements Queue {
+
+        private static final LinkedList<WaitingTransaction> EMPTY_LINKED_LIST = new LinkedList<>();
+
+        private final AtomicReference<LinkedList<WaitingTransaction>> ref = new AtomicReference<>(
+                EMPTY_LINKED_LIST);
+
+        @Override
+        public boolean offer(WaitingTransaction wt) {
+            while (true) {
+                LinkedList<WaitingTransaction> list = ref.get();
+                if (list == null)
+                    return false;
+                LinkedList<WaitingTransaction> newList = new LinkedList<>(list);
+                newList.add(wt);
+                if (ref.compareAndSet(list, newList))
+                    return true;
+            }
+        }
+
+        @Override
+        public WaitingTransaction remove(Transaction transaction) {
+            while (true) {
+                LinkedList<WaitingTransaction> list = ref.get();
+                if (list == null)
+                    return null;
+                LinkedList<WaitingTransaction> newList = new LinkedList<>(list);
+                WaitingTransaction target = null;
+                for (WaitingTransaction wt : newList) {
+                    if (wt.getTransaction() == transaction) {
+                        target = wt;
+                        break;
+                    }
+                }
+                if (target == null)
+                    return null;
+                newList.remove(target);
+                if (ref.compareAndSet(list, newList))
+                    return target;
+            }
+        }
+
+        @Override
+        public void close() {
+            while (true) {
+                LinkedList<WaitingTransaction> list = ref.get();
+                if (list != null) {
+                    for (WaitingTransaction wt : list)
+                        wt.wakeUp();
+                }
+                if (ref.compareAndSet(list, null))
+                    break;
+            }
+        }
+    }
+
+    private TransactionEngine te;
+
+    public void run() throws Exception {
+        te = AMTransactionEngineTest.getTransactionEngine();
+        try {
+            Transaction[] transactions = new Transaction[SESSION_COUNT];
+            for (int i = 0; i < SESSION_COUNT; i++)
+                transactions[i] = te.beginTransaction(false);
+            // 先预热
+            for (int i = 0; i < 3; i++) {
+                run(false, transactions);
+                run(true, transactions);
+            }
+            run(false, transactions);
+            run(true, transactions);
+        } finally {
+            te.close();
+        }
+    }
+
+    private void run(boolean lockFree, Transaction[] transactions) throws Exception {
+        AtomicInteger wokenUp = new AtomicInteger();
+        AtomicReference<Queue> queueRef = new AtomicReference<>();
+        // 最后一个到达栅栏的线程充当持有锁的事务: 提交(关闭上一轮的队列)，然后换一个新的队列
+        CyclicBarrier barrier = new CyclicBarrier(SESSION_COUNT, () -> {
+            Queue queue = queueRef.get();
+            if (queue != null)
+                queue.close();
+            queueRef.set(lockFree ? new LockFreeQueue() : new CopyOnWriteQueue());
+        });
+        Thread[] threads = new Thread[SESSION_COUNT];
+        for (int i = 0; i < SESSION_COUNT; i++) {
+            Transaction t = transactions[i];
+            boolean timeout = i % 2 == 0;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int round = 0; round <= ROUND_COUNT; round++) {
+                        barrier.await();
+                        if (round == ROUND_COUNT)
+                            break;
+                        Queue queue = queueRef.get();
+                        queue.offer(new CountingWaitingTransaction(t, wokenUp));
+                        if (timeout)
+                            queue.remove(t);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        long t1 = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        long t2 = System.nanoTime();
+        p((lockFree ? "WaitingQueue    " : "CopyOnWriteQueue") + " sessions: " + SESSION_COUNT + ", rounds: "
+                + ROUND_COUNT + ", woken up: " + wokenUp.get() + ", time: " + (t2 - t1) / 1000000 + " ms");
+    }
+
+    private static class CountingWaitingTransaction extends WaitingTransaction {
+
+        private final AtomicInteger wokenUp;
+
+        CountingWaitingTransaction(Transaction transaction, AtomicInteger wokenUp) {
+            super(null, transaction, null);
+            this.wokenUp = wokenUp;
+        }
+
+        @Override
+        public void wakeUp() {
+            wokenUp.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.Transaction.WaitingTransaction;
+import org.lealone.transaction.TransactionEngine;
+import org.lealone.transaction.aote.WaitingQueue;
+
+public class WaitingQueueTest extends TestBase {
+
+    private TransactionEngine te;
+
+    @Test
+    public void run() throws Exception {
+        te = AMTransactionEngineTest.getTransactionEngine();
+        try {
+            testFifo();
+            testRemove();
+            testWakeUpByKey();
+            testClose();
+            testConcurrentOffer();
+        } finally {
+            te.close();
+        }
+    }
+
+    private void testFifo() {
+        WaitingQueue queue = new WaitingQueue();
+        List<Object> wokenUp = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(new MyWaitingTransaction(i, te.beginTransaction(false), wokenUp)));
+        }
+        assertFalse(queue.isEmpty());
+        queue.close();
+        assertEquals(5, wokenUp.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, wokenUp.get(i));
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    private void testRemove() {
+        WaitingQueue queue = new WaitingQueue();
+        List<Object> wokenUp = new ArrayList<>();
+        Transaction t1 = te.beginTransaction(false);
+        Transaction t2 = te.beginTransaction(false);
+        Transaction t3 = te.beginTransaction(false);
+        queue.offer(new MyWaitingTransaction("k1", t1, wokenUp));
+        queue.offer(new MyWaitingTransaction("k2", t2, wokenUp));
+        queue.offer(new MyWaitingTransaction("k3", t3, wokenUp));
+
+        // 从中间和头部移除，已经移除的不会再被找到
+        assertEquals("k2", queue.remove(t2).getKey());
+        assertNull(queue.remove(t2));
+        assertNull(queue.get(t2));
+        assertEquals("k1", queue.remove(t1).getKey());
+        assertEquals("k3", queue.get(t3).getKey());
+
+        queue.close();
+        assertEquals(1, wokenUp.size());
+        assertEquals("k3", wokenUp.get(0));
+        assertNull(queue.remove(t3));
+    }
+
+    private void testWakeUpByKey() {
+        WaitingQueue queue = new WaitingQueue();
+        List<Object> wokenUp = new ArrayList<>();
+        queue.offer(new MyWaitingTransaction("k1", te.beginTransaction(false), wokenUp));
+        queue.offer(new MyWaitingTransaction("k2", te.beginTransaction(false), wokenUp));
+        queue.offer(new MyWaitingTransaction("k1", te.beginTransaction(false), wokenUp));
+        Set<Object> keys = new HashSet<>();
+        keys.add("k1");
+        assertEquals(2, queue.wakeUp(keys));
+        assertEquals(2, wokenUp.size());
+        assertEquals(0, queue.wakeUp(keys));
+        assertFalse(queue.isEmpty());
+        queue.close();
+        assertEquals(3, wokenUp.size());
+        assertEquals("k2", wokenUp.get(2));
+    }
+
+    private void testClose() {
+        WaitingQueue queue = new WaitingQueue();
+        List<Object> wokenUp = new ArrayList<>();
+        assertFalse(queue.isClosed());
+        queue.close();
+        assertTrue(queue.isClosed());
+        // 关闭之后不能再加入
+        assertFalse(queue.offer(new MyWaitingTransaction("k1", te.beginTransaction(false), wokenUp)));
+        queue.close();
+        assertTrue(wokenUp.isEmpty());
+    }
+
+    // 关闭和并发加入同时进行时，要么加入失败，要么一定会被唤醒，不能两头落空
+    private void testConcurrentOffer() throws Exception {
+        int threadCount = 32;
+        int count = 200;
+        for (int round = 0; round < 20; round++) {
+            WaitingQueue queue = new WaitingQueue();
+            List<Object> wokenUp = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger added = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Transaction t = te.beginTransaction(false);
+                    for (int j = 0; j < count; j++) {
+                        if (queue.offer(new MyWaitingTransaction(j, t, wokenUp)))
+                            added.incrementAndGet();
+                        if (j % 2 == 0) {
+                            WaitingTransaction wt = queue.remove(t);
+                            if (wt != null)
+                                wt.wakeUp();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            while (added.get() < threadCount * count / 4)
+                Thread.yield();
+            queue.close();
+            for (Thread t : threads)
+                t.join();
+            assertEquals(added.get(), wokenUp.size());
+        }
+    }
+
+    // 没有session，记录唤醒的顺序即可
+    private static class MyWaitingTransaction extends WaitingTransaction {
+
+        private final List<Object> wokenUp;
+
+        MyWaitingTransaction(Object key, Transaction transaction, List<Object> wokenUp) {
+            super(key, transaction, null);
+            this.wokenUp = wokenUp;
+        }
+
+        @Override
+        public void wakeUp() {
+            wokenUp.add(getKey());
+        }
+    }
+}
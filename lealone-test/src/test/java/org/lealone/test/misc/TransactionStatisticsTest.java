@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class TransactionStatisticsTest extends SqlTestBase {
+
+    public TransactionStatisticsTest() {
+        super("TransactionStatisticsTest");
+        initTransactionEngine();
+        setEmbedded(true);
+    }
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS TransactionStatisticsTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS TransactionStatisticsTest (pk int primary key, f1 int)");
+        for (int i = 1; i <= 100; i++) {
+            executeUpdate("INSERT INTO TransactionStatisticsTest VALUES(" + i + ", " + i + ")");
+        }
+
+        // 日志同步线程是异步sync的，等它完成
+        sql = "SELECT VALUE FROM INFORMATION_SCHEMA.TRANSACTION_STATISTICS"
+                + " WHERE NAME = 'redo_log.stream0.synced_record_count'";
+        for (int i = 0; i < 100 && Long.parseLong(getStringValue(1, true)) < 100; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(Long.parseLong(getStringValue(1, true)) >= 100);
+        sql = "SELECT VALUE FROM INFORMATION_SCHEMA.TRANSACTION_STATISTICS"
+                + " WHERE NAME = 'redo_log.stream0.commit_latency_us.count'";
+        assertTrue(Long.parseLong(getStringValue(1, true)) >= 100);
+        sql = "SELECT count(*) FROM INFORMATION_SCHEMA.TRANSACTION_STATISTICS WHERE NAME LIKE 'redo_log.stream0.%'";
+        assertTrue(getIntValue(1, true) > 20);
+
+        // 同一个JVM中可能有多个事务引擎，MBean的名称里带有引擎编号
+        sql = "SELECT VALUE FROM INFORMATION_SCHEMA.TRANSACTION_STATISTICS"
+                + " WHERE NAME = 'redo_log.stream0.jmx_object_name'";
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(getStringValue(1, true));
+        assertEquals("0", name.getKeyProperty("stream"));
+        assertNotNull(name.getKeyProperty("engine"));
+        assertTrue((Long) mbs.getAttribute(name, "SyncedRecordCount") >= 100);
+        assertTrue((Long) mbs.getAttribute(name, "BatchSizeMax") >= 1);
+        assertTrue((Long) mbs.getAttribute(name, "CommitLatencyMax") >= (Long) mbs.getAttribute(name,
+                "CommitLatency50thPercentile"));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.lealone.net.NetBuffer;
+import org.lealone.net.nio.NioBuffer;
+import org.lealone.net.nio.NioBufferPool;
+import org.lealone.net.nio.NioCompositeBuffer;
+import org.lealone.test.TestBase;
+
+public class NioBufferTest extends TestBase {
+
+    @Test
+    public void run() {
+        testRefCount();
+        testComposite();
+        testCompositeAppend();
+    }
+
+    private static NioBuffer allocate(int from, int to) {
+        NioBuffer buffer = NioBufferPool.allocate(to - from);
+        for (int i = from; i < to; i++)
+            buffer.appendByte((byte) i);
+        return buffer.flip();
+    }
+
+    // slice跟原来的buffer共用引用计数，全部回收之后才放回池中
+    private void testRefCount() {
+        NioBuffer buffer = allocate(0, 100);
+        assertEquals(1, buffer.getRefCount());
+        NioBuffer s1 = buffer.slice(0, 10);
+        NioBuffer s2 = buffer.slice(10, 20);
+        assertEquals(3, buffer.getRefCount());
+        buffer.recycle();
+        buffer.recycle(); // 回收多次是无害的
+        assertEquals(2, s1.getRefCount());
+        s1.recycle();
+        assertEquals(1, s2.getRefCount());
+
+        // s2还在用，它的内存不能被重用
+        List<NioBuffer> others = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            others.add(allocate(200, 300));
+        for (int i = 0; i < 10; i++)
+            assertEquals(10 + i, s2.getUnsignedByte(i));
+        for (NioBuffer b : others)
+            b.recycle();
+
+        s2.recycle();
+        assertEquals(0, s2.getRefCount());
+    }
+
+    private void testComposite() {
+        NioBuffer a = allocate(0, 10);
+        NioBuffer b = allocate(10, 20);
+        NetBuffer c = a.appendBuffer(b);
+        assertTrue(c instanceof NioCompositeBuffer);
+        assertEquals(20, c.length());
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, c.getUnsignedByte(i));
+        // 倒着读也要对
+        for (int i = 19; i >= 0; i--)
+            assertEquals(i, c.getUnsignedByte(i));
+
+        // 跨两个buffer的slice不复制数据
+        NetBuffer slice = c.slice(5, 15);
+        assertEquals(10, slice.length());
+        for (int i = 0; i < 10; i++)
+            assertEquals(5 + i, slice.getUnsignedByte(i));
+        assertEquals(2, a.getRefCount());
+        assertEquals(2, b.getRefCount());
+
+        // getBuffer会复制数据，跟原来的buffer无关
+        NetBuffer copy = c.getBuffer(3, 17);
+        assertEquals(14, copy.length());
+        c.recycle();
+        assertEquals(1, a.getRefCount());
+        assertEquals(1, b.getRefCount());
+        slice.recycle();
+        assertEquals(0, a.getRefCount());
+        assertEquals(0, b.getRefCount());
+        for (int i = 0; i < 14; i++)
+            assertEquals(3 + i, copy.getUnsignedByte(i));
+        copy.recycle();
+    }
+
+    // 追加的数据不会写到从网络读到的buffer中
+    private void testCompositeAppend() {
+        NioBuffer a = allocate(0, 10);
+        NioBuffer b = allocate(10, 20);
+        NetBuffer c = a.appendBuffer(b);
+        c.appendByte((byte) 20);
+        c.appendInt(0x15161718);
+        c.appendBytes(new byte[] { 0, 25, 26, 0 }, 1, 2);
+        c.setByte(0, (byte) 100);
+        c.setByte(21, (byte) 101);
+        c.flip();
+        assertEquals(27, c.length());
+        assertEquals(100, c.getUnsignedByte(0));
+        assertEquals(101, c.getUnsignedByte(21));
+        for (int i = 1; i < 27; i++) {
+            if (i != 21)
+                assertEquals(i, c.getUnsignedByte(i));
+        }
+        assertEquals(10, b.length());
+
+        // flip之后再追加会放到新的buffer中
+        c.appendBuffer(allocate(27, 30));
+        c.appendByte((byte) 30);
+        c.flip();
+        assertEquals(31, c.length());
+        NetBuffer copy = c.getBuffer(18, 31);
+        for (int i = 0; i < 13; i++) {
+            if (i + 18 != 21)
+                assertEquals(18 + i, copy.getUnsignedByte(i));
+        }
+        copy.recycle();
+        c.recycle();
+        assertEquals(0, a.getRefCount());
+        assertEquals(0, b.getRefCount());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.lealone.net.nio.NioNetServer;
+import org.lealone.test.TestBase;
+import org.lealone.test.TestBase.MainTest;
+import org.lealone.test.net.NioNetServerTest.EchoConnectionManager;
+
+// 几个活跃的客户端不停地发一个小消息然后等回显，同时开着大量空闲连接，
+// 看空闲连接的个数和事件循环的个数对往返延迟的影响
+public class NioEchoPerfTest extends TestBase implements MainTest {
+
+    public static void main(String[] args) throws Exception {
+        new NioEchoPerfTest().run();
+    }
+
+    private static final int ACTIVE_CLIENT_COUNT = 4;
+    private static final int ROUND_TRIP_COUNT = 3000;
+    private static final int IDLE_CONNECTION_COUNT = 3000;
+    private static final int MESSAGE_SIZE = 64;
+
+    public void run() throws Exception {
+        int[] eventLoopCounts = { 1, 4 };
+        for (int eventLoopCount : eventLoopCounts) {
+            for (int idleCount : new int[] { 0, IDLE_CONNECTION_COUNT }) {
+                // 先预热一轮
+                run(eventLoopCount, idleCount, false);
+                run(eventLoopCount, idleCount, true);
+            }
+        }
+    }
+
+    private void run(int eventLoopCount, int idleCount, boolean print) throws Exception {
+        EchoConnectionManager cm = new EchoConnectionManager(null);
+        NioNetServer server = NioNetServerTest.startEchoServer(eventLoopCount, cm);
+        List<Socket> idleSockets = new ArrayList<>(idleCount);
+        try {
+            for (int i = 0; i < idleCount; i++) {
+                idleSockets.add(new Socket("127.0.0.1", server.getPort()));
+                // 等server接收完再继续连，超过listen的backlog后SYN会被丢弃，客户端要等重传
+                if (i % 32 == 31) {
+                    while (cm.getConnectionCount() <= i)
+                        Thread.sleep(1);
+                }
+            }
+            Thread[] threads = new Thread[ACTIVE_CLIENT_COUNT];
+            CountDownLatch latch = new CountDownLatch(1);
+            for (int i = 0; i < ACTIVE_CLIENT_COUNT; i++) {
+                Socket socket = new Socket("127.0.0.1", server.getPort());
+                socket.setTcpNoDelay(true);
+                threads[i] = new Thread(() -> {
+                    try {
+                        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        byte[] message = new byte[MESSAGE_SIZE];
+                        latch.await();
+                        for (int j = 0; j < ROUND_TRIP_COUNT; j++) {
+                            out.write(message);
+                            out.flush();
+                            in.readFully(message);
+                        }
+                        socket.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                threads[i].start();
+            }
+            long t1 = System.nanoTime();
+            latch.countDown();
+            for (Thread t : threads)
+                t.join();
+            long t2 = System.nanoTime();
+            if (print)
+                System.out.println("event loops: " + eventLoopCount + ", idle connections: " + idleCount
+                        + ", active clients: " + ACTIVE_CLIENT_COUNT + ", round trips: " + ROUND_TRIP_COUNT
+                        + ", time: " + (t2 - t1) / 1000_000 + " ms");
+        } finally {
+            for (Socket socket : idleSockets)
+                socket.close();
+            server.stop();
+        }
+    }
+}
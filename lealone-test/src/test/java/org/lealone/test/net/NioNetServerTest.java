@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.net.AsyncConnection;
+import org.lealone.net.AsyncConnectionManager;
+import org.lealone.net.NetBuffer;
+import org.lealone.net.WritableChannel;
+import org.lealone.net.nio.NioBuffer;
+import org.lealone.net.nio.NioNetServer;
+import org.lealone.test.TestBase;
+
+// 多个事件循环时每个连接固定在一个事件循环线程中读写，
+// 多个客户端并发收发时各自收到的都是自己的响应，并且顺序不乱
+public class NioNetServerTest extends TestBase {
+
+    @Test
+    public void testSingleEventLoop() throws Exception {
+        EchoConnectionManager cm = new EchoConnectionManager(null);
+        NioNetServer server = startEchoServer(1, cm);
+        try {
+            runClients(server.getPort(), 4, 200, 1024, 0);
+            Set<String> threads = cm.getThreadNames();
+            assertEquals(1, threads.size());
+            assertEquals("ServerNioEventLoopService-" + server.getPort(), threads.iterator().next());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultipleEventLoops() throws Exception {
+        int eventLoopCount = 4;
+        int clientCount = eventLoopCount * 2;
+        EchoConnectionManager cm = new EchoConnectionManager(null);
+        NioNetServer server = startEchoServer(eventLoopCount, cm);
+        try {
+            runClients(server.getPort(), clientCount, 500, 4096, 0);
+            assertEquals(clientCount, cm.conns.size());
+            // 连接是轮流分配的，每个事件循环正好分到两个连接，并且一直在同一个线程中读
+            Map<String, Integer> counts = new HashMap<>();
+            for (EchoConnection conn : cm.conns) {
+                assertNull(conn.error.get());
+                assertEquals(1, conn.threadNames.size());
+                counts.merge(conn.threadNames.iterator().next(), 1, Integer::sum);
+            }
+            assertEquals(eventLoopCount, counts.size());
+            for (Map.Entry<String, Integer> e : counts.entrySet()) {
+                assertTrue(e.getKey().startsWith("ServerNioEventLoop-" + server.getPort() + "-"));
+                assertEquals(2, e.getValue().intValue());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    // 响应在其他线程中写(类似调度线程)，客户端先不读，让服务器端的发送缓冲区写满，
+    // 这时剩下的数据要交给事件循环在OP_WRITE就绪时写，跟生产者线程直接写的数据交替进行也不能乱序
+    @Test
+    public void testWriteFromOtherThreads() throws Exception {
+        ExecutorService[] writers = new ExecutorService[3];
+        for (int i = 0; i < writers.length; i++)
+            writers[i] = Executors.newSingleThreadExecutor();
+        EchoConnectionManager cm = new EchoConnectionManager(writers);
+        NioNetServer server = startEchoServer(4, cm);
+        try {
+            runClients(server.getPort(), 8, 500, 16 * 1024, 300);
+            for (EchoConnection conn : cm.conns)
+                assertNull(conn.error.get());
+        } finally {
+            server.stop();
+            for (ExecutorService writer : writers)
+                writer.shutdownNow();
+        }
+    }
+
+    // 客户端一直不读，服务器端积压了很多还没写出去的buffer，这时关闭连接，这些buffer也要放回池中
+    @Test
+    public void testRecycleOnClose() throws Exception {
+        EchoConnectionManager cm = new EchoConnectionManager(null);
+        NioNetServer server = startEchoServer(2, cm);
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            socket.setReceiveBufferSize(4 * 1024);
+            byte[] data = new byte[4 * 1024 * 1024];
+            socket.getOutputStream().write(data);
+            socket.getOutputStream().flush();
+            EchoConnection conn = cm.conns.get(0);
+            long end = System.currentTimeMillis() + 10 * 1000;
+            while (conn.receivedBytes.get() < data.length && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertEquals(data.length, conn.receivedBytes.get());
+
+            assertTrue(getPendingCount(conn) > 0);
+            conn.close();
+            // 事件循环线程可能正在写，由它释放锁之后回收
+            end = System.currentTimeMillis() + 10 * 1000;
+            while (getPendingCount(conn) > 0 && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertEquals(0, getPendingCount(conn));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static int getPendingCount(EchoConnection conn) {
+        int count = 0;
+        for (NioBuffer buffer : conn.buffers) {
+            if (buffer.getRefCount() > 0)
+                count++;
+        }
+        return count;
+    }
+
+    static NioNetServer startEchoServer(int eventLoopCount, AsyncConnectionManager cm) throws IOException {
+        Map<String, String> config = new HashMap<>();
+        config.put("host", "127.0.0.1");
+        config.put("port", String.valueOf(getFreePort()));
+        config.put("server_nio_event_loop_count", String.valueOf(eventLoopCount));
+        config.put("server_nio_event_loop_interval", "100");
+        NioNetServer server = new NioNetServer();
+        server.init(config);
+        server.setConnectionManager(cm);
+        server.start();
+        return server;
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    // 每个客户端一个线程写一个线程读，读到的必须是自己按顺序发出的消息
+    private static void runClients(int port, int clientCount, int messageCount, int maxMessageSize,
+            long readDelay) throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            int clientId = i;
+            Socket socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            sockets.add(socket);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            threads.add(new Thread(() -> {
+                try {
+                    Random random = new Random(clientId);
+                    for (int seq = 0; seq < messageCount; seq++) {
+                        int size = random.nextInt(maxMessageSize) + 1;
+                        out.writeInt(size);
+                        out.writeInt(clientId);
+                        out.writeInt(seq);
+                        out.write(createPayload(clientId, seq, size));
+                    }
+                    out.flush();
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }, "EchoClientWriter-" + i));
+            threads.add(new Thread(() -> {
+                try {
+                    if (readDelay > 0)
+                        Thread.sleep(readDelay);
+                    Random random = new Random(clientId);
+                    for (int seq = 0; seq < messageCount; seq++) {
+                        int size = random.nextInt(maxMessageSize) + 1;
+                        assertEquals(size, in.readInt());
+                        assertEquals(clientId, in.readInt());
+                        assertEquals(seq, in.readInt());
+                        byte[] payload = new byte[size];
+                        in.readFully(payload);
+                        assertArrayEquals(createPayload(clientId, seq, size), payload);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }, "EchoClientReader-" + i));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join(60 * 1000);
+        for (Socket socket : sockets)
+            socket.close();
+        for (Thread t : threads)
+            assertFalse(t.getName() + " is still running", t.isAlive());
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+
+    private static byte[] createPayload(int clientId, int seq, int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++)
+            payload[i] = (byte) (clientId * 31 + seq + i);
+        return payload;
+    }
+
+    static class EchoConnectionManager implements AsyncConnectionManager {
+
+        // 客户端关闭后也不删除，测试结束时还要检查
+        final List<EchoConnection> conns = new ArrayList<>();
+        private final ExecutorService[] writers;
+
+        EchoConnectionManager(ExecutorService[] writers) {
+            this.writers = writers;
+        }
+
+        @Override
+        public synchronized AsyncConnection createConnection(WritableChannel writableChannel, boolean isServer) {
+            ExecutorService writer = writers == null ? null : writers[conns.size() % writers.length];
+            EchoConnection conn = new EchoConnection(writableChannel, writer);
+            conns.add(conn);
+            return conn;
+        }
+
+        @Override
+        public void removeConnection(AsyncConnection conn) {
+            conn.close();
+        }
+
+        synchronized int getConnectionCount() {
+            return conns.size();
+        }
+
+        synchronized Set<String> getThreadNames() {
+            Set<String> names = new HashSet<>();
+            for (EchoConnection conn : conns)
+                names.addAll(conn.threadNames);
+            return names;
+        }
+    }
+
+    // 收到什么就原样写回去，writer不为null时在writer线程中写
+    static class EchoConnection extends AsyncConnection {
+
+        final Set<String> threadNames = ConcurrentHashMap.newKeySet();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final ConcurrentLinkedQueue<NioBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicLong receivedBytes = new AtomicLong();
+        private final ExecutorService writer;
+
+        EchoConnection(WritableChannel writableChannel, ExecutorService writer) {
+            super(writableChannel, true);
+            this.writer = writer;
+        }
+
+        @Override
+        public void handle(NetBuffer buffer) {
+            threadNames.add(Thread.currentThread().getName());
+            buffers.add((NioBuffer) buffer);
+            receivedBytes.addAndGet(buffer.length());
+            if (writer == null) {
+                writableChannel.write(buffer);
+            } else {
+                writer.execute(() -> {
+                    try {
+                        writableChannel.write(buffer);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.lealone.net.TransferConnection;
+import org.lealone.net.TransferInputStream;
+import org.lealone.net.TransferOutputStream;
+import org.lealone.net.nio.NioBuffer;
+import org.lealone.net.nio.NioBufferPool;
+import org.lealone.test.TestBase;
+
+// 协议包跨了多次读时的拆包，以及所有buffer最后都要回收
+public class TransferConnectionTest extends TestBase {
+
+    private static class MyConnection extends TransferConnection {
+
+        final List<String> packets = new ArrayList<>();
+
+        MyConnection() {
+            super(null, true);
+        }
+
+        @Override
+        protected void handleRequest(TransferInputStream in, int packetId, int packetType) throws IOException {
+            packets.add(packetId + ":" + packetType + ":" + in.readString());
+            in.closeInputStream();
+        }
+    }
+
+    @Test
+    public void run() throws Exception {
+        int packetCount = 50;
+        byte[] data = createPackets(packetCount);
+        // 每次读到的字节数，从一个字节到一次读到所有的包
+        int[] steps = { 1, 2, 3, 4, 5, 7, 13, 100, 1000, 1024, 4096, data.length };
+        for (int step : steps) {
+            MyConnection conn = new MyConnection();
+            List<NioBuffer> buffers = new ArrayList<>();
+            for (int pos = 0; pos < data.length; pos += step) {
+                int len = Math.min(step, data.length - pos);
+                NioBuffer buffer = NioBufferPool.allocate(len);
+                buffer.appendBytes(data, pos, len);
+                buffers.add(buffer);
+                conn.handle(buffer.flip());
+            }
+            assertEquals(packetCount, conn.packets.size());
+            for (int i = 0; i < packetCount; i++)
+                assertEquals(i + ":" + i % 7 + ":" + getPacketString(i), conn.packets.get(i));
+            for (NioBuffer buffer : buffers)
+                assertEquals("step: " + step, 0, buffer.getRefCount());
+        }
+    }
+
+    private static String getPacketString(int i) {
+        StringBuilder buff = new StringBuilder("p" + i);
+        for (int j = i * 37 % 300; j > 0; j--)
+            buff.append('x');
+        return buff.toString();
+    }
+
+    // 格式: 包长度 REQUEST packetId packetType string
+    private static byte[] createPackets(int count) throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(all);
+        for (int i = 0; i < count; i++) {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            DataOutputStream packetOut = new DataOutputStream(packet);
+            packetOut.writeByte(TransferOutputStream.REQUEST);
+            packetOut.writeInt(i);
+            packetOut.writeInt(i % 7);
+            String s = getPacketString(i);
+            packetOut.writeInt(s.length());
+            packetOut.writeChars(s);
+            out.writeInt(packet.size());
+            out.write(packet.toByteArray());
+        }
+        return all.toByteArray();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.server;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.lealone.client.jdbc.JdbcConnection;
+import org.lealone.db.session.ServerSession;
+import org.lealone.server.ScheduleService;
+import org.lealone.server.Scheduler;
+import org.lealone.server.SessionInfo;
+import org.lealone.test.sql.SqlTestBase;
+
+public class SchedulerTest extends SqlTestBase {
+
+    public SchedulerTest() {
+        super("SchedulerTest");
+        initTransactionEngine();
+        setEmbedded(true);
+    }
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("CREATE TABLE IF NOT EXISTS SchedulerTest (pk int primary key, f1 int)");
+        executeUpdate("DELETE FROM SchedulerTest");
+        testPlacement();
+        testIdleScheduler();
+        testIdleSession();
+        testMBean();
+    }
+
+    private static Scheduler[] createSchedulers(int count, Map<String, String> config) {
+        Scheduler[] schedulers = new Scheduler[count];
+        for (int i = 0; i < count; i++) {
+            schedulers[i] = new Scheduler(i, config);
+        }
+        return schedulers;
+    }
+
+    // 新的session放到负载最轻的调度器，负载一样时按轮循的顺序选
+    private void testPlacement() {
+        Scheduler[] schedulers = createSchedulers(3, new HashMap<>());
+        for (int i = 0; i < 6; i++) {
+            assertSame(schedulers[i % 3], ScheduleService.getSchedulerForSession(schedulers, i));
+        }
+
+        // 调度器还没有启动，任务会一直排队
+        for (int i = 0; i < 3; i++) {
+            schedulers[0].handle(() -> {
+            });
+        }
+        schedulers[1].handle(() -> {
+        });
+        assertEquals(3, schedulers[0].getQueuedTaskCount());
+        assertEquals(3, schedulers[0].getLoad());
+        for (int i = 0; i < 3; i++) {
+            assertSame(schedulers[2], ScheduleService.getSchedulerForSession(schedulers, i));
+        }
+        assertTrue(schedulers[1].getWeightedLoad() < schedulers[0].getWeightedLoad());
+    }
+
+    // 只有繁忙程度低于阈值的调度器才能接收迁移过来的session
+    private void testIdleScheduler() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("scheduler_sample_interval", "10");
+        config.put("scheduler_loop_interval", "10");
+        Scheduler[] schedulers = createSchedulers(2, config);
+        // 第一个调度器启动后一直在等待，第二个调度器没有启动，看起来就像卡在一个任务中了
+        schedulers[0].start();
+        try {
+            Thread.sleep(100);
+            assertEquals(100, schedulers[1].getUtilization());
+            assertTrue(schedulers[0].getUtilization() < 50);
+            assertSame(schedulers[0], ScheduleService.getIdleScheduler(schedulers, null, 50));
+            assertSame(schedulers[0], ScheduleService.getIdleScheduler(schedulers, schedulers[1], 50));
+            assertNull(ScheduleService.getIdleScheduler(schedulers, schedulers[0], 50));
+        } finally {
+            schedulers[0].end();
+            schedulers[0].join();
+        }
+    }
+
+    // 有未结束的事务或者异步提交的回调还没有执行完时，session不能迁移
+    private void testIdleSession() throws Exception {
+        Scheduler[] schedulers = createSchedulers(2, new HashMap<>());
+        Connection conn = getConnection();
+        try {
+            ServerSession session = (ServerSession) ((JdbcConnection) conn).getSession();
+            SessionInfo si = new SessionInfo(schedulers[0], null, session, 1, 0);
+            assertEquals(1, schedulers[0].getSessionCount());
+            assertTrue(si.isIdle());
+
+            conn.setAutoCommit(false);
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("INSERT INTO SchedulerTest VALUES(1, 1)");
+            assertTrue(session.hasTransaction());
+            assertFalse(si.isIdle());
+            conn.commit();
+            assertTrue(si.isIdle());
+
+            // 日志同步线程先把session的事务设为null，再执行回调给客户端返回结果，
+            // 在回调执行完之前session还不是空闲的
+            stmt.executeUpdate("INSERT INTO SchedulerTest VALUES(2, 2)");
+            CountDownLatch callbackStarted = new CountDownLatch(1);
+            CountDownLatch callbackDone = new CountDownLatch(1);
+            Thread committer = new Thread(() -> session.asyncCommit(() -> {
+                callbackStarted.countDown();
+                try {
+                    callbackDone.await();
+                } catch (InterruptedException e) {
+                }
+            }));
+            committer.start();
+            callbackStarted.await();
+            assertFalse(session.hasTransaction());
+            assertTrue(session.hasPendingAsyncCommit());
+            assertFalse(si.isIdle());
+            callbackDone.countDown();
+            committer.join();
+            assertFalse(session.hasPendingAsyncCommit());
+            assertTrue(si.isIdle());
+
+            si.migrateTo(schedulers[1]);
+            assertSame(schedulers[1], si.getScheduler());
+            assertSame(schedulers[1], session.getTransactionListener());
+            assertEquals(0, schedulers[0].getSessionCount());
+            assertEquals(1, schedulers[1].getSessionCount());
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    // ScheduleService启动时会把每个调度器注册成MBean
+    private void testMBean() throws Exception {
+        Scheduler scheduler = createSchedulers(1, new HashMap<>())[0];
+        scheduler.handle(() -> {
+        });
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ScheduleService.JMX_OBJECT_NAME_PREFIX + "SchedulerTest");
+        mbs.registerMBean(scheduler, name);
+        try {
+            assertEquals(1L, mbs.getAttribute(name, "QueuedTaskCount"));
+            assertEquals(0, mbs.getAttribute(name, "SessionCount"));
+            assertEquals(0L, mbs.getAttribute(name, "MigratedSessionCount"));
+            assertNotNull(mbs.getAttribute(name, "Utilization"));
+        } finally {
+            mbs.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.index;
+
+import org.junit.Test;
+import org.lealone.client.jdbc.JdbcConnection;
+import org.lealone.db.Constants;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.db.index.Index;
+import org.lealone.db.session.ServerSession;
+import org.lealone.test.sql.SqlTestBase;
+
+public class IndexBulkLoadTest extends SqlTestBase {
+
+    public IndexBulkLoadTest() {
+        super("IndexBulkLoadTest");
+        initTransactionEngine();
+        setEmbedded(true);
+    }
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS IndexBulkLoadTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS IndexBulkLoadTest (pk int primary key, f1 int, f2 varchar)");
+        int count = 3000;
+        for (int i = 1; i <= count; i++) {
+            executeUpdate("INSERT INTO IndexBulkLoadTest VALUES(" + i + ", " + (i % 100) + ", 'v" + (count - i) + "')");
+        }
+
+        // 所有记录都在一个buffer中
+        executeUpdate("CREATE INDEX IF NOT EXISTS IndexBulkLoadTest_i1 ON IndexBulkLoadTest(f1)");
+        sql = "SELECT count(*) FROM IndexBulkLoadTest WHERE f1 = 10";
+        assertEquals(count / 100, getIntValue(1, true));
+        assertEquals(count, getIndexRowCount("IndexBulkLoadTest_i1"));
+
+        // 先写到多个buffer，再归并
+        executeUpdate("SET MAX_MEMORY_ROWS 200");
+        executeUpdate("CREATE INDEX IF NOT EXISTS IndexBulkLoadTest_i2 ON IndexBulkLoadTest(f2 DESC, f1)");
+        sql = "SELECT f2 FROM IndexBulkLoadTest ORDER BY f2 DESC LIMIT 1";
+        assertEquals("v999", getStringValue(1, true));
+        sql = "SELECT pk FROM IndexBulkLoadTest WHERE f2 = 'v10'";
+        assertEquals(count - 10, getIntValue(1, true));
+        assertEquals(count, getIndexRowCount("IndexBulkLoadTest_i2"));
+
+        executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS IndexBulkLoadTest_ui ON IndexBulkLoadTest(f2)");
+        sql = "CREATE UNIQUE INDEX IF NOT EXISTS IndexBulkLoadTest_ui2 ON IndexBulkLoadTest(f1)";
+        executeUpdateThanAssertErrorCode(sql, ErrorCode.DUPLICATE_KEY_1);
+        executeUpdate("SET MAX_MEMORY_ROWS 100000");
+        sql = "CREATE UNIQUE INDEX IF NOT EXISTS IndexBulkLoadTest_ui3 ON IndexBulkLoadTest(f1)";
+        executeUpdateThanAssertErrorCode(sql, ErrorCode.DUPLICATE_KEY_1);
+
+        // 索引建好后还能继续写
+        executeUpdate("INSERT INTO IndexBulkLoadTest VALUES(" + (count + 1) + ", 10, 'x')");
+        sql = "SELECT count(*) FROM IndexBulkLoadTest WHERE f1 = 10";
+        assertEquals(count / 100 + 1, getIntValue(1, true));
+        assertEquals(count + 1, getIndexRowCount("IndexBulkLoadTest_i1"));
+        sql = "INSERT INTO IndexBulkLoadTest VALUES(" + (count + 2) + ", 10, 'v1')";
+        executeUpdateThanAssertErrorCode(sql, ErrorCode.DUPLICATE_KEY_1);
+    }
+
+    // 索引的记录数不是扫描出来的，bulk load之后也要对得上
+    private long getIndexRowCount(String indexName) {
+        ServerSession session = (ServerSession) ((JdbcConnection) conn).getSession();
+        Index index = session.getDatabase().getSchema(session, Constants.SCHEMA_MAIN).getIndex(session,
+                indexName.toUpperCase());
+        return index.getRowCount(session);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.transaction;
+
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+// 回滚到保存点时释放了保存点之后加的行锁，等待这些行的事务要马上被唤醒，而不是等到锁超时或者事务结束
+public class SavepointLockTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS SavepointLockTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS SavepointLockTest(pk int PRIMARY KEY, f1 int)");
+        executeUpdate("INSERT INTO SavepointLockTest(pk, f1) VALUES(1, 1)");
+        executeUpdate("INSERT INTO SavepointLockTest(pk, f1) VALUES(2, 1)");
+
+        conn.setAutoCommit(false);
+        executeUpdate("UPDATE SavepointLockTest SET f1 = 2 WHERE pk = 2");
+        Savepoint savepoint = conn.setSavepoint();
+        executeUpdate("UPDATE SavepointLockTest SET f1 = 2 WHERE pk = 1");
+
+        CountDownLatch updated = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try (Connection conn2 = getConnection(); Statement stmt2 = conn2.createStatement()) {
+                stmt2.executeUpdate("SET LOCK_TIMEOUT = 10000");
+                stmt2.executeUpdate("UPDATE SavepointLockTest SET f1 = 3 WHERE pk = 1");
+                updated.countDown();
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        t.start();
+        // 等conn2进入等待状态
+        assertFalse(updated.await(500, TimeUnit.MILLISECONDS));
+
+        conn.rollback(savepoint);
+        // pk = 1 的锁已经释放了，不需要等到conn提交
+        assertTrue(updated.await(5000, TimeUnit.MILLISECONDS));
+        assertNull(error.get());
+
+        conn.commit();
+        conn.setAutoCommit(true);
+        t.join();
+        sql = "SELECT f1 FROM SavepointLockTest WHERE pk = 1";
+        assertEquals(3, getIntValue(1, true));
+        sql = "SELECT f1 FROM SavepointLockTest WHERE pk = 2";
+        assertEquals(2, getIntValue(1, true));
+    }
+}